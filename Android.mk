@@ -33,11 +33,37 @@ LOCAL_JAVA_LIBRARIES := ddmlib-prebuilt emmalib
 
 include $(BUILD_HOST_JAVA_LIBRARY)
 
+# adds an index of the entries of given jar to the jar, so tradefed can find
+# configs and classes on the classpath without enumerating every jar entry.
+# Must match ClassPathScanner.INDEX_PATH and INDEX_HEADER
+TRADEFED_CLASSPATH_INDEX := META-INF/tradefed/classpath.idx
+define add-tradefed-classpath-index
+$(hide) rm -rf $(1).index && mkdir -p $(dir $(1).index/$(TRADEFED_CLASSPATH_INDEX))
+$(hide) (echo "# tradefed classpath index v1" && $(JAR) tf $(1)) \
+    > $(1).index/$(TRADEFED_CLASSPATH_INDEX)
+$(hide) $(JAR) uf $(1) -C $(1).index $(TRADEFED_CLASSPATH_INDEX)
+$(hide) rm -rf $(1).index
+endef
+
+# replaces the WifiUtil.apk resource of given jar with the apk built from util-apps/WifiUtil,
+# so the WifiUtil session protocol of WifiHelper always matches the one of the device side.
+# Must match the resource path in WifiHelper.extractWifiUtilApk
+TRADEFED_WIFIUTIL_APK_PATH := apks/wifiutil/WifiUtil.apk
+TRADEFED_WIFIUTIL_APK := $(call intermediates-dir-for,APPS,WifiUtil)/package.apk
+define add-tradefed-wifiutil-apk
+$(hide) rm -rf $(1).wifiutil && mkdir -p $(dir $(1).wifiutil/$(TRADEFED_WIFIUTIL_APK_PATH))
+$(hide) cp $(TRADEFED_WIFIUTIL_APK) $(1).wifiutil/$(TRADEFED_WIFIUTIL_APK_PATH)
+$(hide) $(JAR) uf $(1) -C $(1).wifiutil $(TRADEFED_WIFIUTIL_APK_PATH)
+$(hide) rm -rf $(1).wifiutil
+endef
+
 # makefile rules to copy jars to HOST_OUT/tradefed
 # so tradefed.sh can automatically add to classpath
 DEST_JAR := $(HOST_OUT)/tradefed/$(LOCAL_MODULE).jar
-$(DEST_JAR): $(LOCAL_BUILT_MODULE)
+$(DEST_JAR): $(LOCAL_BUILT_MODULE) $(TRADEFED_WIFIUTIL_APK)
 	$(copy-file-to-new-target)
+	$(call add-tradefed-wifiutil-apk,$@)
+	$(call add-tradefed-classpath-index,$@)
 
 # this dependency ensure the above rule will be executed if jar is built
 $(LOCAL_INSTALLED_MODULE) : $(DEST_JAR)
@@ -35,6 +35,7 @@ include $(BUILD_HOST_JAVA_LIBRARY)
 DEST_JAR := $(HOST_OUT)/tradefed/$(LOCAL_MODULE).jar
 $(DEST_JAR): $(LOCAL_BUILT_MODULE)
 	$(copy-file-to-new-target)
+	$(call add-tradefed-classpath-index,$@)
 
 # this dependency ensure the above rule will be executed if jar is built
 $(LOCAL_INSTALLED_MODULE) : $(DEST_JAR)
@@ -27,18 +27,27 @@ import com.android.loganalysis.item.NativeCrashItem;
 import com.android.loganalysis.parser.BugreportParser;
 import com.android.loganalysis.parser.MonkeyLogParser;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.CrashSignatureIndex;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.util.StreamUtil;
 import com.google.common.base.Throwables;
 
 import junit.framework.Assert;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -74,13 +83,54 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
         }
     }
 
+    /**
+     * A log held back until the crash signatures of the run are known.
+     */
+    private static class HeldLog {
+        final String mDataName;
+        final LogDataType mDataType;
+        final InputStreamSource mSource;
+
+        HeldLog(String dataName, LogDataType dataType, InputStreamSource source) {
+            mDataName = dataName;
+            mDataType = dataType;
+            mSource = source;
+        }
+    }
+
+    static final String CRASH_REFERENCE_NAME = "crash_reference";
+    private static final String SYSTEM_LOG_SECTION = "------ SYSTEM LOG";
+    private static final String SECTION_PREFIX = "------ ";
+    private static final String BUILD_FINGERPRINT = "Build fingerprint:";
+
     private BugreportItem mBugreport = null;
     private MonkeyLogItem mMonkeyLog = null;
     private final long mMonkeyTimeoutMs;
+    private final CrashSignatureIndex mCrashIndex;
+    private final int mDeltaLogLines;
+    private final List<HeldLog> mHeldLogs = new ArrayList<HeldLog>();
 
     public MonkeyBrillopadForwarder(ITestInvocationListener listener, long monkeyTimeoutMs) {
+        this(listener, monkeyTimeoutMs, null, 0);
+    }
+
+    /**
+     * Creates a {@link MonkeyBrillopadForwarder} that deduplicates crash artifacts.
+     * <p/>
+     * Logs are held back until the end of the test. If the run hit a crash that is already in the
+     * index, only the monkey log and a compact reference to the known crash are forwarded.
+     * Otherwise all logs are forwarded, and stored in the index for any new crash signature.
+     *
+     * @param crashIndex the {@link CrashSignatureIndex} to use, or <code>null</code> to forward
+     *            all logs as they are received
+     * @param deltaLogLines the number of trailing system log lines to keep for a known crash
+     */
+    public MonkeyBrillopadForwarder(ITestInvocationListener listener, long monkeyTimeoutMs,
+            CrashSignatureIndex crashIndex, int deltaLogLines) {
         super(listener);
         mMonkeyTimeoutMs = monkeyTimeoutMs;
+        mCrashIndex = crashIndex;
+        mDeltaLogLines = deltaLogLines;
     }
 
     /**
@@ -88,6 +138,20 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
      */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        boolean held = false;
+        if (mCrashIndex != null) {
+            // the caller cancels the source once this returns, so keep a copy
+            InputStream stream = dataStream.createInputStream();
+            if (stream != null) {
+                try {
+                    dataStream = new SnapshotInputStreamSource(stream);
+                } finally {
+                    StreamUtil.close(stream);
+                }
+                mHeldLogs.add(new HeldLog(dataName, dataType, dataStream));
+                held = true;
+            }
+        }
         try {
             // just parse the logs for now. Forwarding of results will happen on test completion
             if (dataName.startsWith(MonkeyBase.BUGREPORT_NAME)) {
@@ -103,7 +167,9 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
         } catch (IOException e) {
             CLog.e("Could not parse file %s", dataName);
         }
-        super.testLog(dataName, dataType, dataStream);
+        if (!held) {
+            super.testLog(dataName, dataType, dataStream);
+        }
     }
 
     /**
@@ -140,10 +206,181 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
         } catch (RuntimeException e) {
             super.testFailed(TestFailure.ERROR, monkeyTest, Throwables.getStackTraceAsString(e));
         } finally {
+            if (mCrashIndex != null) {
+                forwardHeldLogs(monkeyMetrics);
+            }
             super.testEnded(monkeyTest, monkeyMetrics);
         }
     }
 
+    /**
+     * Record the crashes of the run in the crash index, and forward or store the held logs
+     * depending on whether the crashes were seen before.
+     */
+    private void forwardHeldLogs(Map<String, String> metrics) {
+        try {
+            List<CrashSignatureIndex.Entry> entries = recordCrashes();
+            boolean knownCrash = !entries.isEmpty();
+            StringBuilder signatures = new StringBuilder();
+            for (CrashSignatureIndex.Entry entry : entries) {
+                knownCrash &= !entry.isFirstOccurrence();
+                if (signatures.length() > 0) {
+                    signatures.append(",");
+                }
+                signatures.append(entry.getSignature());
+            }
+            if (!entries.isEmpty()) {
+                metrics.put("crash_signatures", signatures.toString());
+            }
+            for (HeldLog log : mHeldLogs) {
+                if (!knownCrash || log.mDataName.startsWith(MonkeyBase.MONKEY_LOG_NAME)) {
+                    super.testLog(log.mDataName, log.mDataType, log.mSource);
+                }
+                if (!knownCrash) {
+                    storeArtifact(entries, log);
+                }
+            }
+            if (knownCrash) {
+                forwardReference(entries);
+            }
+        } finally {
+            for (HeldLog log : mHeldLogs) {
+                log.mSource.cancel();
+            }
+            mHeldLogs.clear();
+        }
+    }
+
+    /**
+     * Record the java crash, ANR and native crashes of the run in the crash index.
+     */
+    private List<CrashSignatureIndex.Entry> recordCrashes() {
+        List<CrashSignatureIndex.Entry> entries = new LinkedList<CrashSignatureIndex.Entry>();
+        if (mMonkeyLog != null && mMonkeyLog.getCrash() instanceof AnrItem) {
+            String stack = ((AnrItem) mMonkeyLog.getCrash()).getStack();
+            if (stack != null) {
+                entries.add(mCrashIndex.recordCrash("anr", stack));
+            }
+        }
+        if (mMonkeyLog != null && mMonkeyLog.getCrash() instanceof JavaCrashItem) {
+            String stack = ((JavaCrashItem) mMonkeyLog.getCrash()).getStack();
+            if (stack != null) {
+                entries.add(mCrashIndex.recordCrash("java", stack));
+            }
+        }
+        if (mBugreport != null && mBugreport.getSystemLog() != null) {
+            for (IItem item : mBugreport.getSystemLog().getEvents()) {
+                if (item instanceof NativeCrashItem &&
+                        ((NativeCrashItem) item).getStack() != null) {
+                    entries.add(mCrashIndex.recordCrash("native",
+                            ((NativeCrashItem) item).getStack()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Store a log in the crash index for each crash signature seen for the first time.
+     */
+    private void storeArtifact(List<CrashSignatureIndex.Entry> entries, HeldLog log) {
+        for (CrashSignatureIndex.Entry entry : entries) {
+            if (!entry.isFirstOccurrence()) {
+                continue;
+            }
+            InputStream stream = log.mSource.createInputStream();
+            try {
+                mCrashIndex.saveArtifact(entry.getSignature(), String.format("%s.%s",
+                        log.mDataName, log.mDataType.getFileExt()), stream);
+            } catch (IOException e) {
+                CLog.e("Failed to store %s for crash %s: %s", log.mDataName,
+                        entry.getSignature(), e.toString());
+            } finally {
+                StreamUtil.close(stream);
+            }
+        }
+    }
+
+    /**
+     * Forward and store a compact reference to the known crashes, with the tail of the system
+     * log, instead of the full logs.
+     */
+    private void forwardReference(List<CrashSignatureIndex.Entry> entries) {
+        StringBuilder reference = new StringBuilder();
+        reference.append(String.format("Monkey run at %s hit known crashes:\n", new Date()));
+        for (CrashSignatureIndex.Entry entry : entries) {
+            reference.append(String.format("%s %s seen %d times: %s\n", entry.getType(),
+                    entry.getSignature(), entry.getCount(), entry.getTitle()));
+        }
+        String deltaLog = null;
+        for (HeldLog log : mHeldLogs) {
+            if (log.mDataName.startsWith(MonkeyBase.BUGREPORT_NAME)) {
+                deltaLog = extractSystemLogTail(log.mSource, reference);
+            }
+        }
+        reference.append(String.format("Full artifacts are in %s",
+                mCrashIndex.getRootDir().getAbsolutePath()));
+        for (CrashSignatureIndex.Entry entry : entries) {
+            try {
+                mCrashIndex.saveReference(entry.getSignature(), reference.toString(), deltaLog);
+            } catch (IOException e) {
+                CLog.e("Failed to store reference for crash %s: %s", entry.getSignature(),
+                        e.toString());
+            }
+        }
+        String contents = deltaLog == null ? reference.toString() :
+                String.format("%s\n\n%s", reference, deltaLog);
+        InputStreamSource source = new ByteArrayInputStreamSource(contents.getBytes());
+        try {
+            super.testLog(CRASH_REFERENCE_NAME, LogDataType.TEXT, source);
+        } finally {
+            source.cancel();
+        }
+    }
+
+    /**
+     * Extract the last lines of the system log section of a bugreport, and append the build
+     * fingerprint to the given reference.
+     *
+     * @return the system log lines, or <code>null</code> if they could not be read
+     */
+    private String extractSystemLogTail(InputStreamSource bugreport, StringBuilder reference) {
+        InputStream stream = bugreport.createInputStream();
+        if (stream == null) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        LinkedList<String> tail = new LinkedList<String>();
+        try {
+            boolean inSystemLog = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(BUILD_FINGERPRINT)) {
+                    reference.append(line).append("\n");
+                } else if (line.startsWith(SYSTEM_LOG_SECTION)) {
+                    inSystemLog = true;
+                } else if (line.startsWith(SECTION_PREFIX)) {
+                    inSystemLog = false;
+                } else if (inSystemLog && mDeltaLogLines > 0) {
+                    tail.add(line);
+                    if (tail.size() > mDeltaLogLines) {
+                        tail.removeFirst();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            CLog.e("Could not read system log from bugreport: %s", e.toString());
+            return null;
+        } finally {
+            StreamUtil.close(reader);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : tail) {
+            sb.append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
     /**
      * Report stats about the monkey run from the monkey log.
      */
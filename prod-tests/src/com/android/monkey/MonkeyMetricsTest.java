@@ -16,22 +16,46 @@
 
 package com.android.monkey;
 
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CrashSignatureIndex;
 import com.android.tradefed.result.ITestInvocationListener;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * A {@link MonkeyBase} specialization that uses the brillopad parser to extract and report
  * monkey related metrics.
  */
 public class MonkeyMetricsTest extends MonkeyBase {
 
+    @Option(name = "crash-index-dir", description = "Directory of a crash signature index. If " +
+            "set, the artifacts of a crash are stored once per signature, and runs hitting a " +
+            "known crash only report a compact reference to it.")
+    private File mCrashIndexDir = null;
+
+    @Option(name = "crash-delta-log-lines", description = "The number of trailing system log " +
+            "lines to report for a known crash.")
+    private int mCrashDeltaLogLines = 1000;
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        CrashSignatureIndex crashIndex = null;
+        if (mCrashIndexDir != null) {
+            try {
+                crashIndex = CrashSignatureIndex.getIndex(mCrashIndexDir);
+            } catch (IOException e) {
+                CLog.e("Could not open crash index %s, reporting all logs: %s",
+                        mCrashIndexDir.getAbsolutePath(), e.toString());
+            }
+        }
         MonkeyBrillopadForwarder brilloAnalyzer = new MonkeyBrillopadForwarder(listener,
-                getMonkeyTimeoutMs());
+                getMonkeyTimeoutMs(), crashIndex, mCrashDeltaLogLines);
         super.run(brilloAnalyzer);
     }
 }
@@ -15,9 +15,11 @@
  */
 package com.android.tradefed.build;
 
+import com.android.tradefed.build.ExtractedArchiveCache.ExtractedArchive;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.MultiMap;
+import com.android.tradefed.util.ParallelFileUtil;
 import com.android.tradefed.util.UniqueMultiMap;
 import com.google.common.base.Objects;
 
@@ -37,6 +39,9 @@ public class BuildInfo implements IBuildInfo {
     private final UniqueMultiMap<String, String> mBuildAttributes =
             new UniqueMultiMap<String, String>();
     private Map<String, VersionedFile> mVersionedFileMap;
+    /** the shared extracted archives among the files, by file name */
+    private Map<String, ExtractedArchive> mExtractedArchives =
+            new Hashtable<String, ExtractedArchive>();
     private String mBuildFlavor = null;
     private String mBuildBranch = null;
     private String mDeviceSerial = null;
@@ -150,10 +155,17 @@ public class BuildInfo implements IBuildInfo {
     protected void addAllFiles(BuildInfo build) throws IOException {
         for (Map.Entry<String, VersionedFile> fileEntry : build.getVersionedFileMap().entrySet()) {
             File origFile = fileEntry.getValue().getFile();
+            ExtractedArchive extracted = build.mExtractedArchives.get(fileEntry.getKey());
             File copyFile;
-            if (origFile.isDirectory()) {
+            if (extracted != null) {
+                // read-only, so the copy can share it
+                getExtractedArchiveCache().retain(extracted);
+                mExtractedArchives.put(fileEntry.getKey(), extracted);
+                copyFile = origFile;
+            } else if (origFile.isDirectory()) {
                 copyFile = FileUtil.createTempDir(fileEntry.getKey());
-                FileUtil.recursiveHardlink(origFile, copyFile);
+                ParallelFileUtil.recursiveHardlink(origFile, copyFile,
+                        ParallelFileUtil.getDefaultParallelism());
             } else {
                 // Only using createTempFile to create a unique dest filename
                 copyFile = FileUtil.createTempFile(fileEntry.getKey(),
@@ -214,17 +226,61 @@ public class BuildInfo implements IBuildInfo {
         mVersionedFileMap.put(name, new VersionedFile(file, version));
     }
 
+    /**
+     * Set a file of this build to the extracted contents of a zip archive, shared with the other
+     * builds that use the same archive. The extracted directory is read-only, and is released
+     * instead of deleted on {@link #cleanUp()}.
+     *
+     * @param name the name of the file
+     * @param archive the zip archive to extract
+     * @param version the file version
+     * @throws IOException if the archive could not be extracted
+     */
+    public void setExtractedArchive(String name, File archive, String version)
+            throws IOException {
+        if (mVersionedFileMap.containsKey(name)) {
+            CLog.e("Device build already contains a file for %s in thread %s", name,
+                    Thread.currentThread().getName());
+            return;
+        }
+        ExtractedArchive extracted = getExtractedArchiveCache().acquire(archive);
+        mExtractedArchives.put(name, extracted);
+        mVersionedFileMap.put(name, new VersionedFile(extracted.getDir(), version));
+    }
+
+    /**
+     * Gets the {@link ExtractedArchiveCache} to use.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    ExtractedArchiveCache getExtractedArchiveCache() {
+        return ExtractedArchiveCache.getInstance();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void cleanUp() {
+        releaseExtractedArchives();
         for (VersionedFile fileRecord : mVersionedFileMap.values()) {
             FileUtil.recursiveDelete(fileRecord.getFile());
         }
         mVersionedFileMap.clear();
     }
 
+    /**
+     * Release the shared extracted archives of this build, and remove them from its files. Other
+     * files are left untouched.
+     */
+    public void releaseExtractedArchives() {
+        for (Map.Entry<String, ExtractedArchive> entry : mExtractedArchives.entrySet()) {
+            mVersionedFileMap.remove(entry.getKey());
+            getExtractedArchiveCache().release(entry.getValue());
+        }
+        mExtractedArchives.clear();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -131,6 +131,18 @@ public class DeviceBuildInfo extends BuildInfo implements IDeviceBuildInfo {
         setFile(TESTDIR_IMAGE_NAME, testsDir, version);
     }
 
+    /**
+     * Set the tests dir to the extracted contents of a tests zip. The extracted dir is read-only,
+     * and shared with the other builds that use the same zip.
+     *
+     * @param testsZip the tests zip {@link File}
+     * @param version the version of the tests
+     * @throws IOException if the zip could not be extracted
+     */
+    public void setTestsZip(File testsZip, String version) throws IOException {
+        setExtractedArchive(TESTDIR_IMAGE_NAME, testsZip, version);
+    }
+
     /**
      * {@inheritDoc}
      */
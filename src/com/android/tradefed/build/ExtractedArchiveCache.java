@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.HostResourceGovernor;
+import com.android.tradefed.util.ParallelFileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * A process wide cache of extracted zip archives, such as device image and tests zips, shared by
+ * all the invocations that test the same build.
+ * <p/>
+ * Archives are keyed by a digest of their contents, so copies and hardlinks of the same archive
+ * share one extracted tree. Each {@link #acquire(File)} takes a reference to the tree, which is
+ * extracted by the first caller only; the tree is deleted when the last reference is released.
+ * The root dir holding the trees is deleted once no archive is referenced anymore.
+ * <p/>
+ * Shared trees are read-only. Consumers that need to modify the files must work on a private
+ * copy, made with {@link #createWritableCopy(ExtractedArchive, File)}.
+ */
+public class ExtractedArchiveCache {
+
+    /** the max size of the zip end of central directory record, including its comment */
+    private static final int MAX_EOCD_SIZE = 22 + 0xffff;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final ExtractedArchiveCache INSTANCE = new ExtractedArchiveCache();
+    }
+
+    /** the extracted archives currently referenced, by digest */
+    private final Map<String, ExtractedArchive> mArchives =
+            new HashMap<String, ExtractedArchive>();
+    /** the dir holding the extracted trees, if any. Guarded by mArchives */
+    private File mRootDir = null;
+
+    /**
+     * A reference counted extracted archive.
+     */
+    public static class ExtractedArchive {
+        private final String mDigest;
+        private final File mDir;
+        private int mRefCount = 0;
+        private boolean mExtracted = false;
+
+        ExtractedArchive(String digest, File dir) {
+            mDigest = digest;
+            mDir = dir;
+        }
+
+        /**
+         * @return the read-only directory containing the archive contents
+         */
+        public File getDir() {
+            return mDir;
+        }
+
+        /**
+         * @return the digest identifying the archive contents
+         */
+        public String getDigest() {
+            return mDigest;
+        }
+
+        /**
+         * Extract the archive, unless a previous reference already did.
+         */
+        synchronized void extract(File archive) throws IOException {
+            if (mExtracted) {
+                return;
+            }
+            HostResourceGovernor.Permit permit;
+            try {
+                permit = HostResourceGovernor.getInstance().acquire(HostResourceGovernor.DISK_IO);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(String.format(
+                        "Interrupted while waiting to extract %s", archive.getName()));
+            }
+            CLog.i("Extracting %s to shared dir %s", archive.getName(), mDir.getAbsolutePath());
+            ZipFile zipFile = null;
+            try {
+                zipFile = new ZipFile(archive);
+                ParallelFileUtil.extractZip(zipFile, mDir,
+                        ParallelFileUtil.getDefaultParallelism());
+            } catch (IOException e) {
+                deleteTree(mDir);
+                mDir.mkdirs();
+                throw e;
+            } finally {
+                FileUtil.closeZip(zipFile);
+                permit.release();
+            }
+            setTreeWritable(mDir, false);
+            mExtracted = true;
+        }
+    }
+
+    /**
+     * Creates a {@link ExtractedArchiveCache}.
+     * <p/>
+     * Exposed for unit testing. Use {@link #getInstance()} to share extracted archives.
+     */
+    ExtractedArchiveCache() {
+    }
+
+    /**
+     * Get the singleton instance of {@link ExtractedArchiveCache}.
+     */
+    public static ExtractedArchiveCache getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Take a reference to the extracted contents of given zip archive, extracting it if no other
+     * reference exists. Must be balanced by a call to {@link #release(ExtractedArchive)}.
+     *
+     * @param archive the zip {@link File}
+     * @return the {@link ExtractedArchive}
+     * @throws IOException if the archive could not be read or extracted
+     */
+    public ExtractedArchive acquire(File archive) throws IOException {
+        String digest = computeDigest(archive);
+        ExtractedArchive extracted;
+        synchronized (mArchives) {
+            extracted = mArchives.get(digest);
+            if (extracted == null) {
+                // use a unique dir, so that a tree still being deleted is never reused
+                extracted = new ExtractedArchive(digest, FileUtil.createTempDir(digest,
+                        createRootDir()));
+                mArchives.put(digest, extracted);
+            }
+            extracted.mRefCount++;
+        }
+        try {
+            // outside of the lock, so that other archives can be acquired meanwhile
+            extracted.extract(archive);
+        } catch (IOException e) {
+            release(extracted);
+            throw e;
+        }
+        return extracted;
+    }
+
+    /**
+     * Take an additional reference to an already acquired archive, e.g. for a cloned build.
+     *
+     * @param extracted the {@link ExtractedArchive} the caller holds a reference to
+     */
+    public void retain(ExtractedArchive extracted) {
+        synchronized (mArchives) {
+            if (extracted.mRefCount <= 0) {
+                throw new IllegalStateException(String.format(
+                        "Extracted archive %s was already released", extracted.getDir()));
+            }
+            extracted.mRefCount++;
+        }
+    }
+
+    /**
+     * Release a reference to an extracted archive, deleting the extracted tree if it was the last
+     * one.
+     *
+     * @param extracted the {@link ExtractedArchive} to release
+     */
+    public void release(ExtractedArchive extracted) {
+        synchronized (mArchives) {
+            if (extracted.mRefCount <= 0) {
+                CLog.w("Extracted archive %s released more than once", extracted.getDir());
+                return;
+            }
+            extracted.mRefCount--;
+            if (extracted.mRefCount > 0) {
+                return;
+            }
+            mArchives.remove(extracted.getDigest());
+        }
+        CLog.d("Deleting shared dir %s", extracted.getDir().getAbsolutePath());
+        // wait for a failed extraction to finish cleaning up before deleting
+        synchronized (extracted) {
+            deleteTree(extracted.getDir());
+        }
+        deleteRootDirIfUnused();
+    }
+
+    /**
+     * Copy the contents of an extracted archive to a directory that the caller may modify.
+     *
+     * @param extracted the {@link ExtractedArchive} the caller holds a reference to
+     * @param destDir the existing directory to copy the contents to
+     * @throws IOException if the contents could not be copied
+     */
+    public void createWritableCopy(ExtractedArchive extracted, File destDir) throws IOException {
+        ParallelFileUtil.recursiveCopy(extracted.getDir(), destDir,
+                ParallelFileUtil.getDefaultParallelism());
+        setTreeWritable(destDir, true);
+    }
+
+    /**
+     * @return the number of archives currently referenced
+     */
+    int getArchiveCount() {
+        synchronized (mArchives) {
+            return mArchives.size();
+        }
+    }
+
+    /**
+     * @return the root dir of the extracted trees, or <code>null</code> if there is none
+     */
+    File getRootDir() {
+        synchronized (mArchives) {
+            return mRootDir;
+        }
+    }
+
+    /**
+     * Get the root dir to extract trees in, creating it if needed. Must be called with
+     * mArchives locked.
+     */
+    private File createRootDir() throws IOException {
+        if (mRootDir == null || !mRootDir.isDirectory()) {
+            mRootDir = FileUtil.createTempDir("extracted-archives");
+        }
+        return mRootDir;
+    }
+
+    /**
+     * Delete the root dir once no archive is referenced. The root dir is only empty once every
+     * released tree has been deleted, so the last release to finish deleting its tree deletes it.
+     */
+    private void deleteRootDirIfUnused() {
+        synchronized (mArchives) {
+            if (mArchives.isEmpty() && mRootDir != null && mRootDir.delete()) {
+                CLog.d("Deleted shared dir root %s", mRootDir.getAbsolutePath());
+                mRootDir = null;
+            }
+        }
+    }
+
+    /**
+     * Compute a digest identifying the contents of given zip archive.
+     * <p/>
+     * The central directory of a zip lists the name, size and CRC of every entry, so it identifies
+     * the contents without reading the whole archive. Archives whose central directory cannot be
+     * located, such as zip64 archives, are digested whole.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String computeDigest(File archive) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            long length = file.length();
+            long cdOffset = findCentralDirectory(file);
+            if (cdOffset < 0) {
+                CLog.d("Could not find central directory of %s, using full digest", archive);
+                return FileUtil.calculateMd5(archive);
+            }
+            md.update(Long.toString(length).getBytes());
+            file.seek(cdOffset);
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = file.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            file.close();
+        }
+        StringBuilder digest = new StringBuilder();
+        for (byte b : md.digest()) {
+            digest.append(String.format("%02x", b & 0xff));
+        }
+        return digest.toString();
+    }
+
+    /**
+     * @return the offset of the central directory of given zip file, or -1 if it could not be
+     *         found
+     */
+    private static long findCentralDirectory(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        int tailSize = (int)Math.min(length, MAX_EOCD_SIZE);
+        byte[] tail = new byte[tailSize];
+        file.seek(length - tailSize);
+        file.readFully(tail);
+        for (int i = tailSize - 22; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                long cdSize = readInt(tail, i + 12) & ZIP64_MARKER;
+                long cdOffset = readInt(tail, i + 16) & ZIP64_MARKER;
+                if (cdSize == ZIP64_MARKER || cdOffset == ZIP64_MARKER
+                        || cdOffset + cdSize > length) {
+                    return -1;
+                }
+                return cdOffset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a little-endian int, as used in zip records.
+     */
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Make every file and directory of given tree writable, or read-only.
+     */
+    private static void setTreeWritable(File root, boolean writable) {
+        List<File> toVisit = new LinkedList<File>();
+        toVisit.add(root);
+        while (!toVisit.isEmpty()) {
+            File file = toVisit.remove(0);
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    toVisit.add(child);
+                }
+            }
+            // owner only, like the permissions of the files created by extraction
+            file.setWritable(writable, true);
+        }
+    }
+
+    private static void deleteTree(File root) {
+        setTreeWritable(root, true);
+        ParallelFileUtil.recursiveDelete(root, ParallelFileUtil.getDefaultParallelism());
+    }
+}
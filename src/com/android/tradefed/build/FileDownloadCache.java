@@ -19,6 +19,7 @@ import com.android.ddmlib.Log;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.HostResourceGovernor;
 
 import java.io.File;
 import java.io.IOException;
@@ -231,6 +232,13 @@ public class FileDownloadCache {
 
     private void downloadFile(IFileDownloader downloader, String remotePath, File cachedFile)
             throws BuildRetrievalError {
+        HostResourceGovernor.Permit permit;
+        try {
+            permit = HostResourceGovernor.getInstance().acquire(HostResourceGovernor.DOWNLOAD);
+        } catch (InterruptedException e) {
+            throw new BuildRetrievalError(String.format(
+                    "Interrupted while waiting to download %s", remotePath));
+        }
         try {
             Log.d(LOG_TAG, String.format("Downloading %s to cache", remotePath));
             downloader.downloadFile(remotePath, cachedFile);
@@ -238,6 +246,8 @@ public class FileDownloadCache {
             // cached file is likely incomplete, delete it
             cachedFile.delete();
             throw e;
+        } finally {
+            permit.release();
         }
     }
 
@@ -16,6 +16,7 @@
 package com.android.tradefed.build;
 
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.ParallelFileUtil;
 
 import java.io.File;
 import java.io.IOException;
@@ -63,7 +64,7 @@ public class FolderBuildInfo extends BuildInfo implements IFolderBuildInfo {
     @Override
     public void cleanUp() {
         if (mRootDir != null) {
-            FileUtil.recursiveDelete(mRootDir);
+            ParallelFileUtil.recursiveDelete(mRootDir, ParallelFileUtil.getDefaultParallelism());
         }
         mRootDir = null;
     }
@@ -74,7 +75,8 @@ public class FolderBuildInfo extends BuildInfo implements IFolderBuildInfo {
         copy.addAllBuildAttributes(this);
         try {
             File copyDir = FileUtil.createTempDir("foldercopy");
-            FileUtil.recursiveCopy(mRootDir, copyDir);
+            ParallelFileUtil.recursiveCopy(mRootDir, copyDir,
+                    ParallelFileUtil.getDefaultParallelism());
             copy.setRootDir(copyDir);
             return copy;
         } catch (IOException e) {
@@ -21,6 +21,7 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * A {@link IBuildProvider} that constructs a {@link IDeviceBuildInfo} based on a provided
@@ -31,6 +32,7 @@ public class LocalBuildProvider extends StubBuildProvider {
 
     private static final String IMAGE_FILE_OPTION_NAME = "device-image-file";
     private static final String TEST_DIR_OPTION_NAME = "test-dir";
+    private static final String TESTS_ZIP_OPTION_NAME = "tests-zip";
     private static final String DATA_FILE_OPTION_NAME = "user-data-file";
 
     @Option(name = IMAGE_FILE_OPTION_NAME, description = "the device image file to use.",
@@ -40,6 +42,10 @@ public class LocalBuildProvider extends StubBuildProvider {
     @Option(name = TEST_DIR_OPTION_NAME, description = "the dir containing the unzipped test files.")
     private File mTestsDir = null;
 
+    @Option(name = TESTS_ZIP_OPTION_NAME, description = "the zip containing the test files. " +
+            "Extracted once, and shared read-only with other invocations using the same zip.")
+    private File mTestsZip = null;
+
     @Option(name = DATA_FILE_OPTION_NAME, description = "the user data file to use.")
     private File mUserDataFile = null;
 
@@ -66,6 +72,8 @@ public class LocalBuildProvider extends StubBuildProvider {
             buildInfo.setDeviceImageFile(mDeviceImageFile, stubBuild.getBuildId());
             if (mTestsDir != null) {
                 buildInfo.setTestsDir(mTestsDir, stubBuild.getBuildId());
+            } else if (mTestsZip != null) {
+                buildInfo.setTestsZip(mTestsZip, stubBuild.getBuildId());
             } else {
                 CLog.d("Null Test Dir, if you want to pass a test dir, use --%s",
                         TEST_DIR_OPTION_NAME);
@@ -77,6 +85,9 @@ public class LocalBuildProvider extends StubBuildProvider {
                         DATA_FILE_OPTION_NAME);
             }
             return buildInfo;
+        } catch (IOException e) {
+            throw new BuildRetrievalError(String.format("Failed to extract %s: %s",
+                    mTestsZip, e.getMessage()), e);
         } catch (RuntimeException e) {
             buildInfo.cleanUp();
             throw e;
@@ -96,6 +107,9 @@ public class LocalBuildProvider extends StubBuildProvider {
      */
     @Override
     public void cleanUp(IBuildInfo info) {
-        // ignore
+        // don't delete the local files, only release the shared extracted tests zip
+        if (info instanceof BuildInfo) {
+            ((BuildInfo)info).releaseExtractedArchives();
+        }
     }
 }
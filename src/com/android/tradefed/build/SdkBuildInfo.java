@@ -20,6 +20,7 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.ParallelFileUtil;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
@@ -120,13 +121,15 @@ public class SdkBuildInfo extends BuildInfo implements ISdkBuildInfo {
             File cloneAdtDir = null;
             if (getAdtDir() != null) {
                 cloneAdtDir = FileUtil.createTempDir("cloneAdt");
-                FileUtil.recursiveCopy(getAdtDir(), cloneAdtDir);
+                ParallelFileUtil.recursiveCopy(getAdtDir(), cloneAdtDir,
+                        ParallelFileUtil.getDefaultParallelism());
                 cloneBuild.setAdtDir(cloneAdtDir);
             }
             File cloneSdkDir = null;
             if (getSdkDir() != null) {
                 cloneSdkDir = FileUtil.createTempDir("cloneSdk");
-                FileUtil.recursiveCopy(getSdkDir(), cloneSdkDir);
+                ParallelFileUtil.recursiveCopy(getSdkDir(), cloneSdkDir,
+                        ParallelFileUtil.getDefaultParallelism());
                 cloneBuild.setSdkDir(cloneSdkDir);
             }
             return cloneBuild;
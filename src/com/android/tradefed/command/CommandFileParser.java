@@ -23,11 +23,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -59,7 +60,10 @@ class CommandFileParser {
     private Map<String, List<CommandLine>> mLongMacros = new HashMap<String, List<CommandLine>>();
     private List<CommandLine> mLines = new LinkedList<CommandLine>();
 
-    private Collection<String> mIncludedFiles = new HashSet<String>();
+    private Collection<String> mIncludedFiles = new LinkedHashSet<String>();
+
+    /** the read contents of each file included by the last parse, by absolute path */
+    private Map<String, ParsedFile> mParsedFiles = new HashMap<String, ParsedFile>();
 
     @SuppressWarnings("serial")
     private class CommandLine extends LinkedList<String> {
@@ -72,6 +76,50 @@ class CommandFileParser {
         }
     }
 
+    private enum EntryType {
+        COMMAND, MACRO, LONG_MACRO, INCLUDE
+    }
+
+    /**
+     * A command, macro definition or include directive read from a command file.
+     */
+    private static class FileEntry {
+        final EntryType mType;
+        final String mName;
+        final CommandLine mLine;
+        final List<CommandLine> mLongMacro;
+        final File mInclude;
+
+        FileEntry(EntryType type, String name, CommandLine line, List<CommandLine> longMacro,
+                File include) {
+            mType = type;
+            mName = name;
+            mLine = line;
+            mLongMacro = longMacro;
+            mInclude = include;
+        }
+    }
+
+    /**
+     * The contents of a command file, kept so that an unchanged file does not need to be read
+     * again when parsing it again.
+     */
+    private static class ParsedFile {
+        final long mLastModified;
+        final long mLength;
+        final List<FileEntry> mEntries = new LinkedList<FileEntry>();
+
+        ParsedFile(File file) {
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+
+        boolean isModified(File file) {
+            return !file.exists() || file.lastModified() != mLastModified ||
+                    file.length() != mLength;
+        }
+    }
+
     /**
      * Represents a bitmask.  Useful because it caches the number of bits which are set.
      */
@@ -210,6 +258,52 @@ class CommandFileParser {
             mIncludedFiles.add(file.getAbsolutePath());
         }
 
+        ParsedFile parsedFile = mParsedFiles.get(file.getAbsolutePath());
+        if (parsedFile == null || parsedFile.isModified(file)) {
+            parsedFile = readFile(file);
+            if (file.exists()) {
+                mParsedFiles.put(file.getAbsolutePath(), parsedFile);
+            }
+        } else {
+            CLog.d("Using cached contents of unchanged file %s", file);
+        }
+
+        for (FileEntry entry : parsedFile.mEntries) {
+            switch (entry.mType) {
+                case MACRO: {
+                    CommandLine prev = mMacros.put(entry.mName, entry.mLine);
+                    if (prev != null) {
+                        CLog.e("Overwrote short macro '%s' while parsing file %s", entry.mName,
+                                file);
+                        CLog.e("value '%s' replaced previous value '%s'", entry.mLine, prev);
+                    }
+                    break;
+                }
+                case LONG_MACRO: {
+                    List<CommandLine> prev = mLongMacros.put(entry.mName, entry.mLongMacro);
+                    if (prev != null) {
+                        CLog.e("Overwrote long macro %s while parsing file %s", entry.mName, file);
+                        CLog.e("%d-line definition replaced previous %d-line definition",
+                                entry.mLongMacro.size(), prev.size());
+                    }
+                    break;
+                }
+                case INCLUDE:
+                    scanFile(entry.mInclude);
+                    break;
+                default:
+                    // copy the line, since macro expansion modifies it
+                    mLines.add(new CommandLine(entry.mLine));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads and tokenizes a command file, without expanding macros or following includes.
+     */
+    private ParsedFile readFile(File file) throws IOException, ConfigurationException {
+        ParsedFile parsedFile = new ParsedFile(file);
         BufferedReader fileReader = createCommandFileReader(file);
         String inputLine = null;
         try {
@@ -228,11 +322,8 @@ class CommandFileParser {
                         // Expected format: MACRO <name> = <token> [<token>...]
                         String name = lArgs.get(1);
                         CommandLine expansion = new CommandLine(lArgs.subList(3, lArgs.size()));
-                        CommandLine prev = mMacros.put(name, expansion);
-                        if (prev != null) {
-                            CLog.e("Overwrote short macro '%s' while parsing file %s", name, file);
-                            CLog.e("value '%s' replaced previous value '%s'", expansion, prev);
-                        }
+                        parsedFile.mEntries.add(new FileEntry(EntryType.MACRO, name, expansion,
+                                null, null));
                     } else if (isLineLongMacro(lArgs)) {
                         // Expected format: LONG MACRO <name>\n(multiline expansion)\nEND MACRO
                         String name = lArgs.get(2);
@@ -259,12 +350,8 @@ class CommandFileParser {
                         CLog.d("Parsed %d-line definition for long macro %s", expansion.size(),
                                 name);
 
-                        List<CommandLine> prev = mLongMacros.put(name, expansion);
-                        if (prev != null) {
-                            CLog.e("Overwrote long macro %s while parsing file %s", name, file);
-                            CLog.e("%d-line definition replaced previous %d-line definition",
-                                    expansion.size(), prev.size());
-                        }
+                        parsedFile.mEntries.add(new FileEntry(EntryType.LONG_MACRO, name, null,
+                                expansion, null));
                     } else if (isLineIncludeDirective(lArgs)) {
                         File toScan = new File(lArgs.get(1));
                         if (toScan.isAbsolute()) {
@@ -275,15 +362,18 @@ class CommandFileParser {
                             CLog.d("Got an include directive for relative path %s, using '%s' " +
                                     "for parent dir", lArgs.get(1), parent);
                         }
-                        scanFile(toScan);
+                        parsedFile.mEntries.add(new FileEntry(EntryType.INCLUDE, null, null, null,
+                                toScan));
                     } else {
-                        mLines.add(lArgs);
+                        parsedFile.mEntries.add(new FileEntry(EntryType.COMMAND, null, lArgs, null,
+                                null));
                     }
                 }
             }
         } finally {
             fileReader.close();
         }
+        return parsedFile;
     }
 
     /**
@@ -313,7 +403,33 @@ class CommandFileParser {
      */
     public void parseFile(File file, ICommandScheduler scheduler, List<String> args)
             throws IOException, ConfigurationException {
+        for (String[] aryCmdLine : parseCommands(file, args)) {
+            CLog.d("Adding line: %s", Arrays.toString(aryCmdLine));
+            scheduler.addCommand(aryCmdLine);
+        }
+    }
+
+    /**
+     * Parses the commands contained in {@code file}, doing macro expansions as necessary.
+     * <p/>
+     * May be called repeatedly on the same file. Included files that did not change since the
+     * previous call are not read again.
+     *
+     * @param file the {@link File} to parse
+     * @param args A {@link List} of {@link String} arguments to append to each command
+     * @return the expanded command lines
+     * @throws IOException if failed to read file
+     * @throws ConfigurationException if content of file could not be parsed
+     */
+    List<String[]> parseCommands(File file, List<String> args)
+            throws IOException, ConfigurationException {
+        mMacros.clear();
+        mLongMacros.clear();
+        mLines.clear();
+        mIncludedFiles.clear();
         scanFile(file);
+        // forget files that are no longer included
+        mParsedFiles.keySet().retainAll(mIncludedFiles);
 
         // Now perform macro expansion
         /**
@@ -376,6 +492,7 @@ class CommandFileParser {
             }
         }
 
+        List<String[]> commands = new ArrayList<String[]>(mLines.size());
         for (CommandLine commandLine : mLines) {
             CLog.v("Adding line with parts: %s + %s", commandLine.toString(), args.toString());
             String[] aryCmdLine = new String[commandLine.size() + args.size()];
@@ -386,9 +503,25 @@ class CommandFileParser {
             for (int i = 0; i < args.size(); ++outIdx, ++i) {
                 aryCmdLine[outIdx] = args.get(i);
             }
-            CLog.d("Adding line: %s", Arrays.toString(aryCmdLine));
-            scheduler.addCommand(aryCmdLine);
+            commands.add(aryCmdLine);
+        }
+        return commands;
+    }
+
+    /**
+     * Check whether any file read by the last parse changed since.
+     *
+     * @return <code>true</code> if a file was modified or deleted, or if a file could not be
+     *         cached
+     */
+    boolean hasChangedFiles() {
+        for (String path : mIncludedFiles) {
+            ParsedFile parsedFile = mParsedFiles.get(path);
+            if (parsedFile == null || parsedFile.isModified(new File(path))) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the commands of a command file in sync with the file.
+ * <p/>
+ * The command file and the files it includes are polled for changes. On a change, only the changed
+ * files are read again, and the expanded commands are compared to the current ones: removed
+ * commands are removed from the {@link ICommandScheduler}, and new commands are added to it.
+ * Unchanged commands stay in the scheduler untouched, keeping their accumulated execution time.
+ */
+class CommandFileWatcher extends Thread {
+
+    private static final long DEFAULT_POLL_INTERVAL_MS = 20 * 1000;
+
+    private final File mFile;
+    private final List<String> mExtraArgs;
+    private final ICommandScheduler mScheduler;
+    private final CommandFileParser mParser;
+    private final long mPollIntervalMs;
+
+    /** the commands currently in the scheduler, with the number of times each was added */
+    private Map<List<String>, Integer> mCommands = new HashMap<List<String>, Integer>();
+    private boolean mCancelled = false;
+
+    /**
+     * Creates a {@link CommandFileWatcher}. Call {@link #reload()} to add the initial commands,
+     * then {@link #start()} to watch for changes.
+     *
+     * @param file the command file
+     * @param extraArgs the arguments to append to each command
+     * @param scheduler the {@link ICommandScheduler} to add commands to
+     */
+    CommandFileWatcher(File file, List<String> extraArgs, ICommandScheduler scheduler) {
+        this(file, extraArgs, scheduler, new CommandFileParser(), DEFAULT_POLL_INTERVAL_MS);
+    }
+
+    /**
+     * Creates a {@link CommandFileWatcher}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    CommandFileWatcher(File file, List<String> extraArgs, ICommandScheduler scheduler,
+            CommandFileParser parser, long pollIntervalMs) {
+        super(String.format("CommandFileWatcher-%s", file.getName()));
+        setDaemon(true);
+        mFile = file;
+        mExtraArgs = extraArgs;
+        mScheduler = scheduler;
+        mParser = parser;
+        mPollIntervalMs = pollIntervalMs;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Parse the command file, and update the scheduler with the commands that changed since the
+     * last reload.
+     *
+     * @throws IOException if failed to read the file. The current commands are kept.
+     * @throws ConfigurationException if the file could not be parsed. The current commands are
+     *             kept.
+     */
+    synchronized void reload() throws IOException, ConfigurationException {
+        List<String[]> commands = mParser.parseCommands(mFile, mExtraArgs);
+
+        Map<List<String>, Integer> remaining = new HashMap<List<String>, Integer>(mCommands);
+        List<String[]> added = new LinkedList<String[]>();
+        for (String[] command : commands) {
+            List<String> key = Arrays.asList(command);
+            Integer count = remaining.get(key);
+            if (count == null) {
+                added.add(command);
+            } else if (count == 1) {
+                remaining.remove(key);
+            } else {
+                remaining.put(key, count - 1);
+            }
+        }
+        // whatever is left in remaining is no longer in the file
+        int removedCount = 0;
+        for (Map.Entry<List<String>, Integer> entry : remaining.entrySet()) {
+            String[] command = entry.getKey().toArray(new String[entry.getKey().size()]);
+            for (int i = 0; i < entry.getValue(); i++) {
+                if (!mScheduler.removeCommand(command)) {
+                    CLog.d("Command %s was already gone", entry.getKey());
+                }
+                removeCommand(entry.getKey());
+                removedCount++;
+            }
+        }
+        int addedCount = 0;
+        for (String[] command : added) {
+            if (mScheduler.addCommand(command)) {
+                List<String> key = Arrays.asList(command);
+                Integer count = mCommands.get(key);
+                mCommands.put(key, count == null ? 1 : count + 1);
+                addedCount++;
+            }
+        }
+        CLog.i("Reloaded %s: %d commands added, %d removed, %d unchanged", mFile, addedCount,
+                removedCount, commands.size() - added.size());
+    }
+
+    private void removeCommand(List<String> key) {
+        int count = mCommands.get(key);
+        if (count == 1) {
+            mCommands.remove(key);
+        } else {
+            mCommands.put(key, count - 1);
+        }
+    }
+
+    /**
+     * Stop watching the command file. Commands already added are not removed.
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    private synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        while (!isCancelled()) {
+            try {
+                Thread.sleep(mPollIntervalMs);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            synchronized (this) {
+                if (mCancelled || !mParser.hasChangedFiles()) {
+                    continue;
+                }
+                try {
+                    reload();
+                } catch (IOException e) {
+                    CLog.e("Failed to reload %s, keeping current commands: %s", mFile,
+                            e.toString());
+                } catch (ConfigurationException e) {
+                    CLog.e("Failed to reload %s, keeping current commands: %s", mFile,
+                            e.toString());
+                }
+            }
+        }
+    }
+}
@@ -19,8 +19,11 @@ import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.invoker.CheckpointJournal;
 import com.android.tradefed.log.LogUtil.CLog;
 
+import java.io.File;
+
 /**
  * Implementation of {@link ICommandOptions}.
  */
@@ -58,6 +61,42 @@ public class CommandOptions implements ICommandOptions {
             "fork this command to run on all connected devices.")
     private boolean mAllDevices = true;
 
+    @Option(name = "async-result-reporting", description =
+            "deliver results to each result reporter on its own thread, so slow reporters do " +
+            "not block test execution.")
+    private boolean mAsyncResultReporting = false;
+
+    @Option(name = "result-queue-size", description =
+            "the max number of pending results per reporter when async-result-reporting is " +
+            "set. The test thread blocks when the queue is full. 0 means unbounded.")
+    private int mResultQueueSize = 1000;
+
+    @Option(name = "host-preparer-threads", description =
+            "the max number of host-only target preparer stages to run in the background, " +
+            "ahead of the device setup. 0 to run all preparers sequentially.")
+    private int mHostPreparerThreads = 1;
+
+    @Option(name = "skip-repeated-setup", description =
+            "skip the target preparers when the device is known to still be in the state left " +
+            "by the same preparers, for the same build, and no target cleaner ran since. " +
+            "Records the device state in a token file under /data/local/tmp. Otherwise the " +
+            "target preparers only run in the first invocation of the process.")
+    private boolean mSkipRepeatedSetup = false;
+
+    @Option(name = "checkpoint", description =
+            "record the tests completed by the invocation in a checkpoint journal, so the " +
+            "invocation can be resumed after a restart of tradefed.")
+    private boolean mCheckpoint = false;
+
+    @Option(name = "checkpoint-dir", description =
+            "the directory to store checkpoint journals in.")
+    private File mCheckpointDir = CheckpointJournal.DEFAULT_DIR;
+
+    @Option(name = "resume-checkpoint", description =
+            "the checkpoint journal of an unfinished invocation to resume. The tests it " +
+            "completed are skipped. Implies checkpoint.")
+    private File mResumeCheckpoint = null;
+
     @Option(name = "need-prepare", description = "is needed to prepare device")
     private boolean mNeedPrepare = true;
     
@@ -185,4 +224,60 @@ public class CommandOptions implements ICommandOptions {
     public boolean runOnAllDevices() {
         return mAllDevices;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAsyncResultReporting() {
+        return mAsyncResultReporting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultQueueSize() {
+        return mResultQueueSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHostPreparerThreads() {
+        return mHostPreparerThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSkipRepeatedSetup() {
+        return mSkipRepeatedSetup;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCheckpointEnabled() {
+        return mCheckpoint || mResumeCheckpoint != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getCheckpointDir() {
+        return mCheckpointDir;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getResumeCheckpoint() {
+        return mResumeCheckpoint;
+    }
 }
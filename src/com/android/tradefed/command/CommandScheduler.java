@@ -26,19 +26,25 @@ import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.device.DeviceManager;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
+import com.android.tradefed.device.EmulatorPool;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
 import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.invoker.CheckpointJournal;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ITestInvocation;
 import com.android.tradefed.invoker.TestInvocation;
 import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.log.LogUtil;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.util.ArrayUtil;
-import com.android.tradefed.util.ConditionPriorityBlockingQueue;
+import com.android.tradefed.util.ConcurrentConditionPriorityQueue;
+import com.android.tradefed.util.ConcurrentConditionPriorityQueue.IPrioritizer;
 import com.android.tradefed.util.TableFormatter;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -66,7 +72,7 @@ import java.util.concurrent.TimeUnit;
 public class CommandScheduler extends Thread implements ICommandScheduler {
 
     /** the queue of commands ready to be executed. */
-    private ConditionPriorityBlockingQueue<ExecutableCommand> mCommandQueue;
+    private ConcurrentConditionPriorityQueue<ExecutableCommand> mCommandQueue;
 
     /**
      * The thread-safe list of all active executable commands.
@@ -119,13 +125,27 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     private static class CommandTracker {
         private final int mId;
         private final String[] mArgs;
+        private final String[] mCommandArgs;
+        private final int mAddId;
 
         /** the total amount of time this command was executing. Used to prioritize */
         private long mTotalExecTime = 0;
 
-        CommandTracker(int id, String[] args) {
+        /** set once the command is removed, so that it is not queued again */
+        private boolean mRemoved = false;
+
+        /**
+         * @param id the unique id of the tracker
+         * @param args the full list of config arguments
+         * @param commandArgs the arguments the command was added with. Differs from args when one
+         *            command was added for each device
+         * @param addId the id shared by all trackers created for the same added command
+         */
+        CommandTracker(int id, String[] args, String[] commandArgs, int addId) {
             mId = id;
             mArgs = args;
+            mCommandArgs = commandArgs;
+            mAddId = addId;
         }
 
         synchronized void incrementExecTime(long execTime) {
@@ -149,6 +169,25 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         int getId() {
             return mId;
         }
+
+        /**
+         * Get the arguments the command was added with.
+         */
+        String[] getCommandArgs() {
+            return mCommandArgs;
+        }
+
+        int getAddId() {
+            return mAddId;
+        }
+
+        synchronized void setRemoved() {
+            mRemoved = true;
+        }
+
+        synchronized boolean isRemoved() {
+            return mRemoved;
+        }
     }
 
     /**
@@ -276,19 +315,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     }
 
     /**
-     * Comparator for {@link ExecutableCommand}.
+     * Prioritizer for {@link ExecutableCommand}.
      * <p/>
-     * Delegates to {@link CommandTrackerTimeComparator}.
+     * Prioritizes commands with lower total execution time, like
+     * {@link CommandTrackerTimeComparator}. The execution time is read when the command is
+     * queued.
      */
-    private static class ExecutableCommandComparator implements Comparator<ExecutableCommand> {
-        CommandTrackerTimeComparator mTrackerComparator = new CommandTrackerTimeComparator();
+    private static class ExecutableCommandPrioritizer implements
+            IPrioritizer<ExecutableCommand> {
 
         /**
          * {@inheritDoc}
          */
         @Override
-        public int compare(ExecutableCommand c1, ExecutableCommand c2) {
-            return mTrackerComparator.compare(c1.getCommandTracker(), c2.getCommandTracker());
+        public long getPriority(ExecutableCommand cmd) {
+            return cmd.getCommandTracker().getTotalExecTime();
         }
     }
 
@@ -359,6 +400,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             IConfiguration config = mCmd.getConfiguration();
             try {
                 mCmd.commandStarted();
+                if (!mCmd.isRescheduled()) {
+                    // rescheduled configs report to the listeners of their original config
+                    startCheckpoint(config, mCmd.getCommandTracker().getArgs());
+                }
                 instance.invoke(mDevice, config, new Rescheduler(mCmd.getCommandTracker()));
             } catch (DeviceUnresponsiveException e) {
                 CLog.w("Device %s is unresponsive. Reason: %s", mDevice.getSerialNumber(),
@@ -409,8 +454,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         initLogging();
         initDeviceManager();
 
-        mCommandQueue = new ConditionPriorityBlockingQueue<ExecutableCommand>(
-                new ExecutableCommandComparator());
+        mCommandQueue = new ConcurrentConditionPriorityQueue<ExecutableCommand>(
+                new ExecutableCommandPrioritizer());
         mAllCommands = Collections.synchronizedList(new LinkedList<ExecutableCommand>());
         mInvocationThreads = new HashSet<InvocationThread>();
         // use a ScheduledThreadPoolExecutorTimer as a single-threaded timer. This class
@@ -483,7 +528,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                         addExecCommandToQueue(cmd, NO_DEVICE_DELAY_TIME);
                         //CLog.logAndDisplay(LogLevel.ERROR,String.format("Can't find device %s.",options.getSerials()));
                     }
+                    int emulatorDemand = getQueuedEmulatorDemand();
+                    if (emulatorDemand > 0) {
+                        manager.prewarmEmulators(emulatorDemand);
+                    }
                 }
+                prewarmDevices(manager);
             }
             mCommandTimer.shutdown();
             CLog.i("Waiting for invocation threads to complete");
@@ -580,7 +630,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                 if (config.getCommandOptions().runOnAllDevices()) {
                     addCommandForAllDevices(totalExecTime, args);
                 } else {
-                    CommandTracker cmdTracker = createCommandTracker(args);
+                    CommandTracker cmdTracker = createCommandTracker(args, args, -1);
                     cmdTracker.incrementExecTime(totalExecTime);
                     ExecutableCommand cmdInstance = createExecutableCommand(cmdTracker, config, false);
                     addExecCommandToQueue(cmdInstance, 0);
@@ -613,11 +663,13 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         // schedule for for unavailable devices, just in case they come back online
         devices.addAll(getDeviceManager().getUnavailableDevices());
 
+        int addId = -1;
         for (String device : devices) {
             String[] argsWithDevice = Arrays.copyOf(args, args.length + 2);
             argsWithDevice[argsWithDevice.length - 2] = "-s";
             argsWithDevice[argsWithDevice.length - 1] = device;
-            CommandTracker cmdTracker = createCommandTracker(argsWithDevice);
+            CommandTracker cmdTracker = createCommandTracker(argsWithDevice, args, addId);
+            addId = cmdTracker.getAddId();
             cmdTracker.incrementExecTime(totalExecTime);
             IConfiguration config = getConfigFactory().createConfigurationFromArgs(
                     cmdTracker.getArgs());
@@ -631,10 +683,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
 
     /**
      * Creates a new {@link CommandTracker} with a unique id.
+     *
+     * @param addId the id shared by the trackers of the same added command, or -1 to use the id
+     *            of the new tracker
      */
-    private synchronized CommandTracker createCommandTracker(String[] args) {
+    private synchronized CommandTracker createCommandTracker(String[] args, String[] commandArgs,
+            int addId) {
         mCurrentCommandId++;
-        return new CommandTracker(mCurrentCommandId, args);
+        return new CommandTracker(mCurrentCommandId, args, commandArgs,
+                addId < 0 ? mCurrentCommandId : addId);
     }
 
     /**
@@ -662,6 +719,36 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         return null;
     }
 
+    /**
+     * Get the number of queued commands that will launch an emulator.
+     */
+    private int getQueuedEmulatorDemand() {
+        if (!EmulatorPool.getInstance().isEnabled()) {
+            // don't copy the queue on every poll when nothing would be pre-spawned
+            return 0;
+        }
+        int demand = 0;
+        for (ExecutableCommand cmd : mCommandQueue.getCopy()) {
+            if (cmd.getConfiguration().getDeviceRequirements().stubEmulatorRequested()) {
+                demand++;
+            }
+        }
+        return demand;
+    }
+
+    /**
+     * Warm up idle devices for the commands that are waiting to be run again, e.g. loop commands
+     * sleeping for their min loop time.
+     */
+    private void prewarmDevices(IDeviceManager manager) {
+        List<ExecutableCommand> cmdCopy = new ArrayList<ExecutableCommand>(mAllCommands);
+        for (ExecutableCommand cmd : cmdCopy) {
+            if (!cmd.getState().equals(CommandState.EXECUTING)) {
+                manager.prewarmDevice(cmd.getConfiguration());
+            }
+        }
+    }
+
     /**
      * Get the poll time to wait to retrieve a command to execute.
      * <p/>
@@ -699,6 +786,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         if (isShutdown()) {
             return false;
         }
+        if (cmd.getCommandTracker().isRemoved()) {
+            mAllCommands.remove(cmd);
+            return false;
+        }
         if (delayTime > 0) {
             cmd.setSleepState(delayTime);
             // delay before making command active
@@ -706,6 +797,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                 @Override
                 public void run() {
                     synchronized (CommandScheduler.this) {
+                        if (cmd.getCommandTracker().isRemoved()) {
+                            return;
+                        }
                         cmd.setWaitState();
                         mCommandQueue.add(cmd);
                     }
@@ -799,6 +893,39 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         clearWaitingCommands();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean removeCommand(String[] args) {
+        // find the most recently added matching command
+        CommandTracker latest = null;
+        for (CommandTracker tracker : getCommandTrackers()) {
+            if (!tracker.isRemoved() && Arrays.equals(tracker.getCommandArgs(), args) &&
+                    (latest == null || tracker.getAddId() > latest.getAddId())) {
+                latest = tracker;
+            }
+        }
+        if (latest == null) {
+            return false;
+        }
+        synchronized (mAllCommands) {
+            ListIterator<ExecutableCommand> cmdIter = mAllCommands.listIterator();
+            while (cmdIter.hasNext()) {
+                ExecutableCommand cmd = cmdIter.next();
+                if (cmd.getCommandTracker().getAddId() != latest.getAddId()) {
+                    continue;
+                }
+                cmd.getCommandTracker().setRemoved();
+                if (!cmd.getState().equals(CommandState.EXECUTING)) {
+                    mCommandQueue.remove(cmd);
+                    cmdIter.remove();
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Clears all {@link ExecutableCommand} not currently executing.
      */
@@ -864,6 +991,45 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         return new ArrayList<CommandTracker>(cmdTrackers);
     }
 
+    /**
+     * Record the progress of the invocation of given config in a {@link CheckpointJournal}, if
+     * enabled. If the config resumes an unfinished invocation, its tests are told to skip the
+     * tests completed by that invocation.
+     *
+     * @param config the {@link IConfiguration} about to be invoked
+     * @param args the config arguments
+     */
+    private void startCheckpoint(IConfiguration config, String[] args) {
+        ICommandOptions options = config.getCommandOptions();
+        if (!options.isCheckpointEnabled()) {
+            return;
+        }
+        File resumeFile = options.getResumeCheckpoint();
+        try {
+            CheckpointJournal journal;
+            if (resumeFile != null && resumeFile.exists()) {
+                journal = CheckpointJournal.resume(resumeFile);
+                CLog.i("Resuming invocation from %s, %d tests were completed",
+                        resumeFile.getAbsolutePath(), journal.getCompletedTests().size());
+                journal.injectCompletedTests(config.getTests());
+            } else {
+                if (resumeFile != null) {
+                    // e.g. the next iteration of a resumed command in loop mode
+                    CLog.i("Checkpoint %s was completed, starting a new one",
+                            resumeFile.getAbsolutePath());
+                }
+                journal = CheckpointJournal.create(options.getCheckpointDir(), args);
+            }
+            List<ITestInvocationListener> listeners = new ArrayList<ITestInvocationListener>(
+                    config.getTestInvocationListeners());
+            listeners.add(journal);
+            config.setTestInvocationListeners(listeners);
+        } catch (IOException e) {
+            CLog.e("Failed to start checkpoint journal, invocation will not be resumable: %s",
+                    e.getMessage());
+        }
+    }
+
     /**
      * Inform the remote listener of the freed device. Has no effect if there is no remote listener.
      *
@@ -899,6 +1065,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
         Log.setLogOutput(LogRegistry.getLogRegistry());
+        LogUtil.setLogRegistry(LogRegistry.getLogRegistry());
     }
 
     /**
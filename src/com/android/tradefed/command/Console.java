@@ -24,10 +24,17 @@ import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceManager;
+import com.android.tradefed.device.DevicePrewarmer;
+import com.android.tradefed.device.EmulatorPool;
 import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.UsbFlashScheduler;
+import com.android.tradefed.invoker.CheckpointJournal;
 import com.android.tradefed.log.ConsoleReaderOutputStream;
 import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.result.CrashIndexOptions;
+import com.android.tradefed.result.CrashSignatureIndex;
 import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.HostResourceGovernor;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.RunUtil;
@@ -40,8 +47,10 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -85,6 +94,7 @@ public class Console extends Thread {
     private RegexTrie<Runnable> mCommandTrie = new RegexTrie<Runnable>();
     private boolean mShouldExit = false;
     private List<String> mMainArgs = new ArrayList<String>(0);
+    private final List<CommandFileWatcher> mCmdfileWatchers = new LinkedList<CommandFileWatcher>();
 
     /** A convenience type for <code>{@literal List<List<String>>}</code> */
     @SuppressWarnings("serial")
@@ -376,6 +386,39 @@ public class Console extends Thread {
         }
     }
 
+    /**
+     * Parse and execute a command file, and keep watching it for changes.
+     */
+    void watchCmdfile(String cmdfileName, List<String> extraArgs) {
+        CommandFileWatcher watcher = new CommandFileWatcher(new File(cmdfileName), extraArgs,
+                mScheduler);
+        try {
+            watcher.reload();
+        } catch (IOException e) {
+            printLine(String.format("Failed to run %s: %s", cmdfileName, e));
+            return;
+        } catch (ConfigurationException e) {
+            printLine(String.format("Failed to run %s: %s", cmdfileName, e));
+            return;
+        }
+        synchronized (mCmdfileWatchers) {
+            mCmdfileWatchers.add(watcher);
+        }
+        watcher.start();
+    }
+
+    /**
+     * Stop watching all watched command files.
+     */
+    void stopCmdfileWatchers() {
+        synchronized (mCmdfileWatchers) {
+            for (CommandFileWatcher watcher : mCmdfileWatchers) {
+                watcher.cancel();
+            }
+            mCmdfileWatchers.clear();
+        }
+    }
+
     /**
      * Add commands to create the default Console experience
      * <p />
@@ -414,6 +457,20 @@ public class Console extends Thread {
                 "\tc[ommands]     List all commands currently waiting to be executed" +
                 LINE_SEPARATOR +
                 "\tconfigs        List all known configurations" +
+                LINE_SEPARATOR +
+                "\tcrashes        List the crash signatures recorded by monkey runs" +
+                LINE_SEPARATOR +
+                "\tcrash <sig>    List the occurrences and artifacts of a crash signature" +
+                LINE_SEPARATOR +
+                "\tresources      List the usage and queue times of host resources" +
+                LINE_SEPARATOR +
+                "\tusb            List the flash load and throughput of USB hubs" +
+                LINE_SEPARATOR +
+                "\temulators      List the emulators kept warm between invocations" +
+                LINE_SEPARATOR +
+                "\twarm           List the idle devices warmed up for waiting commands" +
+                LINE_SEPARATOR +
+                "\tcheckpoints    List the unfinished invocations recorded in checkpoints" +
                 LINE_SEPARATOR, LIST_PATTERN));
 
         commandHelp.put(DUMP_PATTERN, String.format(
@@ -431,8 +488,12 @@ public class Console extends Thread {
                 "\t<config> [options]                Shortcut for the above: run specified command" +
                     LINE_SEPARATOR +
                 "\tcmdfile <cmdfile.txt>             Run the specified commandfile" + LINE_SEPARATOR +
+                "\twatchCmdfile <cmdfile.txt>        Run the specified commandfile, and keep the " +
+                "commands in sync with it as it changes" + LINE_SEPARATOR +
                 "\tcommandAndExit <config> [options] Run the specified command, and run " +
-                "'exit -c' immediately afterward" + LINE_SEPARATOR,
+                "'exit -c' immediately afterward" + LINE_SEPARATOR +
+                "\tcheckpoints [dir]                 Resume the unfinished invocations recorded " +
+                "in checkpoints" + LINE_SEPARATOR,
                 "\tcmdfileAndExit <cmdfile.txt>      Run the specified commandfile, and run " +
                 "'exit -c' immediately afterward" + LINE_SEPARATOR,
                 RUN_PATTERN));
@@ -490,6 +551,51 @@ public class Console extends Thread {
                 getConfigurationFactory().printHelp(System.out);
             }
         }, LIST_PATTERN, "configs");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                listCrashes();
+            }
+        }, LIST_PATTERN, "crashes");
+        trie.put(new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 2 tokens to get past listPattern and "crash"
+                listCrash(args.get(2).get(0));
+            }
+        }, LIST_PATTERN, "crash", "(.*)");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                HostResourceGovernor.getInstance().printStats(new PrintWriter(System.out, true));
+            }
+        }, LIST_PATTERN, "resources");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                UsbFlashScheduler.getInstance().printStats(new PrintWriter(System.out, true));
+            }
+        }, LIST_PATTERN, "usb");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                EmulatorPool.getInstance().printStats(new PrintWriter(System.out, true));
+            }
+        }, LIST_PATTERN, "emulators");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                DevicePrewarmer.getInstance().printStats(new PrintWriter(System.out, true));
+            }
+        }, LIST_PATTERN, "warm");
+        ArgRunnable<CaptureList> listCheckpoints = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                listCheckpoints(getCheckpointDir(args));
+            }
+        };
+        trie.put(listCheckpoints, LIST_PATTERN, "checkpoints");
+        trie.put(listCheckpoints, LIST_PATTERN, "checkpoints", "(.*)");
 
 
         // Dump commands
@@ -543,6 +649,14 @@ public class Console extends Thread {
                 mScheduler.addCommand(flatArgs);
             }
         };
+        ArgRunnable<CaptureList> runCheckpoints = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                resumeCheckpoints(getCheckpointDir(args));
+            }
+        };
+        trie.put(runCheckpoints, RUN_PATTERN, "checkpoints");
+        trie.put(runCheckpoints, RUN_PATTERN, "checkpoints", "(.*)");
         trie.put(runRunCommand, RUN_PATTERN, "c(?:ommand)?", null);
         trie.put(runRunCommand, RUN_PATTERN, null);
         trie.put(new Runnable() {
@@ -607,6 +721,22 @@ public class Console extends Thread {
         trie.put(runRunCmdfileAndExit, RUN_PATTERN, "cmdfileAndExit", "(.*)");
         trie.put(runRunCmdfileAndExit, RUN_PATTERN, "cmdfileAndExit", "(.*)", null);
 
+        ArgRunnable<CaptureList> runWatchCmdfile = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 2 tokens to get past runPattern and "watchCmdfile"
+                List<String> flatArgs = getFlatArgs(2, args);
+                String file = flatArgs.get(0);
+                List<String> extraArgs = new ArrayList<String>(
+                        flatArgs.subList(1, flatArgs.size()));
+                printLine(String.format("Attempting to run and watch cmdfile %s with args %s",
+                        file, extraArgs.toString()));
+                watchCmdfile(file, extraArgs);
+            }
+        };
+        trie.put(runWatchCmdfile, RUN_PATTERN, "watchCmdfile", "(.*)");
+        trie.put(runWatchCmdfile, RUN_PATTERN, "watchCmdfile", "(.*)", null);
+
         ArgRunnable<CaptureList> runRunAllCmdfilesAndExit = new ArgRunnable<CaptureList>() {
             @Override
             public void run(CaptureList args) {
@@ -685,6 +815,8 @@ public class Console extends Thread {
         trie.put(new Runnable() {
                     @Override
                     public void run() {
+                        // stop watched command files from adding commands back
+                        stopCmdfileWatchers();
                         mScheduler.removeAllCommands();
                     }
                 }, REMOVE_PATTERN, "allCommands");
@@ -796,6 +928,7 @@ public class Console extends Thread {
             // start processing user input.
             mScheduler.start();
             mScheduler.await();
+            printUnfinishedCheckpoints();
 
             String input = "";
             CaptureList groups = new CaptureList();
@@ -904,6 +1037,96 @@ public class Console extends Thread {
         LogRegistry.getLogRegistry().dumpLogs();
     }
 
+    private Collection<CrashSignatureIndex> getCrashIndexes() {
+        return CrashSignatureIndex.getIndexes(CrashIndexOptions.getInstance().getIndexDirs());
+    }
+
+    private void listCrashes() {
+        Collection<CrashSignatureIndex> indexes = getCrashIndexes();
+        if (indexes.isEmpty()) {
+            printLine("No crash index found");
+        }
+        for (CrashSignatureIndex index : indexes) {
+            index.printEntries(new PrintWriter(System.out, true));
+        }
+    }
+
+    private void listCrash(String signaturePrefix) {
+        for (CrashSignatureIndex index : getCrashIndexes()) {
+            CrashSignatureIndex.Entry entry = index.findEntry(signaturePrefix);
+            if (entry == null) {
+                continue;
+            }
+            printLine(String.format("%s %s: %s", entry.getType(), entry.getSignature(),
+                    entry.getTitle()));
+            printLine(String.format("Seen %d times, first %s, last %s", entry.getCount(),
+                    new Date(entry.getFirstSeen()), new Date(entry.getLastSeen())));
+            File sigDir = new File(index.getRootDir(), entry.getSignature());
+            printLine(String.format("Artifacts in %s:", sigDir.getAbsolutePath()));
+            String[] files = sigDir.list();
+            if (files != null) {
+                Arrays.sort(files);
+                for (String file : files) {
+                    printLine(String.format("\t%s", file));
+                }
+            }
+            return;
+        }
+        printLine(String.format("No unique crash signature starting with '%s'",
+                signaturePrefix));
+    }
+
+    /**
+     * Get the checkpoint dir given as third token of a checkpoints command, or the default one.
+     */
+    private File getCheckpointDir(CaptureList args) {
+        if (args != null && args.size() > 2 && !args.get(2).isEmpty()) {
+            return new File(args.get(2).get(0));
+        }
+        return CheckpointJournal.DEFAULT_DIR;
+    }
+
+    /**
+     * Let the user know of the unfinished invocations of a previous run, if any.
+     */
+    private void printUnfinishedCheckpoints() {
+        int count = CheckpointJournal.findUnfinished(CheckpointJournal.DEFAULT_DIR).size();
+        if (count > 0) {
+            printLine(String.format("Found %d unfinished invocations in %s. Enter 'list " +
+                    "checkpoints' to view them, or 'run checkpoints' to resume them.", count,
+                    CheckpointJournal.DEFAULT_DIR.getAbsolutePath()));
+        }
+    }
+
+    private void listCheckpoints(File dir) {
+        List<CheckpointJournal> journals = CheckpointJournal.findUnfinished(dir);
+        if (journals.isEmpty()) {
+            printLine(String.format("No unfinished invocations in %s", dir.getAbsolutePath()));
+        }
+        for (CheckpointJournal journal : journals) {
+            printLine(String.format("%s: %d tests completed, last update %s",
+                    journal.getFile().getName(), journal.getCompletedTests().size(),
+                    new Date(journal.getFile().lastModified())));
+            // note: args may contain passwords, so only the config name is shown
+            printLine(String.format("\tconfig %s", journal.getArgs()[0]));
+        }
+    }
+
+    private void resumeCheckpoints(File dir) {
+        List<CheckpointJournal> journals = CheckpointJournal.findUnfinished(dir);
+        if (journals.isEmpty()) {
+            printLine(String.format("No unfinished invocations in %s", dir.getAbsolutePath()));
+        }
+        for (CheckpointJournal journal : journals) {
+            if (mScheduler.addCommand(journal.getResumeArgs())) {
+                printLine(String.format("Resuming %s, skipping %d completed tests",
+                        journal.getFile().getName(), journal.getCompletedTests().size()));
+            } else {
+                printLine(String.format("Failed to resume %s", journal.getFile().getName()));
+            }
+        }
+    }
+
     private void startRemoteManager() {
         int port = mScheduler.startRemoteManager();
         if (port != -1) {
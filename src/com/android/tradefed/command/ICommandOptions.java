@@ -16,6 +16,8 @@
 
 package com.android.tradefed.command;
 
+import java.io.File;
+
 /**
  *  Container for execution options for commands.
  */
@@ -78,4 +80,42 @@ public interface ICommandOptions {
      */
     public boolean runOnAllDevices();
 
+    /**
+     * Return <code>true</code> if results should be delivered to each listener asynchronously.
+     */
+    public boolean isAsyncResultReporting();
+
+    /**
+     * Return the max number of pending results per listener, when reporting asynchronously.
+     */
+    public int getResultQueueSize();
+
+    /**
+     * Return the max number of host-only target preparer stages to run in the background. 0 if
+     * preparers should run sequentially.
+     */
+    public int getHostPreparerThreads();
+
+    /**
+     * Return <code>true</code> if the setup of a device should be skipped when the device is
+     * known to still be in the state left by the same setup.
+     */
+    public boolean isSkipRepeatedSetup();
+
+    /**
+     * Return <code>true</code> if the progress of the invocation should be recorded in a
+     * checkpoint journal.
+     */
+    public boolean isCheckpointEnabled();
+
+    /**
+     * Return the directory to store checkpoint journals in.
+     */
+    public File getCheckpointDir();
+
+    /**
+     * Return the checkpoint journal of the invocation to resume, or <code>null</code>.
+     */
+    public File getResumeCheckpoint();
+
 }
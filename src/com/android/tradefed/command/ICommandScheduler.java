@@ -59,6 +59,17 @@ public interface ICommandScheduler {
      */
     public void removeAllCommands();
 
+    /**
+     * Remove one command from the scheduler.
+     * <p/>
+     * Removes the most recently added command with given arguments, if any. Instances of the
+     * command currently executing run to completion, but the command is not queued again.
+     *
+     * @param args the config arguments the command was added with
+     * @return <code>true</code> if a command was removed
+     */
+    public boolean removeCommand(String[] args);
+
     /**
      * Attempt to gracefully shutdown the command scheduler.
      * <p/>
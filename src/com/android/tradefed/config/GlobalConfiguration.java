@@ -16,11 +16,17 @@
 
 package com.android.tradefed.config;
 
+import com.android.tradefed.device.DevicePrewarmer;
 import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.EmulatorPool;
 import com.android.tradefed.device.IDeviceLabelMapper;
 import com.android.tradefed.device.IDeviceMonitor;
 import com.android.tradefed.device.IDeviceSelection;
+import com.android.tradefed.device.UsbFlashScheduler;
+import com.android.tradefed.result.CrashIndexOptions;
+import com.android.tradefed.result.LogRetentionService;
 import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.HostResourceGovernor;
 
 import java.io.File;
 import java.io.PrintStream;
@@ -42,6 +48,12 @@ public class GlobalConfiguration implements IGlobalConfiguration {
 	public static final String HOST_OPTIONS_TYPE_NAME = "host_options";
 	public static final String DEVICE_REQUIREMENTS_TYPE_NAME = "device_requirements";
 	public static final String DEVICE_LABEL_MAPPER = "device_label_mapper";
+	public static final String HOST_RESOURCE_GOVERNOR_TYPE_NAME = "host_resource_governor";
+	public static final String USB_FLASH_SCHEDULER_TYPE_NAME = "usb_flash_scheduler";
+	public static final String EMULATOR_POOL_TYPE_NAME = "emulator_pool";
+	public static final String DEVICE_PREWARMER_TYPE_NAME = "device_prewarmer";
+	public static final String CRASH_INDEX_TYPE_NAME = "crash_index";
+	public static final String LOG_RETENTION_TYPE_NAME = "log_retention";
 
 	private static Map<String, ObjTypeInfo> sObjTypeMap = null;
 	private static IGlobalConfiguration sInstance = null;
@@ -188,6 +200,18 @@ public class GlobalConfiguration implements IGlobalConfiguration {
 					IDeviceSelection.class, false));
 			sObjTypeMap.put(DEVICE_LABEL_MAPPER, new ObjTypeInfo(
 					IDeviceLabelMapper.class, false));
+			sObjTypeMap.put(HOST_RESOURCE_GOVERNOR_TYPE_NAME, new ObjTypeInfo(
+					HostResourceGovernor.class, false));
+			sObjTypeMap.put(USB_FLASH_SCHEDULER_TYPE_NAME, new ObjTypeInfo(
+					UsbFlashScheduler.class, false));
+			sObjTypeMap.put(EMULATOR_POOL_TYPE_NAME, new ObjTypeInfo(
+					EmulatorPool.class, false));
+			sObjTypeMap.put(DEVICE_PREWARMER_TYPE_NAME, new ObjTypeInfo(
+					DevicePrewarmer.class, false));
+			sObjTypeMap.put(CRASH_INDEX_TYPE_NAME, new ObjTypeInfo(
+					CrashIndexOptions.class, false));
+			sObjTypeMap.put(LOG_RETENTION_TYPE_NAME, new ObjTypeInfo(
+					LogRetentionService.class, false));
 		}
 		return sObjTypeMap;
 	}
@@ -211,6 +235,20 @@ public class GlobalConfiguration implements IGlobalConfiguration {
 		// DeviceMonitorAsyncProxy avoids spawning
 		// its dispatcher thread if it gets a null child Monitor.
 		setDeviceRequirements(new DeviceSelectionOptions());
+		// the host-wide governor, so that its limits can be set from the
+		// global config and command line
+		setConfigurationObjectNoThrow(HOST_RESOURCE_GOVERNOR_TYPE_NAME,
+				HostResourceGovernor.getInstance());
+		setConfigurationObjectNoThrow(USB_FLASH_SCHEDULER_TYPE_NAME,
+				UsbFlashScheduler.getInstance());
+		setConfigurationObjectNoThrow(EMULATOR_POOL_TYPE_NAME,
+				EmulatorPool.getInstance());
+		setConfigurationObjectNoThrow(DEVICE_PREWARMER_TYPE_NAME,
+				DevicePrewarmer.getInstance());
+		setConfigurationObjectNoThrow(CRASH_INDEX_TYPE_NAME,
+				CrashIndexOptions.getInstance());
+		setConfigurationObjectNoThrow(LOG_RETENTION_TYPE_NAME,
+				LogRetentionService.getInstance());
 	}
 
 	/**
@@ -20,6 +20,7 @@ import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A helper class that can copy {@link Option} field values with same names from one object to
@@ -49,6 +50,24 @@ public class OptionCopier {
         }
     }
 
+    /**
+     * Get the values of the {@link Option} fields of given object.
+     *
+     * @param optionObject the {@link Object} to get values from
+     * @return a {@link Map} of {@link Option#name()} to value as a {@link String}, sorted by
+     *         option name. Unset options are omitted.
+     */
+    public static Map<String, String> getOptionValues(Object optionObject) {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (Field field : OptionSetter.getOptionFieldsForClass(optionObject.getClass())) {
+            String value = OptionSetter.getFieldValueAsString(field, optionObject);
+            if (value != null) {
+                values.put(field.getAnnotation(Option.class).name(), value);
+            }
+        }
+        return values;
+    }
+
     /**
      * Build a map of {@link Option#name()} to {@link Field} for given {@link Object}.
      *
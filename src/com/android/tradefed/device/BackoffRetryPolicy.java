@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.Random;
+
+/**
+ * A {@link IDeviceRetryPolicy} that retries transient failures with exponential backoff and
+ * jitter, and escalates gradually to a shell responsiveness check and then full recovery.
+ * <p/>
+ * Timeouts, adb rejections, sync overruns and unresponsive shells are considered transient.
+ * Other IO and install errors more often mean the device has gone away, so they skip the plain
+ * retries and start at the shell check.
+ * <p/>
+ * With zero transient retries, every failure triggers full recovery immediately.
+ */
+public class BackoffRetryPolicy implements IDeviceRetryPolicy {
+
+    private final int mTransientRetries;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final double mJitter;
+    private final Random mRandom;
+
+    /**
+     * Creates a {@link BackoffRetryPolicy}.
+     *
+     * @param transientRetries the number of plain retries to perform for a transient failure
+     *            before escalating to recovery
+     * @param baseDelay the delay in ms before the first retry
+     * @param maxDelay the maximum delay in ms between retries
+     * @param jitter the fraction of each delay, between 0 and 1, to randomly subtract
+     */
+    public BackoffRetryPolicy(int transientRetries, long baseDelay, long maxDelay, double jitter) {
+        this(transientRetries, baseDelay, maxDelay, jitter, new Random());
+    }
+
+    // @VisibleForTesting
+    BackoffRetryPolicy(int transientRetries, long baseDelay, long maxDelay, double jitter,
+            Random random) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        mTransientRetries = transientRetries;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mJitter = jitter;
+        mRandom = random;
+    }
+
+    /**
+     * Creates a {@link BackoffRetryPolicy} configured from given {@link TestDeviceOptions}.
+     */
+    public BackoffRetryPolicy(TestDeviceOptions options) {
+        this(options.getTransientRetries(), options.getRetryBackoff(),
+                options.getMaxRetryBackoff(), options.getRetryJitter());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecoveryAction getRecoveryAction(FailureType failure, int failureCount) {
+        if (mTransientRetries <= 0) {
+            return RecoveryAction.FULL;
+        }
+        int plainRetries = isTransient(failure) ? mTransientRetries : 0;
+        if (failureCount <= plainRetries) {
+            return RecoveryAction.NONE;
+        } else if (failureCount == plainRetries + 1) {
+            return RecoveryAction.SHELL_CHECK;
+        }
+        return RecoveryAction.FULL;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRetryDelay(FailureType failure, int failureCount) {
+        if (mBaseDelay <= 0 || failureCount < 1) {
+            return 0;
+        }
+        // cap the shift to avoid overflow
+        long delay = mBaseDelay << Math.min(failureCount - 1, 30);
+        if (delay <= 0 || delay > mMaxDelay) {
+            delay = mMaxDelay;
+        }
+        return delay - (long)(delay * mJitter * mRandom.nextDouble());
+    }
+
+    private boolean isTransient(FailureType failure) {
+        switch (failure) {
+            case TIMEOUT:
+            case ADB_REJECTED:
+            case SYNC_OVERRUN:
+            case SHELL_UNRESPONSIVE:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
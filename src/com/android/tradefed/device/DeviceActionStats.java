@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.IDeviceRetryPolicy.FailureType;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Thread-safe counters of failed device actions and recoveries for a single device.
+ * <p/>
+ * Kept by {@link DeviceManager} per serial across allocations, so devices that repeatedly need
+ * retries or recovery can be identified.
+ */
+public class DeviceActionStats {
+
+    private final Map<FailureType, Integer> mFailures =
+            new EnumMap<FailureType, Integer>(FailureType.class);
+    private int mShellChecks = 0;
+    private int mRecoveries = 0;
+
+    /**
+     * Record a failed device action attempt.
+     */
+    public synchronized void recordFailure(FailureType failure) {
+        Integer count = mFailures.get(failure);
+        mFailures.put(failure, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Record a shell responsiveness check performed instead of full recovery.
+     */
+    public synchronized void recordShellCheck() {
+        mShellChecks++;
+    }
+
+    /**
+     * Record a full device recovery.
+     */
+    public synchronized void recordRecovery() {
+        mRecoveries++;
+    }
+
+    /**
+     * @return the number of failed attempts of given type
+     */
+    public synchronized int getFailureCount(FailureType failure) {
+        Integer count = mFailures.get(failure);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the total number of failed attempts
+     */
+    public synchronized int getTotalFailureCount() {
+        int total = 0;
+        for (Integer count : mFailures.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of shell checks performed
+     */
+    public synchronized int getShellCheckCount() {
+        return mShellChecks;
+    }
+
+    /**
+     * @return the number of full recoveries performed
+     */
+    public synchronized int getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("failures=%s shell-checks=%d recoveries=%d", mFailures,
+                mShellChecks, mRecoveries);
+    }
+}
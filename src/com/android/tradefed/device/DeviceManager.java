@@ -23,31 +23,35 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
-import com.android.tradefed.util.ConditionPriorityBlockingQueue;
+import com.android.tradefed.util.ConcurrentConditionPriorityQueue;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.TableFormatter;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -59,13 +63,25 @@ public class DeviceManager implements IDeviceManager {
 
 	/** max wait time in ms for fastboot devices command to complete */
 	private static final long FASTBOOT_CMD_TIMEOUT = 1 * 60 * 1000;
-	/** time to wait in ms between fastboot devices requests */
+	/** max time to wait in ms between fastboot devices requests */
 	private static final long FASTBOOT_POLL_WAIT_TIME = 5 * 1000;
+	/**
+	 * time to wait in ms between fastboot devices requests, right after a
+	 * change or a new listener
+	 */
+	private static final long FASTBOOT_POLL_MIN_WAIT_TIME = 1000;
+	private static final Pattern FASTBOOT_DEVICE_PATTERN = Pattern
+			.compile("([\\w\\d]+)\\s+fastboot\\s*");
+	/** a USB device added or removed, in 'udevadm monitor' output */
+	private static final Pattern UDEV_EVENT_PATTERN = Pattern
+			.compile("\\s(add|remove)\\s");
 	/**
 	 * time to wait for device adb shell responsive connection before declaring
 	 * it unavailable for testing
 	 */
 	private static final int CHECK_WAIT_DEVICE_AVAIL_MS = 30 * 1000;
+	/** the time to wait between checks for a spawned emulator in adb */
+	private static final long CHECK_WAIT_EMULATOR_MS = 1000;
 
 	/**
 	 * a {@link DeviceSelectionOptions} that matches any device. Visible for
@@ -87,11 +103,12 @@ public class DeviceManager implements IDeviceManager {
 	 * A FIFO, thread-safe queue for holding devices visible on adb available
 	 * for testing
 	 */
-	private ConditionPriorityBlockingQueue<IDevice> mAvailableDeviceQueue;
+	private ConcurrentConditionPriorityQueue<IDevice> mAvailableDeviceQueue;
 	private IAndroidDebugBridge mAdbBridge;
 	private ManagedDeviceListener mManagedDeviceListener;
 	private boolean mFastbootEnabled;
-	private Set<IFastbootListener> mFastbootListeners;
+	/** the fastboot listeners, and whether they were notified of a poll */
+	private Map<IFastbootListener, Boolean> mFastbootListeners;
 	private FastbootMonitor mFastbootMonitor;
 	private Map<String, IDeviceStateMonitor> mCheckDeviceMap;
 	private boolean mEnableLogcat = true;
@@ -104,6 +121,13 @@ public class DeviceManager implements IDeviceManager {
 
 	private boolean mSynchronousMode = false;
 
+	/**
+	 * Map of device serial to its device action counters, kept across
+	 * allocations
+	 */
+	private final ConcurrentMap<String, DeviceActionStats> mDeviceActionStats =
+			new ConcurrentHashMap<String, DeviceActionStats>();
+
 	/**
 	 * Package-private constructor, should only be used by this class and its
 	 * associated unit test. Use {@link #getInstance()} instead.
@@ -136,12 +160,11 @@ public class DeviceManager implements IDeviceManager {
 		// Using ConcurrentHashMap for thread safety: handles concurrent
 		// modification and iteration
 		mAllocatedDeviceMap = new ConcurrentHashMap<String, IManagedTestDevice>();
-		mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>();
+		mAvailableDeviceQueue = new ConcurrentConditionPriorityQueue<IDevice>();
 		mCheckDeviceMap = new ConcurrentHashMap<String, IDeviceStateMonitor>();
 
 		if (isFastbootAvailable()) {
-			mFastbootListeners = Collections
-					.synchronizedSet(new HashSet<IFastbootListener>());
+			mFastbootListeners = new ConcurrentHashMap<IFastbootListener, Boolean>();
 			mFastbootMonitor = new FastbootMonitor();
 			startFastbootMonitor();
 			// don't set fastboot enabled bit until mFastbootListeners has been
@@ -242,6 +265,24 @@ public class DeviceManager implements IDeviceManager {
 		return GlobalConfiguration.getInstance();
 	}
 
+	/**
+	 * Get the {@link DevicePrewarmer} instance to use.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	DevicePrewarmer getDevicePrewarmer() {
+		return DevicePrewarmer.getInstance();
+	}
+
+	/**
+	 * Get the {@link EmulatorPool} instance to use.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	EmulatorPool getEmulatorPool() {
+		return EmulatorPool.getInstance();
+	}
+
 	/**
 	 * Get the {@link RunUtil} instance to use.
 	 * <p/>
@@ -275,6 +316,12 @@ public class DeviceManager implements IDeviceManager {
 					device.getSerialNumber());
 			return;
 		}
+		if (getEmulatorPool().isPooled(device.getSerialNumber())) {
+			// kept for the emulator placeholder with the same serial
+			CLog.d("Emulator %s is in the emulator pool, ignoring",
+					device.getSerialNumber());
+			return;
+		}
 		final IDeviceStateMonitor monitor = createStateMonitor(device);
 		mCheckDeviceMap.put(device.getSerialNumber(), monitor);
 
@@ -392,7 +439,7 @@ public class DeviceManager implements IDeviceManager {
 	 * 
 	 * @return
 	 */
-	ConditionPriorityBlockingQueue<IDevice> getAvailableDeviceQueue() {
+	ConcurrentConditionPriorityQueue<IDevice> getAvailableDeviceQueue() {
 		return mAvailableDeviceQueue;
 	}
 
@@ -516,6 +563,7 @@ public class DeviceManager implements IDeviceManager {
 	}
 
 	private ITestDevice createAllocatedDevice(IDevice allocatedDevice) {
+		getDevicePrewarmer().deviceAllocated(allocatedDevice.getSerialNumber());
 		IManagedTestDevice testDevice = createTestDevice(allocatedDevice,
 				createStateMonitor(allocatedDevice));
 		if (mEnableLogcat && !(allocatedDevice instanceof StubDevice)) {
@@ -540,6 +588,8 @@ public class DeviceManager implements IDeviceManager {
 			IDeviceStateMonitor monitor) {
 		IManagedTestDevice testDevice = new TestDevice(allocatedDevice, monitor);
 		testDevice.setFastbootEnabled(mFastbootEnabled);
+		testDevice.setActionStats(getDeviceActionStats(allocatedDevice
+				.getSerialNumber()));
 		if (allocatedDevice instanceof FastbootDevice) {
 			testDevice.setDeviceState(TestDeviceState.FASTBOOT);
 		} else if (allocatedDevice instanceof StubDevice) {
@@ -548,6 +598,19 @@ public class DeviceManager implements IDeviceManager {
 		return testDevice;
 	}
 
+	/**
+	 * Get the {@link DeviceActionStats} for given device serial, creating if
+	 * necessary.
+	 */
+	private DeviceActionStats getDeviceActionStats(String serial) {
+		DeviceActionStats stats = mDeviceActionStats.get(serial);
+		if (stats == null) {
+			mDeviceActionStats.putIfAbsent(serial, new DeviceActionStats());
+			stats = mDeviceActionStats.get(serial);
+		}
+		return stats;
+	}
+
 	/**
 	 * Creates the {@link IAndroidDebugBridge} to use.
 	 * <p/>
@@ -567,23 +630,35 @@ public class DeviceManager implements IDeviceManager {
 		checkInit();
 		IManagedTestDevice managedDevice = (IManagedTestDevice) device;
 		managedDevice.stopLogcat();
+		managedDevice.stopShellSession();
 		IDevice ideviceToReturn = device.getIDevice();
 		// don't kill emulator if it wasn't launched by launchEmulator (ie
 		// emulatorProcess is null).
 		if (ideviceToReturn.isEmulator()
 				&& managedDevice.getEmulatorProcess() != null) {
-			try {
-				killEmulator(device);
-				// emulator killed - return a stub device
-				// TODO: this is a bit of a hack. Consider having DeviceManager
-				// inject a StubDevice
-				// when deviceDisconnected event is received
+			if (deviceState == FreeDeviceState.AVAILABLE
+					&& getEmulatorPool().release(device.getSerialNumber(),
+							managedDevice.getEmulatorProcess())) {
+				// emulator parked, its clean snapshot is restored in the
+				// background - return a stub device
+				CLog.i("Keeping emulator %s warm", device.getSerialNumber());
+				managedDevice.setEmulatorProcess(null);
 				ideviceToReturn = new StubDevice(
 						ideviceToReturn.getSerialNumber(), true);
-				deviceState = FreeDeviceState.AVAILABLE;
-			} catch (DeviceNotAvailableException e) {
-				CLog.e(e);
-				deviceState = FreeDeviceState.UNAVAILABLE;
+			} else {
+				try {
+					killEmulator(device);
+					// emulator killed - return a stub device
+					// TODO: this is a bit of a hack. Consider having
+					// DeviceManager inject a StubDevice
+					// when deviceDisconnected event is received
+					ideviceToReturn = new StubDevice(
+							ideviceToReturn.getSerialNumber(), true);
+					deviceState = FreeDeviceState.AVAILABLE;
+				} catch (DeviceNotAvailableException e) {
+					CLog.e(e);
+					deviceState = FreeDeviceState.UNAVAILABLE;
+				}
 			}
 		}
 		if (mAllocatedDeviceMap.remove(device.getSerialNumber()) == null) {
@@ -632,6 +707,35 @@ public class DeviceManager implements IDeviceManager {
 					"Failed to determine emulator port for %s",
 					device.getSerialNumber()));
 		}
+		IManagedTestDevice managedDevice = (IManagedTestDevice) device;
+		Process warmProcess = getEmulatorPool().acquire(
+				device.getSerialNumber(), emulatorArgs);
+		if (warmProcess != null) {
+			CLog.i("Reusing warm emulator %s", device.getSerialNumber());
+			managedDevice.setEmulatorProcess(warmProcess);
+			attachRunningEmulator(managedDevice);
+			managedDevice.startLogcat();
+			device.waitForDeviceAvailable(bootTimeout);
+			return;
+		}
+		Process p = startEmulatorProcess(runUtil, port, emulatorArgs);
+		managedDevice.setEmulatorProcess(p);
+		managedDevice.startLogcat();
+
+		device.waitForDeviceAvailable(bootTimeout);
+		getEmulatorPool().emulatorBooted(device.getSerialNumber(),
+				emulatorArgs);
+	}
+
+	/**
+	 * Start an emulator process on given port.
+	 *
+	 * @return the emulator {@link Process}
+	 * @throws DeviceNotAvailableException
+	 *             if the process failed to start
+	 */
+	private Process startEmulatorProcess(IRunUtil runUtil, Integer port,
+			List<String> emulatorArgs) throws DeviceNotAvailableException {
 		List<String> fullArgs = new ArrayList<String>(emulatorArgs);
 		fullArgs.add("-port");
 		fullArgs.add(port.toString());
@@ -641,16 +745,222 @@ public class DeviceManager implements IDeviceManager {
 			// sleep a small amount to wait for process to start successfully
 			getRunUtil().sleep(500);
 			checkProcessDied(p);
-			IManagedTestDevice managedDevice = (IManagedTestDevice) device;
-			managedDevice.setEmulatorProcess(p);
-			managedDevice.startLogcat();
+			return p;
 		} catch (IOException e) {
 			// TODO: is this the most appropriate exception to throw?
 			throw new DeviceNotAvailableException(
 					"Failed to start emulator process", e);
 		}
+	}
 
-		device.waitForDeviceAvailable(bootTimeout);
+	/**
+	 * Point given placeholder emulator device to the running emulator with
+	 * its serial. A warm emulator stays connected to adb, so no connect event
+	 * will do it.
+	 */
+	private void attachRunningEmulator(IManagedTestDevice device) {
+		IDevice emulator = findAdbDevice(device.getSerialNumber());
+		if (emulator != null) {
+			device.setIDevice(emulator);
+			device.setDeviceState(TestDeviceState.getStateByDdms(emulator
+					.getState()));
+		}
+	}
+
+	/**
+	 * Get the {@link IDevice} adb currently knows with given serial, or
+	 * <code>null</code>.
+	 */
+	private IDevice findAdbDevice(String serial) {
+		for (IDevice device : mAdbBridge.getDevices()) {
+			if (device.getSerialNumber().equals(serial)) {
+				return device;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void prewarmEmulators(int demand) {
+		checkInit();
+		final EmulatorPool pool = getEmulatorPool();
+		if (!pool.isEnabled()) {
+			return;
+		}
+		for (int i = pool.getWarmCount(); i < demand; i++) {
+			// keep the placeholder out of the queue while its emulator boots
+			IDevice stub = mAvailableDeviceQueue.poll(new IMatcher<IDevice>() {
+				@Override
+				public boolean matches(IDevice element) {
+					return element instanceof StubDevice && element.isEmulator()
+							&& !(element instanceof NullDevice)
+							&& !pool.isPooled(element.getSerialNumber());
+				}
+			});
+			if (stub == null) {
+				return;
+			}
+			List<String> args = pool.startSpawn(stub.getSerialNumber());
+			if (args == null) {
+				addAvailableDevice(stub);
+				return;
+			}
+			spawnEmulator(stub, args);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean prewarmDevice(IConfiguration config) {
+		checkInit();
+		final DevicePrewarmer prewarmer = getDevicePrewarmer();
+		final IDeviceSelection options = config.getDeviceRequirements();
+		if (!prewarmer.isEnabled() || options.stubEmulatorRequested()
+				|| options.nullDeviceRequested()) {
+			return false;
+		}
+		List<IDeviceWarmUp> warmUps = new ArrayList<IDeviceWarmUp>();
+		for (ITargetPreparer preparer : config.getTargetPreparers()) {
+			if (preparer instanceof IDeviceWarmUp) {
+				warmUps.add((IDeviceWarmUp) preparer);
+			}
+		}
+		final String warmKey = DevicePrewarmer.getWarmKey(warmUps);
+		if (prewarmer.isWarming(warmKey)) {
+			return false;
+		}
+		for (IDevice device : mAvailableDeviceQueue.getCopy()) {
+			if (prewarmer.isWarm(device.getSerialNumber(), warmKey)
+					&& options.matches(device)) {
+				// the command already has a warm device waiting
+				return false;
+			}
+		}
+		// don't take a device warmed up for another command
+		IDevice idleDevice = mAvailableDeviceQueue.poll(new IMatcher<IDevice>() {
+			@Override
+			public boolean matches(IDevice element) {
+				return !(element instanceof StubDevice)
+						&& !prewarmer.isWarm(element.getSerialNumber())
+						&& options.matches(element);
+			}
+		});
+		if (idleDevice == null) {
+			return false;
+		}
+		// allocate the device, so its reboots are tracked rather than making
+		// it available
+		ITestDevice device = createAllocatedDevice(idleDevice);
+		device.setOptions(config.getDeviceOptions());
+		prewarmer.warmUpStarted(warmKey);
+		warmUpDevice(device, warmKey, warmUps);
+		return true;
+	}
+
+	/**
+	 * Warm up given allocated device, and free it once done.
+	 */
+	private void warmUpDevice(final ITestDevice device, final String warmKey,
+			final List<IDeviceWarmUp> warmUps) {
+		Runnable warmUpRunnable = new Runnable() {
+			@Override
+			public void run() {
+				DevicePrewarmer prewarmer = getDevicePrewarmer();
+				FreeDeviceState state = FreeDeviceState.AVAILABLE;
+				try {
+					CLog.i("Warming up device %s for %s",
+							device.getSerialNumber(), warmKey);
+					if (prewarmer.isRebootEnabled()) {
+						device.reboot();
+					} else {
+						device.waitForDeviceAvailable(prewarmer.getBootTimeout());
+						device.postBootSetup();
+					}
+					for (IDeviceWarmUp warmUp : warmUps) {
+						warmUp.warmUp(device);
+					}
+				} catch (DeviceNotAvailableException e) {
+					CLog.w("Device %s became unavailable while warming up: %s",
+							device.getSerialNumber(), e.getMessage());
+					state = FreeDeviceState.UNAVAILABLE;
+				} finally {
+					prewarmer.warmUpFinished(device.getSerialNumber(), warmKey,
+							state == FreeDeviceState.AVAILABLE);
+					freeDevice(device, state);
+				}
+			}
+		};
+		if (mSynchronousMode) {
+			warmUpRunnable.run();
+		} else {
+			Thread warmUpThread = new Thread(warmUpRunnable, String.format(
+					"Warm up device %s", device.getSerialNumber()));
+			warmUpThread.setDaemon(true);
+			warmUpThread.start();
+		}
+	}
+
+	/**
+	 * Boot an emulator for the pool on the serial of given placeholder, and
+	 * make the placeholder available again once done.
+	 */
+	private void spawnEmulator(final IDevice stub, final List<String> args) {
+		final String serial = stub.getSerialNumber();
+		Runnable spawnRunnable = new Runnable() {
+			@Override
+			public void run() {
+				EmulatorPool pool = getEmulatorPool();
+				Process process = null;
+				boolean booted = false;
+				try {
+					CLog.i("Pre-spawning emulator %s", serial);
+					process = startEmulatorProcess(getRunUtil(),
+							EmulatorConsole.getEmulatorPort(serial), args);
+					booted = waitForEmulatorBoot(serial, pool.getBootTimeout());
+				} catch (DeviceNotAvailableException e) {
+					CLog.w("Failed to pre-spawn emulator %s: %s", serial,
+							e.getMessage());
+				} finally {
+					pool.spawnFinished(serial, args, process, booted);
+					addAvailableDevice(stub);
+				}
+			}
+		};
+		if (mSynchronousMode) {
+			spawnRunnable.run();
+		} else {
+			Thread spawnThread = new Thread(spawnRunnable, String.format(
+					"Spawn emulator %s", serial));
+			spawnThread.setDaemon(true);
+			spawnThread.start();
+		}
+	}
+
+	/**
+	 * Wait for the emulator with given serial to come online and boot.
+	 *
+	 * @return <code>true</code> if the emulator is available
+	 */
+	private boolean waitForEmulatorBoot(String serial, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		IDevice emulator = findAdbDevice(serial);
+		while (emulator == null
+				|| emulator.getState() != IDevice.DeviceState.ONLINE) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			getRunUtil().sleep(CHECK_WAIT_EMULATOR_MS);
+			emulator = findAdbDevice(serial);
+		}
+		IDeviceStateMonitor monitor = createStateMonitor(emulator);
+		monitor.setState(TestDeviceState.ONLINE);
+		return monitor.waitForDeviceAvailable(Math.max(0,
+				deadline - System.currentTimeMillis())) != null;
 	}
 
 	/**
@@ -824,6 +1134,7 @@ public class DeviceManager implements IDeviceManager {
 			mIsTerminated = true;
 			mAdbBridge.removeDeviceChangeListener(mManagedDeviceListener);
 			mAdbBridge.terminate();
+			getEmulatorPool().terminate();
 			if (mFastbootMonitor != null) {
 				mFastbootMonitor.terminate();
 			}
@@ -973,7 +1284,7 @@ public class DeviceManager implements IDeviceManager {
 	public void displayDevicesInfo(PrintWriter stream) {
 		ArrayList<List<String>> displayRows = new ArrayList<List<String>>();
 		displayRows.add(Arrays.asList("Serial", "State", "Product", "Variant",
-				"Build", "Battery"));
+				"Build", "Battery", "Retries", "Recoveries"));
 		Map<IDevice, String> deviceMap = fetchDevicesInfo();
 
 		IDeviceSelection selector = getDeviceSelectionOptions();
@@ -981,6 +1292,15 @@ public class DeviceManager implements IDeviceManager {
 		new TableFormatter().displayTable(displayRows, stream);
 	}
 
+	/**
+	 * Get the {@link UsbFlashScheduler} tracking the USB hubs of devices.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	UsbFlashScheduler getUsbFlashScheduler() {
+		return UsbFlashScheduler.getInstance();
+	}
+
 	/**
 	 * Get the {@link IDeviceSelection} to use to display device info
 	 * <p/>
@@ -1000,10 +1320,22 @@ public class DeviceManager implements IDeviceManager {
 					getDisplay(selector.getDeviceProductType(device)),
 					getDisplay(selector.getDeviceProductVariant(device)),
 					getDisplay(device.getProperty("ro.build.id")),
-					getDisplay(selector.getBatteryLevel(device))));
+					getDisplay(selector.getBatteryLevel(device)),
+					getDisplay(getFailureCount(device.getSerialNumber())),
+					getDisplay(getRecoveryCount(device.getSerialNumber()))));
 		}
 	}
 
+	private Integer getFailureCount(String serial) {
+		DeviceActionStats stats = mDeviceActionStats.get(serial);
+		return stats == null ? 0 : stats.getTotalFailureCount();
+	}
+
+	private Integer getRecoveryCount(String serial) {
+		DeviceActionStats stats = mDeviceActionStats.get(serial);
+		return stats == null ? 0 : stats.getRecoveryCount();
+	}
+
 	/**
 	 * Gets a displayable string for given object
 	 * 
@@ -1052,6 +1384,9 @@ public class DeviceManager implements IDeviceManager {
 		public void deviceConnected(IDevice device) {
 			CLog.d("Detected device connect %s, id %d",
 					device.getSerialNumber(), device.hashCode());
+			// the device may have been plugged into another USB port
+			getUsbFlashScheduler().getTopology().invalidate(
+					device.getSerialNumber());
 			IManagedTestDevice testDevice = mAllocatedDeviceMap.get(device
 					.getSerialNumber());
 			if (testDevice == null) {
@@ -1112,7 +1447,9 @@ public class DeviceManager implements IDeviceManager {
 	public void addFastbootListener(IFastbootListener listener) {
 		checkInit();
 		if (mFastbootEnabled) {
-			mFastbootListeners.add(listener);
+			mFastbootListeners.put(listener, Boolean.FALSE);
+			// poll now rather than at the next interval
+			mFastbootMonitor.requestPoll();
 		} else {
 			throw new UnsupportedOperationException("fastboot is not enabled");
 		}
@@ -1129,64 +1466,205 @@ public class DeviceManager implements IDeviceManager {
 		}
 	}
 
+	/**
+	 * Polls 'fastboot devices', and updates the state of the allocated devices
+	 * that entered or left fastboot.
+	 * <p/>
+	 * Polling only happens while fastboot listeners are waiting. A poll is
+	 * made as soon as a listener is added, then the poll interval backs off
+	 * while nothing changes. When 'udevadm' is available, USB hotplug events
+	 * trigger a poll too, so devices are seen entering fastboot quickly.
+	 */
 	private class FastbootMonitor extends Thread {
 
 		private boolean mQuit = false;
+		private boolean mPollRequested = false;
+		private long mPollInterval = FASTBOOT_POLL_MIN_WAIT_TIME;
+		/** the serials on fastboot at the last poll */
+		private Set<String> mLastSerials = new HashSet<String>();
+		private Process mHotplugProcess = null;
 
 		FastbootMonitor() {
 			super("FastbootMonitor");
 		}
 
 		public void terminate() {
-			mQuit = true;
+			synchronized (this) {
+				mQuit = true;
+				if (mHotplugProcess != null) {
+					mHotplugProcess.destroy();
+				}
+			}
 			interrupt();
 		}
 
+		/**
+		 * Poll fastboot as soon as possible.
+		 */
+		public synchronized void requestPoll() {
+			mPollRequested = true;
+			notifyAll();
+		}
+
 		@Override
 		public void run() {
-			while (!mQuit) {
+			startHotplugMonitor();
+			while (!isQuit()) {
 				// only poll fastboot devices if there are listeners, as polling
 				// it
 				// indiscriminately can cause fastboot commands to hang
 				if (!mFastbootListeners.isEmpty()) {
 					Set<String> serials = getDevicesOnFastboot();
 					if (serials != null) {
-						for (String serial : serials) {
-							IManagedTestDevice testDevice = mAllocatedDeviceMap
-									.get(serial);
-							if (testDevice != null
-									&& !testDevice.getDeviceState().equals(
-											TestDeviceState.FASTBOOT)) {
-								testDevice
-										.setDeviceState(TestDeviceState.FASTBOOT);
-							}
-						}
-						// now update devices that are no longer on fastboot
-						synchronized (mAllocatedDeviceMap) {
-							for (IManagedTestDevice testDevice : mAllocatedDeviceMap
-									.values()) {
-								if (!serials.contains(testDevice
-										.getSerialNumber())
-										&& testDevice.getDeviceState().equals(
-												TestDeviceState.FASTBOOT)) {
-									testDevice
-											.setDeviceState(TestDeviceState.NOT_AVAILABLE);
-								}
+						boolean changed = updateFastbootStates(serials)
+								|| !serials.equals(mLastSerials);
+						mLastSerials = serials;
+						notifyFastbootListeners(changed);
+						mPollInterval = changed ? FASTBOOT_POLL_MIN_WAIT_TIME
+								: Math.min(mPollInterval * 2,
+										FASTBOOT_POLL_WAIT_TIME);
+					}
+				}
+				waitForNextPoll();
+			}
+		}
+
+		private synchronized boolean isQuit() {
+			return mQuit;
+		}
+
+		/**
+		 * Wait until the poll interval elapsed, or a poll is requested. Waits
+		 * indefinitely if there are no listeners.
+		 */
+		private synchronized void waitForNextPoll() {
+			try {
+				if (mFastbootListeners.isEmpty()) {
+					while (!mPollRequested && !mQuit) {
+						wait();
+					}
+				} else if (!mPollRequested) {
+					wait(mPollInterval);
+				}
+			} catch (InterruptedException e) {
+				// terminated
+			}
+			if (mPollRequested) {
+				mPollInterval = FASTBOOT_POLL_MIN_WAIT_TIME;
+				mPollRequested = false;
+			}
+		}
+
+		/**
+		 * Start listening to USB hotplug events with 'udevadm monitor', if
+		 * available.
+		 */
+		private void startHotplugMonitor() {
+			final Process process;
+			try {
+				process = getRunUtil().runCmdInBackground("udevadm",
+						"monitor", "--udev", "--subsystem-match=usb");
+			} catch (IOException e) {
+				CLog.d("udevadm is not available, fastboot devices will only be polled");
+				return;
+			}
+			synchronized (this) {
+				if (mQuit) {
+					process.destroy();
+					return;
+				}
+				mHotplugProcess = process;
+			}
+			Thread hotplugThread = new Thread("FastbootHotplugMonitor") {
+				@Override
+				public void run() {
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(process.getInputStream()));
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							if (isHotplugEvent(line)) {
+								requestPoll();
 							}
 						}
-						// create a copy of listeners for notification to
-						// prevent deadlocks
-						Collection<IFastbootListener> listenersCopy = new ArrayList<IFastbootListener>(
-								mFastbootListeners.size());
-						listenersCopy.addAll(mFastbootListeners);
-						for (IFastbootListener listener : listenersCopy) {
-							listener.stateUpdated();
-						}
+					} catch (IOException e) {
+						// process was killed
+					} finally {
+						StreamUtil.close(reader);
 					}
+					CLog.d("udevadm monitor exited, fastboot devices will only be polled");
 				}
-				getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
+			};
+			hotplugThread.setDaemon(true);
+			hotplugThread.start();
+		}
+	}
+
+	/**
+	 * Update the state of the allocated devices that entered or left fastboot.
+	 * Only devices whose state changed are updated, so only their state
+	 * listeners are notified.
+	 *
+	 * @param serials
+	 *            the serials currently on fastboot
+	 * @return <code>true</code> if the state of a device was updated
+	 */
+	private boolean updateFastbootStates(Set<String> serials) {
+		boolean updated = false;
+		for (String serial : serials) {
+			IManagedTestDevice testDevice = mAllocatedDeviceMap.get(serial);
+			if (testDevice != null
+					&& !testDevice.getDeviceState().equals(
+							TestDeviceState.FASTBOOT)) {
+				testDevice.setDeviceState(TestDeviceState.FASTBOOT);
+				updated = true;
+			}
+		}
+		// now update devices that are no longer on fastboot. The map is
+		// concurrent, so it can be iterated without a lock
+		for (IManagedTestDevice testDevice : mAllocatedDeviceMap.values()) {
+			if (testDevice.getDeviceState().equals(TestDeviceState.FASTBOOT)
+					&& !serials.contains(testDevice.getSerialNumber())) {
+				testDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+				updated = true;
 			}
 		}
+		return updated;
+	}
+
+	/**
+	 * Notify the fastboot listeners of a poll. Listeners are notified of
+	 * their first poll, so they know fastboot state is up to date, then only
+	 * of the polls that saw a change.
+	 * <p/>
+	 * Exposed for unit testing.
+	 *
+	 * @param changed
+	 *            <code>true</code> if devices entered or left fastboot
+	 */
+	void notifyFastbootListeners(boolean changed) {
+		// create a copy of listeners for notification to prevent deadlocks
+		Collection<IFastbootListener> listenersCopy = new ArrayList<IFastbootListener>();
+		for (Map.Entry<IFastbootListener, Boolean> entry : mFastbootListeners
+				.entrySet()) {
+			if (changed || !entry.getValue()) {
+				listenersCopy.add(entry.getKey());
+				entry.setValue(Boolean.TRUE);
+			}
+		}
+		for (IFastbootListener listener : listenersCopy) {
+			listener.stateUpdated();
+		}
+	}
+
+	/**
+	 * Determine if given line of 'udevadm monitor' output is a USB device
+	 * being added or removed.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	static boolean isHotplugEvent(String line) {
+		return UDEV_EVENT_PATTERN.matcher(line).find();
 	}
 
 	private Set<String> getDevicesOnFastboot() {
@@ -1204,9 +1682,7 @@ public class DeviceManager implements IDeviceManager {
 
 	static Set<String> parseDevicesOnFastboot(String fastbootOutput) {
 		Set<String> serials = new HashSet<String>();
-		Pattern fastbootPattern = Pattern
-				.compile("([\\w\\d]+)\\s+fastboot\\s*");
-		Matcher fastbootMatcher = fastbootPattern.matcher(fastbootOutput);
+		Matcher fastbootMatcher = FASTBOOT_DEVICE_PATTERN.matcher(fastbootOutput);
 		while (fastbootMatcher.find()) {
 			serials.add(fastbootMatcher.group(1));
 		}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tracks which idle devices were warmed up for which pending commands.
+ * <p/>
+ * While a command waits to be run again, e.g. a loop command sleeping for its min loop time, the
+ * devices it will likely be allocated sit idle. {@link DeviceManager#prewarmDevice} uses that
+ * time to bring one of them to the state the command needs: boot complete, keyguard dismissed,
+ * then the {@link IDeviceWarmUp}s of the command's target preparers, e.g. wifi connected. The
+ * warm state of a device is identified by a key made of the warm-up keys. It holds until the
+ * device is next allocated to an invocation, since the invocation may change it.
+ */
+@OptionClass(alias = "device-prewarm")
+public class DevicePrewarmer {
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final DevicePrewarmer INSTANCE = new DevicePrewarmer();
+    }
+
+    @Option(name = "prewarm-devices", description = "warm up idle devices for the commands " +
+            "waiting to run, so their setup is quicker.")
+    private boolean mEnabled = false;
+
+    @Option(name = "prewarm-reboot", description = "reboot idle devices before warming them up, " +
+            "so commands start on a freshly booted device.")
+    private boolean mReboot = false;
+
+    @Option(name = "prewarm-boot-timeout", description =
+            "the max time in ms to wait for an idle device to boot before warming it up.")
+    private long mBootTimeoutMs = 5 * 60 * 1000;
+
+    /** the warm key of each warm idle device, by serial */
+    private final Map<String, String> mWarmDevices = new HashMap<String, String>();
+
+    /** the number of devices being warmed up, by warm key */
+    private final Map<String, Integer> mWarmingCounts = new HashMap<String, Integer>();
+
+    private int mWarmUpCount = 0;
+    private int mHitCount = 0;
+
+    /**
+     * Get the singleton {@link DevicePrewarmer}.
+     */
+    public static DevicePrewarmer getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Creates a {@link DevicePrewarmer}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    DevicePrewarmer() {
+    }
+
+    /**
+     * Enable or disable warming up.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return <code>true</code> if idle devices should be warmed up
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return <code>true</code> if idle devices should be rebooted before warming them up
+     */
+    public boolean isRebootEnabled() {
+        return mReboot;
+    }
+
+    /**
+     * @return the max time in ms to wait for an idle device to boot
+     */
+    public long getBootTimeout() {
+        return mBootTimeoutMs;
+    }
+
+    /**
+     * Get the warm key of given warm-ups, independent of their order.
+     */
+    public static String getWarmKey(Collection<IDeviceWarmUp> warmUps) {
+        TreeSet<String> keys = new TreeSet<String>();
+        for (IDeviceWarmUp warmUp : warmUps) {
+            String key = warmUp.getWarmUpKey();
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        // the boot and keyguard warm-up is always done
+        return "boot" + keys.toString();
+    }
+
+    /**
+     * @return <code>true</code> if the device with given serial is warm for given key
+     */
+    public synchronized boolean isWarm(String serial, String warmKey) {
+        return warmKey.equals(mWarmDevices.get(serial));
+    }
+
+    /**
+     * @return <code>true</code> if the device with given serial is warm for any key
+     */
+    public synchronized boolean isWarm(String serial) {
+        return mWarmDevices.containsKey(serial);
+    }
+
+    /**
+     * @return <code>true</code> if a device is being warmed up for given key
+     */
+    public synchronized boolean isWarming(String warmKey) {
+        return mWarmingCounts.containsKey(warmKey);
+    }
+
+    /**
+     * Inform that a device is being warmed up for given key.
+     */
+    public synchronized void warmUpStarted(String warmKey) {
+        Integer count = mWarmingCounts.get(warmKey);
+        mWarmingCounts.put(warmKey, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Inform that the device with given serial was warmed up for given key.
+     *
+     * @param warm <code>true</code> if the device reached the warm state
+     */
+    public synchronized void warmUpFinished(String serial, String warmKey, boolean warm) {
+        Integer count = mWarmingCounts.remove(warmKey);
+        if (count != null && count > 1) {
+            mWarmingCounts.put(warmKey, count - 1);
+        }
+        if (warm) {
+            mWarmDevices.put(serial, warmKey);
+            mWarmUpCount++;
+        }
+    }
+
+    /**
+     * Inform that the device with given serial is allocated, so is no longer warm.
+     */
+    public synchronized void deviceAllocated(String serial) {
+        if (mWarmDevices.remove(serial) != null) {
+            mHitCount++;
+        }
+    }
+
+    /**
+     * Output the warm devices and counters.
+     */
+    public synchronized void printStats(PrintWriter writer) {
+        writer.println(String.format("Warmed up %d devices, %d allocated while warm", mWarmUpCount,
+                mHitCount));
+        for (Map.Entry<String, String> entry : mWarmDevices.entrySet()) {
+            writer.println(String.format("%s: warm for %s", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, Integer> entry : mWarmingCounts.entrySet()) {
+            writer.println(String.format("%d warming up for %s", entry.getValue(),
+                    entry.getKey()));
+        }
+    }
+}
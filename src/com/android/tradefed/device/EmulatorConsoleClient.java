@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A client of the emulator console, for the commands {@link com.android.ddmlib.EmulatorConsole}
+ * does not support, e.g. snapshots.
+ * <p/>
+ * The console is a line based telnet protocol on the emulator port. It sends a banner on connect,
+ * and each command is answered with output lines, then "OK", or with "KO: &lt;reason&gt;". Recent
+ * emulators require an "auth" command first, with the token stored in the user's home directory.
+ */
+class EmulatorConsoleClient {
+
+    static final String AUTH_TOKEN_FILE_NAME = ".emulator_console_auth_token";
+    private static final String AUTH_REQUIRED = "Authentication required";
+    private static final String HOST = "127.0.0.1";
+
+    private final int mPort;
+    private final int mTimeoutMs;
+
+    /**
+     * Creates a {@link EmulatorConsoleClient}.
+     *
+     * @param port the console port of the emulator, i.e. the port in its serial
+     * @param timeoutMs the max time in ms to wait for the console to answer a command
+     */
+    EmulatorConsoleClient(int port, int timeoutMs) {
+        mPort = port;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Save a snapshot of the emulator state.
+     *
+     * @param name the snapshot name
+     * @throws IOException if the console could not be reached, or the save failed
+     */
+    public void saveSnapshot(String name) throws IOException {
+        execute("avd snapshot save " + name);
+    }
+
+    /**
+     * Restore the emulator state from a snapshot.
+     *
+     * @param name the snapshot name
+     * @throws IOException if the console could not be reached, or the snapshot could not be
+     *             loaded
+     */
+    public void loadSnapshot(String name) throws IOException {
+        execute("avd snapshot load " + name);
+    }
+
+    /**
+     * Run a console command on a new connection.
+     *
+     * @return the output lines of the command
+     * @throws IOException if the console could not be reached, or answered with an error
+     */
+    List<String> execute(String command) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(HOST, mPort), mTimeoutMs);
+            socket.setSoTimeout(mTimeoutMs);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            OutputStream output = socket.getOutputStream();
+            List<String> banner = readReply(reader);
+            if (banner.toString().contains(AUTH_REQUIRED)) {
+                send(output, "auth " + getAuthToken());
+                readReply(reader);
+            }
+            send(output, command);
+            return readReply(reader);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void send(OutputStream output, String command) throws IOException {
+        output.write((command + "\r\n").getBytes("UTF-8"));
+        output.flush();
+    }
+
+    /**
+     * Read the lines of a reply, up to its "OK" line.
+     *
+     * @throws IOException if the reply is an error, or the connection was closed
+     */
+    private List<String> readReply(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.equals("OK")) {
+                return lines;
+            } else if (line.startsWith("KO")) {
+                throw new IOException(String.format("Emulator console on port %d: %s", mPort,
+                        line));
+            }
+            lines.add(line);
+        }
+        throw new IOException(String.format("Emulator console on port %d closed the connection",
+                mPort));
+    }
+
+    /**
+     * Get the console auth token.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    String getAuthToken() throws IOException {
+        File tokenFile = new File(System.getProperty("user.home"), AUTH_TOKEN_FILE_NAME);
+        return FileUtil.readStringFromFile(tokenFile).trim();
+    }
+}
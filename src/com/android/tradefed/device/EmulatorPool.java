@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.EmulatorConsole;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the emulators launched by {@link DeviceManager#launchEmulator} running between
+ * invocations.
+ * <p/>
+ * After an emulator first boots, a clean snapshot of it is saved through its console. When the
+ * emulator is freed, it stays running, parked on its placeholder serial, and the clean snapshot is
+ * restored in the background. The next launch on that serial with the same emulator command line
+ * waits for the restore and reuses it, rather than cold booting a new one.
+ * <p/>
+ * Parked emulators may die or be killed, e.g. when the next launch asks for another avd. The pool
+ * remembers the command line each serial was last launched with, so it can pre-spawn an emulator
+ * on an idle serial when queued commands request one, see {@link DeviceManager#prewarmEmulators}.
+ */
+@OptionClass(alias = "emulator-pool")
+public class EmulatorPool {
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final EmulatorPool INSTANCE = new EmulatorPool();
+    }
+
+    @Option(name = "keep-emulators-warm", description = "keep launched emulators running " +
+            "between invocations, and restore a clean snapshot instead of relaunching them.")
+    private boolean mEnabled = false;
+
+    @Option(name = "emulator-snapshot", description =
+            "the name of the clean snapshot saved after an emulator boots.")
+    private String mSnapshotName = "tradefed-clean";
+
+    @Option(name = "prespawn-emulator-arg", description = "an argument of the emulator command " +
+            "line used to pre-spawn emulators for queued commands. Defaults to the command line " +
+            "the emulator serial was last launched with.")
+    private List<String> mPrespawnArgs = new ArrayList<String>();
+
+    @Option(name = "emulator-boot-timeout", description =
+            "the max time in ms to wait for a pre-spawned emulator to boot.")
+    private long mBootTimeoutMs = 5 * 60 * 1000;
+
+    @Option(name = "emulator-console-timeout", description =
+            "the max time in ms to wait for an emulator console command, e.g. a snapshot load.")
+    private int mConsoleTimeoutMs = 2 * 60 * 1000;
+
+    /** the max time in ms to wait for a killed emulator to exit */
+    private static final long KILL_TIMEOUT_MS = 20 * 1000;
+
+    /** slots by emulator serial */
+    private final Map<String, Slot> mSlots = new TreeMap<String, Slot>();
+
+    /** restores the snapshots of released emulators, off the thread freeing the device */
+    private final ExecutorService mRestoreExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EmulatorPool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The pool state of an emulator serial.
+     */
+    private static class Slot {
+        /** the command line the serial was last launched with, without the port */
+        private List<String> mArgs = null;
+        /** <code>true</code> if the running emulator has a clean snapshot */
+        private boolean mSnapshotSaved = false;
+        /** the parked emulator, or <code>null</code> */
+        private Process mWarmProcess = null;
+        /** the pending snapshot restore of the parked emulator, or <code>null</code> */
+        private Future<Boolean> mRestore = null;
+        /** <code>true</code> while an emulator is pre-spawned on the serial */
+        private boolean mSpawning = false;
+        private int mReuseCount = 0;
+        private int mSpawnCount = 0;
+    }
+
+    /**
+     * Get the singleton {@link EmulatorPool}.
+     */
+    public static EmulatorPool getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Creates a {@link EmulatorPool}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    EmulatorPool() {
+    }
+
+    /**
+     * Enable or disable the pool.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return <code>true</code> if emulators should be kept warm
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the max time in ms to wait for a pre-spawned emulator to boot
+     */
+    public long getBootTimeout() {
+        return mBootTimeoutMs;
+    }
+
+    private Slot getSlot(String serial) {
+        Slot slot = mSlots.get(serial);
+        if (slot == null) {
+            slot = new Slot();
+            mSlots.put(serial, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Take the emulator parked on given serial, if it runs the given command line.
+     * <p/>
+     * Waits for the snapshot restore of the emulator to finish. A parked emulator running another
+     * command line is killed, so the serial can be launched.
+     *
+     * @param serial the emulator serial
+     * @param args the emulator command line, without the port
+     * @return the {@link Process} of the emulator, or <code>null</code> if none is parked
+     */
+    public Process acquire(String serial, List<String> args) {
+        Future<Boolean> restore;
+        synchronized (this) {
+            Slot slot = mSlots.get(serial);
+            if (slot == null || slot.mWarmProcess == null) {
+                return null;
+            }
+            restore = slot.mRestore;
+        }
+        // don't hold the pool while the console is busy
+        boolean restored = restore == null || waitForRestore(serial, restore);
+        return takeWarmProcess(serial, args, restored);
+    }
+
+    private synchronized Process takeWarmProcess(String serial, List<String> args,
+            boolean restored) {
+        Slot slot = getSlot(serial);
+        Process process = slot.mWarmProcess;
+        slot.mWarmProcess = null;
+        slot.mRestore = null;
+        if (process == null) {
+            // killed by a failed restore
+            return null;
+        }
+        if (!restored) {
+            destroy(process);
+            slot.mSnapshotSaved = false;
+            return null;
+        }
+        if (!isAlive(process)) {
+            CLog.w("Warm emulator %s has died", serial);
+            slot.mSnapshotSaved = false;
+            return null;
+        }
+        if (!args.equals(slot.mArgs)) {
+            CLog.i("Warm emulator %s runs %s, killing it to launch %s", serial, slot.mArgs, args);
+            destroy(process);
+            slot.mSnapshotSaved = false;
+            return null;
+        }
+        slot.mReuseCount++;
+        return process;
+    }
+
+    /**
+     * Inform the pool that an emulator booted on given serial, so its clean snapshot is saved.
+     *
+     * @param serial the emulator serial
+     * @param args the emulator command line, without the port
+     */
+    public void emulatorBooted(String serial, List<String> args) {
+        if (!mEnabled) {
+            return;
+        }
+        // don't hold the pool while the console is busy
+        boolean snapshotSaved = saveSnapshot(serial);
+        synchronized (this) {
+            Slot slot = getSlot(serial);
+            slot.mArgs = new ArrayList<String>(args);
+            slot.mSnapshotSaved = snapshotSaved;
+        }
+    }
+
+    /**
+     * Park the emulator of a freed device, and start restoring its clean snapshot in the
+     * background. The emulator is killed if the restore fails.
+     *
+     * @param serial the emulator serial
+     * @param process the emulator {@link Process}
+     * @return <code>true</code> if the emulator was parked. Otherwise it should be killed.
+     */
+    public synchronized boolean release(final String serial, final Process process) {
+        Slot slot = mSlots.get(serial);
+        if (!mEnabled || slot == null || !slot.mSnapshotSaved || !isAlive(process)) {
+            return false;
+        }
+        slot.mWarmProcess = process;
+        slot.mRestore = mRestoreExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return restoreSnapshot(serial, process);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Restore the clean snapshot of a parked emulator, killing it on failure.
+     *
+     * @return <code>true</code> if the snapshot was restored
+     */
+    private boolean restoreSnapshot(String serial, Process process) {
+        try {
+            createConsole(serial).loadSnapshot(mSnapshotName);
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to restore snapshot of emulator %s: %s", serial, e.getMessage());
+        }
+        synchronized (this) {
+            Slot slot = getSlot(serial);
+            slot.mSnapshotSaved = false;
+            if (slot.mWarmProcess == process) {
+                slot.mWarmProcess = null;
+                slot.mRestore = null;
+            }
+        }
+        destroy(process);
+        return false;
+    }
+
+    /**
+     * Wait for the snapshot restore of the emulator parked on given serial.
+     *
+     * @return <code>true</code> if the snapshot was restored
+     */
+    private boolean waitForRestore(String serial, Future<Boolean> restore) {
+        try {
+            return restore.get();
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while restoring snapshot of emulator %s", serial);
+        } catch (ExecutionException e) {
+            CLog.w("Failed to restore snapshot of emulator %s: %s", serial,
+                    e.getCause().toString());
+        }
+        return false;
+    }
+
+    /**
+     * Reserve given serial to pre-spawn an emulator on it.
+     *
+     * @param serial the emulator serial
+     * @return the emulator command line to spawn, without the port, or <code>null</code> if the
+     *         serial should not be pre-spawned
+     */
+    public synchronized List<String> startSpawn(String serial) {
+        if (!mEnabled || isPooled(serial)) {
+            return null;
+        }
+        Slot slot = getSlot(serial);
+        List<String> args = mPrespawnArgs.isEmpty() ? slot.mArgs : mPrespawnArgs;
+        if (args == null) {
+            // never launched, nothing to go by
+            return null;
+        }
+        slot.mSpawning = true;
+        return new ArrayList<String>(args);
+    }
+
+    /**
+     * Inform the pool that the emulator reserved with {@link #startSpawn(String)} was spawned.
+     *
+     * @param serial the emulator serial
+     * @param args the emulator command line, without the port
+     * @param process the emulator {@link Process}, or <code>null</code> if it failed to start
+     * @param booted <code>true</code> if the emulator booted successfully
+     */
+    public void spawnFinished(String serial, List<String> args, Process process,
+            boolean booted) {
+        boolean snapshotSaved = booted && saveSnapshot(serial);
+        synchronized (this) {
+            Slot slot = getSlot(serial);
+            slot.mSpawning = false;
+            if (snapshotSaved) {
+                slot.mArgs = args;
+                slot.mSnapshotSaved = true;
+                slot.mWarmProcess = process;
+                slot.mSpawnCount++;
+                return;
+            }
+        }
+        CLog.w("Failed to pre-spawn emulator %s", serial);
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if an emulator is parked or being spawned on given serial. The
+     *         device manager should not make it available.
+     */
+    public synchronized boolean isPooled(String serial) {
+        Slot slot = mSlots.get(serial);
+        return slot != null && (slot.mWarmProcess != null || slot.mSpawning);
+    }
+
+    /**
+     * @return the number of emulators parked or being spawned
+     */
+    public synchronized int getWarmCount() {
+        int count = 0;
+        for (String serial : mSlots.keySet()) {
+            if (isPooled(serial)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Kill all parked emulators.
+     */
+    public synchronized void terminate() {
+        for (Map.Entry<String, Slot> entry : mSlots.entrySet()) {
+            Process process = entry.getValue().mWarmProcess;
+            if (process != null) {
+                CLog.i("Killing warm emulator %s", entry.getKey());
+                process.destroy();
+                entry.getValue().mWarmProcess = null;
+                entry.getValue().mRestore = null;
+            }
+        }
+    }
+
+    /**
+     * Output the state of each emulator serial.
+     */
+    public synchronized void printStats(PrintWriter writer) {
+        if (mSlots.isEmpty()) {
+            writer.println("No emulator launched");
+            return;
+        }
+        for (Map.Entry<String, Slot> entry : mSlots.entrySet()) {
+            Slot slot = entry.getValue();
+            String state = slot.mSpawning ? "spawning" : slot.mWarmProcess != null ? "warm"
+                    : "-";
+            writer.println(String.format("%s: %s, reused %d times, pre-spawned %d times, %s",
+                    entry.getKey(), state, slot.mReuseCount, slot.mSpawnCount, slot.mArgs));
+        }
+    }
+
+    private boolean saveSnapshot(String serial) {
+        try {
+            createConsole(serial).saveSnapshot(mSnapshotName);
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to save snapshot of emulator %s, it will not be kept warm: %s",
+                    serial, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Create a {@link EmulatorConsoleClient} for the emulator with given serial.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    EmulatorConsoleClient createConsole(String serial) throws IOException {
+        Integer port = EmulatorConsole.getEmulatorPort(serial);
+        if (port == null) {
+            throw new IOException(String.format("Failed to determine emulator port for %s",
+                    serial));
+        }
+        return new EmulatorConsoleClient(port, mConsoleTimeoutMs);
+    }
+
+    /**
+     * Kill given emulator process, and wait for it to exit so its port is free.
+     */
+    private static void destroy(Process process) {
+        process.destroy();
+        long deadline = System.currentTimeMillis() + KILL_TIMEOUT_MS;
+        while (isAlive(process) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.util.IRunUtil;
 
 import java.io.PrintWriter;
@@ -56,6 +57,9 @@ public interface IDeviceManager {
     public static interface IFastbootListener {
         /**
          * Callback when fastboot state has been updated for all devices.
+         * <p/>
+         * Called after the first poll of fastboot following the listener's registration, then
+         * only after polls where a device entered or left fastboot.
          */
         public void stateUpdated();
     }
@@ -144,6 +148,27 @@ public interface IDeviceManager {
      */
     public void killEmulator(ITestDevice device) throws DeviceNotAvailableException;
 
+    /**
+     * Pre-spawn emulators in the background, so that given number of emulators are kept warm.
+     * <p/>
+     * Has no effect unless emulators are kept warm, see {@link EmulatorPool}.
+     *
+     * @param demand the number of emulators expected to be launched soon
+     */
+    public void prewarmEmulators(int demand);
+
+    /**
+     * Warm up an idle device in the background for the given pending command, so it is ready
+     * when the command is next run.
+     * <p/>
+     * Has no effect unless devices are pre-warmed, see {@link DevicePrewarmer}, or if a device
+     * is already warm for the command.
+     *
+     * @param config the {@link IConfiguration} of the pending command
+     * @return <code>true</code> if a device is being warmed up
+     */
+    public boolean prewarmDevice(IConfiguration config);
+
     /**
      * Connect to a device with adb-over-tcp
      * <p/>
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.InstallException;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Decides how a {@link TestDevice} reacts to a failed device communication attempt: how long to
+ * wait before retrying, and how much recovery to perform first.
+ */
+public interface IDeviceRetryPolicy {
+
+    /**
+     * Classification of the failure of a device action.
+     */
+    public enum FailureType {
+        /** a {@link TimeoutException} */
+        TIMEOUT,
+        /** an {@link AdbCommandRejectedException} */
+        ADB_REJECTED,
+        /** a {@link SyncException} caused by a buffer overrun or transfer protocol error */
+        SYNC_OVERRUN,
+        /** a {@link ShellCommandUnresponsiveException} */
+        SHELL_UNRESPONSIVE,
+        /** an {@link InstallException} */
+        INSTALL_ERROR,
+        /** any other {@link java.io.IOException} */
+        IO_ERROR;
+
+        /**
+         * Classify the given exception thrown by a device action.
+         */
+        public static FailureType classify(Exception e) {
+            if (e instanceof TimeoutException) {
+                return TIMEOUT;
+            } else if (e instanceof AdbCommandRejectedException) {
+                return ADB_REJECTED;
+            } else if (e instanceof SyncException) {
+                return SYNC_OVERRUN;
+            } else if (e instanceof ShellCommandUnresponsiveException) {
+                return SHELL_UNRESPONSIVE;
+            } else if (e instanceof InstallException) {
+                return INSTALL_ERROR;
+            }
+            return IO_ERROR;
+        }
+    }
+
+    /**
+     * The recovery steps to perform before retrying, in increasing order of cost.
+     */
+    public enum RecoveryAction {
+        /** retry without any recovery */
+        NONE,
+        /** check the device shell is responsive, and only fully recover if it is not */
+        SHELL_CHECK,
+        /** perform a full {@link IDeviceRecovery} cycle */
+        FULL
+    }
+
+    /**
+     * Get the recovery to perform after a failed attempt.
+     *
+     * @param failure the {@link FailureType} of the latest failure
+     * @param failureCount the number of consecutive failures of this action so far, starting at 1
+     * @return the {@link RecoveryAction}
+     */
+    public RecoveryAction getRecoveryAction(FailureType failure, int failureCount);
+
+    /**
+     * Get the time to wait before retrying after a failed attempt. Only applied when
+     * {@link #getRecoveryAction(FailureType, int)} is not {@link RecoveryAction#FULL}, as full
+     * recovery already waits for the device.
+     *
+     * @param failure the {@link FailureType} of the latest failure
+     * @param failureCount the number of consecutive failures of this action so far, starting at 1
+     * @return the time in ms to wait
+     */
+    public long getRetryDelay(FailureType failure, int failureCount);
+}
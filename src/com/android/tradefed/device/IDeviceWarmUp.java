@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+/**
+ * A part of a target preparer's setup that can run on an idle device ahead of its allocation, so
+ * a queued command starts on a device that is already in the state it needs.
+ * <p/>
+ * The warm-up must be idempotent and must not depend on the build, since the command's own setup
+ * still runs afterwards, possibly on another device. It should leave the preparer's state
+ * untouched: it may run while the command is being set up on another device.
+ *
+ * @see DevicePrewarmer
+ */
+public interface IDeviceWarmUp {
+
+    /**
+     * Get a key identifying the device state the warm-up reaches. Warm-ups with equal keys are
+     * interchangeable.
+     *
+     * @return the key, or <code>null</code> if there is nothing to warm up
+     */
+    public String getWarmUpKey();
+
+    /**
+     * Bring given idle device to the warm state. Failures should be logged rather than thrown,
+     * the command's setup will retry.
+     *
+     * @param device the {@link ITestDevice}, available
+     * @throws DeviceNotAvailableException if the device became unavailable
+     */
+    public void warmUp(ITestDevice device) throws DeviceNotAvailableException;
+}
@@ -39,6 +39,13 @@ interface IManagedTestDevice extends ITestDevice {
      */
     public void stopLogcat();
 
+    /**
+     * Terminate the device's long-lived shell and WifiUtil sessions, if any are running.
+     * <p/>
+     * Should be called when the device is no longer in use.
+     */
+    public void stopShellSession();
+
     /**
      * Update the IDevice associated with this ITestDevice.
      * <p/>
@@ -83,4 +90,22 @@ interface IManagedTestDevice extends ITestDevice {
      */
     public Process getEmulatorProcess();
 
+    /**
+     * Set the {@link IDeviceRetryPolicy} used to decide how to retry failed device commands.
+     * <p/>
+     * If not set, a {@link BackoffRetryPolicy} configured from the device's
+     * {@link TestDeviceOptions} is used.
+     */
+    public void setRetryPolicy(IDeviceRetryPolicy policy);
+
+    /**
+     * Set the {@link DeviceActionStats} to record failed device commands and recoveries into.
+     */
+    public void setActionStats(DeviceActionStats stats);
+
+    /**
+     * @return the {@link DeviceActionStats} for this device
+     */
+    public DeviceActionStats getActionStats();
+
 }
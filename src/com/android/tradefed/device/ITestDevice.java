@@ -278,6 +278,18 @@ public interface ITestDevice {
      */
     public String executeShellCommand(String command) throws DeviceNotAvailableException;
 
+    /**
+     * Helper method which executes a adb shell command and returns its output and exit code.
+     *
+     * @param command the adb shell command to run
+     * @return the {@link ShellSession.Result}, or <code>null</code> if the exit code could not
+     *         be determined, e.g. if the command did not complete in a shell session
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     * recovered.
+     */
+    public ShellSession.Result executeShellCommandForResult(String command)
+            throws DeviceNotAvailableException;
+
     /**
      * Helper method which executes a adb command as a system command.
      * <p/>
@@ -137,4 +137,9 @@ interface IWifiHelper {
      * @throws DeviceNotAvailableException
      */
     boolean hasValidIp() throws DeviceNotAvailableException;
+
+    /**
+     * Release any resources held on the device, such as a running WifiUtil session.
+     */
+    void cleanUp();
 }
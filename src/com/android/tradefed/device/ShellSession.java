@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ArrayUtil;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived shell process, such as 'adb -s serial shell', that runs short commands back to
+ * back, avoiding the cost of opening a new shell channel for each command.
+ * <p/>
+ * Each command's output is framed by begin and end sentinel lines. The end sentinel carries the
+ * command's exit code. Sentinels are echoed via a split quoted string, so a pty echoing back
+ * the input line cannot be mistaken for the sentinel output. Commands are passed to 'eval' as a
+ * single quoted word, so comments, unbalanced parentheses or quotes in a command cannot swallow
+ * the end sentinel.
+ * <p/>
+ * Commands must not be interactive; their stdin is redirected from /dev/null. Any error or timeout
+ * leaves the session closed. If the command was not sent to the shell, callers are expected to
+ * fall back to running it on a separate channel. Otherwise a {@link CommandIncompleteException} is
+ * thrown, since the command may have run and must not be repeated.
+ */
+public class ShellSession {
+
+    private static final String SENTINEL_PREFIX = "__TF_SESSION_";
+    /** a marker placed on the line queue when the shell's output ends */
+    private static final String EOF = new String("EOF");
+    /** the marker printed before a command's exit code, see {@link #appendExitCode(String)} */
+    private static final String EXIT_MARKER = SENTINEL_PREFIX + "EXIT ";
+
+    /**
+     * Container for the result of a command run in a {@link ShellSession}.
+     */
+    public static class Result {
+        private final String mOutput;
+        private final int mExitCode;
+
+        Result(String output, int exitCode) {
+            mOutput = output;
+            mExitCode = exitCode;
+        }
+
+        /**
+         * @return the command's combined stdout and stderr
+         */
+        public String getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * @return the command's exit code
+         */
+        public int getExitCode() {
+            return mExitCode;
+        }
+    }
+
+    /**
+     * Thrown when a {@link ShellSession} fails after a command was sent to the shell, e.g. when
+     * the command produced no output for too long. The command may have run.
+     */
+    public static class CommandIncompleteException extends IOException {
+        private static final long serialVersionUID = -4424117353294212538L;
+
+        private final String mPartialOutput;
+
+        CommandIncompleteException(String message, String partialOutput) {
+            super(message);
+            mPartialOutput = partialOutput;
+        }
+
+        /**
+         * @return the output of the command received before the failure
+         */
+        public String getPartialOutput() {
+            return mPartialOutput;
+        }
+    }
+
+    private final IRunUtil mRunUtil;
+    private final String[] mShellCmd;
+    private Process mProcess = null;
+    private OutputStream mInput = null;
+    private BlockingQueue<String> mLines = null;
+    private long mCommandCount = 0;
+
+    /**
+     * Creates a {@link ShellSession}.
+     *
+     * @param runUtil the {@link IRunUtil} to use to launch the shell process
+     * @param shellCmd the command that launches an interactive shell, reading commands from stdin
+     */
+    public ShellSession(IRunUtil runUtil, String... shellCmd) {
+        mRunUtil = runUtil;
+        mShellCmd = shellCmd;
+    }
+
+    /**
+     * @return <code>true</code> if the shell process is running
+     */
+    public synchronized boolean isOpen() {
+        return mProcess != null;
+    }
+
+    /**
+     * Run a command in the session, starting the shell process if necessary.
+     *
+     * @param command the shell command to run
+     * @param maxTimeToOutput the max time in ms to wait for the command to output a line
+     * @return the {@link Result}
+     * @throws CommandIncompleteException if the shell failed or the command timed out after the
+     *             command was sent. The session is closed in that case.
+     * @throws IOException if the shell could not be started or the command could not be sent.
+     *             The session is closed in that case.
+     */
+    public synchronized Result executeCommand(String command, long maxTimeToOutput)
+            throws IOException {
+        if (mProcess == null) {
+            start();
+        }
+        long id = mCommandCount++;
+        String beginMarker = String.format("%sBEGIN_%d", SENTINEL_PREFIX, id);
+        String endMarker = String.format("%sEND_%d ", SENTINEL_PREFIX, id);
+        // quotes split the markers so an echo of this input line never matches them
+        String framedCmd = String.format(
+                "echo \"%s\"\"BEGIN_%d\"; (eval %s) </dev/null 2>&1; echo \"%s\"\"END_%d\" $?\n",
+                SENTINEL_PREFIX, id, quote(command), SENTINEL_PREFIX, id);
+        try {
+            mInput.write(framedCmd.getBytes());
+            mInput.flush();
+        } catch (IOException e) {
+            // a partial line is never run by the shell
+            close();
+            throw e;
+        }
+        StringBuilder output = new StringBuilder();
+        try {
+            // skip anything before the begin sentinel, such as echoed input
+            String line;
+            do {
+                line = readLine(maxTimeToOutput);
+            } while (!line.equals(beginMarker));
+            while (true) {
+                line = readLine(maxTimeToOutput);
+                int endIndex = line.indexOf(endMarker);
+                if (endIndex >= 0) {
+                    output.append(line.substring(0, endIndex));
+                    int exitCode = Integer.parseInt(
+                            line.substring(endIndex + endMarker.length()).trim());
+                    return new Result(output.toString(), exitCode);
+                }
+                output.append(line);
+                output.append('\n');
+            }
+        } catch (IOException e) {
+            close();
+            throw new CommandIncompleteException(String.format("'%s' did not complete: %s",
+                    command, e.getMessage()), output.toString());
+        } catch (NumberFormatException e) {
+            close();
+            throw new CommandIncompleteException(String.format(
+                    "Could not parse exit code of '%s'", command), output.toString());
+        }
+    }
+
+    /**
+     * Wrap given command so its exit code is printed after its output, for shells that do not
+     * report it, such as a separate 'adb shell' channel. The output of the wrapped command is
+     * parsed with {@link #parseExitCode(String)}.
+     *
+     * @param command the shell command to run
+     * @return the wrapped command
+     */
+    public static String appendExitCode(String command) {
+        return String.format("(eval %s) </dev/null 2>&1; echo \"%s\"\"%s\" $?", quote(command),
+                SENTINEL_PREFIX, EXIT_MARKER.substring(SENTINEL_PREFIX.length()));
+    }
+
+    /**
+     * Parse the output of a command wrapped by {@link #appendExitCode(String)}.
+     *
+     * @param output the output of the wrapped command
+     * @return the {@link Result}
+     * @throws IOException if the exit code was not found, e.g. if the output was truncated
+     */
+    public static Result parseExitCode(String output) throws IOException {
+        int index = output == null ? -1 : output.lastIndexOf(EXIT_MARKER);
+        if (index < 0) {
+            throw new IOException("exit code not found in command output");
+        }
+        try {
+            int exitCode = Integer.parseInt(
+                    output.substring(index + EXIT_MARKER.length()).trim());
+            return new Result(output.substring(0, index), exitCode);
+        } catch (NumberFormatException e) {
+            throw new IOException("could not parse exit code of command output");
+        }
+    }
+
+    /**
+     * Quote given command as a single shell word.
+     */
+    static String quote(String command) {
+        return "'" + command.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Terminate the shell process. The session will be restarted on the next command.
+     */
+    public synchronized void close() {
+        if (mProcess != null) {
+            StreamUtil.close(mInput);
+            mProcess.destroy();
+            mProcess = null;
+            mInput = null;
+            mLines = null;
+        }
+    }
+
+    private void start() throws IOException {
+        CLog.d("Starting shell session '%s'", ArrayUtil.join(" ", (Object[])mShellCmd));
+        mProcess = mRunUtil.runCmdInBackground(mShellCmd);
+        mInput = mProcess.getOutputStream();
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        mLines = lines;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                mProcess.getInputStream()));
+        Thread readerThread = new Thread("ShellSession-reader") {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // a pty will produce \r\n line endings
+                        if (line.endsWith("\r")) {
+                            line = line.substring(0, line.length() - 1);
+                        }
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // fall through
+                } finally {
+                    StreamUtil.close(reader);
+                    lines.add(EOF);
+                }
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private String readLine(long maxTimeToOutput) throws IOException {
+        String line;
+        try {
+            line = mLines.poll(maxTimeToOutput, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for shell output");
+        }
+        if (line == null) {
+            throw new IOException("timed out waiting for shell output");
+        }
+        if (line == EOF) {
+            throw new IOException("shell session terminated");
+        }
+        return line;
+    }
+}
@@ -56,6 +56,8 @@ import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DumpsysPackageParser.PackageInfo;
+import com.android.tradefed.device.IDeviceRetryPolicy.FailureType;
+import com.android.tradefed.device.IDeviceRetryPolicy.RecoveryAction;
 import com.android.tradefed.device.IWifiHelper.WifiState;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
@@ -148,6 +150,16 @@ class TestDevice implements IManagedTestDevice {
 
 	private int retryAttempts = 1;
 
+	private IDeviceRetryPolicy mRetryPolicy = new BackoffRetryPolicy(mOptions);
+	private boolean mCustomRetryPolicy = false;
+	private DeviceActionStats mActionStats = new DeviceActionStats();
+
+	/** the long-lived shell used for short commands, if enabled */
+	private ShellSession mShellSession = null;
+
+	/** the wifi helper, and its WifiUtil session, reused by all wifi operations */
+	private IWifiHelper mWifiHelper = null;
+
 	/**
 	 * Interface for a generic device communication attempt.
 	 */
@@ -228,10 +240,49 @@ class TestDevice implements IManagedTestDevice {
 	public void setOptions(TestDeviceOptions options) {
 		throwIfNull(options);
 		mOptions = options;
+		if (!mCustomRetryPolicy) {
+			mRetryPolicy = new BackoffRetryPolicy(options);
+		}
 		mMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
 		mMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setRetryPolicy(IDeviceRetryPolicy policy) {
+		throwIfNull(policy);
+		mRetryPolicy = policy;
+		mCustomRetryPolicy = true;
+	}
+
+	/**
+	 * Get the {@link IDeviceRetryPolicy} to use for failed device actions.
+	 * Defaults to a {@link BackoffRetryPolicy} configured from the device
+	 * options.
+	 */
+	IDeviceRetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setActionStats(DeviceActionStats stats) {
+		throwIfNull(stats);
+		mActionStats = stats;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public DeviceActionStats getActionStats() {
+		return mActionStats;
+	}
+
 	/**
 	 * Sets the max size of a tmp logcat file.
 	 * 
@@ -543,6 +594,53 @@ class TestDevice implements IManagedTestDevice {
 	@Override
 	public String executeShellCommand(String command)
 			throws DeviceNotAvailableException {
+		if (mOptions.isUseShellSession()) {
+			try {
+				ShellSession.Result result = executeShellSessionCommand(command);
+				if (result != null) {
+					return result.getOutput();
+				}
+			} catch (ShellSession.CommandIncompleteException e) {
+				// the command may have run, so don't run it again
+				return e.getPartialOutput();
+			}
+		}
+		return executeShellChannelCommand(command);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ShellSession.Result executeShellCommandForResult(String command)
+			throws DeviceNotAvailableException {
+		if (mOptions.isUseShellSession()) {
+			try {
+				ShellSession.Result result = executeShellSessionCommand(command);
+				if (result != null) {
+					return result;
+				}
+			} catch (ShellSession.CommandIncompleteException e) {
+				// the command may have run, so don't run it again
+				return null;
+			}
+		}
+		String output = executeShellChannelCommand(ShellSession
+				.appendExitCode(command));
+		try {
+			return ShellSession.parseExitCode(output);
+		} catch (IOException e) {
+			CLog.w("Failed to get exit code of '%s' on %s: %s", command,
+					getSerialNumber(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Run given command on a separate shell channel.
+	 */
+	private String executeShellChannelCommand(String command)
+			throws DeviceNotAvailableException {
 		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
 		executeShellCommand(command, receiver);
 		String output = receiver.getOutput();
@@ -550,6 +648,66 @@ class TestDevice implements IManagedTestDevice {
 		return output;
 	}
 
+	/**
+	 * Run given command in this device's long-lived {@link ShellSession}.
+	 * 
+	 * @param command
+	 *            the shell command to run
+	 * @return the command {@link ShellSession.Result}, or <code>null</code> if
+	 *         the command could not be sent to the session, in which case it
+	 *         should be run on a separate channel instead
+	 * @throws ShellSession.CommandIncompleteException
+	 *             if the session failed after the command was sent
+	 */
+	private ShellSession.Result executeShellSessionCommand(String command)
+			throws ShellSession.CommandIncompleteException {
+		ShellSession session;
+		synchronized (this) {
+			if (mShellSession == null) {
+				mShellSession = createShellSession();
+			}
+			session = mShellSession;
+		}
+		try {
+			ShellSession.Result result = session.executeCommand(command,
+					mCmdTimeout);
+			CLog.v("%s on %s returned %s (exit code %d)", command,
+					getSerialNumber(), result.getOutput(),
+					result.getExitCode());
+			return result;
+		} catch (ShellSession.CommandIncompleteException e) {
+			CLog.w("Shell session failed while running '%s' on %s: %s",
+					command, getSerialNumber(), e.getMessage());
+			throw e;
+		} catch (IOException e) {
+			CLog.w("Shell session failed to run '%s' on %s: %s. Falling back "
+					+ "to a separate shell channel", command,
+					getSerialNumber(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Factory method to create a {@link ShellSession}.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	ShellSession createShellSession() {
+		return new ShellSession(getRunUtil(), buildAdbCommand("shell"));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void stopShellSession() {
+		if (mShellSession != null) {
+			mShellSession.close();
+			mShellSession = null;
+		}
+		resetWifiHelper();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -1477,19 +1635,25 @@ class TestDevice implements IManagedTestDevice {
 			final DeviceAction action, int retryAttempts)
 			throws DeviceNotAvailableException {
 		// 如果成功直接返回,如果失败就要重试
-		for (int i = 0; i < retryAttempts + 1; i++) {
-			if (i != 0) {
-				// System.out.println("第一次执行不成功,第" + i + "次重试");
-				CLog.logAndDisplay(LogLevel.INFO, String.format("第  %d 次重试", i));
+		IDeviceRetryPolicy policy = getRetryPolicy();
+		int failureCount = 0;
+		int recoveryCount = 0;
+		while (recoveryCount <= retryAttempts) {
+			if (failureCount != 0) {
+				CLog.logAndDisplay(LogLevel.INFO, String.format("第  %d 次重试", failureCount));
 			}
+			FailureType failure;
 			try {
 				return action.run();
 			} catch (TimeoutException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = FailureType.classify(e);
 			} catch (IOException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = FailureType.classify(e);
 			} catch (InstallException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = FailureType.classify(e);
 			} catch (SyncException e) {
 				logDeviceActionException(actionDescription, e);
 				// a SyncException is not necessarily a device communication
@@ -1502,16 +1666,40 @@ class TestDevice implements IManagedTestDevice {
 					// retried
 					return false;
 				}
+				failure = FailureType.classify(e);
 			} catch (AdbCommandRejectedException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = FailureType.classify(e);
 			} catch (ShellCommandUnresponsiveException e) {
 				CLog.w("Device %s stopped responding when attempting %s",
 						getSerialNumber(), actionDescription);
+				failure = FailureType.classify(e);
+			}
+			failureCount++;
+			mActionStats.recordFailure(failure);
+			RecoveryAction recovery = policy.getRecoveryAction(failure, failureCount);
+			if (!RecoveryAction.FULL.equals(recovery)) {
+				long delay = policy.getRetryDelay(failure, failureCount);
+				if (delay > 0) {
+					CLog.d("Waiting %d ms before retrying %s on %s", delay,
+							actionDescription, getSerialNumber());
+					getRunUtil().sleep(delay);
+				}
+			}
+			if (RecoveryAction.SHELL_CHECK.equals(recovery)) {
+				mActionStats.recordShellCheck();
+				if (mMonitor.waitForDeviceShell(mOptions.getShellCheckTimeout())) {
+					continue;
+				}
+				CLog.i("Device %s shell is unresponsive, escalating to recovery",
+						getSerialNumber());
+				recovery = RecoveryAction.FULL;
+			}
+			if (RecoveryAction.FULL.equals(recovery)) {
+				mActionStats.recordRecovery();
+				recoverDevice();
+				recoveryCount++;
 			}
-			// TODO: currently treat all exceptions the same. In future consider
-			// different recovery
-			// mechanisms for time out's vs IOExceptions
-			recoverDevice();
 		}
 		if (retryAttempts > 0) {
 			throw new DeviceUnresponsiveException(
@@ -1824,7 +2012,7 @@ class TestDevice implements IManagedTestDevice {
 		CLog.i("Connecting to wifi network %s on %s", wifiSsid,
 				getSerialNumber());
 		try {
-			IWifiHelper wifi = createWifiHelper();
+			IWifiHelper wifi = getWifiHelper();
 			if (!wifi.enableWifi()) {
 				CLog.e("failed to enable wifi on %s", getSerialNumber());
 				return false;
@@ -1923,7 +2111,7 @@ class TestDevice implements IManagedTestDevice {
 			throws TargetSetupError, DeviceNotAvailableException {
 		CLog.i("Checking connection with wifi network %s on %s", wifiSSID,
 				getSerialNumber());
-		IWifiHelper wifi = createWifiHelper();
+		IWifiHelper wifi = getWifiHelper();
 		// getSSID returns SSID as "SSID"
 		String quotedSSID = String.format("\"%s\"", wifiSSID);
 		return wifi.isWifiEnabled() && quotedSSID.equals(wifi.getSSID())
@@ -1937,7 +2125,7 @@ class TestDevice implements IManagedTestDevice {
 	public boolean disconnectFromWifi() throws DeviceNotAvailableException {
 		CLog.i("Disconnecting from wifi on %s", getSerialNumber());
 		try {
-			IWifiHelper wifi = createWifiHelper();
+			IWifiHelper wifi = getWifiHelper();
 			wifi.removeAllNetworks();
 			wifi.disableWifi();
 			return true;
@@ -1953,14 +2141,36 @@ class TestDevice implements IManagedTestDevice {
 	@Override
 	public String getIpAddress() throws DeviceNotAvailableException {
 		try {
-			IWifiHelper wifi = createWifiHelper();
-			return wifi.getIpAddress();
+			return getWifiHelper().getIpAddress();
 		} catch (TargetSetupError e) {
 			CLog.e(e);
 			return null;
 		}
 	}
 
+	/**
+	 * Get the {@link IWifiHelper} of this device, creating it on first use.
+	 * The helper is kept until the device is freed or rebooted, so its
+	 * WifiUtil session serves all wifi operations in between.
+	 */
+	private synchronized IWifiHelper getWifiHelper() throws TargetSetupError,
+			DeviceNotAvailableException {
+		if (mWifiHelper == null) {
+			mWifiHelper = createWifiHelper();
+		}
+		return mWifiHelper;
+	}
+
+	/**
+	 * Release the {@link IWifiHelper} of this device, if any.
+	 */
+	private synchronized void resetWifiHelper() {
+		if (mWifiHelper != null) {
+			mWifiHelper.cleanUp();
+			mWifiHelper = null;
+		}
+	}
+
 	/**
 	 * Create a {@link WifiHelper} to use
 	 * <p/>
@@ -1968,7 +2178,7 @@ class TestDevice implements IManagedTestDevice {
 	 */
 	IWifiHelper createWifiHelper() throws TargetSetupError,
 			DeviceNotAvailableException {
-		return new WifiHelper(this);
+		return new WifiHelper(this, mOptions.isWifiUtilSession());
 	}
 
 	/**
@@ -2042,6 +2252,9 @@ class TestDevice implements IManagedTestDevice {
 	 */
 	@Override
 	public void postBootSetup() throws DeviceNotAvailableException {
+		// the WifiUtil session did not survive the reboot, and WifiUtil may
+		// have to be reinstalled if the device was flashed
+		resetWifiHelper();
 		postOnlineSetup();
 		if (mOptions.isDisableKeyguard()) {
 			// CLog.i("Attempting to disable keyguard on %s using %s",
@@ -64,6 +64,36 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "transient-retries", description = "number of times to retry a device "
+            + "command that failed with a transient error, such as a timeout, with backoff and "
+            + "before attempting device recovery. 0 to recover immediately on any failure.")
+    private int mTransientRetries = 0;
+
+    @Option(name = "retry-backoff", description = "time in ms to wait before the first retry of "
+            + "a failed device command. Doubled for each subsequent retry.")
+    private long mRetryBackoff = 1000;
+
+    @Option(name = "max-retry-backoff", description = "maximum time in ms to wait between "
+            + "retries of a failed device command.")
+    private long mMaxRetryBackoff = 30 * 1000;
+
+    @Option(name = "retry-jitter", description = "fraction between 0 and 1 of each retry "
+            + "backoff to randomly subtract, to avoid retrying in lockstep.")
+    private double mRetryJitter = 0.5;
+
+    @Option(name = "shell-check-timeout", description = "time in ms to wait for the device "
+            + "shell to respond before escalating to full recovery.")
+    private long mShellCheckTimeout = 5 * 1000;
+
+    @Option(name = "use-shell-session", description = "run short shell commands in a single "
+            + "long-lived adb shell instead of opening a new shell channel for each command.")
+    private boolean mUseShellSession = false;
+
+    @Option(name = "wifiutil-session", description = "run wifi operations in a single "
+            + "long-running WifiUtil instrumentation that reports wifi state changes, instead of "
+            + "launching an instrumentation for each operation and polling for state changes.")
+    private boolean mWifiUtilSession = false;
+
     @Option(name = "device-comm-port", description = "comm port related to this device")
     private String mCommPort = null;
     
@@ -222,4 +252,81 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
+
+    /**
+     * @return the number of retries with backoff of a transient failure before recovery.
+     */
+    public int getTransientRetries() {
+        return mTransientRetries;
+    }
+
+    public void setTransientRetries(int transientRetries) {
+        mTransientRetries = transientRetries;
+    }
+
+    /**
+     * @return the time in ms to wait before the first retry of a failed device command.
+     */
+    public long getRetryBackoff() {
+        return mRetryBackoff;
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        mRetryBackoff = retryBackoff;
+    }
+
+    /**
+     * @return the maximum time in ms to wait between retries of a failed device command.
+     */
+    public long getMaxRetryBackoff() {
+        return mMaxRetryBackoff;
+    }
+
+    public void setMaxRetryBackoff(long maxRetryBackoff) {
+        mMaxRetryBackoff = maxRetryBackoff;
+    }
+
+    /**
+     * @return the fraction of each retry backoff to randomly subtract.
+     */
+    public double getRetryJitter() {
+        return mRetryJitter;
+    }
+
+    public void setRetryJitter(double retryJitter) {
+        mRetryJitter = retryJitter;
+    }
+
+    /**
+     * @return the time in ms to wait for the device shell before escalating to full recovery.
+     */
+    public long getShellCheckTimeout() {
+        return mShellCheckTimeout;
+    }
+
+    public void setShellCheckTimeout(long shellCheckTimeout) {
+        mShellCheckTimeout = shellCheckTimeout;
+    }
+
+    /**
+     * @return whether short shell commands should be run in a long-lived shell session.
+     */
+    public boolean isUseShellSession() {
+        return mUseShellSession;
+    }
+
+    public void setUseShellSession(boolean useShellSession) {
+        mUseShellSession = useShellSession;
+    }
+
+    /**
+     * @return <code>true</code> if wifi operations should run in a WifiUtil session
+     */
+    public boolean isWifiUtilSession() {
+        return mWifiUtilSession;
+    }
+
+    public void setWifiUtilSession(boolean wifiUtilSession) {
+        mWifiUtilSession = wifiUtilSession;
+    }
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.TableFormatter;
+import com.android.tradefed.util.TimeUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Schedules the flashing of devices so that devices behind the same USB hub do not compete for its
+ * bandwidth, while devices on different hubs flash in parallel.
+ * <p/>
+ * Each flash declares the number of bytes it will transfer. A hub admits a flash when nothing is
+ * flashing through it, or when the bytes in flight through it stay within
+ * <code>--usb-hub-flash-bytes</code>, so that small partitions can share a hub but large images
+ * go one at a time. Waiting flashes of a hub are admitted in arrival order, except that a smaller
+ * flash that fits may go ahead of a larger one that does not, for at most
+ * <code>--usb-flash-backfill-time</code>.
+ * <p/>
+ * The throughput of every flash is recorded per partition and per hub, for tuning.
+ */
+@OptionClass(alias = "usb-flash")
+public class UsbFlashScheduler {
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final UsbFlashScheduler INSTANCE = new UsbFlashScheduler(new UsbTopology());
+    }
+
+    @Option(name = "usb-hub-flash-bytes", description = "the max number of bytes flashing at " +
+            "once through a USB hub. A single flash larger than this is admitted alone.")
+    private long mHubFlashBytes = 512 * 1024 * 1024;
+
+    @Option(name = "usb-flash-backfill-time", description = "the max time in ms a flash waiting " +
+            "for its USB hub may be overtaken by smaller flashes.")
+    private long mBackfillTimeMs = 60 * 1000;
+
+    private final UsbTopology mTopology;
+    /** hubs by id */
+    private final Map<String, Hub> mHubs = new HashMap<String, Hub>();
+    /** throughput stats by partition */
+    private final Map<String, Throughput> mPartitionStats = new TreeMap<String, Throughput>();
+
+    /**
+     * A flash admitted by the scheduler. Must be released once the flash completes.
+     */
+    public class Flash {
+        private final Hub mHub;
+        private final String mPartition;
+        private final long mBytes;
+        private final long mQueuedTime;
+        private long mStartTime;
+        private boolean mReleased = false;
+
+        Flash(Hub hub, String partition, long bytes) {
+            mHub = hub;
+            mPartition = partition;
+            mBytes = bytes;
+            mQueuedTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the hub this flash goes through, or <code>null</code> if not known
+         */
+        public String getHub() {
+            return mHub == null ? null : mHub.mId;
+        }
+
+        /**
+         * Release the hub bandwidth used by this flash. Releasing it again has no effect.
+         *
+         * @param success <code>true</code> if the flash succeeded, so that its throughput is
+         *            recorded
+         */
+        public void release(boolean success) {
+            releaseFlash(this, success);
+        }
+    }
+
+    /**
+     * The flashes in flight and waiting on a hub.
+     */
+    private static class Hub {
+        private final String mId;
+        private long mBytesInFlight = 0;
+        private int mFlashesInFlight = 0;
+        private final LinkedList<Flash> mWaiting = new LinkedList<Flash>();
+        private final Throughput mThroughput = new Throughput();
+
+        Hub(String id) {
+            mId = id;
+        }
+    }
+
+    /**
+     * Accumulated bytes and time of completed flashes.
+     */
+    static class Throughput {
+        private int mCount = 0;
+        private long mBytes = 0;
+        private long mTimeMs = 0;
+
+        void add(long bytes, long timeMs) {
+            mCount++;
+            mBytes += bytes;
+            mTimeMs += timeMs;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the average throughput in KB/s, or 0 if unknown
+         */
+        long getKbPerSecond() {
+            return mTimeMs > 0 ? mBytes * 1000 / 1024 / mTimeMs : 0;
+        }
+    }
+
+    /**
+     * Creates a {@link UsbFlashScheduler}.
+     * <p/>
+     * Exposed for unit testing. Use {@link #getInstance()} to schedule flashes across invocations.
+     */
+    UsbFlashScheduler(UsbTopology topology) {
+        mTopology = topology;
+    }
+
+    /**
+     * Get the host-wide {@link UsbFlashScheduler}.
+     */
+    public static UsbFlashScheduler getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * @return the {@link UsbTopology} used to find the hub of devices
+     */
+    public UsbTopology getTopology() {
+        return mTopology;
+    }
+
+    /**
+     * Wait until the hub of given device has bandwidth for a flash.
+     *
+     * @param serial the serial of the device to flash
+     * @param partition the partition to flash, for stats
+     * @param bytes the number of bytes the flash will transfer
+     * @return the admitted {@link Flash}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Flash acquire(String serial, String partition, long bytes) throws InterruptedException {
+        String hubId = serial == null ? null : mTopology.getHub(serial);
+        synchronized (this) {
+            if (hubId == null) {
+                // not on a known hub, nothing to share
+                Flash flash = new Flash(null, partition, bytes);
+                flash.mStartTime = flash.mQueuedTime;
+                return flash;
+            }
+            Hub hub = mHubs.get(hubId);
+            if (hub == null) {
+                hub = new Hub(hubId);
+                mHubs.put(hubId, hub);
+            }
+            Flash flash = new Flash(hub, partition, bytes);
+            hub.mWaiting.add(flash);
+            try {
+                while (!canStart(hub, flash)) {
+                    wait();
+                }
+            } finally {
+                hub.mWaiting.remove(flash);
+                // the head of the queue may have changed
+                notifyAll();
+            }
+            hub.mBytesInFlight += bytes;
+            hub.mFlashesInFlight++;
+            flash.mStartTime = System.currentTimeMillis();
+            long waitMs = flash.mStartTime - flash.mQueuedTime;
+            if (waitMs > 0) {
+                CLog.d("%s waited %s for USB hub %s to flash %s", serial,
+                        TimeUtil.formatElapsedTime(waitMs), hubId, partition);
+            }
+            return flash;
+        }
+    }
+
+    /**
+     * Determine if a waiting flash can start now.
+     */
+    private boolean canStart(Hub hub, Flash flash) {
+        Flash head = hub.mWaiting.getFirst();
+        if (hub.mFlashesInFlight == 0) {
+            return head == flash;
+        }
+        if (hub.mBytesInFlight + flash.mBytes > mHubFlashBytes) {
+            return false;
+        }
+        return head == flash
+                || System.currentTimeMillis() - head.mQueuedTime < mBackfillTimeMs;
+    }
+
+    private synchronized void releaseFlash(Flash flash, boolean success) {
+        if (flash.mReleased) {
+            return;
+        }
+        flash.mReleased = true;
+        long timeMs = System.currentTimeMillis() - flash.mStartTime;
+        if (flash.mHub != null) {
+            flash.mHub.mBytesInFlight -= flash.mBytes;
+            flash.mHub.mFlashesInFlight--;
+            notifyAll();
+        }
+        if (!success) {
+            return;
+        }
+        if (flash.mHub != null) {
+            flash.mHub.mThroughput.add(flash.mBytes, timeMs);
+        }
+        Throughput stats = mPartitionStats.get(flash.mPartition);
+        if (stats == null) {
+            stats = new Throughput();
+            mPartitionStats.put(flash.mPartition, stats);
+        }
+        stats.add(flash.mBytes, timeMs);
+    }
+
+    /**
+     * Get the throughput stats of a partition.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized Throughput getPartitionStats(String partition) {
+        return mPartitionStats.get(partition);
+    }
+
+    /**
+     * Set the max bytes in flight per hub.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized void setHubFlashBytes(long bytes) {
+        mHubFlashBytes = bytes;
+    }
+
+    /**
+     * Set the max time a flash can be overtaken.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized void setBackfillTime(long timeMs) {
+        mBackfillTimeMs = timeMs;
+    }
+
+    /**
+     * Print the current load and the recorded throughput of every hub and partition.
+     *
+     * @param out the {@link PrintWriter} to print to
+     */
+    public synchronized void printStats(PrintWriter out) {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        rows.add(Arrays.asList("Hub", "Flashing", "In flight", "Waiting", "Flashes", "KB/s"));
+        for (Hub hub : new TreeMap<String, Hub>(mHubs).values()) {
+            rows.add(Arrays.asList(hub.mId, Integer.toString(hub.mFlashesInFlight),
+                    Long.toString(hub.mBytesInFlight), Integer.toString(hub.mWaiting.size()),
+                    Integer.toString(hub.mThroughput.getCount()),
+                    Long.toString(hub.mThroughput.getKbPerSecond())));
+        }
+        new TableFormatter().displayTable(rows, out);
+        rows = new ArrayList<List<String>>();
+        rows.add(Arrays.asList("Partition", "Flashes", "KB/s"));
+        for (Map.Entry<String, Throughput> entry : mPartitionStats.entrySet()) {
+            rows.add(Arrays.asList(entry.getKey(), Integer.toString(entry.getValue().getCount()),
+                    Long.toString(entry.getValue().getKbPerSecond())));
+        }
+        new TableFormatter().displayTable(rows, out);
+        out.flush();
+    }
+}
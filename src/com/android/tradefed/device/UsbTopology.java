@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps device serials to the USB hub they are plugged into, as listed by sysfs.
+ * <p/>
+ * Each USB device appears in sysfs under a name made of its bus number and port path, e.g.
+ * <code>1-1.2</code> for the device on port 2 of the hub plugged into port 1 of bus 1. The hub of
+ * a device is its port path without the last port, or the root hub <code>usb1</code> when the
+ * device is plugged directly into the controller. All devices behind one hub share its upstream
+ * bandwidth.
+ */
+public class UsbTopology {
+
+    private static final String SYSFS_USB_DEVICES = "/sys/bus/usb/devices";
+    /** bus number, and port path. Interfaces, e.g. 1-1.2:1.0, do not match */
+    private static final Pattern DEVICE_NAME = Pattern.compile("(\\d+)-([\\d.]+)");
+
+    private final File mDevicesDir;
+    /** map of serial to hub, for the devices found by the last scan */
+    private Map<String, String> mHubs = new HashMap<String, String>();
+
+    /**
+     * Creates a {@link UsbTopology} reading the host sysfs.
+     */
+    public UsbTopology() {
+        this(new File(SYSFS_USB_DEVICES));
+    }
+
+    /**
+     * Creates a {@link UsbTopology} reading given sysfs devices dir.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    UsbTopology(File devicesDir) {
+        mDevicesDir = devicesDir;
+    }
+
+    /**
+     * Get the hub a device is plugged into.
+     *
+     * @param serial the device serial
+     * @return the hub id, e.g. <code>1-1</code>, or <code>null</code> if the device is not on the
+     *         USB of this host, or sysfs is not available
+     */
+    public synchronized String getHub(String serial) {
+        if (!mHubs.containsKey(serial)) {
+            scan();
+        }
+        return mHubs.get(serial);
+    }
+
+    /**
+     * Forget where a device is plugged, e.g. because it was reconnected, possibly to another port.
+     * Its hub is looked up again on next use.
+     *
+     * @param serial the device serial
+     */
+    public synchronized void invalidate(String serial) {
+        mHubs.remove(serial);
+    }
+
+    /**
+     * Read the serial of every USB device listed in sysfs.
+     */
+    private void scan() {
+        File[] entries = mDevicesDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        Map<String, String> hubs = new HashMap<String, String>();
+        for (File entry : entries) {
+            Matcher matcher = DEVICE_NAME.matcher(entry.getName());
+            File serialFile = new File(entry, "serial");
+            if (!matcher.matches() || !serialFile.isFile()) {
+                continue;
+            }
+            try {
+                String serial = FileUtil.readStringFromFile(serialFile).trim();
+                if (!serial.isEmpty()) {
+                    hubs.put(serial, getHubName(matcher.group(1), matcher.group(2)));
+                }
+            } catch (IOException e) {
+                // device was likely unplugged while scanning
+                CLog.d("Failed to read %s: %s", serialFile, e.toString());
+            }
+        }
+        mHubs = hubs;
+    }
+
+    private static String getHubName(String bus, String ports) {
+        int lastPort = ports.lastIndexOf('.');
+        if (lastPort < 0) {
+            return "usb" + bus;
+        }
+        return String.format("%s-%s", bus, ports.substring(0, lastPort));
+    }
+}
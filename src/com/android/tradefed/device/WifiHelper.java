@@ -49,14 +49,85 @@ public class WifiHelper implements IWifiHelper {
 	/** the default time in ms to wait for a wifi state */
 	private static final long DEFAULT_WIFI_STATE_TIMEOUT = 30 * 1000;
 
+	/** the time in ms to wait for a WifiUtil session to start */
+	private static final long SESSION_START_TIMEOUT = 10 * 1000;
+
+	/** the time in ms to wait for the result of a WifiUtil method called in a session */
+	private static final long SESSION_CALL_TIMEOUT = 30 * 1000;
+
 	private final ITestDevice mDevice;
+	private boolean mUseSession;
+	private WifiUtilSession mSession = null;
 
 	public WifiHelper(ITestDevice device) throws TargetSetupError,
 			DeviceNotAvailableException {
+		this(device, false);
+	}
+
+	/**
+	 * Creates a {@link WifiHelper}.
+	 *
+	 * @param device
+	 *            the {@link ITestDevice}
+	 * @param useSession
+	 *            if <code>true</code>, attempt to run WifiUtil methods in a
+	 *            long-running {@link WifiUtilSession}, that is kept for the
+	 *            lifetime of this helper and restarted if it idles out.
+	 *            Falls back to an instrumentation per method if the session
+	 *            cannot be started. Call {@link #cleanUp()} when done.
+	 */
+	public WifiHelper(ITestDevice device, boolean useSession)
+			throws TargetSetupError, DeviceNotAvailableException {
 		mDevice = device;
+		mUseSession = useSession;
 		ensureDeviceSetup();
 	}
 
+	/**
+	 * Create the {@link WifiUtilSession} to use.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	WifiUtilSession createSession() {
+		return new WifiUtilSession(mDevice);
+	}
+
+	/**
+	 * Return the open {@link WifiUtilSession}, starting a new one if there is
+	 * none yet or the previous one ended. Returns <code>null</code> if
+	 * sessions are disabled or not supported by the installed WifiUtil.
+	 */
+	private synchronized WifiUtilSession getOpenSession() {
+		if (mSession != null && mSession.isOpen()) {
+			return mSession;
+		}
+		mSession = null;
+		if (!mUseSession) {
+			return null;
+		}
+		WifiUtilSession session = createSession();
+		if (!session.start(SESSION_START_TIMEOUT)) {
+			CLog.w("WifiUtil sessions are not available on %s, falling back to "
+					+ "instrumentation per method", mDevice.getSerialNumber());
+			mUseSession = false;
+			return null;
+		}
+		mSession = session;
+		return mSession;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void cleanUp() {
+		mUseSession = false;
+		if (mSession != null) {
+			mSession.stop();
+			mSession = null;
+		}
+	}
+
 	/**
 	 * Get the {@link RunUtil} instance to use.
 	 * <p/>
@@ -147,9 +218,24 @@ public class WifiHelper implements IWifiHelper {
 	 *         is reached
 	 * @throws DeviceNotAvailableException
 	 */
-	boolean waitForWifiState(long timeout, WifiState... expectedStates)
+	boolean waitForWifiState(long timeout, final WifiState... expectedStates)
 			throws DeviceNotAvailableException {
 		long startTime = System.currentTimeMillis();
+		WifiUtilSession session = getOpenSession();
+		if (session != null && session.waitForState(new WifiUtilSession.StateCondition() {
+			@Override
+			public boolean isSatisfied(Map<String, String> state) {
+				for (WifiState expectedState : expectedStates) {
+					if (expectedState.name().equals(state.get(WifiUtilSession.STATE_SUPPLICANT))) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}, timeout)) {
+			return true;
+		}
+		// poll for any remaining time if the session closed
 		while (System.currentTimeMillis() < (startTime + timeout)) {
 			String state = runWifiUtil("getSupplicantState");
 			for (WifiState expectedState : expectedStates) {
@@ -225,6 +311,15 @@ public class WifiHelper implements IWifiHelper {
 	@Override
 	public boolean waitForIp(long timeout) throws DeviceNotAvailableException {
 		long startTime = System.currentTimeMillis();
+		WifiUtilSession session = getOpenSession();
+		if (session != null && session.waitForState(new WifiUtilSession.StateCondition() {
+			@Override
+			public boolean isSatisfied(Map<String, String> state) {
+				return isValidIp(state.get(WifiUtilSession.STATE_IP_ADDRESS));
+			}
+		}, timeout)) {
+			return true;
+		}
 
 		while (System.currentTimeMillis() < (startTime + timeout)) {
 			if (hasValidIp()) {
@@ -240,7 +335,10 @@ public class WifiHelper implements IWifiHelper {
 	 */
 	@Override
 	public boolean hasValidIp() throws DeviceNotAvailableException {
-		final String ip = getIpAddress();
+		return isValidIp(getIpAddress());
+	}
+
+	private static boolean isValidIp(String ip) {
 		return ip != null && !ip.isEmpty() && !NULL_IP_ADDR.equals(ip);
 	}
 
@@ -288,6 +386,15 @@ public class WifiHelper implements IWifiHelper {
 	public boolean waitForWifiEnabled(long timeout)
 			throws DeviceNotAvailableException {
 		long startTime = System.currentTimeMillis();
+		WifiUtilSession session = getOpenSession();
+		if (session != null && session.waitForState(new WifiUtilSession.StateCondition() {
+			@Override
+			public boolean isSatisfied(Map<String, String> state) {
+				return asBool(state.get(WifiUtilSession.STATE_WIFI_ENABLED));
+			}
+		}, timeout)) {
+			return true;
+		}
 
 		while (System.currentTimeMillis() < (startTime + timeout)) {
 			if (isWifiEnabled()) {
@@ -310,6 +417,14 @@ public class WifiHelper implements IWifiHelper {
 	 */
 	private String runWifiUtil(String method, String... args)
 			throws DeviceNotAvailableException {
+		WifiUtilSession session = getOpenSession();
+		if (session != null) {
+			String result = session.call(SESSION_CALL_TIMEOUT, method, args);
+			if (session.isOpen()) {
+				return result;
+			}
+			CLog.w("WifiUtil session closed, falling back to instrumentation for %s", method);
+		}
 		final String cmd = buildWifiUtilCmd(method, args);
 		CLog.d(String.format("向wifi app发送命令 %s", cmd));
 		WifiUtilOutput parser = new WifiUtilOutput();
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice.DeviceUnixSocketNamespace;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A long-running WifiUtil instrumentation on a device, that serves many WifiUtil method calls and
+ * reports wifi state changes as they happen.
+ * <p/>
+ * The session instrumentation is started with 'am instrument -r -e method session'. Once it
+ * reports it is ready, the session connects to the instrumentation's local socket through an adb
+ * forward. Method calls are sent as lines on that connection, so a call does not launch any
+ * process on the device, and results and wifi state events come back on the same connection.
+ * Waiting for a wifi state therefore does not require polling the device.
+ * <p/>
+ * Any failure leaves the session closed; callers are expected to fall back to launching an
+ * instrumentation per call.
+ */
+public class WifiUtilSession {
+
+    /** prefix of the name of the abstract socket the session instrumentation listens on */
+    static final String SOCKET_PREFIX = "tradefed-wifiutil-";
+
+    static final int STATUS_READY = 10;
+
+    static final String MESSAGE_EVENT = "event";
+    static final String MESSAGE_RESULT = "result";
+
+    /** state key for whether wifi is enabled, "true" or "false" */
+    public static final String STATE_WIFI_ENABLED = "wifiEnabled";
+    /** state key for the supplicant state name */
+    public static final String STATE_SUPPLICANT = "supplicantState";
+    /** state key for the ip address */
+    public static final String STATE_IP_ADDRESS = "ipAddress";
+    /** state key for the ssid */
+    public static final String STATE_SSID = "ssid";
+
+    /** the time in ms the agent stays alive without receiving method calls */
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * A condition on the wifi state reported by the session.
+     */
+    public static interface StateCondition {
+        /**
+         * @param state the latest wifi state, with STATE_* keys
+         * @return <code>true</code> if the condition is satisfied
+         */
+        public boolean isSatisfied(Map<String, String> state);
+    }
+
+    private final ITestDevice mDevice;
+    private final String mToken;
+    private final SessionOutputReceiver mReceiver = new SessionOutputReceiver();
+
+    // guarded by this
+    private boolean mReady = false;
+    private boolean mClosed = false;
+    private int mNextId = 0;
+    private Socket mSocket = null;
+    private Writer mWriter = null;
+    private int mForwardPort = -1;
+    private Map<String, String> mState = new HashMap<String, String>();
+    private final Map<String, Map<String, String>> mResults =
+            new HashMap<String, Map<String, String>>();
+
+    /**
+     * Creates a {@link WifiUtilSession}. Call {@link #start(long)} to launch it.
+     *
+     * @param device the {@link ITestDevice} with the WifiUtil instrumentation installed
+     */
+    public WifiUtilSession(ITestDevice device) {
+        mDevice = device;
+        mToken = Long.toHexString(new Random().nextLong());
+    }
+
+    /**
+     * Launch the session instrumentation, wait until it is ready and connect to it.
+     *
+     * @param timeout the max time in ms to wait for the session to be ready
+     * @return <code>true</code> if the session is ready. <code>false</code> if it failed to start,
+     *         e.g. because the installed WifiUtil does not support sessions
+     */
+    public boolean start(long timeout) {
+        final String cmd = String.format(
+                "am instrument -r -e method session -e token %s -e idleTimeout %d -w %s",
+                mToken, IDLE_TIMEOUT, WifiHelper.FULL_INSTRUMENTATION_NAME);
+        Thread sessionThread = new Thread(String.format("WifiUtilSession-%s",
+                mDevice.getSerialNumber())) {
+            @Override
+            public void run() {
+                try {
+                    // run directly on the IDevice: device recovery must not be triggered from
+                    // this thread
+                    mDevice.getIDevice().executeShellCommand(cmd, mReceiver, 0);
+                } catch (Exception e) {
+                    CLog.w("WifiUtil session on %s failed: %s", mDevice.getSerialNumber(),
+                            e.toString());
+                } finally {
+                    close();
+                }
+            }
+        };
+        sessionThread.setDaemon(true);
+        sessionThread.start();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (!mReady && !mClosed) {
+                if (!waitUntil(deadline)) {
+                    break;
+                }
+            }
+            if (!mReady || mClosed) {
+                CLog.i("WifiUtil session could not be started on %s",
+                        mDevice.getSerialNumber());
+                close();
+                return false;
+            }
+        }
+        try {
+            connect();
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to connect to WifiUtil session on %s: %s", mDevice.getSerialNumber(),
+                    e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Connect to the session instrumentation, and start reading the messages it sends.
+     */
+    private void connect() throws IOException {
+        final Socket socket = openSocket();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        synchronized (this) {
+            mSocket = socket;
+            mWriter = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            if (mClosed) {
+                // closed while connecting
+                throw new IOException("session closed");
+            }
+        }
+        Thread readerThread = new Thread(String.format("WifiUtilSessionReader-%s",
+                mDevice.getSerialNumber())) {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        handleMessage(decode(line));
+                    }
+                } catch (IOException e) {
+                    CLog.d("WifiUtil session connection on %s closed: %s",
+                            mDevice.getSerialNumber(), e.getMessage());
+                } finally {
+                    close();
+                }
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Forward a local port to the session instrumentation's socket, and connect to it.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    Socket openSocket() throws IOException {
+        ServerSocket portFinder = new ServerSocket(0);
+        int port = portFinder.getLocalPort();
+        portFinder.close();
+        try {
+            mDevice.getIDevice().createForward(port, SOCKET_PREFIX + mToken,
+                    DeviceUnixSocketNamespace.ABSTRACT);
+        } catch (Exception e) {
+            throw new IOException(String.format("Failed to forward port %d: %s", port,
+                    e.toString()));
+        }
+        synchronized (this) {
+            mForwardPort = port;
+        }
+        return new Socket(InetAddress.getByName("localhost"), port);
+    }
+
+    /**
+     * @return <code>true</code> if the session is ready to accept method calls
+     */
+    public synchronized boolean isOpen() {
+        return mReady && !mClosed && mWriter != null;
+    }
+
+    /**
+     * Call a WifiUtil method in the session.
+     *
+     * @param timeout the max time in ms to wait for the result
+     * @param method the WifiUtil method to call
+     * @param args a flat list of [arg-name, value] pairs to pass
+     * @return the method result, or <code>null</code> if the method failed or timed out
+     */
+    public String call(long timeout, String method, String... args) {
+        if ((args.length & 0x1) == 0x1) {
+            throw new IllegalArgumentException(
+                    "args should have even length, consisting of key and value pairs");
+        }
+        String id;
+        synchronized (this) {
+            if (!isOpen()) {
+                return null;
+            }
+            id = Integer.toString(mNextId++);
+        }
+        Map<String, String> message = new LinkedHashMap<String, String>();
+        message.put("id", id);
+        message.put("method", method);
+        for (int i = 0; i < args.length; i += 2) {
+            message.put(args[i], args[i + 1]);
+        }
+        if (!send(message)) {
+            return null;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (!mResults.containsKey(id) && !mClosed) {
+                if (!waitUntil(deadline)) {
+                    break;
+                }
+            }
+            Map<String, String> result = mResults.remove(id);
+            if (result == null) {
+                CLog.w("No result for WifiUtil method %s on %s", method,
+                        mDevice.getSerialNumber());
+                return null;
+            } else if (result.containsKey("error")) {
+                CLog.w("WifiUtil method %s failed on %s: %s", method, mDevice.getSerialNumber(),
+                        result.get("error"));
+                return null;
+            }
+            return result.get("result");
+        }
+    }
+
+    /**
+     * Send a message to the session instrumentation.
+     *
+     * @return <code>false</code> if the message could not be sent, in which case the session is
+     *         closed
+     */
+    private boolean send(Map<String, String> message) {
+        try {
+            synchronized (this) {
+                if (mWriter == null) {
+                    return false;
+                }
+                mWriter.write(encode(message));
+                mWriter.write('\n');
+                mWriter.flush();
+            }
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to send to WifiUtil session on %s: %s", mDevice.getSerialNumber(),
+                    e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Wait until the reported wifi state satisfies given condition. Returns early if the session
+     * closes.
+     *
+     * @param condition the {@link StateCondition} to wait for
+     * @param timeout the max time in ms to wait
+     * @return <code>true</code> if the condition was satisfied
+     */
+    public synchronized boolean waitForState(StateCondition condition, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            if (condition.isSatisfied(mState)) {
+                return true;
+            }
+            if (mClosed || !waitUntil(deadline)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the latest wifi state reported by the session
+     */
+    public synchronized Map<String, String> getState() {
+        return new HashMap<String, String>(mState);
+    }
+
+    /**
+     * Stop the session instrumentation.
+     */
+    public void stop() {
+        if (isOpen()) {
+            Map<String, String> message = new LinkedHashMap<String, String>();
+            message.put("id", "stop");
+            message.put("method", "stopSession");
+            send(message);
+        }
+        close();
+    }
+
+    /**
+     * Close the session and release its connection. The instrumentation ends once its
+     * connection is closed.
+     */
+    private void close() {
+        Socket socket;
+        int forwardPort;
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+            socket = mSocket;
+            forwardPort = mForwardPort;
+            mSocket = null;
+            mWriter = null;
+            mForwardPort = -1;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        if (forwardPort != -1) {
+            try {
+                mDevice.getIDevice().removeForward(forwardPort, SOCKET_PREFIX + mToken,
+                        DeviceUnixSocketNamespace.ABSTRACT);
+            } catch (Exception e) {
+                CLog.d("Failed to remove WifiUtil session forward on %s: %s",
+                        mDevice.getSerialNumber(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * Wait until notified or given deadline.
+     *
+     * @return <code>false</code> if the deadline has passed
+     */
+    private boolean waitUntil(long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encode a session message as a line of URL-encoded key=value pairs.
+     */
+    static String encode(Map<String, String> message) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : message.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+            sb.append('=');
+            sb.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode a session message encoded by {@link #encode(Map)}.
+     */
+    static Map<String, String> decode(String line) throws UnsupportedEncodingException {
+        Map<String, String> message = new LinkedHashMap<String, String>();
+        for (String pair : line.split("&")) {
+            int sep = pair.indexOf('=');
+            if (sep > 0) {
+                message.put(URLDecoder.decode(pair.substring(0, sep), "UTF-8"),
+                        URLDecoder.decode(pair.substring(sep + 1), "UTF-8"));
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Handle a message sent by the session instrumentation.
+     */
+    private synchronized void handleMessage(Map<String, String> message) {
+        String type = message.remove("type");
+        if (MESSAGE_EVENT.equals(type)) {
+            mState = message;
+        } else if (MESSAGE_RESULT.equals(type)) {
+            mResults.put(message.get("id"), message);
+        } else {
+            CLog.d("Ignoring WifiUtil session message of type %s", type);
+            return;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Handle a status reported by the session instrumentation.
+     */
+    private synchronized void handleStatus(int code, Map<String, String> status) {
+        if (code != STATUS_READY) {
+            CLog.d("Ignoring WifiUtil session status %d", code);
+            return;
+        }
+        mReady = true;
+        mState = status;
+        notifyAll();
+    }
+
+    /**
+     * Parses the raw instrumentation output of the session.
+     */
+    private class SessionOutputReceiver extends MultiLineReceiver {
+        private final Pattern mStatusPattern = Pattern.compile(
+                "INSTRUMENTATION_STATUS: (\\S+?)=(.*)");
+        private final Pattern mStatusCodePattern = Pattern.compile(
+                "INSTRUMENTATION_STATUS_CODE: (-?\\d+)");
+        private Map<String, String> mStatus = new HashMap<String, String>();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                Matcher statusMatcher = mStatusPattern.matcher(line);
+                Matcher codeMatcher = mStatusCodePattern.matcher(line);
+                if (statusMatcher.matches()) {
+                    mStatus.put(statusMatcher.group(1), statusMatcher.group(2));
+                } else if (codeMatcher.matches()) {
+                    handleStatus(Integer.parseInt(codeMatcher.group(1)), mStatus);
+                    mStatus = new HashMap<String, String>();
+                } else if (line.startsWith("INSTRUMENTATION_RESULT") ||
+                        line.startsWith("INSTRUMENTATION_FAILED")) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled() {
+            synchronized (WifiUtilSession.this) {
+                return mClosed;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.testtype.ICheckpointResumableTest;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only journal of the progress of an invocation, that survives a restart of tradefed.
+ * <p/>
+ * The journal file holds the config arguments of the invocation, followed by the identifier of
+ * each test that ended. Each test is appended and synced to disk as it ends, so at most the test
+ * running when tradefed went down is lost. The file is deleted once the invocation ends, so the
+ * journals left in a checkpoint directory are those of unfinished invocations. These can be
+ * resumed by running their arguments again with the journal file as resume-checkpoint: the
+ * {@link ICheckpointResumableTest}s of the config then skip the completed tests.
+ * <p/>
+ * The journal is fed as a result listener of the invocation. Since results of resumed and sharded
+ * invocations are forwarded to the original listeners, a journal only ends with the last
+ * invocation of its command.
+ */
+public class CheckpointJournal extends StubTestInvocationListener {
+
+    /** the default directory of checkpoint journals */
+    public static final File DEFAULT_DIR = new File(System.getProperty("java.io.tmpdir"),
+            "tradefed-checkpoints");
+
+    static final String HEADER = "# tradefed checkpoint v1";
+    static final String FILE_PREFIX = "checkpoint_";
+    static final String FILE_SUFFIX = ".txt";
+    private static final String ARG_PREFIX = "A ";
+    private static final String TEST_PREFIX = "T ";
+    private static final String ENCODING = "UTF-8";
+
+    /** the journals being written by this process */
+    private static final Set<File> sActiveJournals = new HashSet<File>();
+
+    private final File mFile;
+    private final String[] mArgs;
+    private final Set<TestIdentifier> mCompletedTests;
+    private boolean mActive = false;
+
+    private CheckpointJournal(File file, String[] args, Set<TestIdentifier> completedTests) {
+        mFile = file;
+        mArgs = args;
+        mCompletedTests = completedTests;
+    }
+
+    /**
+     * Create a journal for a new invocation.
+     *
+     * @param dir the directory to create the journal file in
+     * @param args the config arguments of the invocation
+     * @throws IOException if the journal file could not be written
+     */
+    public static CheckpointJournal create(File dir, String[] args) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Could not create checkpoint dir %s",
+                    dir.getAbsolutePath()));
+        }
+        File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, dir);
+        // args may contain passwords
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (String arg : args) {
+            content.append(ARG_PREFIX).append(escape(arg)).append('\n');
+        }
+        CheckpointJournal journal = new CheckpointJournal(file, args,
+                new LinkedHashSet<TestIdentifier>());
+        journal.append(content.toString());
+        journal.setActive(true);
+        return journal;
+    }
+
+    /**
+     * Load a journal to continue it, in a new invocation that resumes its invocation.
+     *
+     * @param file the journal file
+     * @throws IOException if the journal file could not be read
+     */
+    public static CheckpointJournal resume(File file) throws IOException {
+        CheckpointJournal journal = load(file);
+        journal.setActive(true);
+        return journal;
+    }
+
+    /**
+     * Load a journal for inspection.
+     *
+     * @param file the journal file
+     * @throws IOException if the journal file could not be read, or is not a journal
+     */
+    public static CheckpointJournal load(File file) throws IOException {
+        List<String> args = new ArrayList<String>();
+        Set<TestIdentifier> completedTests = new LinkedHashSet<TestIdentifier>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    ENCODING));
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException(String.format("%s is not a checkpoint journal",
+                        file.getAbsolutePath()));
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(ARG_PREFIX)) {
+                    args.add(unescape(line.substring(ARG_PREFIX.length())));
+                } else if (line.startsWith(TEST_PREFIX)) {
+                    // the last line may be torn if tradefed went down while writing it. It then
+                    // just won't match a test
+                    String test = line.substring(TEST_PREFIX.length());
+                    int separator = test.indexOf('#');
+                    if (separator > 0) {
+                        completedTests.add(new TestIdentifier(
+                                unescape(test.substring(0, separator)),
+                                unescape(test.substring(separator + 1))));
+                    }
+                }
+            }
+        } finally {
+            StreamUtil.close(reader);
+        }
+        if (args.isEmpty()) {
+            throw new IOException(String.format("Checkpoint journal %s has no arguments",
+                    file.getAbsolutePath()));
+        }
+        return new CheckpointJournal(file, args.toArray(new String[args.size()]),
+                completedTests);
+    }
+
+    /**
+     * Find the journals of the unfinished invocations in given directory, i.e. those not written
+     * by this process.
+     *
+     * @param dir the checkpoint directory
+     * @return the {@link CheckpointJournal}s, oldest first
+     */
+    public static List<CheckpointJournal> findUnfinished(File dir) {
+        List<CheckpointJournal> journals = new ArrayList<CheckpointJournal>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return journals;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)
+                    || isActive(file)) {
+                continue;
+            }
+            try {
+                journals.add(load(file));
+            } catch (IOException e) {
+                CLog.w("Skipping checkpoint journal %s: %s", file.getAbsolutePath(),
+                        e.getMessage());
+            }
+        }
+        return journals;
+    }
+
+    private static boolean isActive(File file) {
+        synchronized (sActiveJournals) {
+            return sActiveJournals.contains(file.getAbsoluteFile());
+        }
+    }
+
+    private void setActive(boolean active) {
+        synchronized (sActiveJournals) {
+            if (active) {
+                sActiveJournals.add(mFile.getAbsoluteFile());
+            } else {
+                sActiveJournals.remove(mFile.getAbsoluteFile());
+            }
+        }
+        mActive = active;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Get the config arguments of the invocation.
+     */
+    public String[] getArgs() {
+        return mArgs;
+    }
+
+    /**
+     * Get the arguments to run to resume the invocation.
+     */
+    public String[] getResumeArgs() {
+        String[] args = Arrays.copyOf(mArgs, mArgs.length + 2);
+        args[mArgs.length] = "--resume-checkpoint";
+        args[mArgs.length + 1] = mFile.getAbsolutePath();
+        return args;
+    }
+
+    /**
+     * Get the tests completed so far.
+     */
+    public synchronized Collection<TestIdentifier> getCompletedTests() {
+        return new ArrayList<TestIdentifier>(mCompletedTests);
+    }
+
+    /**
+     * Pass the tests completed so far to the {@link ICheckpointResumableTest}s in given list.
+     */
+    public void injectCompletedTests(Collection<IRemoteTest> tests) {
+        for (IRemoteTest test : tests) {
+            if (test instanceof ICheckpointResumableTest) {
+                ((ICheckpointResumableTest)test).setCompletedTests(getCompletedTests());
+            } else {
+                CLog.w("%s cannot skip completed tests, it will run from the start",
+                        test.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Record a completed test in the journal.
+     */
+    @Override
+    public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        if (!mActive || !mCompletedTests.add(test)) {
+            return;
+        }
+        try {
+            append(String.format("%s%s#%s\n", TEST_PREFIX, escape(test.getClassName()),
+                    escape(test.getTestName())));
+        } catch (IOException e) {
+            CLog.e("Failed to write checkpoint journal %s, invocation will not be resumable: %s",
+                    mFile.getAbsolutePath(), e.getMessage());
+            mActive = false;
+        }
+    }
+
+    /**
+     * Delete the journal, now that its invocation ended.
+     */
+    @Override
+    public synchronized void invocationEnded(long elapsedTime) {
+        setActive(false);
+        if (!mFile.delete()) {
+            CLog.w("Failed to delete checkpoint journal %s", mFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Append given content to the journal file, and sync it to disk.
+     */
+    private void append(String content) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, true);
+            out.write(content.getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Escape the line breaks of given string, so it fits a journal line.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String escape(String string) {
+        return string.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Reverse {@link #escape(String)}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String unescape(String string) {
+        StringBuilder builder = new StringBuilder(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '\\' && i + 1 < string.length()) {
+                char next = string.charAt(++i);
+                if (next == 'n') {
+                    c = '\n';
+                } else if (next == 'r') {
+                    c = '\r';
+                } else {
+                    c = next;
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -97,6 +97,7 @@ class ShardListener extends CollectingTestListener {
                 }
                 mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
             }
+            clearResults();
             mMasterListener.invocationEnded(elapsedTime);
         }
     }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.BuildError;
+import com.android.tradefed.targetprep.IHostPreparer;
+import com.android.tradefed.targetprep.ITargetCleaner;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.HostResourceGovernor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a chain of {@link ITargetPreparer}s as a dependency graph.
+ * <p/>
+ * The {@link ITargetPreparer#setUp(ITestDevice, IBuildInfo)} calls form a chain run on the
+ * invocation thread in configuration order, so device steps keep their configured order. The
+ * host stage of each {@link IHostPreparer} depends only on the setups of the preparers it
+ * declares, and runs on a pool of background threads as soon as those are done, so downloads and
+ * parsing overlap with the device setup of earlier preparers.
+ * <p/>
+ * The time spent in each stage is recorded, see {@link #getTimes()}.
+ */
+class TargetPreparerGraph {
+
+    private final List<ITargetPreparer> mPreparers;
+    private final int mParallelism;
+    private final HostResourceGovernor mGovernor;
+    /** stage times in ms, by stage name */
+    private final Map<String, Long> mTimes = new LinkedHashMap<String, Long>();
+
+    /**
+     * Creates a {@link TargetPreparerGraph}.
+     *
+     * @param preparers the {@link ITargetPreparer}s in configuration order
+     * @param parallelism the max number of host stages to run at once. 0 to run each host stage
+     *            right before its preparer setup, on the invocation thread.
+     * @param governor the {@link HostResourceGovernor} to acquire host stage resources from
+     */
+    TargetPreparerGraph(List<ITargetPreparer> preparers, int parallelism,
+            HostResourceGovernor governor) {
+        mPreparers = preparers;
+        mParallelism = parallelism;
+        mGovernor = governor;
+    }
+
+    /**
+     * Set up all the preparers.
+     * <p/>
+     * On failure, pending host stages are cancelled and the first failure is thrown.
+     */
+    void setUp(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError, BuildError,
+            DeviceNotAvailableException {
+        int count = mPreparers.size();
+        // the index of the last preparer each host stage depends on, by preparer index
+        List<Integer> lastDependencies = new ArrayList<Integer>(count);
+        boolean hasHostStages = false;
+        for (int i = 0; i < count; i++) {
+            lastDependencies.add(getLastDependency(i));
+            hasHostStages |= mPreparers.get(i) instanceof IHostPreparer;
+        }
+        ExecutorService executor = null;
+        if (mParallelism > 0 && hasHostStages) {
+            executor = createExecutor();
+        }
+        List<Future<Void>> hostStages = new ArrayList<Future<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            hostStages.add(null);
+        }
+        try {
+            if (executor != null) {
+                submitReadyHostStages(-1, lastDependencies, hostStages, executor, buildInfo);
+            }
+            for (int i = 0; i < count; i++) {
+                ITargetPreparer preparer = mPreparers.get(i);
+                if (preparer instanceof IHostPreparer) {
+                    Future<Void> hostStage = hostStages.get(i);
+                    if (hostStage == null) {
+                        runHostStage(i, buildInfo);
+                    } else {
+                        waitForHostStage(hostStage);
+                    }
+                }
+                // fail fast if any stage ahead failed
+                checkHostStages(hostStages);
+                long startTime = System.currentTimeMillis();
+                preparer.setUp(device, buildInfo);
+                addTime(getStageName(i, "setup"), System.currentTimeMillis() - startTime);
+                if (executor != null) {
+                    submitReadyHostStages(i, lastDependencies, hostStages, executor, buildInfo);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Create the {@link ExecutorService} running the host stages.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TargetPreparerGraph");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Tear down the {@link ITargetCleaner}s, in configuration order.
+     */
+    void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable exception)
+            throws DeviceNotAvailableException {
+        if (exception instanceof DeviceNotAvailableException) {
+            return;
+        }
+        for (int i = 0; i < mPreparers.size(); i++) {
+            ITargetPreparer preparer = mPreparers.get(i);
+            if (preparer instanceof ITargetCleaner) {
+                long startTime = System.currentTimeMillis();
+                ((ITargetCleaner)preparer).tearDown(device, buildInfo, exception);
+                addTime(getStageName(i, "teardown"), System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    /**
+     * Get the time spent in each stage run so far, keyed by
+     * <code>&lt;index&gt;.&lt;preparer class&gt;.&lt;host|setup|teardown&gt;</code>.
+     *
+     * @return the stage times in ms, in completion order
+     */
+    synchronized Map<String, Long> getTimes() {
+        return new LinkedHashMap<String, Long>(mTimes);
+    }
+
+    /**
+     * @return the index of the last preparer before given host preparer that it depends on, or
+     *         -1 if none
+     */
+    private int getLastDependency(int index) {
+        ITargetPreparer preparer = mPreparers.get(index);
+        if (!(preparer instanceof IHostPreparer)) {
+            return -1;
+        }
+        Collection<Class<? extends ITargetPreparer>> dependencies =
+                ((IHostPreparer)preparer).getHostDependencies();
+        for (int i = index - 1; i >= 0; i--) {
+            for (Class<? extends ITargetPreparer> dependency : dependencies) {
+                if (dependency.isInstance(mPreparers.get(i))) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Submit the host stages that depend on given preparer being set up.
+     */
+    private void submitReadyHostStages(int setUpIndex, List<Integer> lastDependencies,
+            List<Future<Void>> hostStages, ExecutorService executor, final IBuildInfo buildInfo) {
+        for (int i = setUpIndex + 1; i < mPreparers.size(); i++) {
+            if (mPreparers.get(i) instanceof IHostPreparer
+                    && lastDependencies.get(i) == setUpIndex) {
+                final int index = i;
+                hostStages.set(i, executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runHostStage(index, buildInfo);
+                        return null;
+                    }
+                }));
+            }
+        }
+    }
+
+    private void runHostStage(int index, IBuildInfo buildInfo) throws TargetSetupError,
+            BuildError {
+        IHostPreparer preparer = (IHostPreparer)mPreparers.get(index);
+        long startTime = System.currentTimeMillis();
+        HostResourceGovernor.Permit permit = null;
+        if (preparer.getHostResource() != null) {
+            try {
+                permit = mGovernor.acquire(preparer.getHostResource());
+            } catch (InterruptedException e) {
+                throw new TargetSetupError(String.format("Interrupted while waiting for %s",
+                        preparer.getHostResource()));
+            }
+        }
+        try {
+            preparer.prepareHost(buildInfo);
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+        }
+        addTime(getStageName(index, "host"), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Wait for a host stage to complete, and throw its failure if any.
+     */
+    private void waitForHostStage(Future<Void> hostStage) throws TargetSetupError, BuildError {
+        try {
+            hostStage.get();
+        } catch (InterruptedException e) {
+            throw new TargetSetupError("Interrupted while waiting for host setup");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TargetSetupError) {
+                throw (TargetSetupError)cause;
+            } else if (cause instanceof BuildError) {
+                throw (BuildError)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Throw the failure of any host stage that already completed.
+     */
+    private void checkHostStages(List<Future<Void>> hostStages) throws TargetSetupError,
+            BuildError {
+        for (Future<Void> hostStage : hostStages) {
+            if (hostStage != null && hostStage.isDone()) {
+                waitForHostStage(hostStage);
+            }
+        }
+    }
+
+    private String getStageName(int index, String stage) {
+        return String.format("%d.%s.%s", index, mPreparers.get(index).getClass().getSimpleName(),
+                stage);
+    }
+
+    private synchronized void addTime(String stageName, long timeMs) {
+        CLog.d("Target preparer stage %s took %d ms", stageName, timeMs);
+        mTimes.put(stageName, timeMs);
+    }
+}
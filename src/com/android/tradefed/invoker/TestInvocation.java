@@ -31,12 +31,14 @@ import com.android.tradefed.log.ILeveledLogOutput;
 import com.android.tradefed.log.ILogRegistry;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.AsyncInvocationListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.InvocationSummaryHelper;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.targetprep.BuildError;
+import com.android.tradefed.targetprep.DeviceStateLedger;
 import com.android.tradefed.targetprep.ITargetCleaner;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
@@ -46,13 +48,16 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IRetriableTest;
 import com.android.tradefed.testtype.IShardableTest;
+import com.android.tradefed.util.HostResourceGovernor;
 
 import junit.framework.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Default implementation of {@link ITestInvocation}.
@@ -66,6 +71,8 @@ public class TestInvocation implements ITestInvocation {
 	public static final String DEVICE_LOG_NAME = "device_logcat";
 	static final String BUILD_ERROR_BUGREPORT_NAME = "build_error_bugreport";
 	static final String DEVICE_UNRESPONSIVE_BUGREPORT_NAME = "device_unresponsive_bugreport";
+	/** the name of the test run reporting the target preparer stage times */
+	static final String PREPARER_TIMES_RUN_NAME = "target_preparer_times";
 
 	private String mStatus = "(not invoked)";
 	private static boolean isRepeat = false;
@@ -108,6 +115,10 @@ public class TestInvocation implements ITestInvocation {
 			mStatus = "fetching build";
 			config.getLogOutput().init();
 			getLogRegistry().registerLogger(config.getLogOutput());
+			if (config.getCommandOptions().isAsyncResultReporting()) {
+				config.setTestInvocationListeners(AsyncInvocationListener.wrap(config.getTestInvocationListeners(),
+						config.getCommandOptions().getResultQueueSize()));
+			}
 			IBuildInfo info = null;
 			if (config.getBuildProvider() instanceof IDeviceBuildProvider) {
 				info = ((IDeviceBuildProvider) config.getBuildProvider()).getBuild(device);
@@ -386,13 +397,30 @@ public class TestInvocation implements ITestInvocation {
 	private void prepareAndRun(IConfiguration config, ITestDevice device, IBuildInfo info, IRescheduler rescheduler) throws Throwable {
 		// use the JUnit3 logic for handling exceptions when running tests
 		Throwable exception = null;
+		// shared by setup and teardown, to report the times of both stages
+		TargetPreparerGraph preparerGraph = createTargetPreparerGraph(config);
 
 		try {
-			//
-			if (config.getCommandOptions().isNeedPrepare()&&!isRepeat) {
-				doSetup(config, device, info);
-				//下次启动的时候,不再刷机
-				isRepeat = true;
+			if (config.getCommandOptions().isNeedPrepare()) {
+				if (config.getCommandOptions().isSkipRepeatedSetup()) {
+					// skip the setup if the device is still in the state it left,
+					// e.g. when a command is looping on the same device
+					DeviceStateLedger ledger = DeviceStateLedger.getInstance();
+					String setupKey = DeviceStateLedger.getSetupKey(info, config.getTargetPreparers());
+					if (ledger.verify(device) && ledger.hasSetup(device, setupKey)) {
+						CLog.logAndDisplay(LogLevel.DEBUG, String.format("Device %s is already set up for build %s, skipping setup",
+								device.getSerialNumber(), info.getBuildId()));
+					} else {
+						doSetup(preparerGraph, device, info);
+						ledger.recordSetup(device, setupKey);
+					}
+				} else if (!isRepeat) {
+					doSetup(preparerGraph, device, info);
+					//下次启动的时候,不再刷机
+					isRepeat = true;
+				} else {
+					CLog.logAndDisplay(LogLevel.DEBUG, String.format("No need to flash,derect to run case"));
+				}
 			}else{
 				CLog.logAndDisplay(LogLevel.DEBUG, String.format("No need to flash,derect to run case"));
 			}
@@ -403,7 +431,7 @@ public class TestInvocation implements ITestInvocation {
 		} finally {
 			try {
 				if (config.getCommandOptions().isNeedTearDown()) {
-					doTeardown(config, device, info, exception);
+					doTeardown(config, preparerGraph, device, info, exception);
 				}
 			} catch (Throwable tearingDown) {
 				if (exception == null) {
@@ -411,26 +439,67 @@ public class TestInvocation implements ITestInvocation {
 				}
 			}
 		}
+		reportPreparerTimes(config, preparerGraph);
 		if (exception != null) {
 			throw exception;
 		}
 	}
 
-	private void doSetup(IConfiguration config, ITestDevice device, IBuildInfo info) throws TargetSetupError, BuildError, DeviceNotAvailableException {
-		for (ITargetPreparer preparer : config.getTargetPreparers()) {
-			preparer.setUp(device, info);
+	private void doSetup(TargetPreparerGraph preparerGraph, ITestDevice device, IBuildInfo info) throws TargetSetupError, BuildError, DeviceNotAvailableException {
+		preparerGraph.setUp(device, info);
+	}
+
+	private void doTeardown(IConfiguration config, TargetPreparerGraph preparerGraph, ITestDevice device, IBuildInfo info, Throwable exception) throws DeviceNotAvailableException {
+		// cleaners are torn down in config order, unless we hit
+		// DeviceNotAvailableException
+		try {
+			preparerGraph.tearDown(device, info, exception);
+		} finally {
+			if (hasTargetCleaner(config)) {
+				// cleaners may undo the recorded setup
+				DeviceStateLedger.getInstance().clearDataState(device.getSerialNumber());
+			}
 		}
 	}
 
-	private void doTeardown(IConfiguration config, ITestDevice device, IBuildInfo info, Throwable exception) throws DeviceNotAvailableException {
+	private static boolean hasTargetCleaner(IConfiguration config) {
 		for (ITargetPreparer preparer : config.getTargetPreparers()) {
-			// Note: adjusted indentation below for legibility. If preparer is
-			// an
-			// ITargetCleaner and we didn't hit DeviceNotAvailableException,
-			// then...
-			if (preparer instanceof ITargetCleaner && !(exception != null && exception instanceof DeviceNotAvailableException)) {
-				ITargetCleaner cleaner = (ITargetCleaner) preparer;
-				cleaner.tearDown(device, info, exception);
+			if (preparer instanceof ITargetCleaner) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private TargetPreparerGraph createTargetPreparerGraph(IConfiguration config) {
+		return new TargetPreparerGraph(config.getTargetPreparers(),
+				config.getCommandOptions().getHostPreparerThreads(),
+				HostResourceGovernor.getInstance());
+	}
+
+	/**
+	 * Reports the time spent in each target preparer stage to the listeners, as the metrics of
+	 * a {@link #PREPARER_TIMES_RUN_NAME} run without tests. The run time is the total of the
+	 * stage times.
+	 */
+	private void reportPreparerTimes(IConfiguration config, TargetPreparerGraph preparerGraph) {
+		Map<String, Long> times = preparerGraph.getTimes();
+		if (times.isEmpty()) {
+			return;
+		}
+		Map<String, String> metrics = new LinkedHashMap<String, String>(times.size());
+		long totalTime = 0;
+		for (Map.Entry<String, Long> time : times.entrySet()) {
+			metrics.put(time.getKey(), time.getValue().toString());
+			totalTime += time.getValue();
+		}
+		for (ITestInvocationListener listener : config.getTestInvocationListeners()) {
+			try {
+				listener.testRunStarted(PREPARER_TIMES_RUN_NAME, 0);
+				listener.testRunEnded(totalTime, metrics);
+			} catch (RuntimeException e) {
+				CLog.e("Caught runtime exception from ITestInvocationListener");
+				CLog.e(e);
 			}
 		}
 	}
@@ -568,6 +637,15 @@ public class TestInvocation implements ITestInvocation {
 		return LogRegistry.getLogRegistry();
 	}
 
+	/**
+	 * Forgets that the target preparers already ran in this process.
+	 * <p/>
+	 * Exposed for unit testing.
+	 */
+	static void resetRepeat() {
+		isRepeat = false;
+	}
+
 	/**
 	 * Runs the test.
 	 * 
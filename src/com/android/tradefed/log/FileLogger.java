@@ -54,6 +54,9 @@ public class FileLogger implements ILeveledLogOutput {
 
     private SizeLimitedOutputStream mLogStream;
 
+    /** encodes each log line once, for both stdout and the log file */
+    private final LogLineEncoder mEncoder = new LogLineEncoder();
+
     /**
      * Adds tags to the log-tag-display list
      *
@@ -112,16 +115,18 @@ public class FileLogger implements ILeveledLogOutput {
      */
     private void internalPrintLog(LogLevel logLevel, String tag, String message,
             boolean forceStdout) {
-        String outMessage = LogUtil.getLogFormatString(logLevel, tag, message);
-        if (forceStdout
-                || logLevel.getPriority() >= mLogLevelDisplay.getPriority()
-                || mLogTagsDisplay.contains(tag)) {
-            System.out.print(outMessage);
-        }
-        try {
-            writeToLog(outMessage);
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (mEncoder) {
+            mEncoder.encode(logLevel, tag, message);
+            if (forceStdout
+                    || logLevel.getPriority() >= mLogLevelDisplay.getPriority()
+                    || mLogTagsDisplay.contains(tag)) {
+                System.out.write(mEncoder.getBytes(), 0, mEncoder.getLength());
+            }
+            try {
+                writeToLog(mEncoder.getBytes(), mEncoder.getLength());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -134,8 +139,17 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void writeToLog(String outMessage) throws IOException {
-        if (mLogStream != null) {
-            mLogStream.write(outMessage.getBytes());
+        byte[] data = outMessage.getBytes();
+        writeToLog(data, data.length);
+    }
+
+    /**
+     * Writes the first {@code length} bytes of {@code data} to log.
+     */
+    private void writeToLog(byte[] data, int length) throws IOException {
+        SizeLimitedOutputStream stream = mLogStream;
+        if (stream != null) {
+            stream.write(data, 0, length);
         }
     }
 
@@ -46,6 +46,15 @@ public interface ILogRegistry extends ILogOutput {
      */
     public LogLevel getGlobalLogDisplayLevel();
 
+    /**
+     * Check whether a message of the given level would be logged by the logger of the current
+     * thread.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @return <code>true</code> if {@link #printLog(LogLevel, String, String)} would output it
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Registers the logger as the instance to use for the current thread.
      */
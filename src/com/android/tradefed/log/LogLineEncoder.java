@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Formats log lines and encodes them to bytes, reusing the same buffers for every line.
+ * <p/>
+ * Lines are encoded with the platform default charset, like {@link String#getBytes()}. ASCII lines
+ * are copied directly into the byte buffer when the default charset is ASCII compatible.
+ * <p/>
+ * Not thread safe: callers must synchronize on the encoder.
+ */
+class LogLineEncoder {
+
+    private static final int INITIAL_SIZE = 256;
+    /** buffers grown above this size for an unusually long line are not kept */
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final boolean ASCII_COMPATIBLE = isDefaultCharsetAsciiCompatible();
+
+    private StringBuilder mLine = new StringBuilder(INITIAL_SIZE);
+    private byte[] mBuffer = new byte[INITIAL_SIZE];
+    /** the bytes of the last encoded line; either mBuffer, or a larger one-off array */
+    private byte[] mBytes = mBuffer;
+    private int mLength = 0;
+
+    /**
+     * Formats a log line as {@link LogUtil#getLogFormatString(LogLevel, String, String)} does, and
+     * encodes it.
+     */
+    void encode(LogLevel logLevel, String tag, String message) {
+        if (mLine.capacity() > MAX_RETAINED_SIZE) {
+            mLine = new StringBuilder(INITIAL_SIZE);
+        }
+        mLine.setLength(0);
+        LogUtil.appendLogLine(mLine, logLevel, tag, message);
+        encodeLine();
+    }
+
+    private void encodeLine() {
+        int length = mLine.length();
+        mBytes = length <= mBuffer.length ? mBuffer : allocate(length);
+        if (ASCII_COMPATIBLE) {
+            int i = 0;
+            for (; i < length; i++) {
+                char c = mLine.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                mBytes[i] = (byte)c;
+            }
+            if (i == length) {
+                mLength = length;
+                return;
+            }
+        }
+        // not plain ascii: let the charset encode it
+        byte[] encoded = mLine.toString().getBytes();
+        mBytes = encoded.length <= mBuffer.length ? mBuffer : allocate(encoded.length);
+        System.arraycopy(encoded, 0, mBytes, 0, encoded.length);
+        mLength = encoded.length;
+    }
+
+    /**
+     * Allocates a buffer of at least the given size, keeping it for the next lines if it is not
+     * too large.
+     */
+    private byte[] allocate(int size) {
+        byte[] buffer = new byte[Math.max(size, mBuffer.length * 2)];
+        if (buffer.length <= MAX_RETAINED_SIZE) {
+            mBuffer = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the buffer holding the last encoded line. Only the first {@link #getLength()} bytes
+     *         are valid.
+     */
+    byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the number of bytes of the last encoded line
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Writes the last encoded line to the given stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mBytes, 0, mLength);
+    }
+
+    private static boolean isDefaultCharsetAsciiCompatible() {
+        char[] ascii = new char[0x80];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char)i;
+        }
+        byte[] encoded = new String(ascii).getBytes();
+        if (encoded.length != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (encoded[i] != ascii[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -16,11 +16,14 @@
 
 package com.android.tradefed.log;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A logging utility class. Useful for code that needs to override static
@@ -28,6 +31,49 @@ import java.util.Date;
  */
 public class LogUtil {
 
+	/**
+	 * The registry that ddmlib log output is sent to, if any. Used to skip
+	 * formatting messages the registry would discard.
+	 */
+	private static volatile ILogRegistry sLogRegistry = null;
+
+	/**
+	 * The timestamp of the last log line of each thread. Log lines only
+	 * show seconds, so consecutive lines usually share a timestamp, and a
+	 * thread-local avoids sharing a {@link SimpleDateFormat} across threads.
+	 */
+	private static final ThreadLocal<Timestamp> sTimestamp =
+			new ThreadLocal<Timestamp>() {
+		@Override
+		protected Timestamp initialValue() {
+			return new Timestamp();
+		}
+	};
+
+	/** Stdout log lines are encoded here, guarded by its own lock */
+	private static final LogLineEncoder sStdoutEncoder = new LogLineEncoder();
+
+	/**
+	 * A formatted timestamp, reformatted only when the second changes.
+	 */
+	private static class Timestamp {
+		private final SimpleDateFormat mFormat = new SimpleDateFormat(
+				"MM-dd HH:mm:ss");
+		private final Date mDate = new Date();
+		private long mSecond = Long.MIN_VALUE;
+		private String mFormatted = null;
+
+		String format(long timeMs) {
+			long second = timeMs / 1000;
+			if (second != mSecond) {
+				mDate.setTime(timeMs);
+				mFormatted = mFormat.format(mDate);
+				mSecond = second;
+			}
+			return mFormatted;
+		}
+	}
+
 	/**
 	 * Make uninstantiable
 	 */
@@ -47,7 +93,11 @@ public class LogUtil {
 	 *            The message to display.
 	 */
 	public static void printLog(LogLevel logLevel, String tag, String message) {
-		System.out.print(LogUtil.getLogFormatString(logLevel, tag, message));
+		synchronized (sStdoutEncoder) {
+			sStdoutEncoder.encode(logLevel, tag, message);
+			System.out.write(sStdoutEncoder.getBytes(), 0,
+					sStdoutEncoder.getLength());
+		}
 	}
 
 	/**
@@ -60,9 +110,54 @@ public class LogUtil {
 	 */
 	public static String getLogFormatString(LogLevel logLevel, String tag,
 			String message) {
-		SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-		return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-				logLevel.getPriorityLetter(), tag, message);
+		StringBuilder line = new StringBuilder(32 + tag.length()
+				+ message.length());
+		appendLogLine(line, logLevel, tag, message);
+		return line.toString();
+	}
+
+	/**
+	 * Appends a log line in the format of
+	 * {@link #getLogFormatString(LogLevel, String, String)} to
+	 * {@code line}, without creating intermediate strings.
+	 */
+	static void appendLogLine(StringBuilder line, LogLevel logLevel,
+			String tag, String message) {
+		line.append(sTimestamp.get().format(System.currentTimeMillis()));
+		line.append(' ');
+		line.append(logLevel.getPriorityLetter());
+		line.append('/');
+		line.append(tag);
+		line.append(": ");
+		line.append(message);
+		line.append('\n');
+	}
+
+	/**
+	 * Sets the {@link ILogRegistry} that ddmlib log output is sent to, so
+	 * that {@link CLog} can skip formatting messages below its log level.
+	 *
+	 * @param registry the {@link ILogRegistry}, or <code>null</code> if log
+	 *            output is not sent to a registry.
+	 */
+	public static void setLogRegistry(ILogRegistry registry) {
+		sLogRegistry = registry;
+	}
+
+	/**
+	 * Check whether a message of the given level would be output by the
+	 * calling thread.
+	 *
+	 * @param logLevel the {@link LogLevel} of the message
+	 * @return <code>false</code> if the message would be discarded, so there
+	 *         is no need to build it.
+	 */
+	public static boolean isLoggable(LogLevel logLevel) {
+		if (logLevel.getPriority() < DdmPreferences.getLogLevel().getPriority()) {
+			return false;
+		}
+		ILogRegistry registry = sLogRegistry;
+		return registry == null || registry.isLoggable(logLevel);
 	}
 
 	/**
@@ -70,6 +165,10 @@ public class LogUtil {
 	 * of the caller as the log tag
 	 */
 	public static class CLog {
+		/** the simple class names of callers, by fully-qualified name */
+		private static final Map<String, String> sSimpleNames =
+				new ConcurrentHashMap<String, String>();
+
 		/**
 		 * The shim version of {@link Log#v(String, String)}.
 		 *
@@ -77,13 +176,17 @@ public class LogUtil {
 		 *            The {@code String} to log
 		 */
 		public static void v(String message) {
+			if (!isLoggable(LogLevel.VERBOSE)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.v(getClassName(2), message);
 		}
 
 		/**
 		 * The shim version of {@link Log#v(String, String)}. Also calls
-		 * String.format for convenience.
+		 * String.format for convenience, only if the message would be
+		 * output. Prefer this over formatting at the call site.
 		 *
 		 * @param format
 		 *            A format string for the message to log
@@ -91,6 +194,9 @@ public class LogUtil {
 		 *            The format string arguments
 		 */
 		public static void v(String format, Object... args) {
+			if (!isLoggable(LogLevel.VERBOSE)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.v(getClassName(2), String.format(format, args));
 		}
@@ -102,6 +208,9 @@ public class LogUtil {
 		 *            The {@code String} to log
 		 */
 		public static void d(String message) {
+			if (!isLoggable(LogLevel.DEBUG)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.d(getClassName(2), message);
 		}
@@ -116,6 +225,9 @@ public class LogUtil {
 		 *            The format string arguments
 		 */
 		public static void d(String format, Object... args) {
+			if (!isLoggable(LogLevel.DEBUG)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.d(getClassName(2), String.format(format, args));
 		}
@@ -127,6 +239,9 @@ public class LogUtil {
 		 *            The {@code String} to log
 		 */
 		public static void i(String message) {
+			if (!isLoggable(LogLevel.INFO)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.i(getClassName(2), message);
 			
@@ -142,6 +257,9 @@ public class LogUtil {
 		 *            The format string arguments
 		 */
 		public static void i(String format, Object... args) {
+			if (!isLoggable(LogLevel.INFO)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.i(getClassName(2), String.format(format, args));
 			System.out.flush();
@@ -154,6 +272,9 @@ public class LogUtil {
 		 *            The {@code String} to log
 		 */
 		public static void w(String message) {
+			if (!isLoggable(LogLevel.WARN)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.w(getClassName(2), message);
 		}
@@ -168,6 +289,9 @@ public class LogUtil {
 		 *            The format string arguments
 		 */
 		public static void w(String format, Object... args) {
+			if (!isLoggable(LogLevel.WARN)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.w(getClassName(2), String.format(format, args));
 		}
@@ -179,6 +303,9 @@ public class LogUtil {
 		 *            The {@code String} to log
 		 */
 		public static void e(String message) {
+			if (!isLoggable(LogLevel.ERROR)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.e(getClassName(2), message);
 		}
@@ -193,6 +320,9 @@ public class LogUtil {
 		 *            The format string arguments
 		 */
 		public static void e(String format, Object... args) {
+			if (!isLoggable(LogLevel.ERROR)) {
+				return;
+			}
 			// frame 2: skip frames 0 (#getClassName) and 1 (this method)
 			Log.e(getClassName(2), String.format(format, args));
 		}
@@ -242,6 +372,15 @@ public class LogUtil {
 		public static String getClassName(int frame) {
 			StackTraceElement[] frames = (new Throwable()).getStackTrace();
 			String fullName = frames[frame].getClassName();
+			String simpleName = sSimpleNames.get(fullName);
+			if (simpleName == null) {
+				simpleName = lookupSimpleName(fullName);
+				sSimpleNames.put(fullName, simpleName);
+			}
+			return simpleName;
+		}
+
+		private static String lookupSimpleName(String fullName) {
 			@SuppressWarnings("rawtypes")
 			Class klass = null;
 			try {
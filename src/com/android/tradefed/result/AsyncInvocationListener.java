@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A proxy {@link ITestInvocationListener} that delivers events to the wrapped listener on its own
+ * worker thread, so a slow listener (such as one sending email or writing to a network file
+ * system) does not block test execution.
+ * <p/>
+ * Events are delivered in order. At most <var>queueSize</var> events can be pending; once the
+ * queue is full, the reporting thread blocks until the listener catches up.
+ * <p/>
+ * {@link #invocationEnded(long)} acts as a barrier: it returns only once the listener has
+ * processed every event. {@link #testLog(String, LogDataType, InputStreamSource)} also waits,
+ * since callers typically cancel the {@link InputStreamSource} right after reporting it.
+ * {@link #getSummary()} is answered on the worker thread.
+ * <p/>
+ * Runtime exceptions thrown by asynchronously delivered events are logged and dropped.
+ */
+public class AsyncInvocationListener implements ITestInvocationListener {
+
+    /** idle time in ms after which the worker thread exits */
+    private static final long WORKER_KEEP_ALIVE = 10 * 1000;
+
+    private final ITestInvocationListener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    /** the free queue slots, or <code>null</code> if the queue is unbounded */
+    private final Semaphore mCapacity;
+
+    /**
+     * Creates a {@link AsyncInvocationListener}.
+     *
+     * @param listener the {@link ITestInvocationListener} to deliver events to
+     * @param queueSize the maximum number of pending events. Zero or less means unbounded.
+     */
+    public AsyncInvocationListener(final ITestInvocationListener listener, int queueSize) {
+        if (listener == null) throw new NullPointerException();
+        mListener = listener;
+        mCapacity = queueSize > 0 ? new Semaphore(queueSize) : null;
+        mExecutor = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("AsyncInvocationListener-%s",
+                                listener.getClass().getSimpleName()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Wrap given listener in a {@link AsyncInvocationListener}, preserving whether it is a
+     * {@link ITestSummaryListener}.
+     *
+     * @param listener the {@link ITestInvocationListener} to wrap
+     * @param queueSize the maximum number of pending events. Zero or less means unbounded.
+     * @return the wrapped listener, or <var>listener</var> if it is already asynchronous
+     */
+    public static ITestInvocationListener wrap(ITestInvocationListener listener, int queueSize) {
+        if (listener instanceof AsyncInvocationListener) {
+            return listener;
+        } else if (listener instanceof ITestSummaryListener) {
+            return new AsyncSummaryListener((ITestSummaryListener)listener, queueSize);
+        }
+        return new AsyncInvocationListener(listener, queueSize);
+    }
+
+    /**
+     * Wrap each of given listeners using {@link #wrap(ITestInvocationListener, int)}.
+     *
+     * @return a new {@link List} of the wrapped listeners, in the same order
+     */
+    public static List<ITestInvocationListener> wrap(List<ITestInvocationListener> listeners,
+            int queueSize) {
+        List<ITestInvocationListener> wrapped = new ArrayList<ITestInvocationListener>(
+                listeners.size());
+        for (ITestInvocationListener listener : listeners) {
+            wrapped.add(wrap(listener, queueSize));
+        }
+        return wrapped;
+    }
+
+    /**
+     * @return the wrapped {@link ITestInvocationListener}
+     */
+    public ITestInvocationListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Queue an event for delivery, blocking while the queue is full.
+     */
+    void post(final Runnable event) {
+        if (mCapacity != null) {
+            mCapacity.acquireUninterruptibly();
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    CLog.e("Caught runtime exception from %s",
+                            mListener.getClass().getSimpleName());
+                    CLog.e(e);
+                } finally {
+                    if (mCapacity != null) {
+                        mCapacity.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue an event for delivery and wait until it, and every event before it, has been
+     * processed.
+     *
+     * @return the result of the event
+     */
+    <T> T await(Callable<T> event) {
+        FutureTask<T> task = new FutureTask<T>(event);
+        // bypass the capacity limit: the caller waits for the task anyway
+        mExecutor.execute(task);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(final IBuildInfo buildInfo) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.invocationStarted(buildInfo);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            final InputStreamSource dataStream) {
+        await(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mListener.testLog(dataName, dataType, dataStream);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(final long elapsedTime) {
+        await(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mListener.invocationEnded(elapsedTime);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(final Throwable cause) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.invocationFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return await(new Callable<TestSummary>() {
+            @Override
+            public TestSummary call() {
+                return mListener.getSummary();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(final String runName, final int testCount) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testRunStarted(runName, testCount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(final TestIdentifier test) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testStarted(test);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(final TestFailure status, final TestIdentifier test,
+            final String trace) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testFailed(status, test, trace);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(final TestIdentifier test, Map<String, String> testMetrics) {
+        // copy the metrics, since the caller may reuse the map
+        final Map<String, String> metrics = copy(testMetrics);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testEnded(test, metrics);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(final String errorMessage) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testRunFailed(errorMessage);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(final long elapsedTime) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testRunStopped(elapsedTime);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(final long elapsedTime, Map<String, String> runMetrics) {
+        // copy the metrics, since the caller may reuse the map
+        final Map<String, String> metrics = copy(runMetrics);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.testRunEnded(elapsedTime, metrics);
+            }
+        });
+    }
+
+    private static Map<String, String> copy(Map<String, String> metrics) {
+        return metrics == null ? null : new HashMap<String, String>(metrics);
+    }
+
+    /**
+     * A {@link AsyncInvocationListener} for a {@link ITestSummaryListener}.
+     */
+    private static class AsyncSummaryListener extends AsyncInvocationListener
+            implements ITestSummaryListener {
+
+        AsyncSummaryListener(ITestSummaryListener listener, int queueSize) {
+            super(listener, queueSize);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void putSummary(final List<TestSummary> summaries) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    ((ITestSummaryListener)getListener()).putSummary(summaries);
+                }
+            });
+        }
+    }
+}
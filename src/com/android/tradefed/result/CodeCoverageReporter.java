@@ -62,6 +62,11 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
             "The number of days to keep generated coverage files")
     private Integer mLogRetentionDays = null;
 
+    @Option(name = "merge-coverage-in-process", description =
+            "Merge coverage files in the background as they are collected, so that the report " +
+            "is generated from a single merged coverage file.")
+    private boolean mMergeInProcess = true;
+
     static private int REPORT_GENERATION_TIMEOUT_MS = 3 * 60 * 1000;
 
     static public String XML_REPORT_NAME = "report.xml";
@@ -74,6 +79,8 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
     private File mCoverageMetaFile = null;
     private File mXMLReportFile = null;
     private File mReportOutputPath = null;
+    private CoverageAggregator mAggregator = null;
+    private File mMergedCoverageFile = null;
 
     public void setMetaZipFilePath(String filePath) {
         mCoverageMetaFilePath = filePath;
@@ -100,6 +107,9 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
             File coverageFile = saveLogAsFile(dataName, dataType, dataStream);
             mCoverageFilesList.add(coverageFile);
             CLog.d("Saved a new device coverage file saved at %s", coverageFile.getAbsolutePath());
+            if (mAggregator != null && coverageFile != null) {
+                mAggregator.addCoverageFile(coverageFile);
+            }
         }
     }
 
@@ -146,6 +156,10 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
 
         CLog.d("ReportOutputPath %s", mReportOutputPath.getAbsolutePath());
         CLog.d("LogfileSaver file dir %s", mLogFileSaver.getFileDir().getAbsolutePath());
+
+        if (mMergeInProcess) {
+            mAggregator = new CoverageAggregator();
+        }
     }
 
     /**
@@ -163,7 +177,7 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
             fetchAppropriateMetaDataFile();
 
             if (!mCoverageFilesList.isEmpty()) {
-                generateCoverageReport(mCoverageFilesList, mCoverageMetaFile);
+                generateCoverageReport(getReportCoverageFiles(), mCoverageMetaFile);
             } else {
                 CLog.w("No coverage files were generated by the test. " +
                         "Perhaps test failed to run successfully.");
@@ -179,6 +193,33 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
                 FileUtil.recursiveDelete(mLocalTmpDir);
 
             }
+            if (mAggregator != null) {
+                mAggregator.shutdown();
+            }
+            FileUtil.deleteFile(mMergedCoverageFile);
+        }
+    }
+
+    /**
+     * Get the coverage files to generate the report from: the merged coverage file and the files
+     * that could not be merged, or all the collected files if not merging in process.
+     */
+    private List<File> getReportCoverageFiles() {
+        if (mAggregator == null) {
+            return mCoverageFilesList;
+        }
+        try {
+            List<File> coverageFiles = new ArrayList<File>();
+            mMergedCoverageFile = FileUtil.createTempFile("coverage-merged", ".ec");
+            if (mAggregator.writeMergedFile(mMergedCoverageFile)) {
+                coverageFiles.add(mMergedCoverageFile);
+            }
+            coverageFiles.addAll(mAggregator.getUnmergedFiles());
+            return coverageFiles;
+        } catch (IOException e) {
+            CLog.e("Failed to write merged coverage file, using collected files");
+            CLog.e(e);
+            return mCoverageFilesList;
         }
     }
 
@@ -215,7 +256,7 @@ public class CodeCoverageReporter extends StubTestInvocationListener {
         FileUtil.mkdirsRWX(buildIdPath);
         if (mLogRetentionDays != null) {
             RetentionFileSaver f = new RetentionFileSaver();
-            f.writeRetentionFile(buildIdPath, mLogRetentionDays);
+            f.writeRetentionFile(buildIdPath, mLogRetentionDays, new File(rootPath));
         }
         return buildIdPath;
     }
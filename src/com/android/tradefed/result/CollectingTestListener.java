@@ -169,6 +169,21 @@ public class CollectingTestListener implements ITestInvocationListener {
         return mRunResultsMap.values();
     }
 
+    /**
+     * Discard the results of all test runs, deleting the files they hold. Meant to be called once
+     * the results were reported.
+     */
+    public void clearResults() {
+        synchronized (mRunResultsMap) {
+            for (TestRunResult result : mRunResultsMap.values()) {
+                result.close();
+            }
+            mRunResultsMap.clear();
+        }
+        mCurrentResults.close();
+        mCurrentResults = new TestRunResult();
+    }
+
     /**
      * Gets the total number of complete tests for all runs.
      */
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.TestResult.TestStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Memory efficient storage of the {@link TestResult}s of a test run, in insertion order.
+ * <p/>
+ * Instead of a {@link TestIdentifier} and {@link TestResult} object per test, results are kept in
+ * parallel primitive arrays. Class, method and metric names are interned, so repeated names are
+ * stored once. Identical stack traces are stored once, and once more than a given number of
+ * characters of distinct stack traces are held in memory, further ones are written to a temporary
+ * file. The file is only opened while a trace is written or read, and is deleted when the store
+ * is garbage collected.
+ * <p/>
+ * {@link #asMap()} exposes the results as a read-only {@link Map}, whose {@link TestResult}s are
+ * created on demand and cannot be modified.
+ * <p/>
+ * Thread safe.
+ */
+class CompactTestResultStore {
+
+    /** default max number of stack trace characters to keep in memory */
+    static final int DEFAULT_TRACE_MEMORY_LIMIT = 256 * 1024;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final String[] EMPTY_METRICS = new String[0];
+    private static final TestStatus[] STATUSES = TestStatus.values();
+
+    private final int mTraceMemoryLimit;
+
+    // interned strings
+    private final Map<String, Integer> mNameIds = new HashMap<String, Integer>();
+    private final List<String> mNames = new ArrayList<String>();
+
+    // per test columns
+    private int mSize = 0;
+    private int[] mClassIds = new int[INITIAL_CAPACITY];
+    private int[] mMethodIds = new int[INITIAL_CAPACITY];
+    private byte[] mStatuses = new byte[INITIAL_CAPACITY];
+    private long[] mStartTimes = new long[INITIAL_CAPACITY];
+    private long[] mEndTimes = new long[INITIAL_CAPACITY];
+    private int[] mTraceIds = new int[INITIAL_CAPACITY];
+    /** alternating interned keys and values, or null if no metrics were reported */
+    private String[][] mMetrics = new String[INITIAL_CAPACITY][];
+
+    /** open addressing hash table from test to index + 1, 0 being an empty slot */
+    private int[] mIndexTable = new int[INITIAL_CAPACITY * 2];
+
+    // deduplicated stack traces. A trace is either held in memory, or spilled to mSpillFile
+    private final Map<Integer, List<Integer>> mTraceIdsByHash = new HashMap<Integer, List<Integer>>();
+    private final List<String> mTraces = new ArrayList<String>();
+    private long[] mTraceOffsets = new long[INITIAL_CAPACITY];
+    private int[] mTraceLengths = new int[INITIAL_CAPACITY];
+    private int mTraceMemory = 0;
+    private File mSpillFile = null;
+    private long mSpillLength = 0;
+
+    /**
+     * Creates a {@link CompactTestResultStore} that keeps up to
+     * {@link #DEFAULT_TRACE_MEMORY_LIMIT} characters of stack traces in memory.
+     */
+    CompactTestResultStore() {
+        this(DEFAULT_TRACE_MEMORY_LIMIT);
+    }
+
+    /**
+     * Creates a {@link CompactTestResultStore}.
+     *
+     * @param traceMemoryLimit the max number of stack trace characters to keep in memory
+     */
+    CompactTestResultStore(int traceMemoryLimit) {
+        mTraceMemoryLimit = traceMemoryLimit;
+    }
+
+    /**
+     * @return the number of tests stored
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the index of given test, or -1 if it is not stored
+     */
+    synchronized int indexOf(TestIdentifier test) {
+        Integer classId = mNameIds.get(test.getClassName());
+        Integer methodId = mNameIds.get(test.getTestName());
+        if (classId == null || methodId == null) {
+            return -1;
+        }
+        int mask = mIndexTable.length - 1;
+        for (int slot = hash(classId, methodId) & mask; mIndexTable[slot] != 0;
+                slot = (slot + 1) & mask) {
+            int index = mIndexTable[slot] - 1;
+            if (mClassIds[index] == classId && mMethodIds[index] == methodId) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a new {@link TestStatus#INCOMPLETE} test started now, or reset the result of given
+     * test if it is already stored.
+     *
+     * @return the index of the test
+     */
+    synchronized int startTest(TestIdentifier test) {
+        int index = indexOf(test);
+        if (index < 0) {
+            ensureCapacity(mSize + 1);
+            index = mSize++;
+            mClassIds[index] = intern(test.getClassName());
+            mMethodIds[index] = intern(test.getTestName());
+            addToIndexTable(index);
+        }
+        mStatuses[index] = (byte)TestStatus.INCOMPLETE.ordinal();
+        mStartTimes[index] = System.currentTimeMillis();
+        mEndTimes[index] = 0;
+        mTraceIds[index] = -1;
+        mMetrics[index] = null;
+        return index;
+    }
+
+    synchronized TestStatus getStatus(int index) {
+        return STATUSES[mStatuses[index]];
+    }
+
+    synchronized void setStatus(int index, TestStatus status) {
+        mStatuses[index] = (byte)status.ordinal();
+    }
+
+    synchronized void setStackTrace(int index, String trace) {
+        mTraceIds[index] = trace == null ? -1 : storeTrace(trace);
+    }
+
+    synchronized void setEndTime(int index, long endTime) {
+        mEndTimes[index] = endTime;
+    }
+
+    synchronized void setMetrics(int index, Map<String, String> metrics) {
+        if (metrics == null) {
+            mMetrics[index] = null;
+        } else if (metrics.isEmpty()) {
+            mMetrics[index] = EMPTY_METRICS;
+        } else {
+            String[] packed = new String[metrics.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> entry : metrics.entrySet()) {
+                packed[i++] = mNames.get(intern(entry.getKey()));
+                packed[i++] = entry.getValue();
+            }
+            mMetrics[index] = packed;
+        }
+    }
+
+    /**
+     * @return the {@link TestIdentifier} at given index
+     */
+    synchronized TestIdentifier getTest(int index) {
+        return new TestIdentifier(mNames.get(mClassIds[index]), mNames.get(mMethodIds[index]));
+    }
+
+    /**
+     * @return a new {@link TestResult} holding the result at given index
+     */
+    synchronized TestResult getResult(int index) {
+        Map<String, String> metrics = null;
+        String[] packed = mMetrics[index];
+        if (packed == EMPTY_METRICS) {
+            metrics = Collections.emptyMap();
+        } else if (packed != null) {
+            metrics = new HashMap<String, String>(packed.length);
+            for (int i = 0; i < packed.length; i += 2) {
+                metrics.put(packed[i], packed[i + 1]);
+            }
+        }
+        String trace = mTraceIds[index] < 0 ? null : getTrace(mTraceIds[index]);
+        return new TestResult(getStatus(index), trace,
+                metrics == null ? null : Collections.unmodifiableMap(metrics), mStartTimes[index],
+                mEndTimes[index]);
+    }
+
+    /**
+     * @return a read-only {@link Map} view of the stored results, in insertion order
+     */
+    Map<TestIdentifier, TestResult> asMap() {
+        return new ResultMap();
+    }
+
+    /**
+     * @return the number of distinct stack traces stored
+     */
+    synchronized int getNumTraces() {
+        return mTraces.size();
+    }
+
+    /**
+     * Delete the file holding spilled stack traces, if any. Spilled stack traces will no longer
+     * be available.
+     */
+    synchronized void deleteSpillFile() {
+        if (mSpillFile != null) {
+            FileUtil.deleteFile(mSpillFile);
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * @return the file holding spilled stack traces, or <code>null</code> if none were spilled.
+     *         Exposed for unit testing.
+     */
+    synchronized File getSpillFile() {
+        return mSpillFile;
+    }
+
+    private int intern(String name) {
+        Integer id = mNameIds.get(name);
+        if (id == null) {
+            id = mNames.size();
+            mNames.add(name);
+            mNameIds.put(name, id);
+        }
+        return id;
+    }
+
+    private static int hash(int classId, int methodId) {
+        int h = classId * 31 + methodId;
+        // spread the bits, since ids are small sequential numbers
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private void addToIndexTable(int index) {
+        // keep the load factor at or below 1/2
+        if (mSize * 2 > mIndexTable.length) {
+            mIndexTable = new int[mIndexTable.length * 2];
+            for (int i = 0; i < mSize; i++) {
+                insertIndex(i);
+            }
+        } else {
+            insertIndex(index);
+        }
+    }
+
+    private void insertIndex(int index) {
+        int mask = mIndexTable.length - 1;
+        int slot = hash(mClassIds[index], mMethodIds[index]) & mask;
+        while (mIndexTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mIndexTable[slot] = index + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mClassIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mClassIds.length * 2);
+        mClassIds = Arrays.copyOf(mClassIds, newCapacity);
+        mMethodIds = Arrays.copyOf(mMethodIds, newCapacity);
+        mStatuses = Arrays.copyOf(mStatuses, newCapacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, newCapacity);
+        mEndTimes = Arrays.copyOf(mEndTimes, newCapacity);
+        mTraceIds = Arrays.copyOf(mTraceIds, newCapacity);
+        mMetrics = Arrays.copyOf(mMetrics, newCapacity);
+    }
+
+    private int storeTrace(String trace) {
+        List<Integer> candidates = mTraceIdsByHash.get(trace.hashCode());
+        if (candidates == null) {
+            candidates = new ArrayList<Integer>(1);
+            mTraceIdsByHash.put(trace.hashCode(), candidates);
+        } else {
+            for (Integer id : candidates) {
+                if (trace.equals(getTrace(id))) {
+                    return id;
+                }
+            }
+        }
+        int id = mTraces.size();
+        if (id >= mTraceOffsets.length) {
+            mTraceOffsets = Arrays.copyOf(mTraceOffsets, id * 2);
+            mTraceLengths = Arrays.copyOf(mTraceLengths, id * 2);
+        }
+        if (mTraceMemory + trace.length() > mTraceMemoryLimit && spillTrace(id, trace)) {
+            mTraces.add(null);
+        } else {
+            mTraces.add(trace);
+            mTraceMemory += trace.length();
+        }
+        candidates.add(id);
+        return id;
+    }
+
+    /**
+     * Append a stack trace to the spill file.
+     *
+     * @return <code>true</code> if trace was written successfully
+     */
+    private boolean spillTrace(int id, String trace) {
+        FileOutputStream spill = null;
+        try {
+            if (mSpillFile == null) {
+                mSpillFile = FileUtil.createTempFile("test_traces_", ".txt");
+                mSpillFile.deleteOnExit();
+                mSpillLength = 0;
+            }
+            byte[] data = trace.getBytes("UTF-8");
+            spill = new FileOutputStream(mSpillFile, true);
+            spill.write(data);
+            mTraceOffsets[id] = mSpillLength;
+            mTraceLengths[id] = data.length;
+            mSpillLength += data.length;
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to write stack trace to disk, keeping it in memory: %s",
+                    e.getMessage());
+            return false;
+        } finally {
+            StreamUtil.close(spill);
+        }
+    }
+
+    private String getTrace(int id) {
+        String trace = mTraces.get(id);
+        if (trace != null || mSpillFile == null) {
+            return trace;
+        }
+        RandomAccessFile spill = null;
+        try {
+            byte[] data = new byte[mTraceLengths[id]];
+            spill = new RandomAccessFile(mSpillFile, "r");
+            spill.seek(mTraceOffsets[id]);
+            spill.readFully(data);
+            return new String(data, "UTF-8");
+        } catch (IOException e) {
+            CLog.e("Failed to read stack trace from %s", mSpillFile.getAbsolutePath());
+            CLog.e(e);
+            return null;
+        } finally {
+            StreamUtil.close(spill);
+        }
+    }
+
+    /**
+     * A read-only {@link Map} view of the store.
+     */
+    private class ResultMap extends AbstractMap<TestIdentifier, TestResult> {
+
+        @Override
+        public int size() {
+            return CompactTestResultStore.this.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof TestIdentifier && indexOf((TestIdentifier)key) >= 0;
+        }
+
+        @Override
+        public TestResult get(Object key) {
+            if (!(key instanceof TestIdentifier)) {
+                return null;
+            }
+            synchronized (CompactTestResultStore.this) {
+                int index = indexOf((TestIdentifier)key);
+                return index < 0 ? null : getResult(index);
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<TestIdentifier, TestResult>> entrySet() {
+            return new AbstractSet<Map.Entry<TestIdentifier, TestResult>>() {
+                @Override
+                public int size() {
+                    return ResultMap.this.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<TestIdentifier, TestResult>> iterator() {
+                    return new Iterator<Map.Entry<TestIdentifier, TestResult>>() {
+                        private int mNext = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return mNext < size();
+                        }
+
+                        @Override
+                        public Map.Entry<TestIdentifier, TestResult> next() {
+                            synchronized (CompactTestResultStore.this) {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                int index = mNext++;
+                                return new SimpleImmutableEntry<TestIdentifier, TestResult>(
+                                        getTest(index), getResult(index));
+                            }
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
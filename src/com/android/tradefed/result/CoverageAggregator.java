@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Merges Emma coverage data files in process, as they are collected.
+ * <p/>
+ * Each file added is parsed and merged on a background thread into a compact bitmap of the
+ * covered blocks of every class, so that the merged coverage is ready when the last file arrives.
+ * {@link #writeMergedFile(File)} then only has to serialize it to a single Emma coverage file.
+ * <p/>
+ * Files that are not plain Emma coverage dumps, e.g. because they also hold metadata, are not
+ * merged, and are reported by {@link #getUnmergedFiles()} so they can be passed to Emma as is.
+ */
+public class CoverageAggregator {
+
+    /** "EMMA" */
+    private static final int MAGIC = 0x454D4D41;
+    /** magic, data format version, and major, minor and build version of the writer */
+    private static final int FILE_HEADER_LENGTH = 4 + 8 + 3 * 4;
+    private static final byte TYPE_COVERAGEDATA = 0x1;
+    private static final int NULL_ARRAY_LENGTH = -1;
+
+    private final ExecutorService mExecutor;
+    /** merged coverage by class VM name. Only written by the merge thread */
+    private final Map<String, ClassCoverage> mClasses = new HashMap<String, ClassCoverage>();
+    /** the header of the first merged file, reused for the merged output */
+    private byte[] mHeader = null;
+    private final List<File> mUnmergedFiles = new ArrayList<File>();
+    private int mMergedCount = 0;
+
+    /**
+     * The coverage of a class: the covered flags of the blocks of all its methods, as a bitmap.
+     */
+    static class ClassCoverage {
+        private final long mStamp;
+        /**
+         * the block count of each method, or {@link #NULL_ARRAY_LENGTH} if it has no data.
+         * <code>null</code> if the class has no data
+         */
+        private final int[] mBlockCounts;
+        private final long[] mBits;
+
+        ClassCoverage(long stamp, int[] blockCounts) {
+            mStamp = stamp;
+            mBlockCounts = blockCounts;
+            int totalBlocks = 0;
+            if (blockCounts != null) {
+                for (int count : blockCounts) {
+                    totalBlocks += Math.max(count, 0);
+                }
+            }
+            mBits = new long[(totalBlocks + 63) / 64];
+        }
+
+        void set(int block) {
+            mBits[block >> 6] |= 1L << block;
+        }
+
+        boolean get(int block) {
+            return (mBits[block >> 6] & (1L << block)) != 0;
+        }
+
+        /**
+         * @return <code>true</code> if other is the same version of the class
+         */
+        boolean isCompatible(ClassCoverage other) {
+            return mStamp == other.mStamp && Arrays.equals(mBlockCounts, other.mBlockCounts);
+        }
+
+        void merge(ClassCoverage other) {
+            for (int i = 0; i < mBits.length; i++) {
+                mBits[i] |= other.mBits[i];
+            }
+        }
+
+        int getCoveredCount() {
+            int count = 0;
+            for (long word : mBits) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Creates a {@link CoverageAggregator}. Call {@link #shutdown()} once done with it.
+     */
+    public CoverageAggregator() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CoverageAggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Merge a coverage file in the background.
+     *
+     * @param coverageFile the Emma coverage {@link File}. Must not be deleted until merged, i.e.
+     *            until {@link #writeMergedFile(File)} returns.
+     */
+    public void addCoverageFile(final File coverageFile) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                merge(coverageFile);
+            }
+        });
+    }
+
+    /**
+     * Wait for pending merges to complete, and write the merged coverage.
+     *
+     * @param destFile the {@link File} to write the merged coverage to
+     * @return <code>true</code> if the file was written, <code>false</code> if no file could be
+     *         merged
+     * @throws IOException if failed to write the file
+     */
+    public boolean writeMergedFile(File destFile) throws IOException {
+        waitForMerges();
+        if (mHeader == null) {
+            return false;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        writeCoverageData(new DataOutputStream(data));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(destFile)));
+        try {
+            out.write(mHeader);
+            // the entry length only counts the data that follows the entry type
+            out.writeLong(data.size());
+            out.writeByte(TYPE_COVERAGEDATA);
+            data.writeTo(out);
+        } finally {
+            StreamUtil.close(out);
+        }
+        CLog.d("Merged coverage of %d classes from %d files to %s", mClasses.size(), mMergedCount,
+                destFile.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Wait for pending merges to complete, and get the files that could not be merged.
+     */
+    public List<File> getUnmergedFiles() {
+        waitForMerges();
+        return mUnmergedFiles;
+    }
+
+    /**
+     * Stop the merge thread. Pending merges are abandoned.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Get the merged coverage of a class.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    ClassCoverage getClassCoverage(String classVMName) {
+        waitForMerges();
+        return mClasses.get(classVMName);
+    }
+
+    /**
+     * Wait for the merge thread to process all files added so far.
+     */
+    private void waitForMerges() {
+        try {
+            // a no-op task runs after all the merges queued before it
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while merging coverage files");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            CLog.e(e);
+        }
+    }
+
+    private void merge(File coverageFile) {
+        Map<String, ClassCoverage> fileCoverage = new HashMap<String, ClassCoverage>();
+        byte[] header;
+        try {
+            header = readCoverageFile(coverageFile, fileCoverage);
+        } catch (IOException e) {
+            CLog.w("Could not merge coverage file %s, passing it as is: %s",
+                    coverageFile.getName(), e.toString());
+            mUnmergedFiles.add(coverageFile);
+            return;
+        }
+        if (mHeader == null) {
+            mHeader = header;
+        }
+        for (Map.Entry<String, ClassCoverage> entry : fileCoverage.entrySet()) {
+            ClassCoverage merged = mClasses.get(entry.getKey());
+            if (merged != null && merged.isCompatible(entry.getValue())) {
+                merged.merge(entry.getValue());
+            } else {
+                if (merged != null) {
+                    CLog.w("Class %s changed between coverage files, keeping the last one",
+                            entry.getKey());
+                }
+                mClasses.put(entry.getKey(), entry.getValue());
+            }
+        }
+        mMergedCount++;
+    }
+
+    /**
+     * Parse an Emma coverage file.
+     *
+     * @return the file header
+     * @throws IOException if the file could not be read, or is not a plain coverage file
+     */
+    private static byte[] readCoverageFile(File coverageFile,
+            Map<String, ClassCoverage> coverage) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(coverageFile)));
+        try {
+            byte[] header = new byte[FILE_HEADER_LENGTH];
+            in.readFully(header);
+            if (readInt(header) != MAGIC) {
+                throw new IOException("not an Emma data file");
+            }
+            while (true) {
+                long entryLength;
+                try {
+                    entryLength = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (entryLength == 0) {
+                    // an entry left incomplete by its writer
+                    break;
+                }
+                byte type = in.readByte();
+                if (type != TYPE_COVERAGEDATA) {
+                    throw new IOException(String.format("unsupported entry type %d", type));
+                }
+                readCoverageData(in, coverage);
+            }
+            return header;
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    private static void readCoverageData(DataInputStream in, Map<String, ClassCoverage> coverage)
+            throws IOException {
+        int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            String classVMName = in.readUTF();
+            long stamp = in.readLong();
+            int methodCount = in.readInt();
+            if (methodCount < NULL_ARRAY_LENGTH) {
+                throw new IOException(String.format("invalid method count %d", methodCount));
+            } else if (methodCount == NULL_ARRAY_LENGTH) {
+                coverage.put(classVMName, new ClassCoverage(stamp, null));
+                continue;
+            }
+            boolean[][] methods = new boolean[methodCount][];
+            int[] blockCounts = new int[methodCount];
+            for (int m = 0; m < methodCount; m++) {
+                blockCounts[m] = in.readInt();
+                if (blockCounts[m] < NULL_ARRAY_LENGTH) {
+                    throw new IOException(String.format("invalid block count %d",
+                            blockCounts[m]));
+                } else if (blockCounts[m] != NULL_ARRAY_LENGTH) {
+                    // Emma writes the blocks of a method last to first
+                    methods[m] = new boolean[blockCounts[m]];
+                    for (int b = blockCounts[m] - 1; b >= 0; b--) {
+                        methods[m][b] = in.readBoolean();
+                    }
+                }
+            }
+            ClassCoverage classCoverage = new ClassCoverage(stamp, blockCounts);
+            int block = 0;
+            for (boolean[] method : methods) {
+                if (method != null) {
+                    for (boolean covered : method) {
+                        if (covered) {
+                            classCoverage.set(block);
+                        }
+                        block++;
+                    }
+                }
+            }
+            coverage.put(classVMName, classCoverage);
+        }
+    }
+
+    private void writeCoverageData(DataOutputStream out) throws IOException {
+        out.writeInt(mClasses.size());
+        for (Map.Entry<String, ClassCoverage> entry : mClasses.entrySet()) {
+            ClassCoverage classCoverage = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(classCoverage.mStamp);
+            if (classCoverage.mBlockCounts == null) {
+                out.writeInt(NULL_ARRAY_LENGTH);
+                continue;
+            }
+            out.writeInt(classCoverage.mBlockCounts.length);
+            int block = 0;
+            for (int blockCount : classCoverage.mBlockCounts) {
+                out.writeInt(blockCount);
+                // blocks are written last to first, like Emma does
+                for (int b = blockCount - 1; b >= 0; b--) {
+                    out.writeBoolean(classCoverage.get(block + b));
+                }
+                block += Math.max(blockCount, 0);
+            }
+        }
+        out.flush();
+    }
+
+    private static int readInt(byte[] data) {
+        return (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 | (data[2] & 0xff) << 8
+                | (data[3] & 0xff);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Host-wide options of the {@link CrashSignatureIndex}es, set from the global configuration.
+ */
+@OptionClass(alias = "crash-index")
+public class CrashIndexOptions {
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final CrashIndexOptions INSTANCE = new CrashIndexOptions();
+    }
+
+    @Option(name = "crash-index-dir", description = "a crash signature index directory to " +
+            "list from the console, in addition to the ones used by this process. " +
+            "May be repeated.")
+    private Collection<File> mIndexDirs = new ArrayList<File>();
+
+    /**
+     * Get the singleton {@link CrashIndexOptions}.
+     */
+    public static CrashIndexOptions getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * @return the configured crash signature index directories
+     */
+    public Collection<File> getIndexDirs() {
+        return mIndexDirs;
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A persistent index of crashes, keyed by a signature computed from the normalized frames of the
+ * crash stack.
+ * <p/>
+ * Artifacts of a crash are meant to be stored once, on the first occurrence of its signature.
+ * Later occurrences only increment the signature's counter, and store a compact reference. The
+ * index is kept in memory, so it can be queried without reading any artifacts, and is written to
+ * an index file in the root directory after every change. Several processes can record crashes in
+ * the same index: each change is made under a file lock, after merging the index file.
+ * <p/>
+ * Instances are shared per root directory within the process, see {@link #getIndex(File)}.
+ */
+public class CrashSignatureIndex {
+
+    /** the name of the index file in the root directory */
+    static final String INDEX_FILE_NAME = "index.txt";
+    private static final String LOCK_FILE_NAME = INDEX_FILE_NAME + ".lock";
+    /** the name of the directory holding the references of later occurrences */
+    static final String REFERENCES_DIR_NAME = "references";
+    /** the max number of frames of each exception or thread used in a signature */
+    static final int MAX_FRAMES = 8;
+    /** the number of hex characters of a signature */
+    private static final int SIGNATURE_LENGTH = 16;
+
+    /** "at com.foo.Bar.method(Bar.java:12)" */
+    private static final Pattern JAVA_FRAME = Pattern.compile("at\\s+([\\w$.<>]+)\\(.*\\)");
+    /** "#00  pc 0001a2b4  /system/lib/libc.so (abort+12)" */
+    private static final Pattern NATIVE_FRAME = Pattern.compile(
+            "#\\d+\\s+pc\\s+[0-9a-fA-F]+\\s+(\\S+)(?:\\s+\\((.+?)(?:\\+\\d+)?\\))?.*");
+    /** "java.lang.NullPointerException: message" or "Caused by: ..." */
+    private static final Pattern EXCEPTION = Pattern.compile(
+            "(Caused by:\\s*)?([\\w$.]+(?:Exception|Error|Throwable)[\\w$]*)(?::.*)?");
+    /** anonymous class numbers vary between builds */
+    private static final Pattern ANONYMOUS_CLASS = Pattern.compile("\\$\\d+");
+    /** numbers and addresses in otherwise unrecognized lines */
+    private static final Pattern NUMBER = Pattern.compile("0x[0-9a-fA-F]+|\\d+");
+
+    private static final Map<File, CrashSignatureIndex> sIndexes =
+            new LinkedHashMap<File, CrashSignatureIndex>();
+
+    private final File mRootDir;
+    private final File mIndexFile;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * A crash signature and its occurrences.
+     */
+    public static class Entry {
+        private final String mSignature;
+        private final String mType;
+        private final String mTitle;
+        private final int mCount;
+        private final long mFirstSeen;
+        private final long mLastSeen;
+
+        Entry(String signature, String type, String title, int count, long firstSeen,
+                long lastSeen) {
+            mSignature = signature;
+            mType = type;
+            mTitle = title;
+            mCount = count;
+            mFirstSeen = firstSeen;
+            mLastSeen = lastSeen;
+        }
+
+        public String getSignature() {
+            return mSignature;
+        }
+
+        /**
+         * @return the type of crash, e.g. "java", "anr" or "native"
+         */
+        public String getType() {
+            return mType;
+        }
+
+        /**
+         * @return a one line description of the crash, e.g. the exception class
+         */
+        public String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * @return the number of occurrences of the crash
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return <code>true</code> if this is the first occurrence of the crash
+         */
+        public boolean isFirstOccurrence() {
+            return mCount == 1;
+        }
+
+        public long getFirstSeen() {
+            return mFirstSeen;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    /**
+     * Get the shared {@link CrashSignatureIndex} for given root directory, loading it from disk
+     * on first use.
+     *
+     * @param rootDir the directory to store the index and artifacts in. Created if needed.
+     * @throws IOException if the directory cannot be created or the index cannot be read
+     */
+    public static CrashSignatureIndex getIndex(File rootDir) throws IOException {
+        File key = rootDir.getCanonicalFile();
+        synchronized (sIndexes) {
+            CrashSignatureIndex index = sIndexes.get(key);
+            if (index == null) {
+                index = new CrashSignatureIndex(key);
+                index.load();
+                sIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Get the {@link CrashSignatureIndex}es used in this process so far, and the ones persisted in
+     * given directories.
+     * <p/>
+     * Indexes not used in this process are read again on each call, since other processes may be
+     * recording crashes in them.
+     *
+     * @param rootDirs the directories to read persisted indexes from. Directories without an
+     *            index file are ignored.
+     */
+    public static Collection<CrashSignatureIndex> getIndexes(Collection<File> rootDirs) {
+        Map<File, CrashSignatureIndex> indexes;
+        synchronized (sIndexes) {
+            indexes = new LinkedHashMap<File, CrashSignatureIndex>(sIndexes);
+        }
+        for (File rootDir : rootDirs) {
+            try {
+                File key = rootDir.getCanonicalFile();
+                if (!indexes.containsKey(key) && new File(key, INDEX_FILE_NAME).isFile()) {
+                    CrashSignatureIndex index = new CrashSignatureIndex(key);
+                    index.load();
+                    indexes.put(key, index);
+                }
+            } catch (IOException e) {
+                CLog.e("Could not read crash index %s: %s", rootDir.getAbsolutePath(),
+                        e.toString());
+            }
+        }
+        return new ArrayList<CrashSignatureIndex>(indexes.values());
+    }
+
+    /**
+     * Creates a {@link CrashSignatureIndex}.
+     * <p/>
+     * Exposed for unit testing. Use {@link #getIndex(File)} instead.
+     */
+    CrashSignatureIndex(File rootDir) throws IOException {
+        if (!rootDir.isDirectory() && !FileUtil.mkdirsRWX(rootDir)) {
+            throw new IOException(String.format("Could not create crash index dir %s",
+                    rootDir.getAbsolutePath()));
+        }
+        mRootDir = rootDir;
+        mIndexFile = new File(rootDir, INDEX_FILE_NAME);
+    }
+
+    public File getRootDir() {
+        return mRootDir;
+    }
+
+    /**
+     * Compute the signature of a crash.
+     * <p/>
+     * The signature only depends on the crash type and the normalized stack, so it does not change
+     * with line numbers, addresses, offsets or exception messages.
+     *
+     * @param type the type of crash, e.g. "java", "anr" or "native"
+     * @param stack the crash stack
+     * @return the signature, as a hex string
+     */
+    public static String computeSignature(String type, String stack) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(type.getBytes("UTF-8"));
+            digest.update((byte)'\n');
+            for (String line : normalizeStack(stack)) {
+                digest.update(line.getBytes("UTF-8"));
+                digest.update((byte)'\n');
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.substring(0, SIGNATURE_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Normalize a java, ANR or native crash stack.
+     * <p/>
+     * Keeps exception classes and the first {@link #MAX_FRAMES} frames of each exception or
+     * thread, without line numbers, pc addresses, offsets or anonymous class numbers. If no frames
+     * are recognized, keeps the first lines of the stack with all numbers removed.
+     *
+     * @return the normalized lines
+     */
+    static List<String> normalizeStack(String stack) {
+        List<String> lines = new ArrayList<String>();
+        List<String> fallback = new ArrayList<String>();
+        boolean recognized = false;
+        int frames = 0;
+        for (String rawLine : stack.split("\r?\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (fallback.size() < MAX_FRAMES) {
+                fallback.add(NUMBER.matcher(line).replaceAll("#"));
+            }
+            Matcher exception = EXCEPTION.matcher(line);
+            Matcher javaFrame = JAVA_FRAME.matcher(line);
+            Matcher nativeFrame = NATIVE_FRAME.matcher(line);
+            if (javaFrame.matches()) {
+                recognized = true;
+                if (frames++ < MAX_FRAMES) {
+                    lines.add(ANONYMOUS_CLASS.matcher(javaFrame.group(1)).replaceAll("\\$"));
+                }
+            } else if (nativeFrame.matches()) {
+                recognized = true;
+                if (frames++ < MAX_FRAMES) {
+                    String function = nativeFrame.group(2);
+                    lines.add(function == null ? nativeFrame.group(1) :
+                            String.format("%s (%s)", nativeFrame.group(1), function));
+                }
+            } else if (exception.matches() && (lines.isEmpty() || exception.group(1) != null)) {
+                recognized = true;
+                frames = 0;
+                lines.add(exception.group(2));
+            } else if (line.startsWith("\"")) {
+                // a new thread in an ANR trace
+                frames = 0;
+            }
+        }
+        return recognized ? lines : fallback;
+    }
+
+    /**
+     * Record an occurrence of a crash.
+     *
+     * @param type the type of crash, e.g. "java", "anr" or "native"
+     * @param stack the crash stack
+     * @return the updated {@link Entry} of the crash signature
+     */
+    public synchronized Entry recordCrash(String type, String stack) {
+        String signature = computeSignature(type, stack);
+        RandomAccessFile lock = null;
+        boolean merged = false;
+        try {
+            lock = lockIndex();
+            // pick up the crashes recorded by other processes
+            load();
+            merged = true;
+        } catch (IOException e) {
+            CLog.e("Failed to read crash index %s, not updating it: %s",
+                    mIndexFile.getAbsolutePath(), e.toString());
+        }
+        try {
+            return addOccurrence(signature, type, stack, merged);
+        } finally {
+            // closing the file releases the lock
+            StreamUtil.close(lock);
+        }
+    }
+
+    /**
+     * Count an occurrence of a crash in memory, and write the index file if <var>save</var>.
+     */
+    private Entry addOccurrence(String signature, String type, String stack, boolean save) {
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(signature);
+        if (entry == null) {
+            List<String> normalized = normalizeStack(stack);
+            String title = normalized.isEmpty() ? "" : normalized.get(0);
+            entry = new Entry(signature, type, title, 1, now, now);
+        } else {
+            entry = new Entry(signature, entry.getType(), entry.getTitle(), entry.getCount() + 1,
+                    entry.getFirstSeen(), now);
+        }
+        mEntries.put(signature, entry);
+        if (!save) {
+            return entry;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            CLog.e("Failed to write crash index %s: %s", mIndexFile.getAbsolutePath(),
+                    e.toString());
+        }
+        return entry;
+    }
+
+    /**
+     * Store an artifact of a crash. Meant to be called on the first occurrence only.
+     *
+     * @param signature the crash signature
+     * @param name the artifact file name
+     * @param data the artifact contents
+     * @return the stored artifact {@link File}
+     * @throws IOException
+     */
+    public File saveArtifact(String signature, String name, InputStream data)
+            throws IOException {
+        File file = new File(getSignatureDir(signature), name);
+        FileUtil.writeToFile(data, file);
+        return file;
+    }
+
+    /**
+     * Store a compact reference to a later occurrence of a crash.
+     *
+     * @param signature the crash signature
+     * @param reference a short description of the occurrence, e.g. device, build and time
+     * @param deltaLog the log lines of the occurrence not worth storing in full, may be
+     *            <code>null</code>
+     * @return the stored reference {@link File}
+     * @throws IOException
+     */
+    public File saveReference(String signature, String reference, String deltaLog)
+            throws IOException {
+        File refDir = new File(getSignatureDir(signature), REFERENCES_DIR_NAME);
+        if (!refDir.isDirectory() && !FileUtil.mkdirsRWX(refDir)) {
+            throw new IOException(String.format("Could not create %s",
+                    refDir.getAbsolutePath()));
+        }
+        File file = FileUtil.createTempFile("ref_", ".txt", refDir);
+        StringBuilder contents = new StringBuilder(reference);
+        if (deltaLog != null) {
+            contents.append("\n\n");
+            contents.append(deltaLog);
+        }
+        FileUtil.writeToFile(contents.toString(), file);
+        return file;
+    }
+
+    /**
+     * Get the directory holding the artifacts of a crash signature.
+     */
+    public File getSignatureDir(String signature) throws IOException {
+        File dir = new File(mRootDir, signature);
+        if (!dir.isDirectory() && !FileUtil.mkdirsRWX(dir)) {
+            throw new IOException(String.format("Could not create %s", dir.getAbsolutePath()));
+        }
+        return dir;
+    }
+
+    /**
+     * @return the {@link Entry}s in the index, most frequent first
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                if (e1.getCount() != e2.getCount()) {
+                    return e1.getCount() > e2.getCount() ? -1 : 1;
+                }
+                return e1.getSignature().compareTo(e2.getSignature());
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Find the {@link Entry} whose signature starts with given prefix.
+     *
+     * @return the {@link Entry}, or <code>null</code> if none or more than one signature matches
+     */
+    public synchronized Entry findEntry(String signaturePrefix) {
+        Entry found = null;
+        for (Entry entry : mEntries.values()) {
+            if (entry.getSignature().startsWith(signaturePrefix)) {
+                if (found != null) {
+                    return null;
+                }
+                found = entry;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Print a summary of the index.
+     */
+    public void printEntries(PrintWriter writer) {
+        List<Entry> entries = getEntries();
+        writer.printf("Crash index %s: %d signatures\n", mRootDir.getAbsolutePath(),
+                entries.size());
+        for (Entry entry : entries) {
+            writer.printf("%s  %6d  %-6s  %s  %s\n", entry.getSignature(), entry.getCount(),
+                    entry.getType(), new Date(entry.getLastSeen()), entry.getTitle());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Load the index file, if any, merging it into the entries in memory. An entry of the file is
+     * only ignored if the one in memory has more occurrences, e.g. because saving it failed.
+     */
+    synchronized void load() throws IOException {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(mIndexFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length != 6) {
+                    CLog.w("Ignoring malformed crash index line '%s'", line);
+                    continue;
+                }
+                try {
+                    mergeEntry(new Entry(fields[0], fields[1], fields[5],
+                            Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+                            Long.parseLong(fields[4])));
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring malformed crash index line '%s'", line);
+                }
+            }
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    private void mergeEntry(Entry entry) {
+        Entry current = mEntries.get(entry.getSignature());
+        if (current == null || current.getCount() <= entry.getCount()) {
+            mEntries.put(entry.getSignature(), entry);
+        }
+    }
+
+    /**
+     * Lock the index against other processes, waiting for the lock if needed.
+     *
+     * @return the locked file. Closing it releases the lock.
+     */
+    private RandomAccessFile lockIndex() throws IOException {
+        RandomAccessFile lock = new RandomAccessFile(new File(mRootDir, LOCK_FILE_NAME), "rw");
+        try {
+            lock.getChannel().lock();
+            return lock;
+        } catch (IOException e) {
+            StreamUtil.close(lock);
+            throw e;
+        }
+    }
+
+    /**
+     * Write the index file. The file is replaced atomically, so it stays consistent if the
+     * process is killed.
+     */
+    private void save() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : mEntries.values()) {
+            sb.append(String.format("%s\t%s\t%d\t%d\t%d\t%s\n", entry.getSignature(),
+                    entry.getType(), entry.getCount(), entry.getFirstSeen(), entry.getLastSeen(),
+                    entry.getTitle().replaceAll("[\t\r\n]", " ")));
+        }
+        File tmpFile = new File(mRootDir, INDEX_FILE_NAME + ".tmp");
+        FileUtil.writeToFile(sb.toString(), tmpFile);
+        if (!tmpFile.renameTo(mIndexFile)) {
+            FileUtil.deleteFile(tmpFile);
+            throw new IOException(String.format("Could not replace %s",
+                    mIndexFile.getAbsolutePath()));
+        }
+    }
+}
@@ -281,6 +281,14 @@ public class EmailResultReporter extends CollectingTestListener implements
 	@Override
 	public void invocationEnded(long elapsedTime) {
 		super.invocationEnded(elapsedTime);
+		try {
+			sendMessage();
+		} finally {
+			clearResults();
+		}
+	}
+
+	private void sendMessage() {
 		// 是否发送信息,一般都会发送
 		if (!shouldSendMessage()) {
 			return;
@@ -55,7 +55,9 @@ public class LogFileSaver implements ILogFileSaver {
      * @param rootDir the root file system path
      * @param logRetentionDays If provided a '.retention' file will be written to log directory
      *            containing a timestamp equal to current time + logRetentionDays. External cleanup
-     *            scripts can use this file to determine when to delete log directories.
+     *            scripts can use this file to determine when to delete log directories. The
+     *            directory is also recorded in the expiry index of rootDir, and deleted by the
+     *            {@link LogRetentionService} once expired.
      */
     public LogFileSaver(IBuildInfo buildInfo, File rootDir, Integer logRetentionDays) {
         File buildDir = createBuildDir(buildInfo, rootDir);
@@ -63,7 +65,7 @@ public class LogFileSaver implements ILogFileSaver {
         try {
             mRootDir = FileUtil.createTempDir("inv_", buildDir);
             if (logRetentionDays != null && logRetentionDays > 0) {
-                new RetentionFileSaver().writeRetentionFile(mRootDir, logRetentionDays);
+                new RetentionFileSaver().writeRetentionFile(mRootDir, logRetentionDays, rootDir);
             }
         } catch (IOException e) {
             CLog.e("Unable to create unique directory in %s. Attempting to use tmp dir instead",
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes expired log directories in the background, without walking the report tree.
+ * <p/>
+ * When a log directory is given a retention period, its expiry time is appended to an expiry
+ * index in the report root directory, see {@link #recordExpiry(File, File, long)}. A low
+ * priority daemon thread periodically reads the index of each known root, and deletes the
+ * expired directories at a limited rate of file deletions per second. Entries that have not
+ * expired are appended back to the index.
+ * <p/>
+ * The index is an append-only text file of "expiry-time-ms TAB relative-path" lines, so
+ * appending to it is cheap and safe from multiple processes. A sweep first renames the index
+ * aside, so directories recorded during a sweep are never lost, and an interrupted sweep resumes
+ * from the renamed file.
+ * <p/>
+ * Nothing is recorded or deleted unless the service is enabled from the global configuration.
+ */
+@OptionClass(alias = "log-retention")
+public class LogRetentionService {
+
+    /** the name of the expiry index file in a report root directory */
+    static final String INDEX_FILE_NAME = ".retention_index";
+    private static final String SWEEP_FILE_NAME = INDEX_FILE_NAME + ".sweep";
+    private static final String LOCK_FILE_NAME = INDEX_FILE_NAME + ".lock";
+
+    private static final long DEFAULT_SWEEP_INTERVAL_MS = 10 * 60 * 1000;
+    private static final int DEFAULT_MAX_DELETES_PER_SEC = 500;
+
+    private static LogRetentionService sInstance = null;
+
+    @Option(name = "delete-expired-logs", description = "delete the log dirs given a retention " +
+            "period from a background thread, once they expire.")
+    private boolean mEnabled = false;
+
+    private final long mSweepIntervalMs;
+    private final int mMaxDeletesPerSec;
+    private final RetentionFileSaver mRetentionFileSaver = new RetentionFileSaver();
+    private final AtomicLong mReclaimedBytes = new AtomicLong(0);
+
+    // guarded by this
+    private final Set<File> mRootDirs = new LinkedHashSet<File>();
+    private Thread mSweeperThread = null;
+
+    // only used by the sweeping thread
+    private long mWindowStart = 0;
+    private int mDeletesInWindow = 0;
+
+    /**
+     * An expiry index entry.
+     */
+    private static class Expiry {
+        final long mTime;
+        final String mPath;
+
+        Expiry(long time, String path) {
+            mTime = time;
+            mPath = path;
+        }
+    }
+
+    /**
+     * Get the {@link LogRetentionService} singleton.
+     */
+    public static synchronized LogRetentionService getInstance() {
+        if (sInstance == null) {
+            sInstance = new LogRetentionService(DEFAULT_SWEEP_INTERVAL_MS,
+                    DEFAULT_MAX_DELETES_PER_SEC);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link LogRetentionService}.
+     * <p/>
+     * Exposed for unit testing. Use {@link #getInstance()} instead.
+     *
+     * @param sweepIntervalMs the time to wait between sweeps
+     * @param maxDeletesPerSec the max number of files to delete per second, or 0 for no limit
+     */
+    LogRetentionService(long sweepIntervalMs, int maxDeletesPerSec) {
+        mSweepIntervalMs = sweepIntervalMs;
+        mMaxDeletesPerSec = maxDeletesPerSec;
+    }
+
+    /**
+     * Enable or disable the deletion of expired log directories.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return <code>true</code> if expired log directories are deleted
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Record when a log directory expires, and make sure its root directory is swept. Does
+     * nothing if the service is not enabled.
+     *
+     * @param rootDir the report root directory holding the expiry index
+     * @param dir the log directory to delete once expired
+     * @param expiryTime the time in ms since the epoch after which the directory can be deleted
+     */
+    public void recordExpiry(File rootDir, File dir, long expiryTime) {
+        if (!isEnabled()) {
+            return;
+        }
+        String rootPath = rootDir.getAbsolutePath() + File.separator;
+        String path = dir.getAbsolutePath();
+        if (path.startsWith(rootPath)) {
+            path = path.substring(rootPath.length());
+        }
+        List<Expiry> expiries = new ArrayList<Expiry>(1);
+        expiries.add(new Expiry(expiryTime, path));
+        try {
+            appendToIndex(rootDir, expiries);
+        } catch (IOException e) {
+            CLog.e("Unable to record expiry of %s in %s", dir.getAbsolutePath(),
+                    rootDir.getAbsolutePath());
+            CLog.e(e);
+            return;
+        }
+        startSweeping(rootDir);
+    }
+
+    /**
+     * @return the total number of bytes reclaimed by deleting expired log directories
+     */
+    public long getReclaimedBytes() {
+        return mReclaimedBytes.get();
+    }
+
+    /**
+     * Sweep given root directory periodically, starting the sweeper thread if needed.
+     */
+    synchronized void startSweeping(File rootDir) {
+        mRootDirs.add(rootDir.getAbsoluteFile());
+        if (mSweeperThread == null) {
+            mSweeperThread = new Thread("LogRetentionService") {
+                @Override
+                public void run() {
+                    sweepLoop();
+                }
+            };
+            mSweeperThread.setDaemon(true);
+            mSweeperThread.setPriority(Thread.MIN_PRIORITY);
+            mSweeperThread.start();
+        }
+    }
+
+    /**
+     * Stop the sweeper thread. An ongoing sweep is interrupted, and resumed on the next sweep of
+     * the same root directory.
+     */
+    public synchronized void stop() {
+        if (mSweeperThread != null) {
+            mSweeperThread.interrupt();
+            mSweeperThread = null;
+        }
+    }
+
+    private void sweepLoop() {
+        try {
+            while (true) {
+                List<File> rootDirs;
+                synchronized (this) {
+                    if (mSweeperThread != Thread.currentThread()) {
+                        return;
+                    }
+                    rootDirs = new ArrayList<File>(mRootDirs);
+                }
+                for (File rootDir : rootDirs) {
+                    if (rootDir.isDirectory()) {
+                        sweep(rootDir);
+                    } else {
+                        synchronized (this) {
+                            mRootDirs.remove(rootDir);
+                        }
+                    }
+                }
+                Thread.sleep(mSweepIntervalMs);
+            }
+        } catch (InterruptedException e) {
+            CLog.d("Log retention sweeper stopped");
+        }
+    }
+
+    /**
+     * Delete the expired log directories of a root directory.
+     *
+     * @return the number of bytes reclaimed
+     * @throws InterruptedException if interrupted. Remaining entries are kept for the next sweep.
+     */
+    long sweep(File rootDir) throws InterruptedException {
+        File lockFile = new File(rootDir, LOCK_FILE_NAME);
+        RandomAccessFile lock = null;
+        try {
+            lock = new RandomAccessFile(lockFile, "rw");
+            FileLock fileLock = lock.getChannel().tryLock();
+            if (fileLock == null) {
+                CLog.d("%s is being swept by another process", rootDir.getAbsolutePath());
+                return 0;
+            }
+            return sweepLocked(rootDir);
+        } catch (IOException e) {
+            CLog.e("Failed to sweep expired logs in %s", rootDir.getAbsolutePath());
+            CLog.e(e);
+            return 0;
+        } finally {
+            // closing the file releases the lock
+            StreamUtil.close(lock);
+        }
+    }
+
+    private long sweepLocked(File rootDir) throws IOException, InterruptedException {
+        File indexFile = new File(rootDir, INDEX_FILE_NAME);
+        File sweepFile = new File(rootDir, SWEEP_FILE_NAME);
+        if (!sweepFile.exists()) {
+            if (!indexFile.exists()) {
+                return 0;
+            }
+            if (!indexFile.renameTo(sweepFile)) {
+                throw new IOException(String.format("Could not rename %s",
+                        indexFile.getAbsolutePath()));
+            }
+        }
+        LinkedList<Expiry> expiries = readExpiries(sweepFile);
+        List<Expiry> kept = new LinkedList<Expiry>();
+        long now = System.currentTimeMillis();
+        long reclaimed = 0;
+        int deletedDirs = 0;
+        try {
+            while (!expiries.isEmpty() && expiries.getFirst().mTime <= now) {
+                Expiry expiry = expiries.getFirst();
+                File dir = new File(expiry.mPath);
+                if (!dir.isAbsolute()) {
+                    dir = new File(rootDir, expiry.mPath);
+                }
+                Long markerTime = mRetentionFileSaver.getExpiryTime(new File(dir,
+                        RetentionFileSaver.RETENTION_FILE_NAME));
+                if (markerTime != null && markerTime > now) {
+                    // the retention period was extended after the entry was recorded
+                    kept.add(new Expiry(markerTime, expiry.mPath));
+                } else if (dir.exists()) {
+                    reclaimed += deleteTree(dir);
+                    deletedDirs++;
+                }
+                expiries.removeFirst();
+            }
+        } finally {
+            kept.addAll(expiries);
+            appendToIndex(rootDir, kept);
+            FileUtil.deleteFile(sweepFile);
+            mReclaimedBytes.addAndGet(reclaimed);
+            if (deletedDirs > 0) {
+                CLog.i("Deleted %d expired log dirs in %s, reclaimed %s", deletedDirs,
+                        rootDir.getAbsolutePath(), FileUtil.convertToReadableSize(reclaimed));
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Read an expiry index, keeping only the latest expiry of each path.
+     *
+     * @return the {@link Expiry}s, earliest first
+     */
+    private LinkedList<Expiry> readExpiries(File indexFile) throws IOException {
+        Map<String, Long> latest = new HashMap<String, Long>();
+        BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                try {
+                    long time = Long.parseLong(line.substring(0, tab));
+                    String path = line.substring(tab + 1);
+                    Long previous = latest.get(path);
+                    if (previous == null || previous < time) {
+                        latest.put(path, time);
+                    }
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring malformed retention index line '%s'", line);
+                }
+            }
+        } finally {
+            StreamUtil.close(reader);
+        }
+        LinkedList<Expiry> expiries = new LinkedList<Expiry>();
+        for (Map.Entry<String, Long> entry : latest.entrySet()) {
+            expiries.add(new Expiry(entry.getValue(), entry.getKey()));
+        }
+        Collections.sort(expiries, new Comparator<Expiry>() {
+            @Override
+            public int compare(Expiry e1, Expiry e2) {
+                return e1.mTime < e2.mTime ? -1 : (e1.mTime == e2.mTime ? 0 : 1);
+            }
+        });
+        return expiries;
+    }
+
+    /**
+     * Append entries to the expiry index of a root directory.
+     */
+    private synchronized void appendToIndex(File rootDir, List<Expiry> expiries)
+            throws IOException {
+        if (expiries.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Expiry expiry : expiries) {
+            sb.append(expiry.mTime).append('\t').append(expiry.mPath).append('\n');
+        }
+        // opened in append mode, so whole lines written at once do not interleave with writes of
+        // other processes
+        OutputStream out = new FileOutputStream(new File(rootDir, INDEX_FILE_NAME), true);
+        try {
+            out.write(sb.toString().getBytes());
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Delete a directory tree, limiting the rate of deletions.
+     *
+     * @return the number of bytes reclaimed
+     */
+    private long deleteTree(File root) throws InterruptedException {
+        long reclaimed = 0;
+        Set<File> expanded = new HashSet<File>();
+        LinkedList<File> stack = new LinkedList<File>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            File file = stack.peek();
+            if (file.isDirectory() && !isSymlink(file) && expanded.add(file)) {
+                // delete the directory itself once its children are gone
+                File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        stack.push(child);
+                    }
+                }
+                continue;
+            }
+            stack.pop();
+            long length = file.isFile() ? file.length() : 0;
+            if (file.delete()) {
+                reclaimed += length;
+            } else if (file.exists()) {
+                CLog.w("Failed to delete %s", file.getAbsolutePath());
+            }
+            throttle();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return <code>true</code> if given file is a symbolic link, whose target must not be deleted
+     */
+    private static boolean isSymlink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            File canonical = new File(parent.getCanonicalFile(), file.getName());
+            return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Sleep as needed to stay under the max number of deletions per second.
+     */
+    private void throttle() throws InterruptedException {
+        if (mMaxDeletesPerSec <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mWindowStart >= 1000) {
+            mWindowStart = now;
+            mDeletesInWindow = 0;
+        }
+        if (++mDeletesInWindow >= mMaxDeletesPerSec) {
+            Thread.sleep(Math.max(0, mWindowStart + 1000 - now));
+            mWindowStart = System.currentTimeMillis();
+            mDeletesInWindow = 0;
+        }
+    }
+}
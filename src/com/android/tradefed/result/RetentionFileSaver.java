@@ -39,16 +39,44 @@ public class RetentionFileSaver {
      * Creates a .retention file in given dir with timestamp == current + logRetentionDays
      */
     public void writeRetentionFile(File dir, int logRetentionDays) {
+        writeRetentionFile(dir, logRetentionDays, null);
+    }
+
+    /**
+     * Creates a .retention file in given dir with timestamp == current + logRetentionDays, and
+     * records the expiry in the {@link LogRetentionService} index of given report root dir, so dir
+     * is deleted once expired.
+     *
+     * @param rootDir the report root dir holding dir, or <code>null</code> to only write the
+     *            .retention file
+     */
+    public void writeRetentionFile(File dir, int logRetentionDays, File rootDir) {
+        long deleteTimeEpoch = System.currentTimeMillis() + (long)logRetentionDays * 24 * 60 *
+                60 * 1000;
         try {
-            long deleteTimeEpoch = System.currentTimeMillis() + (long)logRetentionDays * 24 * 60 *
-                    60 * 1000;
             Date date = new Date(deleteTimeEpoch);
             File retentionFile = new File(dir, RETENTION_FILE_NAME);
-            FileUtil.writeToFile(sFormatter.format(date), retentionFile);
+            String timestamp;
+            synchronized (sFormatter) {
+                timestamp = sFormatter.format(date);
+            }
+            FileUtil.writeToFile(timestamp, retentionFile);
         } catch (IOException e) {
             CLog.e("Unable to create retention file in directory in %s", dir.getAbsolutePath());
             CLog.e(e);
         }
+        if (rootDir != null) {
+            getRetentionService().recordExpiry(rootDir, dir, deleteTimeEpoch);
+        }
+    }
+
+    /**
+     * Get the {@link LogRetentionService} to use.
+     * <p/>
+     * Exposed for unit testing
+     */
+    LogRetentionService getRetentionService() {
+        return LogRetentionService.getInstance();
     }
 
     public boolean shouldDelete(File retentionFile) {
@@ -56,11 +84,25 @@ public class RetentionFileSaver {
             CLog.w("%s is not a retention file", retentionFile.getAbsolutePath());
             return false;
         }
-        String timestamp;
+        Long expiryTime = getExpiryTime(retentionFile);
+        return expiryTime != null && System.currentTimeMillis() > expiryTime;
+    }
+
+    /**
+     * Read the expiry time of a .retention file.
+     *
+     * @return the expiry time in ms since the epoch, or <code>null</code> if the file does not
+     *         exist or could not be read
+     */
+    Long getExpiryTime(File retentionFile) {
+        if (!retentionFile.isFile()) {
+            return null;
+        }
         try {
-            timestamp = FileUtil.readStringFromFile(retentionFile);
-            Date retentionDate = sFormatter.parse(timestamp);
-            return new Date().after(retentionDate);
+            String timestamp = FileUtil.readStringFromFile(retentionFile);
+            synchronized (sFormatter) {
+                return sFormatter.parse(timestamp).getTime();
+            }
         } catch (IOException e) {
             CLog.e("Unable to read retention file %s", retentionFile.getAbsolutePath());
             CLog.e(e);
@@ -68,6 +110,6 @@ public class RetentionFileSaver {
             CLog.e("Unable to read timestamp in retention file %s", retentionFile.getAbsolutePath());
             CLog.e(e);
         }
-        return false;
+        return null;
     }
 }
@@ -42,12 +42,27 @@ public class TestResult {
     // the start and end time of the test, measured via {@link System#currentTimeMillis()}
     private long mStartTime = 0;
     private long mEndTime = 0;
+    private boolean mReadOnly = false;
 
     public TestResult() {
         mStatus = TestStatus.INCOMPLETE;
         mStartTime = System.currentTimeMillis();
     }
 
+    /**
+     * Creates a read-only {@link TestResult}, whose setters throw
+     * {@link UnsupportedOperationException}.
+     */
+    TestResult(TestStatus status, String stackTrace, Map<String, String> metrics, long startTime,
+            long endTime) {
+        mStatus = status;
+        mStackTrace = stackTrace;
+        mMetrics = metrics;
+        mStartTime = startTime;
+        mEndTime = endTime;
+        mReadOnly = true;
+    }
+
     /**
      * Get the {@link TestStatus} result of the test.
      */
@@ -74,6 +89,7 @@ public class TestResult {
      * Set the test metrics, overriding any previous values.
      */
     public void setMetrics(Map<String, String> metrics) {
+        checkWritable();
         mMetrics = metrics;
     }
 
@@ -97,6 +113,7 @@ public class TestResult {
      * Set the {@link TestStatus}.
      */
     public TestResult setStatus(TestStatus status) {
+       checkWritable();
        mStatus = status;
        return this;
     }
@@ -105,6 +122,7 @@ public class TestResult {
      * Set the stack trace.
      */
     public void setStackTrace(String trace) {
+        checkWritable();
         mStackTrace = trace;
     }
 
@@ -112,9 +130,17 @@ public class TestResult {
      * Sets the end time
      */
     public void setEndTime(long currentTimeMillis) {
+        checkWritable();
         mEndTime = currentTimeMillis;
     }
 
+    private void checkWritable() {
+        if (mReadOnly) {
+            throw new UnsupportedOperationException(
+                    "results returned by TestRunResult#getTestResults() are read-only");
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -19,9 +19,7 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
 
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -31,10 +29,9 @@ import java.util.Set;
  */
 public class TestRunResult {
     private final String mTestRunName;
-    // Uses a synchronized map to make thread safe.
-    // Uses a LinkedHashmap to have predictable iteration order
-    private Map<TestIdentifier, TestResult> mTestResults =
-        Collections.synchronizedMap(new LinkedHashMap<TestIdentifier, TestResult>());
+    // Thread safe, with predictable iteration order. Compact, since a run may have a huge number
+    // of tests
+    private final CompactTestResultStore mTestResults = new CompactTestResultStore();
     private Map<String, String> mRunMetrics = new HashMap<String, String>();
     private boolean mIsRunComplete = false;
     private long mElapsedTime = 0;
@@ -60,6 +57,15 @@ public class TestRunResult {
         this("not started");
     }
 
+    /**
+     * Delete the file holding the stack traces spilled to disk, if any. Meant to be called by the
+     * owner of the results once they are no longer needed, since spilled stack traces are no
+     * longer available afterwards.
+     */
+    public void close() {
+        mTestResults.deleteSpillFile();
+    }
+
     /**
      * @return the test run name
      */
@@ -68,11 +74,16 @@ public class TestRunResult {
     }
 
     /**
-     * Gets a map of the test results.
-     * @return
+     * Gets a map of the test results, in the order tests were started.
+     * <p/>
+     * The map is a read-only view. Its {@link TestResult}s are built on demand and are read-only
+     * too: their setters throw {@link UnsupportedOperationException}, and their metrics can't be
+     * modified. Results are changed by reporting test events to the run.
+     *
+     * @return the {@link Map} of test to {@link TestResult}
      */
     public Map<TestIdentifier, TestResult> getTestResults() {
-        return mTestResults;
+        return mTestResults.asMap();
     }
 
     /**
@@ -135,9 +146,11 @@ public class TestRunResult {
      */
     public Set<TestIdentifier> getCompletedTests() {
         Set<TestIdentifier> completedTests = new LinkedHashSet<TestIdentifier>();
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : getTestResults().entrySet()) {
-            if (!testEntry.getValue().getStatus().equals(TestStatus.INCOMPLETE)) {
-                completedTests.add(testEntry.getKey());
+        synchronized (mTestResults) {
+            for (int i = 0; i < mTestResults.size(); i++) {
+                if (!mTestResults.getStatus(i).equals(TestStatus.INCOMPLETE)) {
+                    completedTests.add(mTestResults.getTest(i));
+                }
             }
         }
         return completedTests;
@@ -237,11 +250,11 @@ public class TestRunResult {
      * @param test
      */
     void reportTestStarted(TestIdentifier test) {
-        TestResult result = mTestResults.get(test);
+        int index = mTestResults.indexOf(test);
 
-        if (result != null) {
+        if (index >= 0) {
             CLog.d("Replacing result for %s", test);
-            switch (result.getStatus()) {
+            switch (mTestResults.getStatus(index)) {
                 case ERROR:
                     mNumErrorTests--;
                     break;
@@ -255,7 +268,7 @@ public class TestRunResult {
         } else {
             mNumInCompleteTests++;
         }
-        mTestResults.put(test, new TestResult());
+        mTestResults.startTest(test);
     }
 
     /**
@@ -266,25 +279,24 @@ public class TestRunResult {
      * @param trace
      */
     void reportTestFailure(TestIdentifier test, TestStatus status, String trace) {
-        TestResult result = mTestResults.get(test);
-        if (result == null) {
+        int index = mTestResults.indexOf(test);
+        if (index < 0) {
             CLog.d("Received test failure for %s without testStarted", test);
-            result = new TestResult();
-            mTestResults.put(test, result);
-        } else if (result.getStatus().equals(TestStatus.PASSED)) {
+            index = mTestResults.startTest(test);
+        } else if (mTestResults.getStatus(index).equals(TestStatus.PASSED)) {
             // this should never happen...
             CLog.d("Replacing passed result for %s", test);
             mNumPassedTests--;
         }
 
-        result.setStackTrace(trace);
+        mTestResults.setStackTrace(index, trace);
         switch (status) {
             case ERROR:
                 mNumErrorTests++;
-                result.setStatus(TestStatus.ERROR);
+                mTestResults.setStatus(index, TestStatus.ERROR);
                 break;
             case FAILURE:
-                result.setStatus(TestStatus.FAILURE);
+                mTestResults.setStatus(index, TestStatus.FAILURE);
                 mNumFailedTests++;
                 break;
         }
@@ -298,19 +310,18 @@ public class TestRunResult {
      * @return <code>true</code> if test was recorded as passed, false otherwise
      */
     boolean reportTestEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        TestResult result = mTestResults.get(test);
-        if (result == null) {
+        int index = mTestResults.indexOf(test);
+        if (index < 0) {
             CLog.d("Received test ended for %s without testStarted", test);
-            result = new TestResult();
-            mTestResults.put(test, result);
+            index = mTestResults.startTest(test);
         } else {
             mNumInCompleteTests--;
         }
 
-        result.setEndTime(System.currentTimeMillis());
-        result.setMetrics(testMetrics);
-        if (result.getStatus().equals(TestStatus.INCOMPLETE)) {
-            result.setStatus(TestStatus.PASSED);
+        mTestResults.setEndTime(index, System.currentTimeMillis());
+        mTestResults.setMetrics(index, testMetrics);
+        if (mTestResults.getStatus(index).equals(TestStatus.INCOMPLETE)) {
+            mTestResults.setStatus(index, TestStatus.PASSED);
             mNumPassedTests++;
             return true;
         }
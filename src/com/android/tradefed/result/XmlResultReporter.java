@@ -93,8 +93,12 @@ public class XmlResultReporter extends CollectingTestListener {
     @Override
     public void invocationEnded(long elapsedTime) {
         super.invocationEnded(elapsedTime);
-        if (mReportDir != null) {
-            generateSummary(mLogFileSaver.getFileDir(), elapsedTime);
+        try {
+            if (mReportDir != null) {
+                generateSummary(mLogFileSaver.getFileDir(), elapsedTime);
+            }
+        } finally {
+            clearResults();
         }
     }
 
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.AaptParser;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A host-wide manager for installing apks onto devices, that avoids redundant work.
+ * <p/>
+ * Keeps a cache of {@link AaptParser} results keyed by apk digest, so 'aapt dump badging' runs
+ * once per distinct apk rather than once per install. Also tracks the apks installed on each
+ * device via this manager (package name, versionCode and digest), so an install of an apk whose
+ * exact contents are already present on the device can be skipped.
+ * <p/>
+ * The digest and package info caches are bounded, the least recently used apks being evicted
+ * first.
+ * <p/>
+ * Installs done directly via {@link ITestDevice#installPackage(File, boolean, String...)} bypass
+ * the manager's records. Callers that install or remove packages by other means should call
+ * {@link #clearDevice(String)}.
+ */
+public class ApkInstallManager {
+
+    /** max number of threads used to digest and parse apks in parallel */
+    private static final int MAX_PREFETCH_THREADS = 4;
+
+    /** max number of apks whose digest and package info are cached */
+    static final int MAX_CACHED_APKS = 256;
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final ApkInstallManager INSTANCE = new ApkInstallManager();
+    }
+
+    /**
+     * Container for info parsed from a local apk file.
+     */
+    public static class ApkInfo {
+        private final String mDigest;
+        private final String mPackageName;
+        private final int mVersionCode;
+
+        public ApkInfo(String digest, String packageName, int versionCode) {
+            mDigest = digest;
+            mPackageName = packageName;
+            mVersionCode = versionCode;
+        }
+
+        public String getDigest() {
+            return mDigest;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getVersionCode() {
+            return mVersionCode;
+        }
+    }
+
+    /**
+     * A map that evicts its least recently accessed entries above {@link #MAX_CACHED_APKS}.
+     * Not thread-safe, callers must synchronize on it.
+     */
+    @SuppressWarnings("serial")
+    private static class LruCache<V> extends LinkedHashMap<String, Future<V>> {
+        LruCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Future<V>> eldest) {
+            return size() > MAX_CACHED_APKS;
+        }
+    }
+
+    /**
+     * Record of an apk installed on a device.
+     */
+    private static class InstalledApk {
+        final ApkInfo mApkInfo;
+        /** the device build id at time of install, used to detect reflashes */
+        final String mBuildId;
+
+        InstalledApk(ApkInfo apkInfo, String buildId) {
+            mApkInfo = apkInfo;
+            mBuildId = buildId;
+        }
+    }
+
+    /**
+     * Map of file key (path, length and modification time) to pending or computed digest.
+     * Using futures means concurrent invocations installing the same file only digest it once.
+     */
+    private final LruCache<String> mDigestCache = new LruCache<String>();
+
+    /** Map of apk digest to the parsed apk info */
+    private final LruCache<ApkInfo> mApkInfoCache = new LruCache<ApkInfo>();
+
+    /** Map of device serial to map of package name to installed apk */
+    private final Map<String, Map<String, InstalledApk>> mDeviceInstalls =
+            new HashMap<String, Map<String, InstalledApk>>();
+
+    /**
+     * Get the singleton instance of {@link ApkInstallManager}
+     */
+    public static ApkInstallManager getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    // @VisibleForTesting
+    ApkInstallManager() {
+    }
+
+    /**
+     * Install given apk on device, unless the same apk is already known to be installed.
+     *
+     * @param device the {@link ITestDevice} to install on
+     * @param apkFile the apk {@link File} to install
+     * @param reinstall <code>true</code> if a reinstall should be performed
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return a {@link String} with an error code, or <code>null</code> if success or skipped.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public String installPackage(ITestDevice device, File apkFile, boolean reinstall,
+            String... extraArgs) throws DeviceNotAvailableException {
+        ApkInfo info = getApkInfo(apkFile);
+        if (info != null && isInstalled(device, info)) {
+            CLog.i("Skipping install of %s on %s: package %s with identical contents is installed",
+                    apkFile.getName(), device.getSerialNumber(), info.getPackageName());
+            return null;
+        }
+        String result = device.installPackage(apkFile, reinstall, extraArgs);
+        if (info != null) {
+            synchronized (mDeviceInstalls) {
+                Map<String, InstalledApk> installs = getDeviceInstalls(device.getSerialNumber());
+                if (result == null) {
+                    installs.put(info.getPackageName(),
+                            new InstalledApk(info, device.getBuildId()));
+                } else {
+                    installs.remove(info.getPackageName());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Install all given apks on device, in order, skipping those already installed.
+     * <p/>
+     * Apk digests and package info are computed in parallel before installation starts.
+     *
+     * @param device the {@link ITestDevice} to install on
+     * @param apkFiles the apk {@link File}s to install
+     * @param reinstall <code>true</code> if a reinstall should be performed
+     * @param extraArgs optional extra arguments to pass
+     * @return a map of apk file to error message for any apks that failed to install. Empty if
+     *         all were installed successfully.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public Map<File, String> installPackages(ITestDevice device, Collection<File> apkFiles,
+            boolean reinstall, String... extraArgs) throws DeviceNotAvailableException {
+        prefetch(apkFiles);
+        Map<File, String> failures = new HashMap<File, String>();
+        for (File apkFile : apkFiles) {
+            String result = installPackage(device, apkFile, reinstall, extraArgs);
+            if (result != null) {
+                failures.put(apkFile, result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Uninstall a package from device, and forget any record of it being installed.
+     *
+     * @param device the {@link ITestDevice}
+     * @param packageName the Android package to uninstall
+     * @return a {@link String} with an error code, or <code>null</code> if success.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public String uninstallPackage(ITestDevice device, String packageName)
+            throws DeviceNotAvailableException {
+        synchronized (mDeviceInstalls) {
+            getDeviceInstalls(device.getSerialNumber()).remove(packageName);
+        }
+        return device.uninstallPackage(packageName);
+    }
+
+    /**
+     * Forget all install records for given device. Should be called when device's installed
+     * packages may have been changed outside of this manager, e.g. when userdata is wiped.
+     *
+     * @param serial the device serial
+     */
+    public void clearDevice(String serial) {
+        synchronized (mDeviceInstalls) {
+            mDeviceInstalls.remove(serial);
+        }
+    }
+
+    /**
+     * Compute the digests and parse the package info of given apks in parallel, so subsequent
+     * calls to {@link #getApkInfo(File)} are served from cache.
+     *
+     * @param apkFiles the apk {@link File}s
+     */
+    public void prefetch(Collection<File> apkFiles) {
+        if (apkFiles.size() <= 1) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(apkFiles.size(), MAX_PREFETCH_THREADS), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ApkInstallManager-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            List<Future<ApkInfo>> results = new ArrayList<Future<ApkInfo>>(apkFiles.size());
+            for (final File apkFile : apkFiles) {
+                results.add(executor.submit(new Callable<ApkInfo>() {
+                    @Override
+                    public ApkInfo call() {
+                        return getApkInfo(apkFile);
+                    }
+                }));
+            }
+            for (Future<ApkInfo> result : results) {
+                getResult(result);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Get the package info for given apk, parsing it if it has not been seen before.
+     *
+     * @param apkFile the apk {@link File}
+     * @return the {@link ApkInfo} or <code>null</code> if apk info could not be determined
+     */
+    public ApkInfo getApkInfo(final File apkFile) {
+        final String digest = getDigest(apkFile);
+        if (digest == null) {
+            return null;
+        }
+        FutureTask<ApkInfo> task = new FutureTask<ApkInfo>(new Callable<ApkInfo>() {
+            @Override
+            public ApkInfo call() {
+                return parseApk(apkFile, digest);
+            }
+        });
+        return getCached(mApkInfoCache, digest, task);
+    }
+
+    /**
+     * Get the digest of given file, computing it if the file has changed or not been seen before.
+     *
+     * @return the digest or <code>null</code> if it could not be calculated
+     */
+    private String getDigest(final File apkFile) {
+        String key = String.format("%s:%d:%d", apkFile.getAbsolutePath(), apkFile.length(),
+                apkFile.lastModified());
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return calculateDigest(apkFile);
+            }
+        });
+        return getCached(mDigestCache, key, task);
+    }
+
+    /**
+     * Get the cached result for given key, or run given task to compute it. Concurrent callers
+     * for the same key wait for the same task. Failures are not cached, e.g. aapt not being on
+     * path.
+     */
+    private <V> V getCached(LruCache<V> cache, String key, FutureTask<V> task) {
+        Future<V> existing;
+        synchronized (cache) {
+            existing = cache.get(key);
+            if (existing == null) {
+                cache.put(key, task);
+            }
+        }
+        if (existing != null) {
+            return getResult(existing);
+        }
+        task.run();
+        V result = getResult(task);
+        if (result == null) {
+            synchronized (cache) {
+                if (cache.get(key) == task) {
+                    cache.remove(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of apks whose package info is cached.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    int getCachedApkCount() {
+        synchronized (mApkInfoCache) {
+            return mApkInfoCache.size();
+        }
+    }
+
+    /**
+     * Determine if given apk is known to be installed on device and is still present.
+     */
+    private boolean isInstalled(ITestDevice device, ApkInfo info)
+            throws DeviceNotAvailableException {
+        InstalledApk installed;
+        synchronized (mDeviceInstalls) {
+            installed = getDeviceInstalls(device.getSerialNumber()).get(info.getPackageName());
+        }
+        if (installed == null || !installed.mApkInfo.getDigest().equals(info.getDigest())) {
+            return false;
+        }
+        String buildId = device.getBuildId();
+        if (buildId == null || !buildId.equals(installed.mBuildId)) {
+            // device may have been reflashed
+            return false;
+        }
+        // cheap check that package was not removed behind our back, e.g. by a userdata wipe
+        String output = device.executeShellCommand(String.format("pm path %s",
+                info.getPackageName()));
+        return output != null && output.contains("package:");
+    }
+
+    /**
+     * Get the install records for device. Must be called with mDeviceInstalls lock held.
+     */
+    private Map<String, InstalledApk> getDeviceInstalls(String serial) {
+        Map<String, InstalledApk> installs = mDeviceInstalls.get(serial);
+        if (installs == null) {
+            installs = new HashMap<String, InstalledApk>();
+            mDeviceInstalls.put(serial, installs);
+        }
+        return installs;
+    }
+
+    private <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            CLog.e("Failed to get apk info: %s", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Calculate the digest of given apk.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    String calculateDigest(File apkFile) throws IOException {
+        return FileUtil.calculateMd5(apkFile);
+    }
+
+    /**
+     * Parse package info from given apk using aapt.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return the {@link ApkInfo} or <code>null</code> if apk could not be parsed
+     */
+    ApkInfo parseApk(File apkFile, String digest) {
+        AaptParser parser = AaptParser.parse(apkFile);
+        if (parser == null || parser.getPackageName() == null) {
+            return null;
+        }
+        return new ApkInfo(digest, parser.getPackageName(), parser.getVersionCode());
+    }
+}
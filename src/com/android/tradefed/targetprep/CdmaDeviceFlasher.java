@@ -17,16 +17,16 @@
 package com.android.tradefed.targetprep;
 
 import com.android.ddmlib.Log;
+import com.android.tradefed.build.ExtractedArchiveCache;
+import com.android.tradefed.build.ExtractedArchiveCache.ExtractedArchive;
 import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
-import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.zip.ZipFile;
 
 /**
  * A class that flashes an image on a physical Android device with a CDMA radio.
@@ -133,15 +133,13 @@ public class CdmaDeviceFlasher extends FastbootDeviceFlasher {
     }
 
     /**
-     * Extract the updater zip to a directory and return the path of that directory
+     * Get the updater zip extracted to a shared read-only directory. Invocations flashing the same
+     * build share one extracted copy. The returned archive must be released.
      * <p />
      * Exposed for unit testing
      */
-    protected File extractSystemZip(IDeviceBuildInfo deviceBuild) throws IOException {
-        File updateDir = FileUtil.createTempDir(LOG_TAG);
-        ZipFile updater = new ZipFile(deviceBuild.getDeviceImageFile().getAbsolutePath());
-        FileUtil.extractZip(updater, updateDir);
-        return updateDir;
+    protected ExtractedArchive extractSystemZip(IDeviceBuildInfo deviceBuild) throws IOException {
+        return ExtractedArchiveCache.getInstance().acquire(deviceBuild.getDeviceImageFile());
     }
 
     /**
@@ -154,10 +152,11 @@ public class CdmaDeviceFlasher extends FastbootDeviceFlasher {
             // Unpack updater zip and flash partitions manually
             Log.i(LOG_TAG, String.format("MANUALLY flashing individual partitions on %s.",
                     device.getSerialNumber()));
-            File updateDir = null;
+            ExtractedArchive updater = null;
             try {
                 // unzip
-                updateDir = extractSystemZip(deviceBuild);
+                updater = extractSystemZip(deviceBuild);
+                File updateDir = updater.getDir();
 
                 // Expect updateDir to contain boot.img, recovery.img, system.img
                 flashNamedPartition(device, updateDir, "boot");
@@ -166,9 +165,8 @@ public class CdmaDeviceFlasher extends FastbootDeviceFlasher {
             } catch (IOException e) {
                 throw new TargetSetupError(String.format("Got IOException: %s", e.getMessage()));
             } finally {
-                if (updateDir != null) {
-                    FileUtil.recursiveDelete(updateDir);
-                    updateDir = null;
+                if (updater != null) {
+                    ExtractedArchiveCache.getInstance().release(updater);
                 }
             }
 
@@ -27,6 +27,7 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.targetprep.IDeviceFlasher.UserDataFlashOption;
+import com.android.tradefed.util.HostResourceGovernor;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
@@ -61,6 +62,12 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         "list of /data subdirectories to NOT wipe when doing UserDataFlashOption.TESTS_ZIP")
     private Collection<String> mDataWipeSkipList = new ArrayList<String>();
 
+    @Option(name="skip-if-flashed", description=
+        "skip flashing if the build was already flashed on the device by a previous invocation " +
+        "and is still running. Only applies when userdata is retained and system flash is not " +
+        "forced.")
+    private boolean mSkipIfFlashed = false;
+
     /**
      * Sets the device boot time
      * <p/>
@@ -88,6 +95,33 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         return RunUtil.getDefault();
     }
 
+    /**
+     * Gets the {@link HostResourceGovernor} limiting concurrent flashes.
+     * <p/>
+     * Exposed for unit testing
+     */
+    HostResourceGovernor getHostResourceGovernor() {
+        return HostResourceGovernor.getInstance();
+    }
+
+    /**
+     * Gets the {@link DeviceStateLedger} recording the builds flashed on devices.
+     * <p/>
+     * Exposed for unit testing
+     */
+    DeviceStateLedger getDeviceStateLedger() {
+        return DeviceStateLedger.getInstance();
+    }
+
+    /**
+     * Set the skip-if-flashed option
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setSkipIfFlashed(boolean skipIfFlashed) {
+        mSkipIfFlashed = skipIfFlashed;
+    }
+
     /**
      * Set the userdata-flash option
      *
@@ -108,6 +142,13 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
             throw new IllegalArgumentException("Provided buildInfo is not a IDeviceBuildInfo");
         }
         IDeviceBuildInfo deviceBuild = (IDeviceBuildInfo)buildInfo;
+        if (mSkipIfFlashed && mUserDataFlashOption == UserDataFlashOption.RETAIN
+                && !mForceSystemFlash && !mEncryptUserData
+                && getDeviceStateLedger().isFlashed(device, buildInfo)) {
+            CLog.i("Build %s is already flashed on %s, skipping flash",
+                    deviceBuild.getDeviceBuildId(), device.getSerialNumber());
+            return;
+        }
         device.setRecoveryMode(RecoveryMode.ONLINE);
         IDeviceFlasher flasher = createFlasher(device);
         flasher.overrideDeviceOptions(device);
@@ -115,7 +156,7 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
         flasher.setForceSystemFlash(mForceSystemFlash);
         flasher.setDataWipeSkipList(mDataWipeSkipList);
         preEncryptDevice(device, flasher);
-        flasher.flash(device, deviceBuild);
+        flash(device, deviceBuild, flasher);
     	//after flash, the device may not be online due to driver or other error
         try {
         	//等待设备开机处于online状态
@@ -140,6 +181,26 @@ public abstract class DeviceFlashPreparer implements ITargetPreparer {
                     device.getSerialNumber(), deviceBuild.getDeviceBuildId()));
         }
         device.postBootSetup();
+        getDeviceStateLedger().recordFlashedBuild(device, buildInfo);
+    }
+
+    /**
+     * Flash the device, once a host flash slot is available.
+     */
+    private void flash(ITestDevice device, IDeviceBuildInfo deviceBuild, IDeviceFlasher flasher)
+            throws TargetSetupError, DeviceNotAvailableException {
+        HostResourceGovernor.Permit permit;
+        try {
+            permit = getHostResourceGovernor().acquire(HostResourceGovernor.FLASH);
+        } catch (InterruptedException e) {
+            throw new TargetSetupError(String.format(
+                    "Interrupted while waiting to flash %s", device.getSerialNumber()));
+        }
+        try {
+            flasher.flash(device, deviceBuild);
+        } finally {
+            permit.release();
+        }
     }
 
     /**
@@ -22,6 +22,7 @@ import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.IDeviceWarmUp;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 
@@ -35,14 +36,17 @@ import java.util.regex.Pattern;
  * <p/>
  * Requires a device where 'adb root' is possible, typically a userdebug build type.
  * <p/>
- * Should be performed *after* a new build is flashed.
+ * Should be performed *after* a new build is flashed. Its wifi connection can be warmed up on idle
+ * devices, see {@link IDeviceWarmUp}.
  */
 @OptionClass(alias = "device-setup")
-public class DeviceSetup implements ITargetPreparer {
+public class DeviceSetup implements ITargetPreparer, IDeviceWarmUp {
 
     private static final String LOG_TAG = "DeviceSetup";
     private static final Pattern RELEASE_BUILD_NAME_PATTERN =
             Pattern.compile("[A-Z]{3}\\d{2}[A-Z]?");
+    /** the {@link DeviceStateLedger} key of the system properties set on boot */
+    static final String SYSTEM_PROPS_LEDGER_KEY = "DeviceSetup.local.prop";
 
     @Option(name="wifi-network", description="the name of wifi network to connect to.")
     private String mWifiNetwork = null;
@@ -92,6 +96,11 @@ public class DeviceSetup implements ITargetPreparer {
             "Format: --setprop key=value.  May be repeated.")
     private Collection<String> mSetProps = new ArrayList<String>();
 
+    @Option(name="skip-if-applied", description="skip setting system properties and the " +
+            "reboot it requires if the same properties were already set on the device by a " +
+            "previous invocation, and its data was not wiped since.")
+    private boolean mSkipIfApplied = false;
+
     /**
      * Sets the local data path to use
      * <p/>
@@ -137,6 +146,24 @@ public class DeviceSetup implements ITargetPreparer {
         mSetProps.add(prop);
     }
 
+    /**
+     * Sets the skip-if-applied option
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setSkipIfApplied(boolean skipIfApplied) {
+        mSkipIfApplied = skipIfApplied;
+    }
+
+    /**
+     * Gets the {@link DeviceStateLedger} recording the properties set on devices.
+     * <p/>
+     * Exposed for unit testing
+     */
+    DeviceStateLedger getDeviceStateLedger() {
+        return DeviceStateLedger.getInstance();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -200,6 +227,14 @@ public class DeviceSetup implements ITargetPreparer {
             propertyBuilder.append("\n");
         }
         if (propertyBuilder.length() > 0) {
+            String propertyDigest = DeviceStateLedger.computeDigest(propertyBuilder);
+            DeviceStateLedger ledger = getDeviceStateLedger();
+            if (mSkipIfApplied
+                    && ledger.hasSettings(device, SYSTEM_PROPS_LEDGER_KEY, propertyDigest)) {
+                CLog.i("System properties are already set on %s, skipping reboot",
+                        device.getSerialNumber());
+                return;
+            }
             // create a local.prop file, and push it to /data/local.prop
             boolean result = device.pushString(propertyBuilder.toString(), "/data/local.prop");
             if (!result) {
@@ -212,6 +247,11 @@ public class DeviceSetup implements ITargetPreparer {
                     "Setup requires system property change. Reboot of %s required",
                     device.getSerialNumber()));
             device.reboot();
+            if (mSkipIfApplied) {
+                ledger.recordSettings(device, SYSTEM_PROPS_LEDGER_KEY, propertyDigest);
+            } else {
+                ledger.clearSettings(device, SYSTEM_PROPS_LEDGER_KEY);
+            }
         }
     }
 
@@ -262,7 +302,8 @@ public class DeviceSetup implements ITargetPreparer {
             TargetSetupError {
         if (mWifiNetwork != null) {
             for (int i=0; i < mWifiAttempts; i++) {
-                if (device.connectToWifiNetwork(mWifiNetwork, mWifiPsk)) {
+                // a no-op when the device was warmed up
+                if (device.connectToWifiNetworkIfNeeded(mWifiNetwork, mWifiPsk)) {
                     CLog.i("Connected to wifi network %s", mWifiNetwork);
                     return;
                 }
@@ -274,6 +315,25 @@ public class DeviceSetup implements ITargetPreparer {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getWarmUpKey() {
+        return mWifiNetwork == null ? null : "wifi:" + mWifiNetwork;
+    }
+
+    /**
+     * Connect to the wifi network if specified, ahead of setup.
+     */
+    @Override
+    public void warmUp(ITestDevice device) throws DeviceNotAvailableException {
+        if (mWifiNetwork != null && !device.connectToWifiNetworkIfNeeded(mWifiNetwork, mWifiPsk)) {
+            CLog.w("Failed to warm up wifi network %s on %s", mWifiNetwork,
+                    device.getSerialNumber());
+        }
+    }
+
     /**
      * Syncs a set of test data files, specified via local-data-path, to devices external storage.
      *
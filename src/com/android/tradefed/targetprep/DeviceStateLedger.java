@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A host-wide ledger of the state that setup steps left on each device, keyed by serial, so that
+ * later invocations on the same device can skip steps whose outcome is already in place.
+ * <p/>
+ * The ledger records the build flashed on the device, and the "data state" applied on top of it:
+ * settings, pushed files and completed setups. Installed apks are tracked by
+ * {@link ApkInstallManager}.
+ * <p/>
+ * Records are checked cheaply by {@link #verify(ITestDevice)} when a device is allocated to an
+ * invocation: the flashed build must still be running, and a random token written to the device
+ * along with the data state must still be present. A reflash by other means drops all records of
+ * the device, and a userdata wipe drops the data state.
+ */
+public class DeviceStateLedger {
+
+    /** the device file holding the state token. Lost on userdata wipe */
+    static final String STATE_TOKEN_PATH = "/data/local/tmp/.tradefed_state_token";
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final DeviceStateLedger INSTANCE = new DeviceStateLedger();
+    }
+
+    /**
+     * The recorded state of a device.
+     */
+    private static class DeviceState {
+        /** the build id and flavor flashed via tradefed, or <code>null</code> if unknown */
+        String mFlashedBuildId = null;
+        String mFlashedBuildFlavor = null;
+        /** the device build id when the data state was recorded */
+        String mBuildId = null;
+        /** the token written to the device, or <code>null</code> if no data state recorded */
+        String mToken = null;
+        /** digest of applied settings, by settings key */
+        final Map<String, String> mSettings = new HashMap<String, String>();
+        /** fingerprint of pushed files, by remote path */
+        final Map<String, String> mPushedFiles = new HashMap<String, String>();
+        /** the keys of the completed setups */
+        final Set<String> mSetups = new HashSet<String>();
+
+        void clearDataState() {
+            mToken = null;
+            mSettings.clear();
+            mPushedFiles.clear();
+            mSetups.clear();
+        }
+    }
+
+    /** Map of device serial to recorded state */
+    private final Map<String, DeviceState> mStates = new HashMap<String, DeviceState>();
+
+    /**
+     * Get the singleton instance of {@link DeviceStateLedger}
+     */
+    public static DeviceStateLedger getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    // @VisibleForTesting
+    DeviceStateLedger() {
+    }
+
+    /**
+     * Check that the recorded state of given device is still in place, and drop any record that
+     * no longer holds.
+     *
+     * @param device the {@link ITestDevice} to check
+     * @return <code>true</code> if the device has recorded state and all of it is still in place
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public boolean verify(ITestDevice device) throws DeviceNotAvailableException {
+        String serial = device.getSerialNumber();
+        String buildId;
+        String token;
+        synchronized (mStates) {
+            DeviceState state = mStates.get(serial);
+            if (state == null) {
+                return false;
+            }
+            buildId = state.mBuildId != null ? state.mBuildId : state.mFlashedBuildId;
+            token = state.mToken;
+        }
+        String deviceBuildId = device.getBuildId();
+        if (buildId != null && !buildId.equals(deviceBuildId)) {
+            CLog.i("Device %s now runs build %s instead of %s, dropping its recorded state",
+                    serial, deviceBuildId, buildId);
+            clearDevice(serial);
+            return false;
+        }
+        if (token != null && !token.equals(readToken(device))) {
+            CLog.i("Data of device %s was reset, dropping its recorded setup", serial);
+            clearDataState(serial);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record that given build was flashed on device. Drops any previous record of the device.
+     *
+     * @param device the flashed {@link ITestDevice}
+     * @param buildInfo the flashed build
+     */
+    public void recordFlashedBuild(ITestDevice device, IBuildInfo buildInfo) {
+        String serial = device.getSerialNumber();
+        synchronized (mStates) {
+            DeviceState state = new DeviceState();
+            state.mFlashedBuildId = buildInfo.getBuildId();
+            state.mFlashedBuildFlavor = buildInfo.getBuildFlavor();
+            mStates.put(serial, state);
+        }
+        ApkInstallManager.getInstance().clearDevice(serial);
+    }
+
+    /**
+     * Determine if given build was flashed on device via tradefed, and is still running.
+     *
+     * @param device the {@link ITestDevice}
+     * @param buildInfo the build to flash
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public boolean isFlashed(ITestDevice device, IBuildInfo buildInfo)
+            throws DeviceNotAvailableException {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            if (state == null || state.mFlashedBuildId == null
+                    || !state.mFlashedBuildId.equals(buildInfo.getBuildId())
+                    || !equals(state.mFlashedBuildFlavor, buildInfo.getBuildFlavor())) {
+                return false;
+            }
+        }
+        return buildInfo.getBuildId().equals(device.getBuildId());
+    }
+
+    /**
+     * Record that a set of settings was applied to device.
+     *
+     * @param device the {@link ITestDevice}
+     * @param key the key identifying the kind of settings, e.g. the preparer class name
+     * @param digest the digest of the setting values, see {@link #computeDigest(Object...)}
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public void recordSettings(ITestDevice device, String key, String digest)
+            throws DeviceNotAvailableException {
+        DeviceState state = getDataState(device);
+        if (state != null) {
+            synchronized (mStates) {
+                state.mSettings.put(key, digest);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the settings with given key and digest were applied to device
+     */
+    public boolean hasSettings(ITestDevice device, String key, String digest) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            return state != null && digest.equals(state.mSettings.get(key));
+        }
+    }
+
+    /**
+     * Forget the settings with given key, e.g. because they were changed without being recorded.
+     */
+    public void clearSettings(ITestDevice device, String key) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            if (state != null) {
+                state.mSettings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Record that a local file was pushed to device.
+     *
+     * @param device the {@link ITestDevice}
+     * @param localFile the pushed {@link File}
+     * @param remotePath the path of the file on device
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public void recordPushedFile(ITestDevice device, File localFile, String remotePath)
+            throws DeviceNotAvailableException {
+        DeviceState state = getDataState(device);
+        if (state != null) {
+            synchronized (mStates) {
+                state.mPushedFiles.put(remotePath, getFingerprint(localFile));
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the current contents of given local file were pushed to
+     *         remote path on device
+     */
+    public boolean hasPushedFile(ITestDevice device, File localFile, String remotePath) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            return state != null
+                    && getFingerprint(localFile).equals(state.mPushedFiles.get(remotePath));
+        }
+    }
+
+    /**
+     * Forget the files pushed to given remote path, or below it, e.g. because they were
+     * overwritten without being recorded.
+     */
+    public void clearPushedFiles(ITestDevice device, String remotePath) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            if (state == null) {
+                return;
+            }
+            String dirPath = remotePath.endsWith("/") ? remotePath : remotePath + "/";
+            Iterator<String> paths = state.mPushedFiles.keySet().iterator();
+            while (paths.hasNext()) {
+                String path = paths.next();
+                if (path.equals(remotePath) || path.startsWith(dirPath)) {
+                    paths.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that a setup completed on device.
+     *
+     * @param device the {@link ITestDevice}
+     * @param setupKey the key identifying the setup, see {@link #getSetupKey(IBuildInfo, List)}
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered.
+     */
+    public void recordSetup(ITestDevice device, String setupKey)
+            throws DeviceNotAvailableException {
+        DeviceState state = getDataState(device);
+        if (state != null) {
+            synchronized (mStates) {
+                state.mSetups.add(setupKey);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the setup with given key completed on device
+     */
+    public boolean hasSetup(ITestDevice device, String setupKey) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(device.getSerialNumber());
+            return state != null && state.mSetups.contains(setupKey);
+        }
+    }
+
+    /**
+     * Forget the data state recorded for given device, but keep the record of the build flashed
+     * on it. Should be called when the data of the device may have been changed without being
+     * recorded, e.g. by a target cleaner.
+     *
+     * @param serial the device serial
+     */
+    public void clearDataState(String serial) {
+        synchronized (mStates) {
+            DeviceState state = mStates.get(serial);
+            if (state != null) {
+                state.clearDataState();
+            }
+        }
+        ApkInstallManager.getInstance().clearDevice(serial);
+    }
+
+    /**
+     * Forget all records of given device. Should be called when the device state may have been
+     * changed outside of tradefed.
+     *
+     * @param serial the device serial
+     */
+    public void clearDevice(String serial) {
+        synchronized (mStates) {
+            mStates.remove(serial);
+        }
+        ApkInstallManager.getInstance().clearDevice(serial);
+    }
+
+    /**
+     * Get the key identifying the setup of a build by a list of preparers, with their current
+     * option values.
+     */
+    public static String getSetupKey(IBuildInfo buildInfo, List<ITargetPreparer> preparers) {
+        Object[] parts = new Object[3 + 2 * preparers.size()];
+        parts[0] = buildInfo.getBuildBranch();
+        parts[1] = buildInfo.getBuildFlavor();
+        parts[2] = buildInfo.getBuildId();
+        for (int i = 0; i < preparers.size(); i++) {
+            ITargetPreparer preparer = preparers.get(i);
+            parts[3 + 2 * i] = preparer.getClass().getName();
+            parts[4 + 2 * i] = OptionCopier.getOptionValues(preparer);
+        }
+        return computeDigest(parts);
+    }
+
+    /**
+     * Compute a digest of the string values of given objects.
+     *
+     * @return the digest, as a hex string
+     */
+    public static String computeDigest(Object... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for (Object part : parts) {
+                md.update(String.valueOf(part).getBytes("UTF-8"));
+                md.update((byte)'\n');
+            }
+            StringBuilder digest = new StringBuilder();
+            for (byte b : md.digest()) {
+                digest.append(String.format("%02x", b));
+            }
+            return digest.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the state of device to record data state in, writing the state token to the device if
+     * needed.
+     *
+     * @return the {@link DeviceState} or <code>null</code> if the token could not be written
+     */
+    private DeviceState getDataState(ITestDevice device) throws DeviceNotAvailableException {
+        String serial = device.getSerialNumber();
+        synchronized (mStates) {
+            DeviceState state = mStates.get(serial);
+            if (state != null && state.mToken != null) {
+                return state;
+            }
+        }
+        String token = UUID.randomUUID().toString();
+        if (!device.pushString(token, STATE_TOKEN_PATH)) {
+            CLog.w("Failed to write state token to %s, not recording its setup", serial);
+            return null;
+        }
+        String buildId = device.getBuildId();
+        synchronized (mStates) {
+            DeviceState state = mStates.get(serial);
+            if (state == null) {
+                state = new DeviceState();
+                mStates.put(serial, state);
+            }
+            if (state.mToken == null) {
+                state.mToken = token;
+                state.mBuildId = buildId;
+            }
+            return state;
+        }
+    }
+
+    private String readToken(ITestDevice device) throws DeviceNotAvailableException {
+        String output = device.executeShellCommand(String.format("cat %s", STATE_TOKEN_PATH));
+        return output == null ? null : output.trim();
+    }
+
+    private static String getFingerprint(File localFile) {
+        return String.format("%s:%d:%d", localFile.getAbsolutePath(), localFile.length(),
+                localFile.lastModified());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -19,6 +19,7 @@ package com.android.tradefed.targetprep;
 import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.UsbFlashScheduler;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
@@ -128,7 +129,8 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
     protected void flashPartition(ITestDevice device, File imgFile, String partition)
             throws DeviceNotAvailableException, TargetSetupError {
         CLog.d("fastboot flash %s %s", partition, imgFile.getAbsolutePath());
-        executeLongFastbootCmd(device, "flash", partition, imgFile.getAbsolutePath());
+        executeScheduledFlashCmd(device, partition, imgFile, "flash", partition,
+                imgFile.getAbsolutePath());
     }
 
     /**
@@ -485,7 +487,7 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         CLog.i("Flashing %s with update %s", device.getSerialNumber(),
                 deviceBuild.getDeviceImageFile().getAbsolutePath());
         // give extra time to the update cmd
-        executeLongFastbootCmd(device, "update",
+        executeScheduledFlashCmd(device, "update", deviceBuild.getDeviceImageFile(), "update",
                 deviceBuild.getDeviceImageFile().getAbsolutePath());
     }
 
@@ -551,6 +553,47 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         return handleFastbootResult(device, result, cmdArgs);
     }
 
+    /**
+     * Helper method to execute a fastboot command transferring an image, once the USB hub of the
+     * device has bandwidth for it.
+     *
+     * @param device the {@link ITestDevice} to execute command on
+     * @param partition the partition being flashed
+     * @param imgFile the image {@link File} being transferred
+     * @param cmdArgs the arguments to provide to fastboot
+     * @return the output of {@link #executeLongFastbootCmd(ITestDevice, String...)}
+     * @throws DeviceNotAvailableException if device is not available
+     * @throws TargetSetupError if fastboot command fails
+     */
+    private String executeScheduledFlashCmd(ITestDevice device, String partition, File imgFile,
+            String... cmdArgs) throws DeviceNotAvailableException, TargetSetupError {
+        UsbFlashScheduler.Flash flash;
+        try {
+            flash = getUsbFlashScheduler().acquire(device.getSerialNumber(), partition,
+                    imgFile.length());
+        } catch (InterruptedException e) {
+            throw new TargetSetupError(String.format("Interrupted while waiting to flash %s on %s",
+                    partition, device.getSerialNumber()));
+        }
+        boolean success = false;
+        try {
+            String output = executeLongFastbootCmd(device, cmdArgs);
+            success = true;
+            return output;
+        } finally {
+            flash.release(success);
+        }
+    }
+
+    /**
+     * Gets the {@link UsbFlashScheduler} to use.
+     * <p/>
+     * Exposed for unit testing
+     */
+    UsbFlashScheduler getUsbFlashScheduler() {
+        return UsbFlashScheduler.getInstance();
+    }
+
     /**
      * Interpret the result of a fastboot command
      *
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.HostResourceGovernor;
+
+import java.util.Collection;
+
+/**
+ * A {@link ITargetPreparer} whose setup starts with host-only work, such as downloading, parsing
+ * or extracting files, that can run ahead of the setup of the preparers before it.
+ * <p/>
+ * The invocation calls {@link #prepareHost(IBuildInfo)} once the preparers it depends on are set
+ * up, possibly while other preparers are setting up the device, and always before
+ * {@link #setUp(ITestDevice, IBuildInfo)}. {@link #setUp(ITestDevice, IBuildInfo)} of all the
+ * preparers still runs one at a time, in configuration order.
+ */
+public interface IHostPreparer extends ITargetPreparer {
+
+    /**
+     * Perform the host-only part of the setup. Must not access the device.
+     *
+     * @param buildInfo data about the build under test.
+     * @throws TargetSetupError if fatal error occurred preparing the host
+     * @throws BuildError if the build is not usable
+     */
+    public void prepareHost(IBuildInfo buildInfo) throws TargetSetupError, BuildError;
+
+    /**
+     * Get the preparers that must be set up before {@link #prepareHost(IBuildInfo)} is called,
+     * e.g. because they add files to the build. Only the preparers configured before this one are
+     * considered.
+     *
+     * @return the classes of the preparers depended on. Empty if the host work only needs the
+     *         build as provided.
+     */
+    public Collection<Class<? extends ITargetPreparer>> getHostDependencies();
+
+    /**
+     * @return the {@link HostResourceGovernor} resource used by the host work, or
+     *         <code>null</code> if it is light
+     */
+    public String getHostResource();
+}
@@ -23,16 +23,18 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.HostResourceGovernor;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apks located on the filesystem.
  */
 @OptionClass(alias = "install-apk")
-public class InstallApkSetup implements ITargetPreparer {
+public class InstallApkSetup implements IHostPreparer {
 
     private static final String LOG_TAG = InstallApkSetup.class.getSimpleName();
 
@@ -41,6 +43,44 @@ public class InstallApkSetup implements ITargetPreparer {
         importance = Importance.IF_UNSET)
     private Collection<File> mApkPaths = new ArrayList<File>();
 
+    @Option(name = "skip-installed", description =
+        "skip installing apks whose identical contents are already known to be installed on " +
+        "device. The apks must then only be installed or removed through tradefed.")
+    private boolean mSkipInstalled = false;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepareHost(IBuildInfo buildInfo) {
+        if (mSkipInstalled) {
+            // missing apks are reported by setUp
+            Collection<File> existingApks = new ArrayList<File>(mApkPaths.size());
+            for (File apk : mApkPaths) {
+                if (apk.exists()) {
+                    existingApks.add(apk);
+                }
+            }
+            ApkInstallManager.getInstance().prefetch(existingApks);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<Class<? extends ITargetPreparer>> getHostDependencies() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getHostResource() {
+        return HostResourceGovernor.CPU;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -52,9 +92,20 @@ public class InstallApkSetup implements ITargetPreparer {
                 throw new TargetSetupError(String.format("%s does not exist",
                         apk.getAbsolutePath()));
             }
+        }
+        ApkInstallManager installManager = ApkInstallManager.getInstance();
+        if (mSkipInstalled) {
+            installManager.prefetch(mApkPaths);
+        }
+        for (File apk : mApkPaths) {
             Log.i(LOG_TAG, String.format("Installing %s on %s", apk.getName(),
                     device.getSerialNumber()));
-            String result = device.installPackage(apk, true);
+            String result;
+            if (mSkipInstalled) {
+                result = installManager.installPackage(device, apk, true);
+            } else {
+                result = device.installPackage(apk, true);
+            }
             if (result != null) {
                 Log.e(LOG_TAG, String.format("Failed to install %s on device %s. Reason: %s",
                         apk.getAbsolutePath(), device.getSerialNumber(), result));
@@ -57,6 +57,12 @@ public class PushFilePreparer implements ITargetPreparer {
             "After pushing files, trigger a media scan of external storage on device.")
     private boolean mTriggerMediaScan = false;
 
+    @Option(name="skip-if-pushed", description=
+            "Skip pushing a file if the same local file was already pushed to the same remote " +
+            "path by a previous invocation, and the device data was not wiped since. Directories " +
+            "are always pushed.")
+    private boolean mSkipIfPushed = false;
+
     /**
      * Set abort on failure.  Exposed for testing.
      */
@@ -78,6 +84,21 @@ public class PushFilePreparer implements ITargetPreparer {
         mPostPushCommands = commands;
     }
 
+    /**
+     * Set skip-if-pushed.  Exposed for testing.
+     */
+    void setSkipIfPushed(boolean value) {
+        mSkipIfPushed = value;
+    }
+
+    /**
+     * Get the {@link DeviceStateLedger} recording the files pushed to devices.  Exposed for
+     * testing.
+     */
+    DeviceStateLedger getDeviceStateLedger() {
+        return DeviceStateLedger.getInstance();
+    }
+
     /**
      * Helper method to only throw if mAbortOnFailure is enabled.  Callers should behave as if this
      * method may return.
@@ -97,6 +118,7 @@ public class PushFilePreparer implements ITargetPreparer {
     @Override
     public void setUp(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError, BuildError,
             DeviceNotAvailableException {
+        DeviceStateLedger ledger = getDeviceStateLedger();
         for (String pushspec : mPushSpecs) {
             String[] pair = pushspec.split("->");
             if (pair.length != 2) {
@@ -115,17 +137,27 @@ public class PushFilePreparer implements ITargetPreparer {
                 }
             }
             if (src.isDirectory()) {
+                ledger.clearPushedFiles(device, pair[1]);
                 if (!device.pushDir(src, pair[1])) {
                     fail(String.format("Failed to push local '%s' to remote '%s'", pair[0],
                             pair[1]));
                     continue;
                 }
             } else {
+                if (mSkipIfPushed && ledger.hasPushedFile(device, src, pair[1])) {
+                    Log.i(LOG_TAG, String.format("Local '%s' was already pushed to remote '%s'",
+                            pair[0], pair[1]));
+                    continue;
+                }
+                ledger.clearPushedFiles(device, pair[1]);
                 if (!device.pushFile(src, pair[1])) {
                     fail(String.format("Failed to push local '%s' to remote '%s'", pair[0],
                             pair[1]));
                     continue;
                 }
+                if (mSkipIfPushed) {
+                    ledger.recordPushedFile(device, src, pair[1]);
+                }
             }
         }
 
@@ -24,17 +24,22 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.HostResourceGovernor;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apps from a
  * {@link IDeviceBuildInfo#getTestsDir()} folder onto device.
+ * <p/>
+ * The apps are parsed on the host ahead of the device setup.
  */
 @OptionClass(alias = "tests-zip-app")
-public class TestAppInstallSetup implements ITargetPreparer {
+public class TestAppInstallSetup implements IHostPreparer {
 
     private static final String LOG_TAG = "TestAppInstallSetup";
 
@@ -43,6 +48,11 @@ public class TestAppInstallSetup implements ITargetPreparer {
         importance = Importance.IF_UNSET)
     private Collection<String> mTestFileNames = new ArrayList<String>();
 
+    @Option(name = "skip-installed", description =
+        "skip installing apps whose identical apk is already known to be installed on device. " +
+        "The apps must then only be installed or removed through tradefed.")
+    private boolean mSkipInstalled = false;
+
     /**
      * Adds a file to the list of apks to install
      *
@@ -52,6 +62,40 @@ public class TestAppInstallSetup implements ITargetPreparer {
         mTestFileNames.add(fileName);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepareHost(IBuildInfo buildInfo) {
+        if (!mSkipInstalled || mTestFileNames.size() == 0
+                || !(buildInfo instanceof IDeviceBuildInfo)) {
+            return;
+        }
+        // parsing ahead is only an optimization: a missing tests dir or app is reported by setUp
+        try {
+            ApkInstallManager.getInstance().prefetch(getTestAppFiles(buildInfo));
+        } catch (TargetSetupError e) {
+            Log.d(LOG_TAG, String.format("Not parsing test apps ahead of setup: %s",
+                    e.getMessage()));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<Class<? extends ITargetPreparer>> getHostDependencies() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getHostResource() {
+        return HostResourceGovernor.CPU;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -66,12 +110,42 @@ public class TestAppInstallSetup implements ITargetPreparer {
             Log.i(LOG_TAG, "No test apps to install, skipping");
             return;
         }
+        List<File> testAppFiles = getTestAppFiles(buildInfo);
+
+        ApkInstallManager installManager = ApkInstallManager.getInstance();
+        if (mSkipInstalled) {
+            // cheap if already done by prepareHost, as parsed apks are cached
+            installManager.prefetch(testAppFiles);
+        }
+        for (File testAppFile : testAppFiles) {
+            String result;
+            if (mSkipInstalled) {
+                result = installManager.installPackage(device, testAppFile, true);
+            } else {
+                result = device.installPackage(testAppFile, true);
+            }
+            if (result != null) {
+                throw new TargetSetupError(
+                        String.format("Failed to install %s on %s. Reason: '%s'",
+                                testAppFile.getName(), device.getSerialNumber(), result));
+            }
+        }
+    }
+
+    /**
+     * Get the test app files of the build.
+     *
+     * @param buildInfo the {@link IDeviceBuildInfo} to get the apps from
+     * @throws TargetSetupError if an app could not be found
+     */
+    private List<File> getTestAppFiles(IBuildInfo buildInfo) throws TargetSetupError {
         File testsDir = ((IDeviceBuildInfo)buildInfo).getTestsDir();
         if (testsDir == null || !testsDir.exists()) {
             throw new TargetSetupError(
                     "Provided buildInfo does not contain a valid tests directory");
         }
 
+        List<File> testAppFiles = new ArrayList<File>(mTestFileNames.size());
         for (String testAppName : mTestFileNames) {
             File testAppFile = FileUtil.getFileForPath(testsDir, "DATA", "app", testAppName);
             if (!testAppFile.exists()) {
@@ -79,12 +153,8 @@ public class TestAppInstallSetup implements ITargetPreparer {
                     String.format("Could not find test app %s directory in extracted tests.zip",
                             testAppFile));
             }
-            String result = device.installPackage(testAppFile, true);
-            if (result != null) {
-                throw new TargetSetupError(
-                        String.format("Failed to install %s on %s. Reason: '%s'", testAppName,
-                                device.getSerialNumber(), result));
-            }
+            testAppFiles.add(testAppFile);
         }
+        return testAppFiles;
     }
 }
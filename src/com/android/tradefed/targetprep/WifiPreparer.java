@@ -18,15 +18,17 @@ package com.android.tradefed.targetprep;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.IDeviceWarmUp;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 
 /**
  * A {@link ITargetPreparer} that configures wifi on the device if necessary.
  * <p/>
- * Unlike {@link DeviceSetup}, this preparer works when adb is not root aka user builds.
+ * Unlike {@link DeviceSetup}, this preparer works when adb is not root aka user builds. Its
+ * connection can be warmed up on idle devices, see {@link IDeviceWarmUp}.
  */
-public class WifiPreparer implements ITargetPreparer {
+public class WifiPreparer implements ITargetPreparer, IDeviceWarmUp {
 
     @Option(name="wifi-network", description="the name of wifi network to connect to.",
             mandatory=true)
@@ -59,4 +61,23 @@ public class WifiPreparer implements ITargetPreparer {
         throw new TargetSetupError(String.format("Failed to connect to wifi network %s on %s",
                 mWifiNetwork, device.getSerialNumber()));
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getWarmUpKey() {
+        return "wifi:" + mWifiNetwork;
+    }
+
+    /**
+     * Connect to the wifi network once, ahead of setup.
+     */
+    @Override
+    public void warmUp(ITestDevice device) throws DeviceNotAvailableException {
+        if (!device.connectToWifiNetworkIfNeeded(mWifiNetwork, mWifiPsk)) {
+            CLog.w("Failed to warm up wifi network %s on %s", mWifiNetwork,
+                    device.getSerialNumber());
+        }
+    }
 }
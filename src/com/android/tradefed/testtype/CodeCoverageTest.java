@@ -68,6 +68,7 @@ public class CodeCoverageTest extends InstrumentationTest {
         if (mCoverageFile == null) {
             mCoverageFile = fetchCoverageFilePath(testCoverageFile);
         }
+        testCoverageFile.clearResults();
         CLog.d("Coverage file at %s", mCoverageFile);
         File coverageFile = null;
         try {
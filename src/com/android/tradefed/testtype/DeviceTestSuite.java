@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.testtype;
 
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -23,6 +24,9 @@ import junit.framework.Test;
 import junit.framework.TestResult;
 import junit.framework.TestSuite;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 /**
  *  Helper JUnit test suite that provides the {@link IRemoteTest} and {@link IDeviceTest} services.
  */
@@ -30,6 +34,16 @@ public class DeviceTestSuite extends TestSuite implements IDeviceTest, IRemoteTe
 
     private ITestDevice mDevice = null;
 
+    @Option(name="parallel-threads", description="The number of threads to run " +
+            "device-independent test methods on, concurrently with the other tests. 0 to run " +
+            "all tests sequentially.")
+    private int mParallelThreads = 0;
+
+    @Option(name="device-independent", description="The name of a test class, or of a test " +
+            "method in 'class#method' format, that can run in parallel. In addition to tests " +
+            "annotated with @DeviceIndependent. May be repeated.")
+    private Collection<String> mDeviceIndependentTests = new ArrayList<String>();
+
     public DeviceTestSuite(Class<?> testClass) {
         super(testClass);
     }
@@ -54,12 +68,22 @@ public class DeviceTestSuite extends TestSuite implements IDeviceTest, IRemoteTe
         mDevice = device;
     }
 
+    /**
+     * Set the number of threads to run device-independent tests on.
+     *
+     * @param parallelThreads the number of threads. 0 to run all tests sequentially.
+     */
+    public void setParallelThreads(int parallelThreads) {
+        mParallelThreads = parallelThreads;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        JUnitRunUtil.runTest(listener, this);
+        JUnitRunUtil.runTest(listener, this, getClass().getName(), mParallelThreads,
+                mDeviceIndependentTests);
     }
 
     /**
@@ -26,6 +26,9 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 /**
  * A test runner for JUnit host based tests
  */
@@ -40,6 +43,16 @@ public class HostTest implements IDeviceTest, IRemoteTest {
             importance = Importance.IF_UNSET)
     private String mMethodName;
 
+    @Option(name="parallel-threads", description="The number of threads to run " +
+            "device-independent test methods on, concurrently with the other tests. 0 to run " +
+            "all tests sequentially.")
+    private int mParallelThreads = 0;
+
+    @Option(name="device-independent", description="The name of a test class, or of a test " +
+            "method in 'class#method' format, that can run in parallel. In addition to tests " +
+            "annotated with @DeviceIndependent. May be repeated.")
+    private Collection<String> mDeviceIndependentTests = new ArrayList<String>();
+
     private ITestDevice mDevice = null;
 
     /**
@@ -74,6 +87,14 @@ public class HostTest implements IDeviceTest, IRemoteTest {
         mMethodName = methodName;
     }
 
+    void setParallelThreads(int parallelThreads) {
+        mParallelThreads = parallelThreads;
+    }
+
+    void addDeviceIndependentTest(String testName) {
+        mDeviceIndependentTests.add(testName);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -103,7 +124,8 @@ public class HostTest implements IDeviceTest, IRemoteTest {
                     test = testSuite;
                 }
             }
-            JUnitRunUtil.runTest(listener, test);
+            JUnitRunUtil.runTest(listener, test, test.getClass().getName(), mParallelThreads,
+                    mDeviceIndependentTests);
         } else if (testObj instanceof IRemoteTest) {
             ((IRemoteTest)testObj).run(listener);
         } else {
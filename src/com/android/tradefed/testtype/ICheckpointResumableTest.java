@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.Collection;
+
+/**
+ * An {@link IResumableTest} that can also resume the run of a previous tradefed process, by
+ * skipping the tests it completed.
+ *
+ * @see com.android.tradefed.invoker.CheckpointJournal
+ */
+public interface ICheckpointResumableTest extends IResumableTest {
+
+    /**
+     * Set the tests completed by a previous invocation of the same command. These tests should
+     * not be run again.
+     *
+     * @param completedTests the {@link TestIdentifier}s of the completed tests
+     */
+    public void setCompletedTests(Collection<TestIdentifier> completedTests);
+}
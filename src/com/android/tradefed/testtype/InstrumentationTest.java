@@ -33,6 +33,7 @@ import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.targetprep.ApkInstallManager;
 import com.android.tradefed.util.StringEscapeUtils;
 
 import java.io.File;
@@ -44,7 +45,7 @@ import java.util.Map;
  * A Test that runs an instrumentation test package on given device.
  */
 @OptionClass(alias = "instrumentation")
-public class InstrumentationTest implements IDeviceTest, IResumableTest {
+public class InstrumentationTest implements IDeviceTest, ICheckpointResumableTest {
 
     private static final String LOG_TAG = "InstrumentationTest";
 
@@ -102,6 +103,11 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             description="Optional file path to apk file that contains the tests.")
     private File mInstallFile = null;
 
+    @Option(name = "keep-installed",
+            description="Leave the install-file apk installed after the run, and skip " +
+            "installing it again if its identical contents are still installed.")
+    private boolean mKeepInstalled = false;
+
     @Option(name = "run-name",
             description="Optional custom test run name to pass to listener. " +
             "If unspecified, will use package name.")
@@ -123,6 +129,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     private Collection<TestIdentifier> mRemainingTests = null;
 
+    /** the tests completed by a previous invocation, to skip */
+    private Collection<TestIdentifier> mCompletedTests = null;
+
     private String mCoverageTarget = null;
 
     /**
@@ -315,6 +324,17 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mIsResumeMode = resume;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The completed tests can only be skipped in rerun mode, where the tests to run are collected
+     * first.
+     */
+    @Override
+    public void setCompletedTests(Collection<TestIdentifier> completedTests) {
+        mCompletedTests = completedTests;
+    }
+
     /**
      * Get the test timeout in ms.
      */
@@ -420,10 +440,14 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             mRunner.addInstrumentationArg(argEntry.getKey(), argEntry.getValue());
         }
 
-        if (mInstallFile != null) {
+        if (mInstallFile != null && mKeepInstalled) {
+            ApkInstallManager.getInstance().installPackage(mDevice, mInstallFile, true);
+            doTestRun(listener);
+        } else if (mInstallFile != null) {
             mDevice.installPackage(mInstallFile, true);
             doTestRun(listener);
-            mDevice.uninstallPackage(mPackageName);
+            // the package may have been recorded as installed by the install manager
+            ApkInstallManager.getInstance().uninstallPackage(mDevice, mPackageName);
         } else {
             doTestRun(listener);
         }
@@ -445,6 +469,11 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
         if (mRemainingTests == null) {
             mRemainingTests = collectTestsToRun(mRunner);
+            if (skipCompletedTests()) {
+                // run the remaining tests individually, as done on rerun
+                rerunTests(listener);
+                return;
+            }
         }
         if (mBugreportFrequency != null) {
             // Collect a bugreport after EACH/FIRST failed testcase
@@ -467,6 +496,29 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
     }
 
+    /**
+     * Remove the tests completed by a previous invocation from the collected tests.
+     *
+     * @return <code>true</code> if any test was removed
+     */
+    private boolean skipCompletedTests() {
+        if (mCompletedTests == null || mCompletedTests.isEmpty()) {
+            return false;
+        }
+        if (mRemainingTests == null) {
+            CLog.w("Tests of %s were not collected, cannot skip the completed tests",
+                    mPackageName);
+            return false;
+        }
+        int collectedCount = mRemainingTests.size();
+        mRemainingTests.removeAll(mCompletedTests);
+        mCompletedTests = null;
+        int skippedCount = collectedCount - mRemainingTests.size();
+        CLog.i("Skipping %d of %d tests of %s completed by a previous invocation", skippedCount,
+                collectedCount, mPackageName);
+        return skippedCount > 0;
+    }
+
     /**
      * Execute the test run, but re-run incomplete tests individually if run fails to complete.
      *
@@ -481,6 +533,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             mDevice.runInstrumentationTests(mRunner, new ResultForwarder(listener, testTracker));
         } finally {
             calculateRemainingTests(mRemainingTests, testTracker);
+            testTracker.clearResults();
         }
         rerunTests(listener);
     }
@@ -505,6 +558,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
                 testRerunner.run(new ResultForwarder(listener, testTracker));
             } finally {
                 calculateRemainingTests(mRemainingTests, testTracker);
+                testTracker.clearResults();
             }
         }
     }
@@ -23,6 +23,7 @@ import com.android.tradefed.testtype.DeviceTestResult.RuntimeDeviceNotAvailableE
 import junit.framework.Test;
 import junit.framework.TestResult;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 
@@ -39,6 +40,26 @@ public class JUnitRunUtil {
 
     public static void runTest(ITestInvocationListener listener, Test junitTest,
             String runName) throws DeviceNotAvailableException {
+        Collection<String> noTests = Collections.emptyList();
+        runTest(listener, junitTest, runName, 0, noTests);
+    }
+
+    /**
+     * Run a JUnit test, running its device-independent tests in parallel.
+     *
+     * @param listener the {@link ITestInvocationListener} to report results to
+     * @param junitTest the {@link Test} to run
+     * @param runName the test run name
+     * @param parallelThreads the number of threads to run device-independent tests on. 0 to run
+     *            all tests sequentially.
+     * @param deviceIndependentTests the names of the test classes, or of the test methods in
+     *            'class#method' format, that can run in parallel in addition to those annotated
+     *            with {@link DeviceIndependent}
+     * @throws DeviceNotAvailableException if the device became unavailable
+     */
+    public static void runTest(ITestInvocationListener listener, Test junitTest,
+            String runName, int parallelThreads, Collection<String> deviceIndependentTests)
+            throws DeviceNotAvailableException {
         listener.testRunStarted(runName, junitTest.countTestCases());
         long startTime = System.currentTimeMillis();
         // forward the JUnit results to the invocation listener
@@ -47,7 +68,12 @@ public class JUnitRunUtil {
         DeviceTestResult result = new DeviceTestResult();
         result.addListener(resultForwarder);
         try {
-            junitTest.run(result);
+            if (parallelThreads > 0) {
+                new ParallelJUnitRunner(parallelThreads, deviceIndependentTests).run(junitTest,
+                        result, resultForwarder);
+            } else {
+                junitTest.run(result);
+            }
         } catch (RuntimeDeviceNotAvailableException e) {
             listener.testRunFailed(e.getDeviceException().getMessage());
             throw e.getDeviceException();
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a JUnit {@link Test} tree, running its device-independent tests on a pool of worker
+ * threads.
+ * <p/>
+ * The tree is flattened into its individual tests, in run order. Tests annotated with
+ * {@link DeviceIndependent}, or configured as such, are submitted to the pool up front. The other
+ * tests run one at a time on the calling thread, in order. The events of each test run on the pool
+ * are recorded, and replayed to the listener when the test's turn comes, so results are reported
+ * in the same order as a sequential run.
+ * <p/>
+ * Only plain {@link TestSuite}s and {@link DeviceTestSuite}s are flattened. Other composite tests,
+ * e.g. suites with custom setup, run as a whole on the calling thread.
+ */
+class ParallelJUnitRunner {
+
+    private final int mThreads;
+    private final Collection<String> mDeviceIndependentTests;
+
+    /**
+     * The events reported by a test run on the pool.
+     */
+    private static class RecordedTest implements TestListener {
+        private final List<Throwable> mErrors = new ArrayList<Throwable>();
+        private final List<Throwable> mFailures = new ArrayList<Throwable>();
+        private boolean mStarted = false;
+        private boolean mEnded = false;
+        /** the exception that aborted the run, if any */
+        private RuntimeException mAbortException = null;
+
+        @Override
+        public synchronized void startTest(Test test) {
+            mStarted = true;
+        }
+
+        @Override
+        public synchronized void addError(Test test, Throwable t) {
+            mErrors.add(t);
+        }
+
+        @Override
+        public synchronized void addFailure(Test test, AssertionFailedError t) {
+            mFailures.add(t);
+        }
+
+        @Override
+        public synchronized void endTest(Test test) {
+            mEnded = true;
+        }
+
+        /**
+         * Report the recorded events to given listener, and rethrow the exception that aborted
+         * the run, if any.
+         */
+        synchronized void replay(Test test, TestListener listener) {
+            if (mStarted) {
+                listener.startTest(test);
+            }
+            for (Throwable error : mErrors) {
+                listener.addError(test, error);
+            }
+            for (Throwable failure : mFailures) {
+                listener.addFailure(test, (AssertionFailedError)failure);
+            }
+            if (mEnded) {
+                listener.endTest(test);
+            }
+            if (mAbortException != null) {
+                throw mAbortException;
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link ParallelJUnitRunner}.
+     *
+     * @param threads the number of worker threads
+     * @param deviceIndependentTests the names of the test classes, or of the test methods in
+     *            'class#method' format, to run in parallel in addition to those annotated with
+     *            {@link DeviceIndependent}
+     */
+    ParallelJUnitRunner(int threads, Collection<String> deviceIndependentTests) {
+        mThreads = threads;
+        mDeviceIndependentTests = deviceIndependentTests;
+    }
+
+    /**
+     * Run the test.
+     *
+     * @param test the {@link Test} to run
+     * @param result the {@link DeviceTestResult} to run tests on the calling thread with
+     * @param listener the {@link TestListener} of <var>result</var>, to report the results of the
+     *            tests run in parallel to
+     * @throws DeviceTestResult.RuntimeDeviceNotAvailableException if the device became
+     *             unavailable. The tests after the one that failed are not reported.
+     */
+    void run(Test test, DeviceTestResult result, TestListener listener) {
+        List<Test> tests = new ArrayList<Test>();
+        flatten(test, null, false, tests);
+        List<Future<RecordedTest>> parallelTests = new ArrayList<Future<RecordedTest>>(
+                Collections.<Future<RecordedTest>>nCopies(tests.size(), null));
+        ExecutorService executor = null;
+        try {
+            for (int i = 0; i < tests.size(); i++) {
+                if (isDeviceIndependent(tests.get(i))) {
+                    if (executor == null) {
+                        executor = createExecutor();
+                    }
+                    parallelTests.set(i, executor.submit(createTask(tests.get(i))));
+                }
+            }
+            CLog.d("Running %d of %d tests in parallel", countNonNull(parallelTests),
+                    tests.size());
+            for (int i = 0; i < tests.size(); i++) {
+                if (result.shouldStop()) {
+                    break;
+                }
+                Future<RecordedTest> parallelTest = parallelTests.get(i);
+                if (parallelTest == null) {
+                    tests.get(i).run(result);
+                } else {
+                    getRecordedTest(parallelTest).replay(tests.get(i), listener);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Add the individual tests of given test to the list, in run order.
+     *
+     * @param device the device to inject in tests, as done by {@link DeviceTestSuite}
+     * @param injectDevice <code>true</code> if tests are run by a {@link DeviceTestSuite}
+     */
+    private void flatten(Test test, ITestDevice device, boolean injectDevice, List<Test> tests) {
+        if (injectDevice && test instanceof IDeviceTest) {
+            ((IDeviceTest)test).setDevice(device);
+        }
+        Class<?> testClass = test.getClass();
+        if (testClass.equals(TestSuite.class) || testClass.equals(DeviceTestSuite.class)) {
+            boolean isDeviceSuite = test instanceof DeviceTestSuite;
+            ITestDevice suiteDevice = isDeviceSuite ? ((DeviceTestSuite)test).getDevice() : null;
+            for (Enumeration<Test> e = ((TestSuite)test).tests(); e.hasMoreElements(); ) {
+                flatten(e.nextElement(), suiteDevice, isDeviceSuite, tests);
+            }
+        } else {
+            tests.add(test);
+        }
+    }
+
+    /**
+     * Determine if given test is a single test method that can run in parallel.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    boolean isDeviceIndependent(Test test) {
+        if (!(test instanceof TestCase) || ((TestCase)test).getName() == null) {
+            // not a single test method, e.g. a DeviceTestCase running all its methods
+            return false;
+        }
+        Class<?> testClass = test.getClass();
+        String methodName = ((TestCase)test).getName();
+        if (mDeviceIndependentTests.contains(testClass.getName())
+                || mDeviceIndependentTests.contains(testClass.getName() + "#" + methodName)
+                || testClass.isAnnotationPresent(DeviceIndependent.class)) {
+            return true;
+        }
+        try {
+            return testClass.getMethod(methodName).isAnnotationPresent(DeviceIndependent.class);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private Callable<RecordedTest> createTask(final Test test) {
+        return new Callable<RecordedTest>() {
+            @Override
+            public RecordedTest call() {
+                RecordedTest recordedTest = new RecordedTest();
+                DeviceTestResult result = new DeviceTestResult();
+                result.addListener(recordedTest);
+                try {
+                    test.run(result);
+                } catch (RuntimeException e) {
+                    recordedTest.mAbortException = e;
+                }
+                return recordedTest;
+            }
+        };
+    }
+
+    private RecordedTest getRecordedTest(Future<RecordedTest> parallelTest) {
+        try {
+            return parallelTest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for parallel test", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParallelJUnitRunner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static int countNonNull(List<?> list) {
+        int count = 0;
+        for (Object item : list) {
+            if (item != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -16,15 +16,16 @@
 package com.android.tradefed.testtype.testdefs;
 
 import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.testtype.ICheckpointResumableTest;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
-import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.util.FileUtil;
@@ -49,7 +50,7 @@ import java.util.Queue;
  * more files stored on the device under test.
  */
 @OptionClass(alias = "xml-defs")
-public class XmlDefsTest implements IDeviceTest, IResumableTest,
+public class XmlDefsTest implements IDeviceTest, ICheckpointResumableTest,
         IShardableTest {
 
     private static final String LOG_TAG = "XmlDefsTest";
@@ -100,6 +101,9 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
 
     private List<InstrumentationTest> mTests = null;
 
+    /** the tests completed by a previous invocation, to skip */
+    private Collection<TestIdentifier> mCompletedTests = null;
+
     public XmlDefsTest() {
     }
 
@@ -217,6 +221,9 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
                     test.setTestSize(getTestSize());
                     test.setTestTimeout(getTestTimeout());
                     test.setCoverageTarget(def.getCoverageTarget());
+                    if (mCompletedTests != null) {
+                        test.setCompletedTests(mCompletedTests);
+                    }
                     mTests.add(test);
                 }
             }
@@ -341,6 +348,14 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
         return mIsResumeMode;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCompletedTests(Collection<TestIdentifier> completedTests) {
+        mCompletedTests = completedTests;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -28,20 +28,27 @@ import java.util.regex.Pattern;
  */
 public class AaptParser {
 
+    private static final Pattern PKG_PATTERN = Pattern.compile("package: name='(.*?)'");
+    private static final Pattern VERSION_CODE_PATTERN = Pattern.compile("versionCode='(\\d+)'");
+
     private String mPackageName;
+    private int mVersionCode = -1;
 
     // @VisibleForTesting
     AaptParser() {
     }
 
     void parse(String aaptOut) {
-        Pattern p = Pattern.compile("package: name='(.*?)'");
-        Matcher m = p.matcher(aaptOut);
+        Matcher m = PKG_PATTERN.matcher(aaptOut);
         if (m.find()) {
             mPackageName = m.group(1);
         } else {
             CLog.e("Failed to parse package name from 'aapt dump badging'");
         }
+        m = VERSION_CODE_PATTERN.matcher(aaptOut);
+        if (m.find()) {
+            mVersionCode = Integer.parseInt(m.group(1));
+        }
     }
 
     /**
@@ -66,4 +73,11 @@ public class AaptParser {
         return mPackageName;
     }
 
+    /**
+     * @return the versionCode of the apk, or -1 if it could not be parsed
+     */
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
 }
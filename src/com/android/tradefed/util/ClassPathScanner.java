@@ -18,25 +18,46 @@ package com.android.tradefed.util;
 
 import com.android.ddmlib.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 
 /**
  * Finds entries on classpath.
+ * <p/>
+ * Jars built with tradefed's makefiles contain an index of their entries at {@link #INDEX_PATH},
+ * which is read instead of enumerating every entry of the jar. Jars without an index are scanned.
+ * The entry names of each jar are cached for the life of the process, keyed by the jar's path,
+ * size and modification time, so repeated lookups such as console help and config listing do not
+ * read the jars again.
  *
  * <p>Adapted from vogar.target.ClassPathScanner</p>
  */
 public class ClassPathScanner {
 
     private static final String LOG_TAG = "ClassPathScanner";
+
+    /** the path of the index of a jar's entries, generated by the build */
+    public static final String INDEX_PATH = "META-INF/tradefed/classpath.idx";
+    /** the first line of an index, identifying its format */
+    static final String INDEX_HEADER = "# tradefed classpath index v1";
+
+    /** the entry names of jars, by jar key */
+    private static final Map<String, List<String>> sJarEntryCache =
+            new ConcurrentHashMap<String, List<String>>();
+
     private String[] mClassPath;
 
     /**
@@ -113,9 +134,7 @@ public class ClassPathScanner {
     public Set<String> getEntriesFromJar(File plainFile, IClassPathFilter filter)
             throws IOException {
         Set<String> entryNames = new LinkedHashSet<String>();
-        JarFile jarFile = new JarFile(plainFile);
-        for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
-            String entryName = e.nextElement().getName();
+        for (String entryName : getJarEntryNames(plainFile)) {
             if (filter.accept(entryName)) {
                 entryNames.add(filter.transform(entryName));
             }
@@ -123,6 +142,64 @@ public class ClassPathScanner {
         return entryNames;
     }
 
+    /**
+     * Gets the names of all entries contained in given jar file, from the cache, the jar's index,
+     * or by enumerating the jar's entries.
+     */
+    private List<String> getJarEntryNames(File plainFile) throws IOException {
+        String key = String.format("%s:%d:%d", plainFile.getAbsolutePath(), plainFile.length(),
+                plainFile.lastModified());
+        List<String> entryNames = sJarEntryCache.get(key);
+        if (entryNames != null) {
+            return entryNames;
+        }
+        JarFile jarFile = new JarFile(plainFile);
+        try {
+            ZipEntry indexEntry = jarFile.getEntry(INDEX_PATH);
+            if (indexEntry != null) {
+                entryNames = readIndex(jarFile, indexEntry);
+            }
+            if (entryNames == null) {
+                Log.d(LOG_TAG, String.format("Scanning %s, which has no valid index",
+                        plainFile.getAbsolutePath()));
+                entryNames = new ArrayList<String>();
+                for (Enumeration<? extends ZipEntry> e = jarFile.entries();
+                        e.hasMoreElements(); ) {
+                    entryNames.add(e.nextElement().getName());
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        sJarEntryCache.put(key, entryNames);
+        return entryNames;
+    }
+
+    /**
+     * Reads the entry names from a jar index.
+     *
+     * @return the entry names or <code>null</code> if the index is not in a known format
+     */
+    private List<String> readIndex(JarFile jarFile, ZipEntry indexEntry) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                jarFile.getInputStream(indexEntry), "UTF-8"));
+        try {
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            List<String> entryNames = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entryNames.add(line);
+                }
+            }
+            return entryNames;
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
     /**
      * Gets the names of all entries contained in given class path directory, that match given
      * filter
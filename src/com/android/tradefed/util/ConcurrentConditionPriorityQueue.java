@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.AlwaysMatch;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link ConditionPriorityBlockingQueue} alternative that does not serialize its operations on
+ * a single lock.
+ * <p/>
+ * Elements are kept in a {@link ConcurrentSkipListMap} keyed by priority, then by insertion
+ * sequence, so the queue is FIFO among elements of equal priority. Non-blocking operations are
+ * lock-free: a poll walks the elements in priority order, and takes the first one its matcher
+ * accepts. Blocked polls register as waiters, and added elements are handed directly to the
+ * first waiter whose matcher accepts them, so waiters are served in the order they called.
+ * <p/>
+ * Unlike {@link ConditionPriorityBlockingQueue}, which compares elements on each poll, the
+ * priority of an element is read once when it is added. Elements whose priority changes should
+ * be removed and added again for the change to take effect.
+ * <p/>
+ * Iteration is thread-safe, but not consistent: it is done on a copy of the queue.
+ */
+public class ConcurrentConditionPriorityQueue<T> implements Iterable<T> {
+
+    /**
+     * Determines the priority of elements.
+     *
+     * @param <T>
+     */
+    public static interface IPrioritizer<T> {
+        /**
+         * Get the priority of given <var>element</var>. Elements with a lower priority value are
+         * retrieved first.
+         *
+         * @param element the element being added
+         * @return the priority value
+         */
+        long getPriority(T element);
+    }
+
+    /**
+     * The key of an element: its priority, then its insertion sequence.
+     */
+    private static final class Key implements Comparable<Key> {
+        private final long mPriority;
+        private final long mSequence;
+
+        Key(long priority, long sequence) {
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A blocked poll, waiting to be handed an element.
+     */
+    private static final class Waiter<T> {
+        private static final Object CLOSED = new Object();
+
+        private final IMatcher<T> mMatcher;
+        private final Thread mThread = Thread.currentThread();
+        private final AtomicReference<Object> mSlot = new AtomicReference<Object>();
+
+        Waiter(IMatcher<T> matcher) {
+            mMatcher = matcher;
+        }
+
+        /**
+         * Hand given element to the waiter.
+         *
+         * @return <code>true</code> if the waiter took the element
+         */
+        boolean offer(T element) {
+            if (mSlot.get() == null && mMatcher.matches(element)
+                    && mSlot.compareAndSet(null, element)) {
+                LockSupport.unpark(mThread);
+                return true;
+            }
+            return false;
+        }
+
+        boolean isFilled() {
+            return mSlot.get() != null;
+        }
+
+        /**
+         * Stop taking elements.
+         *
+         * @return the element handed to the waiter, or <code>null</code>
+         */
+        @SuppressWarnings("unchecked")
+        T close() {
+            if (mSlot.compareAndSet(null, CLOSED)) {
+                return null;
+            }
+            return (T) mSlot.get();
+        }
+    }
+
+    private final ConcurrentSkipListMap<Key, T> mMap = new ConcurrentSkipListMap<Key, T>();
+    private final AtomicLong mSequence = new AtomicLong();
+    /** the blocked polls, in calling order */
+    private final ConcurrentLinkedQueue<Waiter<T>> mWaiters =
+            new ConcurrentLinkedQueue<Waiter<T>>();
+    /** serializes {@link #addUnique(IMatcher, Object)} calls */
+    private final Object mUniqueLock = new Object();
+    private final IPrioritizer<T> mPrioritizer;
+
+    /**
+     * Creates a {@link ConcurrentConditionPriorityQueue}.
+     * <p/>
+     * Elements will be prioritized in FIFO order.
+     */
+    public ConcurrentConditionPriorityQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a {@link ConcurrentConditionPriorityQueue}.
+     *
+     * @param prioritizer the {@link IPrioritizer} used to prioritize the queue, or
+     *            <code>null</code> for FIFO order
+     */
+    public ConcurrentConditionPriorityQueue(IPrioritizer<T> prioritizer) {
+        mPrioritizer = prioritizer;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     *
+     * @return the head of this queue, or <code>null</code> if the queue is empty
+     */
+    public T poll() {
+        return poll(new AlwaysMatch<T>());
+    }
+
+    /**
+     * Retrieves and removes the highest priority element T in the queue where
+     * <var>matcher.matches(T)</var> is <code>true</code>.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(IMatcher<T> matcher) {
+        for (Map.Entry<Key, T> entry : mMap.entrySet()) {
+            // another poll may take the element first, then keep looking
+            if (matcher.matches(entry.getValue()) && mMap.remove(entry.getKey()) != null) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @return the head of this queue, or <code>null</code> if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(timeout, unit, new AlwaysMatch<T>());
+    }
+
+    /**
+     * Retrieves and removes the highest priority element T in the queue where
+     * <var>matcher.matches(T)</var> is <code>true</code>.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the matched element or <code>null</code> if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T poll(long timeout, TimeUnit unit, IMatcher<T> matcher) throws InterruptedException {
+        return blockingPoll(unit.toNanos(timeout), matcher);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary until an element becomes
+     * available.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        return take(new AlwaysMatch<T>());
+    }
+
+    /**
+     * Retrieves and removes the highest priority element T in the queue where
+     * <var>matcher.matches(T)</var> is <code>true</code>, waiting if necessary until such an
+     * element becomes available.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the matched element
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take(IMatcher<T> matcher) throws InterruptedException {
+        return blockingPoll(null, matcher);
+    }
+
+    /**
+     * Retrieves and removes a matching element, blocking up to <var>nanos</var> ns for one to
+     * become available. If <var>nanos</var> is <code>null</code> will block indefinitely.
+     */
+    private T blockingPoll(Long nanos, IMatcher<T> matcher) throws InterruptedException {
+        T polledObj = poll(matcher);
+        if (polledObj != null || (nanos != null && nanos <= 0)) {
+            return polledObj;
+        }
+        Waiter<T> waiter = new Waiter<T>(matcher);
+        mWaiters.add(waiter);
+        long deadline = nanos == null ? 0 : System.nanoTime() + nanos;
+        boolean interrupted = false;
+        try {
+            while (!waiter.isFilled()) {
+                // catches elements added before the waiter was registered
+                polledObj = poll(matcher);
+                if (polledObj != null) {
+                    break;
+                }
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    break;
+                }
+                if (nanos == null) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            mWaiters.remove(waiter);
+        }
+        T handedObj = waiter.close();
+        if (handedObj != null) {
+            if (polledObj == null && !interrupted) {
+                return handedObj;
+            }
+            // pass it on to the next waiter, or back to the queue
+            add(handedObj);
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return polledObj;
+    }
+
+    /**
+     * Inserts the specified element into this queue. As the queue is unbounded this method will
+     * never block.
+     *
+     * @param addedElement the element to add
+     * @return <code>true</code>
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(T addedElement) {
+        if (addedElement == null) {
+            throw new NullPointerException();
+        }
+        for (Waiter<T> waiter : mWaiters) {
+            if (waiter.offer(addedElement)) {
+                return true;
+            }
+        }
+        long priority = mPrioritizer == null ? 0 : mPrioritizer.getPriority(addedElement);
+        mMap.put(new Key(priority, mSequence.getAndIncrement()), addedElement);
+        // a waiter may have registered, and polled, while the element was being inserted
+        if (!mWaiters.isEmpty()) {
+            for (Waiter<T> waiter : mWaiters) {
+                if (waiter.mMatcher.matches(addedElement)) {
+                    LockSupport.unpark(waiter.mThread);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all elements from this queue.
+     */
+    public void clear() {
+        mMap.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return getCopy().iterator();
+    }
+
+    /**
+     * Get a copy of the contents of the queue, in priority order.
+     */
+    public List<T> getCopy() {
+        return new ArrayList<T>(mMap.values());
+    }
+
+    /**
+     * Determine if an object is currently contained in this queue.
+     *
+     * @param object the object to find
+     * @return <code>true</code> if given object is contained in queue. <code>false></code>
+     *         otherwise.
+     */
+    public boolean contains(T object) {
+        return mMap.containsValue(object);
+    }
+
+    /**
+     * @return the number of elements in queue. Takes time linear to the number of elements.
+     */
+    public int size() {
+        return mMap.size();
+    }
+
+    /**
+     * Removes an item from this queue.
+     *
+     * @param object the object to remove
+     * @return <code>true</code> if given object was removed from queue. <code>false></code>
+     *         otherwise.
+     */
+    public boolean remove(T object) {
+        for (Map.Entry<Key, T> entry : mMap.entrySet()) {
+            if (entry.getValue().equals(object) && mMap.remove(entry.getKey()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a item to this queue, replacing any existing object that matches given condition.
+     * <p/>
+     * Calls are serialized with each other, but not with other operations.
+     *
+     * @param matcher the matcher to evaluate existing objects
+     * @param object the object to add
+     * @return the replaced object or <code>null</code> if none exist
+     */
+    public T addUnique(IMatcher<T> matcher, T object) {
+        synchronized (mUniqueLock) {
+            T removedObj = poll(matcher);
+            add(object);
+            return removedObj;
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -855,6 +857,41 @@ public class FileUtil {
 		return result;
 	}
 
+	/**
+	 * Calculate the md5 digest of a file's contents.
+	 *
+	 * @param file
+	 *            the {@link File} to digest
+	 * @return the lower case hex encoded md5 digest
+	 * @throws IOException
+	 *             if file could not be read
+	 */
+	public static String calculateMd5(File file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every java platform is required to support MD5
+			throw new IOException(e);
+		}
+		InputStream input = null;
+		try {
+			input = new BufferedInputStream(new FileInputStream(file));
+			byte[] buf = new byte[64 * 1024];
+			int read;
+			while ((read = input.read(buf)) != -1) {
+				md.update(buf, 0, read);
+			}
+		} finally {
+			StreamUtil.close(input);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : md.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
 	/**
 	 * Helper method which constructs a unique file on temporary disk, whose
 	 * name corresponds as closely as possible to the file name given by the
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many invocations of this host perform the same heavy operation at the same time.
+ * <p/>
+ * Each host resource, e.g. the USB bandwidth used to flash devices, is a pool of permits.
+ * Operations acquire a permit of the resource they use before starting, and release it when done,
+ * waiting in arrival order when all permits are taken. Admission and queue time statistics are
+ * kept per resource.
+ * <p/>
+ * The limits are options of the global configuration, e.g.
+ * <code>--host-resource-limit flash 4</code>. A limit of 0 means unlimited.
+ */
+@OptionClass(alias = "host-resources")
+public class HostResourceGovernor {
+
+    /** extracting and copying large files */
+    public static final String DISK_IO = "disk-io";
+    /** flashing devices over USB */
+    public static final String FLASH = "flash";
+    /** downloading build files */
+    public static final String DOWNLOAD = "download";
+    /** CPU heavy parsing, e.g. of bugreports */
+    public static final String CPU = "cpu";
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final HostResourceGovernor INSTANCE = new HostResourceGovernor();
+    }
+
+    @Option(name = "host-resource-limit", description = "the max number of concurrent " +
+            "operations using a host resource. 0 for unlimited. Resources include disk-io, " +
+            "flash, download and cpu.")
+    private Map<String, Integer> mLimits = new HashMap<String, Integer>();
+
+    private final Map<String, ResourcePool> mPools = new HashMap<String, ResourcePool>();
+
+    /**
+     * A permit to use a host resource. Must be released once the operation completes.
+     */
+    public static class Permit {
+        private final ResourcePool mPool;
+        private boolean mReleased = false;
+
+        Permit(ResourcePool pool) {
+            mPool = pool;
+        }
+
+        /**
+         * Release the permit. Releasing it again has no effect.
+         */
+        public synchronized void release() {
+            if (!mReleased) {
+                mReleased = true;
+                mPool.release();
+            }
+        }
+    }
+
+    /**
+     * The permits of one resource, with its statistics.
+     */
+    static class ResourcePool {
+        private final String mName;
+        private final int mLimit;
+        /** <code>null</code> if unlimited */
+        private final Semaphore mPermits;
+        private int mInUse = 0;
+        private int mWaiting = 0;
+        private long mAdmissions = 0;
+        private long mQueuedAdmissions = 0;
+        private long mTotalWaitMs = 0;
+        private long mMaxWaitMs = 0;
+
+        ResourcePool(String name, int limit) {
+            mName = name;
+            mLimit = limit;
+            mPermits = limit > 0 ? new Semaphore(limit, true) : null;
+        }
+
+        boolean acquire(long timeoutMs) throws InterruptedException {
+            long startTime = System.currentTimeMillis();
+            synchronized (this) {
+                mWaiting++;
+            }
+            boolean acquired = false;
+            try {
+                acquired = mPermits == null || mPermits.tryAcquire(timeoutMs,
+                        TimeUnit.MILLISECONDS);
+            } finally {
+                long waitMs = System.currentTimeMillis() - startTime;
+                synchronized (this) {
+                    mWaiting--;
+                    if (acquired) {
+                        mInUse++;
+                        mAdmissions++;
+                        mTotalWaitMs += waitMs;
+                        mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+                        if (waitMs > 0) {
+                            mQueuedAdmissions++;
+                        }
+                    }
+                }
+                if (acquired && waitMs >= 1000) {
+                    CLog.i("Waited %s for %s", TimeUtil.formatElapsedTime(waitMs), mName);
+                }
+            }
+            return acquired;
+        }
+
+        void release() {
+            synchronized (this) {
+                mInUse--;
+            }
+            if (mPermits != null) {
+                mPermits.release();
+            }
+        }
+
+        synchronized int getInUse() {
+            return mInUse;
+        }
+
+        synchronized int getWaiting() {
+            return mWaiting;
+        }
+
+        synchronized long getAdmissions() {
+            return mAdmissions;
+        }
+
+        synchronized long getTotalWaitMs() {
+            return mTotalWaitMs;
+        }
+
+        synchronized void print(PrintWriter out) {
+            out.printf("%-10s %5s %6d %7d %10d %8d %9s %9s\n", mName,
+                    mLimit > 0 ? Integer.toString(mLimit) : "-", mInUse, mWaiting, mAdmissions,
+                    mQueuedAdmissions,
+                    TimeUtil.formatElapsedTime(mAdmissions > 0 ? mTotalWaitMs / mAdmissions : 0),
+                    TimeUtil.formatElapsedTime(mMaxWaitMs));
+        }
+    }
+
+    /**
+     * Creates a {@link HostResourceGovernor} with the default limits.
+     * <p/>
+     * Exposed for unit testing. Use {@link #getInstance()} to share limits across invocations.
+     */
+    HostResourceGovernor() {
+        mLimits.put(DISK_IO, 4);
+        mLimits.put(FLASH, 8);
+        mLimits.put(DOWNLOAD, 4);
+        mLimits.put(CPU, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Get the host-wide {@link HostResourceGovernor}.
+     */
+    public static HostResourceGovernor getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Acquire a permit to use given resource, waiting as long as needed.
+     *
+     * @param resource the resource name
+     * @return the {@link Permit}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Permit acquire(String resource) throws InterruptedException {
+        return tryAcquire(resource, Long.MAX_VALUE);
+    }
+
+    /**
+     * Acquire a permit to use given resource, waiting at most given time.
+     *
+     * @param resource the resource name
+     * @param timeoutMs the max time to wait
+     * @return the {@link Permit}, or <code>null</code> if none became available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Permit tryAcquire(String resource, long timeoutMs) throws InterruptedException {
+        ResourcePool pool = getPool(resource);
+        if (!pool.acquire(timeoutMs)) {
+            return null;
+        }
+        return new Permit(pool);
+    }
+
+    /**
+     * Get the pool of a resource, creating it on first use. The limit of a resource is fixed once
+     * its pool is created.
+     */
+    synchronized ResourcePool getPool(String resource) {
+        ResourcePool pool = mPools.get(resource);
+        if (pool == null) {
+            Integer limit = mLimits.get(resource);
+            pool = new ResourcePool(resource, limit == null ? 0 : limit);
+            mPools.put(resource, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Set the limit of a resource. Only has an effect before the resource is first used.
+     */
+    public synchronized void setLimit(String resource, int limit) {
+        if (mPools.containsKey(resource)) {
+            CLog.w("Resource %s is already in use, ignoring new limit %d", resource, limit);
+            return;
+        }
+        mLimits.put(resource, limit);
+    }
+
+    /**
+     * Print the statistics of the resources used so far.
+     *
+     * @param out the {@link PrintWriter} to print to
+     */
+    public void printStats(PrintWriter out) {
+        Map<String, ResourcePool> pools;
+        synchronized (this) {
+            pools = new TreeMap<String, ResourcePool>(mPools);
+        }
+        out.printf("%-10s %5s %6s %7s %10s %8s %9s %9s\n", "Resource", "Limit", "In use",
+                "Waiting", "Admissions", "Queued", "Avg wait", "Max wait");
+        for (ResourcePool pool : pools.values()) {
+            pool.print(out);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Variants of the recursive {@link FileUtil} operations that process files in parallel, for large
+ * trees such as extracted device images and tests zips.
+ * <p/>
+ * The directory structure is walked on the calling thread, and the per-file work (copying,
+ * hardlinking, deleting, inflating) is spread over at most <var>parallelism</var> threads. With a
+ * parallelism of 1, everything runs on the calling thread.
+ */
+public class ParallelFileUtil {
+
+    /** the default max number of files processed at the same time */
+    private static final int DEFAULT_PARALLELISM = Math.max(2,
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static final int BUFF_SIZE = 64 * 1024;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 60 * 1000;
+
+    // only static methods, don't allow construction
+    private ParallelFileUtil() {
+    }
+
+    /**
+     * @return the default parallelism: the number of processors, between 2 and 8
+     */
+    public static int getDefaultParallelism() {
+        return DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Copy a file's contents to a local file, letting the file system transfer the data directly
+     * when possible. Unlike {@link FileUtil#copyFile(File, File)}, an existing destination file is
+     * overwritten.
+     *
+     * @param origFile the original file to be copied
+     * @param destFile the destination file
+     * @throws IOException if failed to copy file
+     */
+    public static void copyFile(File origFile, File destFile) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(origFile);
+            out = new FileOutputStream(destFile);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                long count = inChannel.transferTo(position, size - position, outChannel);
+                if (count <= 0) {
+                    // file was truncated while copying
+                    break;
+                }
+                position += count;
+            }
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Recursively copy folder contents, copying files in parallel.
+     * <p/>
+     * Only supports copying of files and directories - symlinks are not copied.
+     *
+     * @param sourceDir the folder that contains the files to copy
+     * @param destDir the destination folder
+     * @param parallelism the max number of files to copy at the same time
+     * @throws IOException if any file or directory could not be copied
+     */
+    public static void recursiveCopy(File sourceDir, File destDir, int parallelism)
+            throws IOException {
+        TaskRunner runner = new TaskRunner("copy", parallelism);
+        try {
+            walkTree(sourceDir, destDir, runner, false);
+            runner.await();
+        } finally {
+            runner.shutdown();
+        }
+    }
+
+    /**
+     * Recursively hardlink folder contents, creating the links in parallel.
+     * <p/>
+     * Only supports copying of files and directories - symlinks are not copied.
+     *
+     * @param sourceDir the folder that contains the files to hardlink
+     * @param destDir the destination folder
+     * @param parallelism the max number of links to create at the same time
+     * @throws IOException if any file or directory could not be linked
+     */
+    public static void recursiveHardlink(File sourceDir, File destDir, int parallelism)
+            throws IOException {
+        TaskRunner runner = new TaskRunner("hardlink", parallelism);
+        try {
+            walkTree(sourceDir, destDir, runner, true);
+            runner.await();
+        } finally {
+            runner.shutdown();
+        }
+    }
+
+    /**
+     * Create the directories of <var>sourceDir</var> under <var>destDir</var>, and submit a copy
+     * or hardlink task for each file.
+     */
+    private static void walkTree(File sourceDir, final File destDir, TaskRunner runner,
+            final boolean hardlink) throws IOException {
+        File[] childFiles = sourceDir.listFiles();
+        if (childFiles == null) {
+            throw new IOException(String.format(
+                    "Could not determine contents for directory '%s'",
+                    sourceDir.getAbsolutePath()));
+        }
+        for (final File childFile : childFiles) {
+            final File destChild = new File(destDir, childFile.getName());
+            if (childFile.isDirectory()) {
+                if (!destChild.mkdir()) {
+                    throw new IOException(String.format("Could not create directory %s",
+                            destChild.getAbsolutePath()));
+                }
+                walkTree(childFile, destChild, runner, hardlink);
+            } else if (childFile.isFile()) {
+                runner.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (hardlink) {
+                            FileUtil.hardlinkFile(childFile, destChild);
+                        } else {
+                            copyFile(childFile, destChild);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Recursively delete given file and all its contents, deleting files in parallel.
+     * <p/>
+     * Unlike {@link FileUtil#recursiveDelete(File)}, symbolic links to directories are deleted
+     * without deleting the contents of their target.
+     *
+     * @param rootDir the file or directory to delete
+     * @param parallelism the max number of files to delete at the same time
+     */
+    public static void recursiveDelete(File rootDir, int parallelism) {
+        TaskRunner runner = new TaskRunner("delete", parallelism);
+        // directories in pre-order, so that children come after their parent
+        List<File> dirs = new ArrayList<File>();
+        LinkedList<File> toVisit = new LinkedList<File>();
+        toVisit.add(rootDir);
+        try {
+            while (!toVisit.isEmpty()) {
+                final File file = toVisit.removeFirst();
+                if (file.isDirectory() && !isSymlink(file)) {
+                    dirs.add(file);
+                    File[] childFiles = file.listFiles();
+                    if (childFiles != null) {
+                        Collections.addAll(toVisit, childFiles);
+                    }
+                } else {
+                    runner.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            file.delete();
+                            return null;
+                        }
+                    });
+                }
+            }
+            runner.await();
+        } catch (IOException e) {
+            CLog.w("Failed to delete contents of %s: %s", rootDir.getAbsolutePath(),
+                    e.toString());
+        } finally {
+            runner.shutdown();
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            dirs.get(i).delete();
+        }
+    }
+
+    /**
+     * Extract entire contents of zip file into given directory, inflating entries in parallel.
+     *
+     * @param zipFile the {@link ZipFile} to extract
+     * @param destDir the local dir to extract file to
+     * @param parallelism the max number of entries to inflate at the same time
+     * @throws IOException if failed to extract file, or if an entry would be extracted outside of
+     *             <var>destDir</var>
+     */
+    public static void extractZip(final ZipFile zipFile, File destDir, int parallelism)
+            throws IOException {
+        String destPath = destDir.getCanonicalPath() + File.separator;
+        List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            File childFile = new File(destDir, entry.getName());
+            if (!childFile.getCanonicalPath().startsWith(destPath)) {
+                throw new IOException(String.format("Zip entry %s is outside of %s",
+                        entry.getName(), destDir.getAbsolutePath()));
+            }
+            // create directories up front, so that tasks don't race to create them
+            if (entry.isDirectory()) {
+                childFile.mkdirs();
+            } else {
+                childFile.getParentFile().mkdirs();
+                fileEntries.add(entry);
+            }
+        }
+        // start with the largest entries, so that one large image does not finish last
+        Collections.sort(fileEntries, new Comparator<ZipEntry>() {
+            @Override
+            public int compare(ZipEntry e1, ZipEntry e2) {
+                return Long.valueOf(e2.getSize()).compareTo(e1.getSize());
+            }
+        });
+
+        TaskRunner runner = new TaskRunner("unzip", parallelism);
+        try {
+            for (final ZipEntry entry : fileEntries) {
+                final File childFile = new File(destDir, entry.getName());
+                runner.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extractEntry(zipFile, entry, childFile);
+                        return null;
+                    }
+                });
+            }
+            runner.await();
+        } finally {
+            runner.shutdown();
+        }
+    }
+
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File destFile)
+            throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            out = new FileOutputStream(destFile);
+            byte[] buffer = new byte[BUFF_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if given file is a symbolic link
+     */
+    private static boolean isSymlink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent == null) {
+                return false;
+            }
+            File canonical = new File(parent.getCanonicalFile(), file.getName());
+            return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            // can't tell; err on the side of not following it
+            return true;
+        }
+    }
+
+    /**
+     * Runs file tasks on a bounded thread pool, or on the calling thread if parallelism is 1.
+     */
+    private static class TaskRunner {
+        private final ExecutorService mExecutor;
+        private final List<Future<Void>> mFutures = new LinkedList<Future<Void>>();
+
+        TaskRunner(final String name, int parallelism) {
+            if (parallelism <= 1) {
+                mExecutor = null;
+            } else {
+                mExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, String.format("ParallelFileUtil-%s", name));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+
+        void submit(Callable<Void> task) throws IOException {
+            if (mExecutor == null) {
+                call(task);
+            } else {
+                mFutures.add(mExecutor.submit(task));
+            }
+        }
+
+        /**
+         * Wait for all submitted tasks to complete.
+         *
+         * @throws IOException the first failure of a task
+         */
+        void await() throws IOException {
+            for (Future<Void> future : mFutures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for file tasks");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException)cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw new IOException(cause.toString());
+                }
+            }
+        }
+
+        /**
+         * Stop the threads, cancelling the remaining tasks if a task failed, and wait for the
+         * running ones so that no file is modified after returning.
+         */
+        void shutdown() {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                try {
+                    mExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private static void call(Callable<Void> task) throws IOException {
+            try {
+                task.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+}
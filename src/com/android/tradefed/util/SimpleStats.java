@@ -15,20 +15,31 @@
  */
 package com.android.tradefed.util;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * A small utility class that calculates a few statistical measures given a numerical dataset.
+ * <p />
+ * Mean, standard deviation, min and max are computed by a {@link StreamingStats}. Up to
+ * {@link #MAX_EXACT_SIZE} measurements are also kept as primitive doubles so that the median of
+ * small datasets is exact. Larger datasets are not kept, and their median is estimated within
+ * {@link StreamingStats#DEFAULT_RELATIVE_ERROR}.
+ * <p />
+ * NaN and infinite measurements are counted by {@link #size()}, and otherwise ignored. The
+ * statistics of a dataset with no finite measurements are NaN.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    /** the max number of measurements kept for an exact median */
+    static final int MAX_EXACT_SIZE = 10000;
 
-    // cached values
-    private double mSum = 0;
+    /** the finite measurements, or null once there are more than {@link #MAX_EXACT_SIZE} */
+    private double[] mData = new double[16];
+    /** whether mData is currently sorted */
+    private boolean mSorted = true;
+    private final StreamingStats mStats = new StreamingStats();
 
     /**
      * Add a number of measurements to the dataset.
@@ -48,29 +59,75 @@ public class SimpleStats {
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
-        mSum += meas;
+        mStats.add(meas);
+        if (mData == null || Double.isNaN(meas) || Double.isInfinite(meas)) {
+            return;
+        }
+        int count = (int)mStats.count();
+        if (count > MAX_EXACT_SIZE) {
+            mData = null;
+            return;
+        }
+        if (count > mData.length) {
+            mData = Arrays.copyOf(mData, mData.length * 2);
+        }
+        if (count > 1 && meas < mData[count - 2]) {
+            mSorted = false;
+        }
+        mData[count - 1] = meas;
     }
 
     /**
-     * Retrieve the dataset.
+     * Retrieve the finite measurements of the dataset, as a read-only view.
+     *
+     * @throws IllegalStateException if the dataset has more than {@link #MAX_EXACT_SIZE} finite
+     *             measurements, which are not kept
+     * @deprecated only small datasets are kept. Use the statistics methods instead.
      */
+    @Deprecated
     public List<Double> getData() {
-        return mData;
+        if (mData == null) {
+            throw new IllegalStateException(String.format(
+                    "datasets of more than %d measurements are not kept", MAX_EXACT_SIZE));
+        }
+        final double[] data = mData;
+        final int size = (int)mStats.count();
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException();
+                }
+                return data[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Retrieve the {@link StreamingStats} of the dataset, e.g. to estimate other quantiles or to
+     * merge with the results of other shards.
+     */
+    public StreamingStats getStreamingStats() {
+        return mStats;
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return size() == 0;
     }
 
     /**
-     * Check how many elements are in the dataset.
+     * Check how many elements are in the dataset, including non-finite ones.
      */
     public int size() {
-        return mData.size();
+        return (int)(mStats.count() + mStats.nonFiniteCount());
     }
 
     /**
@@ -81,27 +138,30 @@ public class SimpleStats {
             return null;
         }
 
-        return mSum / size();
+        return mStats.mean();
     }
 
     /**
      * Calculate and return the median of the dataset, or {@code null} if the dataset is empty.
+     * <p />
+     * The median is estimated if the dataset has more than {@link #MAX_EXACT_SIZE} measurements.
      */
     public Double median() {
         if (isEmpty()) {
             return null;
         }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
+        int count = (int)mStats.count();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if ((count & 0x1) == 1) {
             // odd count of items, pick the middle element.  Note that we don't +1 since indices
             // are zero-based rather than one-based
-            int idx = size() / 2;
-            return mData.get(idx);
+            return valueAtRank(count / 2);
         } else {
             // even count of items, average the two middle elements
-            int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+            return (valueAtRank(count / 2 - 1) + valueAtRank(count / 2)) / 2;
         }
     }
 
@@ -113,8 +173,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        return mStats.min();
     }
 
     /**
@@ -125,8 +184,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+        return mStats.max();
     }
 
     /**
@@ -141,14 +199,21 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
+        return mStats.stdev();
+    }
 
-        return Math.sqrt(ssd / size());
+    /**
+     * Get the finite measurement at given rank, in ascending order. Exact if the measurements
+     * are kept, estimated otherwise.
+     */
+    private double valueAtRank(int rank) {
+        if (mData == null) {
+            return mStats.estimateAtRank(rank);
+        }
+        if (!mSorted) {
+            Arrays.sort(mData, 0, (int)mStats.count());
+            mSorted = true;
+        }
+        return mData[rank];
     }
 }
-
@@ -189,6 +189,28 @@ public class SizeLimitedOutputStream extends OutputStream {
         return (i + 1) % mFiles.length;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Writes the data in as few chunks as the backing files allow, rather than byte per byte.
+     */
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mCurrentOutputStream == null) {
+                generateNextFile();
+            }
+            long remaining = mMaxFileSize - mCurrentOutputStream.getCount();
+            int chunk = (int)Math.max(1, Math.min(length, remaining));
+            mCurrentOutputStream.write(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            if (mCurrentOutputStream.getCount() >= mMaxFileSize) {
+                generateNextFile();
+            }
+        }
+    }
+
     @Override
     public synchronized void write(int data) throws IOException {
         if (mCurrentOutputStream == null) {
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Calculates statistics over a stream of measurements in constant memory, without keeping the
+ * measurements themselves.
+ * <p/>
+ * Count, mean, variance, min and max are exact; mean and variance are updated using Welford's
+ * algorithm. Quantiles are estimated from a sketch of logarithmically sized buckets, and are
+ * within a configurable relative error of the true value. The memory used by the sketch only
+ * depends on the range of measured magnitudes.
+ * <p/>
+ * Instances can be combined with {@link #merge(StreamingStats)}, e.g. to aggregate results of
+ * separate shards.
+ * <p/>
+ * Non-finite measurements, such as a percentage of a zero total, are only counted by
+ * {@link #nonFiniteCount()}, and are otherwise ignored.
+ * <p/>
+ * Not thread safe.
+ */
+public class StreamingStats {
+
+    /** default max relative error of estimated quantiles */
+    public static final double DEFAULT_RELATIVE_ERROR = 0.01;
+
+    /** magnitudes below this are counted as zero */
+    private static final double MIN_MAGNITUDE = 1e-9;
+
+    private final double mRelativeError;
+    private final double mGamma;
+    private final double mLogGamma;
+
+    private long mCount = 0;
+    private long mNonFiniteCount = 0;
+    private double mMean = 0;
+    /** the sum of squared differences from the mean */
+    private double mSquaredDiffs = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
+
+    private final Buckets mPositive = new Buckets();
+    private final Buckets mNegative = new Buckets();
+    private long mZeroCount = 0;
+
+    /**
+     * Creates a {@link StreamingStats} with {@link #DEFAULT_RELATIVE_ERROR}.
+     */
+    public StreamingStats() {
+        this(DEFAULT_RELATIVE_ERROR);
+    }
+
+    /**
+     * Creates a {@link StreamingStats}.
+     *
+     * @param relativeError the max relative error of estimated quantiles, between 0 and 1
+     *            exclusive
+     */
+    public StreamingStats(double relativeError) {
+        if (relativeError <= 0 || relativeError >= 1) {
+            throw new IllegalArgumentException("relative error must be between 0 and 1");
+        }
+        mRelativeError = relativeError;
+        mGamma = (1 + relativeError) / (1 - relativeError);
+        mLogGamma = Math.log(mGamma);
+    }
+
+    /**
+     * Add a measurement. NaN or infinite measurements are only counted by
+     * {@link #nonFiniteCount()}.
+     */
+    public void add(double meas) {
+        if (Double.isNaN(meas) || Double.isInfinite(meas)) {
+            mNonFiniteCount++;
+            return;
+        }
+        mCount++;
+        double delta = meas - mMean;
+        mMean += delta / mCount;
+        mSquaredDiffs += delta * (meas - mMean);
+        if (mCount == 1) {
+            mMin = meas;
+            mMax = meas;
+        } else {
+            mMin = Math.min(mMin, meas);
+            mMax = Math.max(mMax, meas);
+        }
+        if (meas >= MIN_MAGNITUDE) {
+            mPositive.add(bucketIndex(meas), 1);
+        } else if (meas <= -MIN_MAGNITUDE) {
+            mNegative.add(bucketIndex(-meas), 1);
+        } else {
+            mZeroCount++;
+        }
+    }
+
+    /**
+     * Add all measurements of another {@link StreamingStats} to this one.
+     *
+     * @throws IllegalArgumentException if the other instance has a different relative error
+     */
+    public void merge(StreamingStats other) {
+        if (other.mRelativeError != mRelativeError) {
+            throw new IllegalArgumentException("Cannot merge stats with different relative error");
+        }
+        mNonFiniteCount += other.mNonFiniteCount;
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            mMin = other.mMin;
+            mMax = other.mMax;
+        } else {
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+        // combine mean and variance, see Chan et al.
+        long count = mCount + other.mCount;
+        double delta = other.mMean - mMean;
+        mSquaredDiffs += other.mSquaredDiffs + delta * delta * mCount * other.mCount / count;
+        mMean += delta * other.mCount / count;
+        mCount = count;
+        mPositive.addAll(other.mPositive);
+        mNegative.addAll(other.mNegative);
+        mZeroCount += other.mZeroCount;
+    }
+
+    /**
+     * @return the number of measurements, excluding non-finite ones
+     */
+    public long count() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of NaN or infinite measurements, which were ignored
+     */
+    public long nonFiniteCount() {
+        return mNonFiniteCount;
+    }
+
+    /**
+     * @return <code>true</code> if there are no measurements
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return the mean of the measurements, or NaN if there are none
+     */
+    public double mean() {
+        return mCount == 0 ? Double.NaN : mMean;
+    }
+
+    /**
+     * @return the sum of the measurements
+     */
+    public double sum() {
+        return mMean * mCount;
+    }
+
+    /**
+     * @return the population variance of the measurements, or NaN if there are none
+     */
+    public double variance() {
+        return mCount == 0 ? Double.NaN : mSquaredDiffs / mCount;
+    }
+
+    /**
+     * @return the population standard deviation of the measurements, or NaN if there are none
+     */
+    public double stdev() {
+        return Math.sqrt(variance());
+    }
+
+    /**
+     * @return the smallest measurement, or NaN if there are none
+     */
+    public double min() {
+        return mMin;
+    }
+
+    /**
+     * @return the largest measurement, or NaN if there are none
+     */
+    public double max() {
+        return mMax;
+    }
+
+    /**
+     * Estimate a quantile of the measurements.
+     *
+     * @param q the quantile to estimate, between 0 and 1 inclusive. e.g. 0.99 for the 99th
+     *            percentile
+     * @return the estimated quantile, or NaN if there are no measurements
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        return estimateAtRank((long)(q * (mCount - 1)));
+    }
+
+    /**
+     * Estimate the measurement at given rank, in ascending order.
+     *
+     * @param rank the rank, between 0 and {@link #count()} exclusive
+     * @return the estimated measurement
+     */
+    double estimateAtRank(long rank) {
+        long seen = 0;
+        // most negative values first
+        for (int i = mNegative.maxIndex(); i >= mNegative.minIndex(); i--) {
+            seen += mNegative.get(i);
+            if (seen > rank) {
+                return clamp(-bucketValue(i));
+            }
+        }
+        seen += mZeroCount;
+        if (seen > rank) {
+            return clamp(0);
+        }
+        for (int i = mPositive.minIndex(); i <= mPositive.maxIndex(); i++) {
+            seen += mPositive.get(i);
+            if (seen > rank) {
+                return clamp(bucketValue(i));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return the estimated median
+     */
+    public double p50() {
+        return quantile(0.5);
+    }
+
+    /**
+     * @return the estimated 90th percentile
+     */
+    public double p90() {
+        return quantile(0.9);
+    }
+
+    /**
+     * @return the estimated 99th percentile
+     */
+    public double p99() {
+        return quantile(0.99);
+    }
+
+    /**
+     * @return the estimated 99.9th percentile
+     */
+    public double p999() {
+        return quantile(0.999);
+    }
+
+    /**
+     * Export a histogram of the measurements.
+     *
+     * @return a {@link SortedMap} of the representative value of each non-empty bucket to the
+     *         number of measurements in the bucket. Each measurement is within the relative error
+     *         of its bucket's value.
+     */
+    public SortedMap<Double, Long> getHistogram() {
+        SortedMap<Double, Long> histogram = new TreeMap<Double, Long>();
+        for (int i = mNegative.minIndex(); i <= mNegative.maxIndex(); i++) {
+            if (mNegative.get(i) > 0) {
+                histogram.put(-bucketValue(i), mNegative.get(i));
+            }
+        }
+        if (mZeroCount > 0) {
+            histogram.put(0.0, mZeroCount);
+        }
+        for (int i = mPositive.minIndex(); i <= mPositive.maxIndex(); i++) {
+            if (mPositive.get(i) > 0) {
+                histogram.put(bucketValue(i), mPositive.get(i));
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%f stdev=%f min=%f p50=%f p90=%f p99=%f max=%f",
+                mCount, mean(), stdev(), min(), p50(), p90(), p99(), max());
+    }
+
+    private int bucketIndex(double magnitude) {
+        return (int)Math.ceil(Math.log(magnitude) / mLogGamma);
+    }
+
+    private double bucketValue(int index) {
+        return 2 * Math.pow(mGamma, index) / (mGamma + 1);
+    }
+
+    private double clamp(double value) {
+        return Math.max(mMin, Math.min(mMax, value));
+    }
+
+    /**
+     * A dense, growable array of counts indexed by bucket index.
+     */
+    private static class Buckets {
+        private long[] mCounts = null;
+        private int mOffset = 0;
+
+        void add(int index, long count) {
+            if (mCounts == null) {
+                mCounts = new long[16];
+                mOffset = index - 8;
+            } else if (index < mOffset) {
+                int grow = Math.max(mOffset - index, mCounts.length / 2);
+                long[] counts = new long[mCounts.length + grow];
+                System.arraycopy(mCounts, 0, counts, grow, mCounts.length);
+                mCounts = counts;
+                mOffset -= grow;
+            } else if (index - mOffset >= mCounts.length) {
+                mCounts = Arrays.copyOf(mCounts, Math.max(index - mOffset + 1,
+                        mCounts.length * 3 / 2));
+            }
+            mCounts[index - mOffset] += count;
+        }
+
+        void addAll(Buckets other) {
+            for (int i = other.minIndex(); i <= other.maxIndex(); i++) {
+                long count = other.get(i);
+                if (count > 0) {
+                    add(i, count);
+                }
+            }
+        }
+
+        long get(int index) {
+            return mCounts[index - mOffset];
+        }
+
+        /** @return the lowest index that can hold a count, or 0 if empty */
+        int minIndex() {
+            return mCounts == null ? 0 : mOffset;
+        }
+
+        /** @return the highest index that can hold a count, or -1 if empty */
+        int maxIndex() {
+            return mCounts == null ? -1 : mOffset + mCounts.length - 1;
+        }
+    }
+}
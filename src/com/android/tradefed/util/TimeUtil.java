@@ -25,14 +25,27 @@ import java.util.concurrent.TimeUnit;
  */
 public class TimeUtil {
 
-    private final static SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private final static SimpleDateFormat TIME_FORMAT_MSEC = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss SSS");
-    private final static SimpleDateFormat FILE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+    // SimpleDateFormat is not thread safe, so each thread gets its own
+    private final static ThreadLocal<SimpleDateFormat> TIME_FORMAT =
+            createFormat("yyyy-MM-dd HH:mm:ss");
+    private final static ThreadLocal<SimpleDateFormat> TIME_FORMAT_MSEC =
+            createFormat("yyyy-MM-dd HH:mm:ss SSS");
+    private final static ThreadLocal<SimpleDateFormat> FILE_TIME_FORMAT =
+            createFormat("yyyy-MM-dd_HH-mm-ss");
     
     // only static methods, don't allow construction
     private TimeUtil() {
     }
 
+    private static ThreadLocal<SimpleDateFormat> createFormat(final String pattern) {
+        return new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat(pattern);
+            }
+        };
+    }
+
     /**
      * Return a prettified version of the given elapsed time in milliseconds.
      */
@@ -65,7 +78,7 @@ public class TimeUtil {
      * @return a user readable string
      */
     public static String formatTimeStamp(long epochTime) {
-        return TIME_FORMAT.format(new Date(epochTime));
+        return TIME_FORMAT.get().format(new Date(epochTime));
     }
     
     public static String getTimestamp() {
@@ -73,7 +86,7 @@ public class TimeUtil {
     }
     
     public static String formatTimeStampMsec(long epochTime) {
-        return TIME_FORMAT_MSEC.format(new Date(epochTime));
+        return TIME_FORMAT_MSEC.get().format(new Date(epochTime));
     }
     
     public static String getTimestampMsec() {
@@ -81,7 +94,7 @@ public class TimeUtil {
     }
     
     public static String formatTimeForFile(long epochTime) {
-        return FILE_TIME_FORMAT.format(new Date(epochTime));
+        return FILE_TIME_FORMAT.get().format(new Date(epochTime));
     }
     
     public static String getTimestampForFile() {
@@ -18,12 +18,14 @@ package com.android.tradefed;
 import com.android.tradefed.build.BuildInfoTest;
 import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
+import com.android.tradefed.build.ExtractedArchiveCacheTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
 import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
 import com.android.tradefed.build.SdkBuildInfoTest;
 import com.android.tradefed.command.CommandFileParserTest;
+import com.android.tradefed.command.CommandFileWatcherTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
 import com.android.tradefed.command.RemoteManagerTest;
@@ -35,32 +37,49 @@ import com.android.tradefed.config.ConfigurationXmlParserTest;
 import com.android.tradefed.config.OptionCopierTest;
 import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
+import com.android.tradefed.device.BackoffRetryPolicyTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePrewarmerTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DumpsysPackageParserTest;
+import com.android.tradefed.device.EmulatorPoolTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
+import com.android.tradefed.device.ShellSessionTest;
 import com.android.tradefed.device.TestDeviceTest;
+import com.android.tradefed.device.UsbFlashSchedulerTest;
+import com.android.tradefed.device.UsbTopologyTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.device.WifiUtilSessionTest;
+import com.android.tradefed.invoker.CheckpointJournalTest;
+import com.android.tradefed.invoker.TargetPreparerGraphTest;
 import com.android.tradefed.invoker.TestInvocationTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
+import com.android.tradefed.log.LogUtilTest;
+import com.android.tradefed.result.AsyncInvocationListenerTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
+import com.android.tradefed.result.CompactTestResultStoreTest;
+import com.android.tradefed.result.CoverageAggregatorTest;
+import com.android.tradefed.result.CrashSignatureIndexTest;
 import com.android.tradefed.result.EmailResultReporterTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
+import com.android.tradefed.result.LogRetentionServiceTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
+import com.android.tradefed.targetprep.ApkInstallManagerTest;
 import com.android.tradefed.targetprep.DefaultTestsZipInstallerTest;
 import com.android.tradefed.targetprep.DeviceFlashPreparerTest;
 import com.android.tradefed.targetprep.DeviceSetupTest;
+import com.android.tradefed.targetprep.DeviceStateLedgerTest;
 import com.android.tradefed.targetprep.FastbootDeviceFlasherTest;
 import com.android.tradefed.targetprep.FlashingResourcesParserTest;
 import com.android.tradefed.targetprep.KernelFlashPreparerTest;
@@ -83,15 +102,19 @@ import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.AaptParserTest;
 import com.android.tradefed.util.ArrayUtilTest;
 import com.android.tradefed.util.ByteArrayListTest;
+import com.android.tradefed.util.ConcurrentConditionPriorityQueueTest;
 import com.android.tradefed.util.ConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.EmailTest;
 import com.android.tradefed.util.FileUtilTest;
+import com.android.tradefed.util.HostResourceGovernorTest;
 import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.NullUtilTest;
+import com.android.tradefed.util.ParallelFileUtilTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
 import com.android.tradefed.util.SizeLimitedOutputStreamTest;
+import com.android.tradefed.util.StreamingStatsTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
@@ -110,6 +133,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(BuildInfoTest.class);
         addTestSuite(DeviceBuildInfoTest.class);
         addTestSuite(DeviceBuildDescriptorTest.class);
+        addTestSuite(ExtractedArchiveCacheTest.class);
         addTestSuite(FileDownloadCacheTest.class);
         addTestSuite(KernelBuildInfoTest.class);
         addTestSuite(KernelDeviceBuildInfoTest.class);
@@ -118,6 +142,7 @@ public class UnitTests extends DeviceTestSuite {
 
         // command
         addTestSuite(CommandFileParserTest.class);
+        addTestSuite(CommandFileWatcherTest.class);
         addTestSuite(CommandSchedulerTest.class);
         addTestSuite(ConsoleTest.class);
         addTestSuite(RemoteManagerTest.class);
@@ -133,40 +158,57 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(OptionUpdateRuleTest.class);
 
         // device
+        addTestSuite(BackoffRetryPolicyTest.class);
         addTestSuite(CpuStatsCollectorTest.class);
         addTestSuite(DeviceManagerTest.class);
+        addTestSuite(DevicePrewarmerTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
         addTestSuite(DumpsysPackageParserTest.class);
+        addTestSuite(EmulatorPoolTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
+        addTestSuite(ShellSessionTest.class);
         addTestSuite(TestDeviceTest.class);
+        addTestSuite(UsbFlashSchedulerTest.class);
+        addTestSuite(UsbTopologyTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
+        addTestSuite(WifiUtilSessionTest.class);
 
         // invoker
+        addTestSuite(CheckpointJournalTest.class);
+        addTestSuite(TargetPreparerGraphTest.class);
         addTestSuite(TestInvocationTest.class);
 
         // log
         addTestSuite(FileLoggerTest.class);
         addTestSuite(LogRegistryTest.class);
+        addTestSuite(LogUtilTest.class);
 
         // result
+        addTestSuite(AsyncInvocationListenerTest.class);
         addTestSuite(CollectingTestListenerTest.class);
+        addTestSuite(CompactTestResultStoreTest.class);
+        addTestSuite(CoverageAggregatorTest.class);
+        addTestSuite(CrashSignatureIndexTest.class);
         addTestSuite(EmailResultReporterTest.class);
         addTestSuite(FailureEmailResultReporterTest.class);
         addTestSuite(InvocationFailureEmailResultReporterTest.class);
         addTestSuite(InvocationToJUnitResultForwarderTest.class);
         addTestSuite(JUnitToInvocationResultForwarderTest.class);
         addTestSuite(LogFileSaverTest.class);
+        addTestSuite(LogRetentionServiceTest.class);
         addTestSuite(SnapshotInputStreamSourceTest.class);
         addTestSuite(TestSummaryTest.class);
         addTestSuite(TestFailureEmailResultReporterTest.class);
         addTestSuite(XmlResultReporterTest.class);
 
         // targetprep
+        addTestSuite(ApkInstallManagerTest.class);
         addTestSuite(DefaultTestsZipInstallerTest.class);
         addTestSuite(DeviceFlashPreparerTest.class);
         addTestSuite(DeviceSetupTest.class);
+        addTestSuite(DeviceStateLedgerTest.class);
         addTestSuite(FastbootDeviceFlasherTest.class);
         addTestSuite(FlashingResourcesParserTest.class);
         addTestSuite(KernelFlashPreparerTest.class);
@@ -194,16 +236,20 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(AaptParserTest.class);
         addTestSuite(ArrayUtilTest.class);
         addTestSuite(ByteArrayListTest.class);
+        addTestSuite(ConcurrentConditionPriorityQueueTest.class);
         addTestSuite(ConditionPriorityBlockingQueueTest.class);
         addTestSuite(EmailTest.class);
         addTestSuite(FileUtilTest.class);
+        addTestSuite(HostResourceGovernorTest.class);
         addTestSuite(HttpMultipartPostTest.class);
         addTestSuite(MultiMapTest.class);
         addTestSuite(NullUtilTest.class);
+        addTestSuite(ParallelFileUtilTest.class);
         addTestSuite(QuotationAwareTokenizerTest.class);
         addTestSuite(RegexTrieTest.class);
         addTestSuite(RunUtilTest.class);
         addTestSuite(SizeLimitedOutputStreamTest.class);
+        addTestSuite(StreamingStatsTest.class);
 
         // util subdirs
         addTestSuite(AndroidManifestWriterTest.class);
@@ -67,6 +67,30 @@ public class BuildInfoTest extends TestCase {
         }
     }
 
+    /**
+     * Test that clones share an extracted archive, which is deleted when the last one is cleaned
+     * up.
+     */
+    public void testSetExtractedArchive() throws Exception {
+        File dir = FileUtil.createTempDir("archive");
+        try {
+            FileUtil.writeToFile("data", new File(dir, "data.txt"));
+            File zip = new File(dir.getParentFile(), dir.getName() + ".zip");
+            FileUtil.createZip(dir, zip);
+            mBuildInfo.setExtractedArchive("tests", zip, VERSION);
+            zip.delete();
+            File extracted = mBuildInfo.getFile("tests");
+            BuildInfo copy = (BuildInfo) mBuildInfo.clone();
+            assertEquals(extracted, copy.getFile("tests"));
+            mBuildInfo.cleanUp();
+            assertTrue(extracted.exists());
+            copy.cleanUp();
+            assertFalse(extracted.exists());
+        } finally {
+            FileUtil.recursiveDelete(dir);
+        }
+    }
+
     /**
      * Test method for {@link BuildInfo#cleanUp()}.
      */
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.build.ExtractedArchiveCache.ExtractedArchive;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link ExtractedArchiveCache}.
+ */
+public class ExtractedArchiveCacheTest extends TestCase {
+
+    private File mTmpDir;
+    private File mZip;
+    private ExtractedArchiveCache mCache;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("extracted-archive-test");
+        mZip = createZip("tests", "contents");
+        mCache = new ExtractedArchiveCache();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    private File createZip(String name, String contents) throws IOException {
+        File dir = new File(mTmpDir, name);
+        assertTrue(new File(dir, "sub").mkdirs());
+        FileUtil.writeToFile(contents, new File(new File(dir, "sub"), "file.txt"));
+        File zip = new File(mTmpDir, name + ".zip");
+        FileUtil.createZip(dir, zip);
+        return zip;
+    }
+
+    private static File getExtractedFile(ExtractedArchive extracted, String dirName) {
+        return FileUtil.getFileForPath(extracted.getDir(), dirName, "sub", "file.txt");
+    }
+
+    /**
+     * Test that copies of the same archive share one read-only tree, deleted on last release.
+     */
+    public void testAcquire_shared() throws IOException {
+        File copy = new File(mTmpDir, "copy.zip");
+        FileUtil.copyFile(mZip, copy);
+        ExtractedArchive first = mCache.acquire(mZip);
+        ExtractedArchive second = mCache.acquire(copy);
+        assertSame(first, second);
+        assertEquals(1, mCache.getArchiveCount());
+        File file = getExtractedFile(first, "tests");
+        assertEquals("contents", FileUtil.readStringFromFile(file));
+
+        mCache.release(first);
+        assertTrue(file.exists());
+        mCache.release(second);
+        assertFalse(first.getDir().exists());
+        assertEquals(0, mCache.getArchiveCount());
+        // the root dir goes away with the last archive
+        assertFalse(first.getDir().getParentFile().exists());
+        assertNull(mCache.getRootDir());
+    }
+
+    /**
+     * Test that a retained reference keeps the tree alive.
+     */
+    public void testRetain() throws IOException {
+        ExtractedArchive extracted = mCache.acquire(mZip);
+        mCache.retain(extracted);
+        mCache.release(extracted);
+        assertTrue(extracted.getDir().exists());
+        mCache.release(extracted);
+        assertFalse(extracted.getDir().exists());
+    }
+
+    /**
+     * Test that archives with different contents get different digests and trees.
+     */
+    public void testAcquire_different() throws IOException {
+        File other = createZip("other", "other contents");
+        assertFalse(ExtractedArchiveCache.computeDigest(mZip).equals(
+                ExtractedArchiveCache.computeDigest(other)));
+        ExtractedArchive first = mCache.acquire(mZip);
+        ExtractedArchive second = mCache.acquire(other);
+        assertNotSame(first, second);
+        assertEquals(2, mCache.getArchiveCount());
+        File rootDir = mCache.getRootDir();
+        assertEquals(rootDir, first.getDir().getParentFile());
+        mCache.release(first);
+        assertTrue(rootDir.isDirectory());
+        mCache.release(second);
+        assertFalse(rootDir.exists());
+    }
+
+    /**
+     * Test that a writable copy can be modified without affecting the shared tree.
+     */
+    public void testCreateWritableCopy() throws IOException {
+        ExtractedArchive extracted = mCache.acquire(mZip);
+        try {
+            File copyDir = new File(mTmpDir, "writable");
+            assertTrue(copyDir.mkdir());
+            mCache.createWritableCopy(extracted, copyDir);
+            File copy = FileUtil.getFileForPath(copyDir, "tests", "sub", "file.txt");
+            assertTrue(copy.canWrite());
+            FileUtil.writeToFile(" modified", copy);
+            assertEquals("contents", FileUtil.readStringFromFile(
+                    getExtractedFile(extracted, "tests")));
+        } finally {
+            mCache.release(extracted);
+        }
+    }
+
+    /**
+     * Test that a failed extraction throws and does not keep a reference.
+     */
+    public void testAcquire_invalid() throws IOException {
+        File invalid = new File(mTmpDir, "invalid.zip");
+        FileUtil.writeToFile("not a zip", invalid);
+        try {
+            mCache.acquire(invalid);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, mCache.getArchiveCount());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link CommandFileWatcher}.
+ */
+public class CommandFileWatcherTest extends TestCase {
+
+    private File mDir;
+    private File mMainFile;
+    private File mIncludeFile;
+    private ICommandScheduler mMockScheduler;
+    private CommandFileParser mParser;
+    private List<String> mReadFiles;
+    private CommandFileWatcher mWatcher;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = FileUtil.createTempDir("cmdfile-watcher");
+        mMainFile = new File(mDir, "main.txt");
+        mIncludeFile = new File(mDir, "inc.txt");
+        writeFile("INCLUDE inc.txt\nmain-config\n", mMainFile);
+        writeFile("config1\nconfig2 --foo\n", mIncludeFile);
+        mMockScheduler = EasyMock.createMock(ICommandScheduler.class);
+        mReadFiles = new ArrayList<String>();
+        mParser = new CommandFileParser() {
+            @Override
+            BufferedReader createCommandFileReader(File file) throws IOException {
+                mReadFiles.add(file.getName());
+                return super.createCommandFileReader(file);
+            }
+        };
+        mWatcher = new CommandFileWatcher(mMainFile, new ArrayList<String>(), mMockScheduler,
+                mParser, 10);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mWatcher.cancel();
+        FileUtil.recursiveDelete(mDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the first reload adds every command of the file and its includes.
+     */
+    public void testReload_initial() throws Exception {
+        expectAdd("main-config");
+        expectAdd("config1");
+        expectAdd("config2", "--foo");
+        EasyMock.replay(mMockScheduler);
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+    }
+
+    /**
+     * Test that a reload after an include changed only re-reads that file, and only adds and
+     * removes the commands that changed.
+     */
+    public void testReload_changedInclude() throws Exception {
+        EasyMock.expect(mMockScheduler.addCommand((String[])EasyMock.anyObject()))
+                .andReturn(Boolean.TRUE).times(3);
+        EasyMock.replay(mMockScheduler);
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+
+        EasyMock.reset(mMockScheduler);
+        EasyMock.expect(mMockScheduler.removeCommand(EasyMock.aryEq(new String[] {"config2",
+                "--foo"}))).andReturn(Boolean.TRUE);
+        expectAdd("config3");
+        EasyMock.replay(mMockScheduler);
+        mReadFiles.clear();
+        writeFile("config1\nconfig3\n", mIncludeFile);
+        assertTrue(mParser.hasChangedFiles());
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+        assertEquals(1, mReadFiles.size());
+        assertEquals("inc.txt", mReadFiles.get(0));
+        assertFalse(mParser.hasChangedFiles());
+    }
+
+    /**
+     * Test that a command that failed to be added is retried on the next reload.
+     */
+    public void testReload_addFailed() throws Exception {
+        expectAdd("main-config");
+        expectAdd("config1");
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"config2",
+                "--foo"}))).andReturn(Boolean.FALSE);
+        EasyMock.replay(mMockScheduler);
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+
+        EasyMock.reset(mMockScheduler);
+        expectAdd("config2", "--foo");
+        EasyMock.replay(mMockScheduler);
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+    }
+
+    /**
+     * Test that the watcher thread reloads the file when it changes.
+     */
+    public void testRun() throws Exception {
+        EasyMock.expect(mMockScheduler.addCommand((String[])EasyMock.anyObject()))
+                .andReturn(Boolean.TRUE).times(3);
+        EasyMock.replay(mMockScheduler);
+        mWatcher.reload();
+        EasyMock.verify(mMockScheduler);
+
+        EasyMock.reset(mMockScheduler);
+        final CountDownLatch removed = new CountDownLatch(1);
+        EasyMock.expect(mMockScheduler.removeCommand(EasyMock.aryEq(new String[] {
+                "main-config"}))).andAnswer(new IAnswer<Boolean>() {
+                    @Override
+                    public Boolean answer() {
+                        removed.countDown();
+                        return Boolean.TRUE;
+                    }
+                });
+        EasyMock.replay(mMockScheduler);
+        // keep the length unchanged, so that only the timestamp reveals the change
+        writeFile("INCLUDE inc.txt\n\n\n\n\n\n\n\n\n\n\n\n", mMainFile);
+        mMainFile.setLastModified(mMainFile.lastModified() - 5000);
+        mWatcher.start();
+        assertTrue(removed.await(5, TimeUnit.SECONDS));
+        mWatcher.cancel();
+        mWatcher.join(5000);
+        EasyMock.verify(mMockScheduler);
+    }
+
+    /**
+     * Replace the contents of a file. {@link FileUtil#writeToFile(String, File)} appends.
+     */
+    private void writeFile(String contents, File file) throws IOException {
+        file.delete();
+        FileUtil.writeToFile(contents, file);
+    }
+
+    private void expectAdd(String... args) {
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(args))).andReturn(Boolean.TRUE);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.IDeviceRetryPolicy.FailureType;
+import com.android.tradefed.device.IDeviceRetryPolicy.RecoveryAction;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link BackoffRetryPolicy}.
+ */
+public class BackoffRetryPolicyTest extends TestCase {
+
+    /**
+     * Test that with no transient retries, every failure triggers full recovery immediately.
+     */
+    public void testNoTransientRetries() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(0, 1000, 10000, 0);
+        for (FailureType failure : FailureType.values()) {
+            assertEquals(RecoveryAction.FULL, policy.getRecoveryAction(failure, 1));
+        }
+    }
+
+    /**
+     * Test the escalation order for transient and non transient failures.
+     */
+    public void testEscalation() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(2, 1000, 10000, 0);
+        assertEquals(RecoveryAction.NONE, policy.getRecoveryAction(FailureType.TIMEOUT, 1));
+        assertEquals(RecoveryAction.NONE, policy.getRecoveryAction(FailureType.TIMEOUT, 2));
+        assertEquals(RecoveryAction.SHELL_CHECK,
+                policy.getRecoveryAction(FailureType.TIMEOUT, 3));
+        assertEquals(RecoveryAction.FULL, policy.getRecoveryAction(FailureType.TIMEOUT, 4));
+
+        assertEquals(RecoveryAction.SHELL_CHECK,
+                policy.getRecoveryAction(FailureType.IO_ERROR, 1));
+        assertEquals(RecoveryAction.FULL, policy.getRecoveryAction(FailureType.IO_ERROR, 2));
+    }
+
+    /**
+     * Test that retry delays grow exponentially up to the max.
+     */
+    public void testGetRetryDelay() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(5, 1000, 5000, 0);
+        assertEquals(1000, policy.getRetryDelay(FailureType.TIMEOUT, 1));
+        assertEquals(2000, policy.getRetryDelay(FailureType.TIMEOUT, 2));
+        assertEquals(4000, policy.getRetryDelay(FailureType.TIMEOUT, 3));
+        assertEquals(5000, policy.getRetryDelay(FailureType.TIMEOUT, 4));
+        assertEquals(5000, policy.getRetryDelay(FailureType.TIMEOUT, 100));
+    }
+
+    /**
+     * Test that jitter reduces the delay by at most the jitter fraction.
+     */
+    public void testGetRetryDelay_jitter() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(5, 1000, 5000, 0.5, new Random(0));
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getRetryDelay(FailureType.TIMEOUT, 1);
+            assertTrue(delay > 500 && delay <= 1000);
+        }
+    }
+
+    /**
+     * Test that an invalid jitter is rejected.
+     */
+    public void testInvalidJitter() {
+        try {
+            new BackoffRetryPolicy(1, 1000, 5000, 2);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -18,9 +18,11 @@ package com.android.tradefed.device;
 import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
+import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.IRunUtil;
@@ -31,6 +33,7 @@ import org.easymock.EasyMock;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
@@ -55,6 +58,12 @@ public class DeviceManagerTest extends TestCase {
         IManagedTestDevice createDevice();
     }
 
+    /**
+     * Helper interface to mock a target preparer that can be warmed up.
+     */
+    private interface IWarmUpPreparer extends ITargetPreparer, IDeviceWarmUp {
+    }
+
     private IAndroidDebugBridge mMockAdbBridge;
     private IDevice mMockIDevice;
     private IDeviceStateMonitor mMockMonitor;
@@ -62,6 +71,7 @@ public class DeviceManagerTest extends TestCase {
     private IRunUtil mMockRunUtil;
     private ITestDeviceFactory mMockDeviceFactory;
     private IGlobalConfiguration mMockGlobalConfig;
+    private DevicePrewarmer mPrewarmer;
 
     /** a reference to the DeviceManager's IDeviceChangeListener. Used for triggering device
      * connection events */
@@ -161,6 +171,7 @@ public class DeviceManagerTest extends TestCase {
         mMockRunUtil = EasyMock.createMock(IRunUtil.class);
         mMockDeviceFactory = EasyMock.createMock(ITestDeviceFactory.class);
         mMockGlobalConfig = EasyMock.createNiceMock(IGlobalConfiguration.class);
+        mPrewarmer = new DevicePrewarmer();
 
         EasyMock.expect(mMockIDevice.getSerialNumber()).andStubReturn(DEVICE_SERIAL);
         EasyMock.expect(mMockIDevice.isEmulator()).andStubReturn(Boolean.FALSE);
@@ -218,6 +229,11 @@ public class DeviceManagerTest extends TestCase {
             IRunUtil getRunUtil() {
                 return mMockRunUtil;
             }
+
+            @Override
+            DevicePrewarmer getDevicePrewarmer() {
+                return mPrewarmer;
+            }
         };
         mgr.setEnableLogcat(false);
         mgr.setSynchronousMode(true);
@@ -336,6 +352,7 @@ public class DeviceManagerTest extends TestCase {
         EasyMock.expect(mockEmulator.waitForDeviceNotAvailable(EasyMock.anyLong())).andReturn(
                 Boolean.TRUE);
         mockEmulator.stopLogcat();
+        mockEmulator.stopShellSession();
         replayMocks(mockEmulator, mockIEmulator);
         DeviceManager manager = createDeviceManager();
         assertEquals(mockEmulator, manager.allocateDevice(100, options));
@@ -421,6 +438,7 @@ public class DeviceManagerTest extends TestCase {
     public void testFreeDevice() throws DeviceNotAvailableException {
         setCheckAvailableDeviceExpectations();
         mMockTestDevice.stopLogcat();
+        mMockTestDevice.stopShellSession();
         // mock the second allocate device call
         EasyMock.expect(mMockDeviceFactory.createDevice()).andReturn(mMockTestDevice);
         replayMocks();
@@ -474,6 +492,7 @@ public class DeviceManagerTest extends TestCase {
     public void testAllocateDevice_disconnected() throws DeviceNotAvailableException {
         setCheckAvailableDeviceExpectations();
         mMockTestDevice.stopLogcat();
+        mMockTestDevice.stopShellSession();
         replayMocks();
         DeviceManager manager = createDeviceManager(mMockIDevice);
         // allocate and free the device first to handle the asynchronous checkAvailableDevice()
@@ -540,6 +559,8 @@ public class DeviceManagerTest extends TestCase {
         // keep EasyMock happy - expect stopLogcat call on each freeDevice call
         mMockTestDevice.stopLogcat();
         EasyMock.expectLastCall().times(2);
+        mMockTestDevice.stopShellSession();
+        EasyMock.expectLastCall().times(2);
         EasyMock.expect(mMockDeviceFactory.createDevice()).andReturn(mMockTestDevice).times(2);
         replayMocks();
         // simulate no devices available on DeviceManager start up
@@ -676,6 +697,56 @@ public class DeviceManagerTest extends TestCase {
         EasyMock.verify(mMockMonitor);
     }
 
+    /**
+     * Test {@link DeviceManager#prewarmDevice(IConfiguration)} warms up an idle device once for a
+     * pending command, and that the device is no longer warm once allocated.
+     */
+    public void testPrewarmDevice() throws DeviceNotAvailableException {
+        mPrewarmer.setEnabled(true);
+        IWarmUpPreparer preparer = EasyMock.createMock(IWarmUpPreparer.class);
+        EasyMock.expect(preparer.getWarmUpKey()).andStubReturn("wifi:foo");
+        IConfiguration config = EasyMock.createNiceMock(IConfiguration.class);
+        TestDeviceOptions deviceOptions = new TestDeviceOptions();
+        EasyMock.expect(config.getDeviceRequirements()).andStubReturn(
+                DeviceManager.ANY_DEVICE_OPTIONS);
+        EasyMock.expect(config.getDeviceOptions()).andStubReturn(deviceOptions);
+        EasyMock.expect(config.getTargetPreparers()).andStubReturn(
+                Arrays.<ITargetPreparer>asList(preparer));
+        setCheckAvailableDeviceExpectations();
+        // warm up
+        mMockTestDevice.setOptions(deviceOptions);
+        mMockTestDevice.waitForDeviceAvailable(EasyMock.anyLong());
+        mMockTestDevice.postBootSetup();
+        preparer.warmUp(mMockTestDevice);
+        mMockTestDevice.stopLogcat();
+        mMockTestDevice.stopShellSession();
+        // allocate call
+        EasyMock.expect(mMockDeviceFactory.createDevice()).andReturn(mMockTestDevice);
+        replayMocks(preparer, config);
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        assertTrue(manager.prewarmDevice(config));
+        assertTrue(mPrewarmer.isWarm(DEVICE_SERIAL, "boot[wifi:foo]"));
+        // already warm
+        assertFalse(manager.prewarmDevice(config));
+        assertEquals(mMockTestDevice, manager.allocateDevice());
+        assertFalse(mPrewarmer.isWarm(DEVICE_SERIAL));
+        EasyMock.verify(mMockTestDevice, preparer);
+    }
+
+    /**
+     * Test {@link DeviceManager#prewarmDevice(IConfiguration)} is a no-op when disabled.
+     */
+    public void testPrewarmDevice_disabled() throws DeviceNotAvailableException {
+        IConfiguration config = EasyMock.createNiceMock(IConfiguration.class);
+        EasyMock.expect(config.getDeviceRequirements()).andStubReturn(
+                DeviceManager.ANY_DEVICE_OPTIONS);
+        setCheckAvailableDeviceExpectations();
+        replayMocks(config);
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        assertFalse(manager.prewarmDevice(config));
+        assertEquals(mMockTestDevice, manager.allocateDevice());
+    }
+
     /**
      * Verified that a online device that becomes offline can be allocated
      */
@@ -683,6 +754,7 @@ public class DeviceManagerTest extends TestCase {
         setCheckAvailableDeviceExpectations();
         EasyMock.expect(mMockIDevice.getState()).andReturn(DeviceState.OFFLINE);
         mMockTestDevice.stopLogcat();
+        mMockTestDevice.stopShellSession();
         mMockTestDevice.setDeviceState(TestDeviceState.OFFLINE);
         EasyMock.expect(mMockDeviceFactory.createDevice()).andReturn(mMockTestDevice);
 
@@ -758,6 +830,54 @@ public class DeviceManagerTest extends TestCase {
         assertTrue(deviceSerials.contains("HT99PP800024"));
     }
 
+    /**
+     * Test that fastboot listeners are notified of their first poll, then only of changes.
+     */
+    public void testNotifyFastbootListeners() throws DeviceNotAvailableException {
+        EasyMock.reset(mMockRunUtil);
+        // mock 'fastboot help' call
+        EasyMock.expect(mMockRunUtil.runTimedCmdSilently(EasyMock.anyLong(),
+                EasyMock.eq("fastboot"), EasyMock.eq("help"))).andReturn(new CommandResult(
+                        CommandStatus.SUCCESS));
+        // mock 'fastboot devices' call to return no device
+        CommandResult fastbootResult = new CommandResult(CommandStatus.SUCCESS);
+        fastbootResult.setStdout("");
+        EasyMock.expect(mMockRunUtil.runTimedCmd(EasyMock.anyLong(),
+                EasyMock.eq("fastboot"), EasyMock.eq("devices"))).andReturn(fastbootResult);
+        IDeviceManager.IFastbootListener firstListener = EasyMock.createStrictMock(
+                IDeviceManager.IFastbootListener.class);
+        IDeviceManager.IFastbootListener secondListener = EasyMock.createStrictMock(
+                IDeviceManager.IFastbootListener.class);
+        firstListener.stateUpdated();
+        EasyMock.expectLastCall().times(2);
+        secondListener.stateUpdated();
+        EasyMock.expectLastCall().times(2);
+        replayMocks(firstListener, secondListener);
+        DeviceManager manager = createDeviceManager();
+        manager.addFastbootListener(firstListener);
+        manager.notifyFastbootListeners(false);
+        manager.addFastbootListener(secondListener);
+        // only the new listener is notified of an unchanged poll
+        manager.notifyFastbootListeners(false);
+        manager.notifyFastbootListeners(true);
+        manager.removeFastbootListener(firstListener);
+        manager.notifyFastbootListeners(false);
+        EasyMock.verify(firstListener, secondListener);
+    }
+
+    /**
+     * Verify the detection of USB hotplug events in 'udevadm monitor' output
+     */
+    public void testIsHotplugEvent() {
+        assertTrue(DeviceManager.isHotplugEvent(
+                "UDEV  [8143.478474] add      /devices/pci0000:00/0000:00:14.0/usb1/1-2 (usb)"));
+        assertTrue(DeviceManager.isHotplugEvent(
+                "UDEV  [8150.112233] remove   /devices/pci0000:00/0000:00:14.0/usb1/1-2 (usb)"));
+        assertFalse(DeviceManager.isHotplugEvent(
+                "UDEV  [8143.480000] bind     /devices/pci0000:00/0000:00:14.0/usb1/1-2 (usb)"));
+        assertFalse(DeviceManager.isHotplugEvent("monitor will print the received events for:"));
+    }
+
     /**
      * Verify the 'fastboot devices' output parsing when empty
      */
@@ -805,6 +925,7 @@ public class DeviceManagerTest extends TestCase {
         EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException());
         EasyMock.expect(mockTcpDevice.getIDevice()).andStubReturn(mMockIDevice);
         mockTcpDevice.stopLogcat();
+        mockTcpDevice.stopShellSession();
         replayMocks(mockTcpDevice);
         DeviceManager manager = createDeviceManager();
         assertNull(manager.connectToTcpDevice(ipAndPort));
@@ -828,6 +949,7 @@ public class DeviceManagerTest extends TestCase {
         mMockRunUtil.sleep(EasyMock.anyLong());
         EasyMock.expectLastCall().times(3);
         mockTcpDevice.stopLogcat();
+        mockTcpDevice.stopShellSession();
         EasyMock.expect(mockTcpDevice.getIDevice()).andStubReturn(mMockIDevice);
         replayMocks(mockTcpDevice);
         DeviceManager manager = createDeviceManager();
@@ -845,6 +967,7 @@ public class DeviceManagerTest extends TestCase {
         IManagedTestDevice mockTcpDevice = setConnectToTcpDeviceExpectations(ipAndPort);
         EasyMock.expect(mockTcpDevice.switchToAdbUsb()).andReturn(Boolean.TRUE);
         mockTcpDevice.stopLogcat();
+        mockTcpDevice.stopShellSession();
         EasyMock.expect(mockTcpDevice.getIDevice()).andStubReturn(mMockIDevice);
         replayMocks(mockTcpDevice);
         DeviceManager manager = createDeviceManager();
@@ -886,6 +1009,7 @@ public class DeviceManagerTest extends TestCase {
         // expect recover to be attempted on usb device
         mMockTestDevice.recoverDevice();
         mockTcpDevice.stopLogcat();
+        mockTcpDevice.stopShellSession();
         EasyMock.expect(mockTcpDevice.getIDevice()).andStubReturn(mMockIDevice);
         replayMocks(mockTcpDevice);
         DeviceManager manager = createDeviceManager(mMockIDevice);
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link DevicePrewarmer}.
+ */
+public class DevicePrewarmerTest extends TestCase {
+
+    private DevicePrewarmer mPrewarmer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrewarmer = new DevicePrewarmer();
+    }
+
+    private static IDeviceWarmUp createWarmUp(final String key) {
+        return new IDeviceWarmUp() {
+            @Override
+            public String getWarmUpKey() {
+                return key;
+            }
+
+            @Override
+            public void warmUp(ITestDevice device) {
+                // ignore
+            }
+        };
+    }
+
+    /**
+     * Test that the warm key ignores the order of warm-ups, and those with nothing to do.
+     */
+    public void testGetWarmKey() {
+        IDeviceWarmUp a = createWarmUp("a");
+        IDeviceWarmUp b = createWarmUp("b");
+        IDeviceWarmUp none = createWarmUp(null);
+        assertEquals(DevicePrewarmer.getWarmKey(Arrays.asList(a, b)),
+                DevicePrewarmer.getWarmKey(Arrays.asList(b, none, a)));
+        assertFalse(DevicePrewarmer.getWarmKey(Arrays.asList(a)).equals(
+                DevicePrewarmer.getWarmKey(Arrays.asList(a, b))));
+        assertEquals(DevicePrewarmer.getWarmKey(new ArrayList<IDeviceWarmUp>()),
+                DevicePrewarmer.getWarmKey(Arrays.asList(none)));
+    }
+
+    /**
+     * Test the warm state of a device through a warm-up and an allocation.
+     */
+    public void testWarmUp() {
+        mPrewarmer.warmUpStarted("key");
+        mPrewarmer.warmUpStarted("key");
+        assertTrue(mPrewarmer.isWarming("key"));
+        mPrewarmer.warmUpFinished("serial", "key", true);
+        assertTrue(mPrewarmer.isWarming("key"));
+        mPrewarmer.warmUpFinished("serial2", "key", false);
+        assertFalse(mPrewarmer.isWarming("key"));
+
+        assertTrue(mPrewarmer.isWarm("serial", "key"));
+        assertFalse(mPrewarmer.isWarm("serial", "other"));
+        assertFalse(mPrewarmer.isWarm("serial2"));
+        mPrewarmer.deviceAllocated("serial");
+        assertFalse(mPrewarmer.isWarm("serial"));
+    }
+}
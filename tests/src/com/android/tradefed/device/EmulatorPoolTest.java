@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link EmulatorPool} and {@link EmulatorConsoleClient}, against a fake emulator
+ * console.
+ */
+public class EmulatorPoolTest extends TestCase {
+
+    private static final List<String> ARGS = Arrays.asList("emulator", "-avd", "foo");
+    private static final List<String> OTHER_ARGS = Arrays.asList("emulator", "-avd", "bar");
+    private static final String SNAPSHOT = "tradefed-clean";
+
+    private FakeConsole mConsole;
+    private String mSerial;
+    private EmulatorPool mPool;
+
+    /**
+     * A fake emulator console, that records the commands it receives.
+     */
+    private static class FakeConsole extends Thread {
+        private final ServerSocket mServerSocket;
+        private final List<String> mCommands = Collections.synchronizedList(
+                new ArrayList<String>());
+        private volatile boolean mFail = false;
+        private volatile boolean mAuthRequired = false;
+
+        FakeConsole() throws IOException {
+            mServerSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            OutputStream output = socket.getOutputStream();
+            write(output, "Android Console: type 'help' for a list of commands");
+            if (mAuthRequired) {
+                write(output, "Android Console: Authentication required");
+            }
+            write(output, "OK");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mCommands.add(line);
+                if (mFail) {
+                    write(output, "KO: snapshot failed");
+                } else {
+                    write(output, "OK");
+                }
+            }
+        }
+
+        private void write(OutputStream output, String line) throws IOException {
+            output.write((line + "\r\n").getBytes("UTF-8"));
+            output.flush();
+        }
+
+        List<String> getCommands() {
+            synchronized (mCommands) {
+                return new ArrayList<String>(mCommands);
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    /**
+     * A fake emulator process.
+     */
+    private static class FakeProcess extends Process {
+        private volatile boolean mAlive = true;
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            if (mAlive) {
+                throw new IllegalThreadStateException();
+            }
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            mAlive = false;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConsole = new FakeConsole();
+        mConsole.start();
+        mSerial = "emulator-" + mConsole.getPort();
+        mPool = new EmulatorPool();
+        mPool.setEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mConsole.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test that a freed emulator is restored to its clean snapshot, and reused by the next launch.
+     */
+    public void testReleaseAcquire() throws Exception {
+        assertNull(mPool.acquire(mSerial, ARGS));
+        mPool.emulatorBooted(mSerial, ARGS);
+        FakeProcess process = new FakeProcess();
+        assertTrue(mPool.release(mSerial, process));
+        assertTrue(mPool.isPooled(mSerial));
+        assertEquals(1, mPool.getWarmCount());
+
+        // waits for the snapshot restore
+        assertSame(process, mPool.acquire(mSerial, ARGS));
+        assertEquals(Arrays.asList("avd snapshot save " + SNAPSHOT,
+                "avd snapshot load " + SNAPSHOT), mConsole.getCommands());
+        assertFalse(mPool.isPooled(mSerial));
+        assertTrue(process.mAlive);
+    }
+
+    /**
+     * Test that a parked emulator is killed when its snapshot fails to restore.
+     */
+    public void testRelease_restoreFailed() throws Exception {
+        mPool.emulatorBooted(mSerial, ARGS);
+        mConsole.mFail = true;
+        FakeProcess process = new FakeProcess();
+        assertTrue(mPool.release(mSerial, process));
+        assertNull(mPool.acquire(mSerial, ARGS));
+        assertFalse(process.mAlive);
+        assertFalse(mPool.isPooled(mSerial));
+        // not kept warm until a new snapshot is saved
+        assertFalse(mPool.release(mSerial, new FakeProcess()));
+    }
+
+    /**
+     * Test that a warm emulator is killed when the next launch asks for another command line.
+     */
+    public void testAcquire_otherArgs() throws Exception {
+        mPool.emulatorBooted(mSerial, ARGS);
+        FakeProcess process = new FakeProcess();
+        assertTrue(mPool.release(mSerial, process));
+        assertNull(mPool.acquire(mSerial, OTHER_ARGS));
+        assertFalse(process.mAlive);
+        assertFalse(mPool.isPooled(mSerial));
+    }
+
+    /**
+     * Test that a warm emulator that died is not reused.
+     */
+    public void testAcquire_died() throws Exception {
+        mPool.emulatorBooted(mSerial, ARGS);
+        FakeProcess process = new FakeProcess();
+        assertTrue(mPool.release(mSerial, process));
+        process.destroy();
+        assertNull(mPool.acquire(mSerial, ARGS));
+    }
+
+    /**
+     * Test that an emulator without a clean snapshot is not kept warm.
+     */
+    public void testRelease_saveFailed() throws Exception {
+        mConsole.mFail = true;
+        mPool.emulatorBooted(mSerial, ARGS);
+        assertFalse(mPool.release(mSerial, new FakeProcess()));
+        assertFalse(mPool.isPooled(mSerial));
+    }
+
+    /**
+     * Test that emulators are not kept warm when the pool is disabled.
+     */
+    public void testRelease_disabled() throws Exception {
+        mPool.setEnabled(false);
+        mPool.emulatorBooted(mSerial, ARGS);
+        assertFalse(mPool.release(mSerial, new FakeProcess()));
+        assertTrue(mConsole.getCommands().isEmpty());
+        assertNull(mPool.startSpawn(mSerial));
+    }
+
+    /**
+     * Test pre-spawning an emulator with the command line the serial was last launched with.
+     */
+    public void testSpawn() throws Exception {
+        // never launched
+        assertNull(mPool.startSpawn(mSerial));
+        mPool.emulatorBooted(mSerial, ARGS);
+        List<String> args = mPool.startSpawn(mSerial);
+        assertEquals(ARGS, args);
+        assertTrue(mPool.isPooled(mSerial));
+        // already spawning
+        assertNull(mPool.startSpawn(mSerial));
+
+        FakeProcess process = new FakeProcess();
+        mPool.spawnFinished(mSerial, args, process, true);
+        assertTrue(mPool.isPooled(mSerial));
+        assertSame(process, mPool.acquire(mSerial, ARGS));
+    }
+
+    /**
+     * Test that an emulator that failed to boot is killed.
+     */
+    public void testSpawn_notBooted() throws Exception {
+        mPool.emulatorBooted(mSerial, ARGS);
+        List<String> args = mPool.startSpawn(mSerial);
+        FakeProcess process = new FakeProcess();
+        mPool.spawnFinished(mSerial, args, process, false);
+        assertFalse(process.mAlive);
+        assertFalse(mPool.isPooled(mSerial));
+        assertNull(mPool.acquire(mSerial, ARGS));
+    }
+
+    /**
+     * Test that the console auth token is sent when the console asks for it.
+     */
+    public void testConsole_auth() throws Exception {
+        mConsole.mAuthRequired = true;
+        EmulatorConsoleClient client = new EmulatorConsoleClient(mConsole.getPort(), 5000) {
+            @Override
+            String getAuthToken() {
+                return "token";
+            }
+        };
+        client.loadSnapshot(SNAPSHOT);
+        assertEquals(Arrays.asList("auth token", "avd snapshot load " + SNAPSHOT),
+                mConsole.getCommands());
+    }
+
+    /**
+     * Test that an error reply of the console is reported.
+     */
+    public void testConsole_error() throws Exception {
+        mConsole.mFail = true;
+        EmulatorConsoleClient client = new EmulatorConsoleClient(mConsole.getPort(), 5000);
+        try {
+            client.saveSnapshot(SNAPSHOT);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("KO"));
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
+import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 import com.android.tradefed.util.IRunUtil;
@@ -255,6 +256,22 @@ public class MockDeviceManager implements IDeviceManager {
         // ignore
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prewarmEmulators(int demand) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean prewarmDevice(IConfiguration config) {
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
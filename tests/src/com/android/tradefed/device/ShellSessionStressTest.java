@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.Log;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.RunUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Benchmark of {@link ShellSession} command throughput, compared with launching a new shell per
+ * command.
+ * <p/>
+ * A local 'sh' stands in for the adb shell, so the numbers measure framing and process overhead
+ * rather than adb transport latency. Does not require a device.
+ */
+public class ShellSessionStressTest extends TestCase {
+
+    private static final String LOG_TAG = "ShellSessionStressTest";
+    private static final int ITERATIONS = 500;
+    private static final long TIMEOUT = 10 * 1000;
+
+    /**
+     * Measure commands per second when all commands run in one session.
+     */
+    public void testSessionThroughput() throws IOException {
+        ShellSession session = new ShellSession(RunUtil.getDefault(), "sh");
+        try {
+            // warm up the session
+            session.executeCommand("true", TIMEOUT);
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < ITERATIONS; i++) {
+                ShellSession.Result result = session.executeCommand("ls /", TIMEOUT);
+                assertEquals(0, result.getExitCode());
+            }
+            logThroughput("session", startTime);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Measure commands per second when each command launches its own shell.
+     */
+    public void testPerCommandThroughput() {
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            CommandResult result = RunUtil.getDefault().runTimedCmd(TIMEOUT, "sh", "-c", "ls /");
+            assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        }
+        logThroughput("per-command", startTime);
+    }
+
+    private void logThroughput(String mode, long startTime) {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        Log.logAndDisplay(Log.LogLevel.INFO, LOG_TAG, String.format(
+                "%s: %d commands in %d ms, %.1f commands/sec", mode, ITERATIONS, elapsed,
+                ITERATIONS * 1000.0 / elapsed));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.RunUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link ShellSession}.
+ * <p/>
+ * Uses a local 'sh' process in place of 'adb shell'.
+ */
+public class ShellSessionTest extends TestCase {
+
+    private static final long TIMEOUT = 10 * 1000;
+
+    private ShellSession mSession;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSession = new ShellSession(RunUtil.getDefault(), "sh");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mSession.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test running several commands back to back in one session.
+     */
+    public void testExecuteCommand() throws IOException {
+        ShellSession.Result result = mSession.executeCommand("echo hello; echo world", TIMEOUT);
+        assertEquals("hello\nworld\n", result.getOutput());
+        assertEquals(0, result.getExitCode());
+        result = mSession.executeCommand("echo again", TIMEOUT);
+        assertEquals("again\n", result.getOutput());
+        assertTrue(mSession.isOpen());
+    }
+
+    /**
+     * Test that a command's exit code is captured.
+     */
+    public void testExecuteCommand_exitCode() throws IOException {
+        ShellSession.Result result = mSession.executeCommand("echo failed; exit 3", TIMEOUT);
+        assertEquals("failed\n", result.getOutput());
+        assertEquals(3, result.getExitCode());
+    }
+
+    /**
+     * Test that output without a trailing newline is framed correctly.
+     */
+    public void testExecuteCommand_noTrailingNewline() throws IOException {
+        ShellSession.Result result = mSession.executeCommand("printf partial", TIMEOUT);
+        assertEquals("partial", result.getOutput());
+        assertEquals(0, result.getExitCode());
+    }
+
+    /**
+     * Test that comments, unbalanced parentheses and quotes in a command don't break the framing
+     * of its output.
+     */
+    public void testExecuteCommand_unframeable() throws IOException {
+        ShellSession.Result result = mSession.executeCommand("echo a # comment", TIMEOUT);
+        assertEquals("a\n", result.getOutput());
+        assertEquals(0, result.getExitCode());
+        result = mSession.executeCommand("echo 'it'\"s\"", TIMEOUT);
+        assertEquals("its\n", result.getOutput());
+        result = mSession.executeCommand("echo b )", TIMEOUT);
+        assertTrue(result.getExitCode() != 0);
+        result = mSession.executeCommand("echo 'c", TIMEOUT);
+        assertTrue(result.getExitCode() != 0);
+        assertTrue(mSession.isOpen());
+    }
+
+    /**
+     * Test {@link ShellSession#appendExitCode(String)} and
+     * {@link ShellSession#parseExitCode(String)}.
+     */
+    public void testParseExitCode() throws IOException {
+        CommandResult cmdResult = RunUtil.getDefault().runTimedCmd(TIMEOUT, "sh", "-c",
+                ShellSession.appendExitCode("echo 'failed'; exit 4"));
+        ShellSession.Result result = ShellSession.parseExitCode(cmdResult.getStdout());
+        assertEquals("failed\n", result.getOutput());
+        assertEquals(4, result.getExitCode());
+        try {
+            ShellSession.parseExitCode("truncated");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that echoed input, as produced by a pty, is not included in output.
+     */
+    public void testExecuteCommand_echoedInput() throws IOException {
+        mSession.close();
+        mSession = new ShellSession(RunUtil.getDefault(), "sh", "-c", "exec sh -v 2>&1");
+        ShellSession.Result result = mSession.executeCommand("echo hello", TIMEOUT);
+        assertEquals("hello\n", result.getOutput());
+        assertEquals(0, result.getExitCode());
+    }
+
+    /**
+     * Test that a timed out command closes the session, and the next command restarts it.
+     */
+    public void testExecuteCommand_timeout() throws IOException {
+        try {
+            mSession.executeCommand("echo partial; sleep 5", 500);
+            fail("CommandIncompleteException not thrown");
+        } catch (ShellSession.CommandIncompleteException e) {
+            assertEquals("partial\n", e.getPartialOutput());
+        }
+        assertFalse(mSession.isOpen());
+        assertEquals("ok\n", mSession.executeCommand("echo ok", TIMEOUT).getOutput());
+    }
+
+    /**
+     * Test that the timeout only applies to the time without output.
+     */
+    public void testExecuteCommand_slowOutput() throws IOException {
+        ShellSession.Result result = mSession.executeCommand(
+                "for i in 1 2 3 4 5; do echo $i; sleep 0.3; done", 1000);
+        assertEquals("1\n2\n3\n4\n5\n", result.getOutput());
+    }
+
+    /**
+     * Test that a terminated shell is reported as an error.
+     */
+    public void testExecuteCommand_shellExits() throws IOException {
+        try {
+            mSession.executeCommand("kill -9 $$", TIMEOUT);
+            fail("CommandIncompleteException not thrown");
+        } catch (ShellSession.CommandIncompleteException e) {
+            // expected
+        }
+        assertFalse(mSession.isOpen());
+    }
+}
@@ -51,6 +51,13 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    @Override
+    public ShellSession.Result executeShellCommandForResult(String command)
+            throws DeviceNotAvailableException {
+        // ignore
+        return null;
+    }
+
     @Override
     public IDevice getIDevice() {
         // ignore
@@ -494,6 +494,148 @@ public class TestDeviceTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link TestDevice#executeShellCommand(String, IShellOutputReceiver)} behavior when
+     * command times out once and the retry policy allows a plain retry.
+     * <p/>
+     * Verify that command is re-tried after backoff, without recovery.
+     */
+    public void testExecuteShellCommand_transientRetry() throws Exception {
+        final String testCommand = "simple command";
+        mRecoveryTestDevice.setRetryPolicy(new BackoffRetryPolicy(1, 10, 100, 0));
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andThrow(new TimeoutException());
+        mMockRunUtil.sleep(10);
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        replayMocks();
+        mRecoveryTestDevice.executeShellCommand(testCommand, mMockReceiver);
+        verifyMocks();
+        DeviceActionStats stats = mRecoveryTestDevice.getActionStats();
+        assertEquals(1, stats.getFailureCount(IDeviceRetryPolicy.FailureType.TIMEOUT));
+        assertEquals(0, stats.getRecoveryCount());
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommand(String, IShellOutputReceiver)} behavior when
+     * command times out repeatedly but the device shell is still responsive.
+     * <p/>
+     * Verify that recovery escalates to a shell check only, and command is re-tried.
+     */
+    public void testExecuteShellCommand_shellCheckRetry() throws Exception {
+        final String testCommand = "simple command";
+        mRecoveryTestDevice.setRetryPolicy(new BackoffRetryPolicy(1, 10, 100, 0));
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andThrow(new TimeoutException()).times(2);
+        mMockRunUtil.sleep(10);
+        mMockRunUtil.sleep(20);
+        EasyMock.expect(mMockMonitor.waitForDeviceShell(EasyMock.anyLong())).andReturn(true);
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        replayMocks();
+        mRecoveryTestDevice.executeShellCommand(testCommand, mMockReceiver);
+        verifyMocks();
+        DeviceActionStats stats = mRecoveryTestDevice.getActionStats();
+        assertEquals(2, stats.getTotalFailureCount());
+        assertEquals(1, stats.getShellCheckCount());
+        assertEquals(0, stats.getRecoveryCount());
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommand(String, IShellOutputReceiver)} behavior when
+     * command fails with an IOException and the device shell is unresponsive.
+     * <p/>
+     * Verify that recovery escalates from a shell check to full recovery.
+     */
+    public void testExecuteShellCommand_shellCheckEscalates() throws Exception {
+        final String testCommand = "simple command";
+        mRecoveryTestDevice.setRetryPolicy(new BackoffRetryPolicy(1, 10, 100, 0));
+        mRecoveryTestDevice.setRecoveryMode(RecoveryMode.NONE);
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andThrow(new IOException());
+        // IOExceptions skip plain retries and go straight to shell check
+        mMockRunUtil.sleep(10);
+        EasyMock.expect(mMockMonitor.waitForDeviceShell(EasyMock.anyLong())).andReturn(false);
+        mMockRunUtil.sleep(TestDevice.NONE_RECOVERY_MODE_DELAY);
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand), EasyMock.eq(mMockReceiver),
+                EasyMock.anyInt());
+        replayMocks();
+        mRecoveryTestDevice.executeShellCommand(testCommand, mMockReceiver);
+        verifyMocks();
+        DeviceActionStats stats = mRecoveryTestDevice.getActionStats();
+        assertEquals(1, stats.getFailureCount(IDeviceRetryPolicy.FailureType.IO_ERROR));
+        assertEquals(1, stats.getShellCheckCount());
+        assertEquals(1, stats.getRecoveryCount());
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommand(String)} falls back to a separate shell channel
+     * when the shell session fails.
+     */
+    public void testExecuteShellCommand_sessionFallback() throws Exception {
+        final String testCommand = "simple command";
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            ShellSession createShellSession() {
+                return new ShellSession(mMockRunUtil, "adb", "shell") {
+                    @Override
+                    public synchronized Result executeCommand(String command, long timeout)
+                            throws IOException {
+                        throw new IOException();
+                    }
+                };
+            }
+        };
+        testDevice.getOptions().setUseShellSession(true);
+        mMockIDevice.executeShellCommand(EasyMock.eq(testCommand),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt());
+        replayMocks();
+        testDevice.executeShellCommand(testCommand);
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommand(String)} does not run the command again when the
+     * shell session fails after the command was sent.
+     */
+    public void testExecuteShellCommand_sessionIncomplete() throws Exception {
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            ShellSession createShellSession() {
+                return new ShellSession(mMockRunUtil, "adb", "shell") {
+                    @Override
+                    public synchronized Result executeCommand(String command, long timeout)
+                            throws IOException {
+                        throw new ShellSession.CommandIncompleteException("timed out",
+                                "partial\n");
+                    }
+                };
+            }
+        };
+        testDevice.getOptions().setUseShellSession(true);
+        replayMocks();
+        assertEquals("partial\n", testDevice.executeShellCommand("simple command"));
+        assertNull(testDevice.executeShellCommandForResult("simple command"));
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommandForResult(String)} gets the exit code of a
+     * command run on a separate shell channel.
+     */
+    public void testExecuteShellCommandForResult() throws Exception {
+        final String testCommand = "simple command";
+        injectShellResponse(ShellSession.appendExitCode(testCommand),
+                "output\r\n__TF_SESSION_EXIT 1\r\n");
+        EasyMock.replay(mMockIDevice);
+        ShellSession.Result result = mTestDevice.executeShellCommandForResult(testCommand);
+        assertEquals("output\r\n", result.getOutput());
+        assertEquals(1, result.getExitCode());
+    }
+
     /**
      * Puts all the mock objects into replay mode
      */
@@ -804,6 +946,29 @@ public class TestDeviceTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that wifi operations reuse the same {@link IWifiHelper}, which is only cleaned up once
+     * the device's sessions are stopped.
+     */
+    public void testGetIpAddress_reuseWifiHelper() throws Exception {
+        final int[] created = new int[1];
+        TestDevice testDevice = new TestableTestDevice() {
+            @Override
+            IWifiHelper createWifiHelper() {
+                created[0]++;
+                return mMockWifi;
+            }
+        };
+        EasyMock.expect(mMockWifi.getIpAddress()).andReturn("ip").times(2);
+        mMockWifi.cleanUp();
+        replayMocks();
+        assertEquals("ip", testDevice.getIpAddress());
+        assertEquals("ip", testDevice.getIpAddress());
+        testDevice.stopShellSession();
+        verifyMocks();
+        assertEquals(1, created[0]);
+    }
+
     /**
      * Test normal success case for {@link TestDevice#switchToAdbTcp()}.
      */
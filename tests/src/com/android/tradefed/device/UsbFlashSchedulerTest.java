@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link UsbFlashScheduler}.
+ */
+public class UsbFlashSchedulerTest extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private Map<String, String> mHubs;
+    private UsbFlashScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHubs = new HashMap<String, String>();
+        mHubs.put("a1", "1-1");
+        mHubs.put("a2", "1-1");
+        mHubs.put("a3", "1-1");
+        mHubs.put("b1", "2-1");
+        UsbTopology topology = new UsbTopology(new File("/does/not/exist")) {
+            @Override
+            public synchronized String getHub(String serial) {
+                return mHubs.get(serial);
+            }
+        };
+        mScheduler = new UsbFlashScheduler(topology);
+        mScheduler.setHubFlashBytes(100 * MB);
+    }
+
+    /**
+     * A thread that acquires a flash, and signals once admitted.
+     */
+    private class FlashThread extends Thread {
+        private final String mSerial;
+        private final long mBytes;
+        private final CountDownLatch mAdmitted = new CountDownLatch(1);
+        private UsbFlashScheduler.Flash mFlash;
+
+        FlashThread(String serial, long bytes) {
+            mSerial = serial;
+            mBytes = bytes;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mFlash = mScheduler.acquire(mSerial, "system", mBytes);
+                mAdmitted.countDown();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        boolean isAdmitted(long timeoutMs) throws InterruptedException {
+            return mAdmitted.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Test that a large flash waits for the flash on the same hub, while a flash on another hub
+     * starts immediately.
+     */
+    public void testAcquire_perHub() throws Exception {
+        UsbFlashScheduler.Flash first = mScheduler.acquire("a1", "system", 200 * MB);
+        assertEquals("1-1", first.getHub());
+        FlashThread sameHub = new FlashThread("a2", 200 * MB);
+        sameHub.start();
+        assertFalse(sameHub.isAdmitted(100));
+
+        UsbFlashScheduler.Flash otherHub = mScheduler.acquire("b1", "system", 200 * MB);
+        assertEquals("2-1", otherHub.getHub());
+
+        first.release(true);
+        assertTrue(sameHub.isAdmitted(5000));
+        sameHub.mFlash.release(true);
+        otherHub.release(true);
+        assertEquals(3, mScheduler.getPartitionStats("system").getCount());
+    }
+
+    /**
+     * Test that small flashes share a hub within the byte budget.
+     */
+    public void testAcquire_smallFlashesShareHub() throws Exception {
+        UsbFlashScheduler.Flash first = mScheduler.acquire("a1", "boot", 40 * MB);
+        UsbFlashScheduler.Flash second = mScheduler.acquire("a2", "boot", 40 * MB);
+        FlashThread third = new FlashThread("a3", 40 * MB);
+        third.start();
+        assertFalse(third.isAdmitted(100));
+        second.release(true);
+        // releasing twice must not free extra bandwidth
+        second.release(true);
+        assertTrue(third.isAdmitted(5000));
+        first.release(true);
+        third.mFlash.release(true);
+        assertEquals(2, mScheduler.getPartitionStats("boot").getCount());
+    }
+
+    /**
+     * Test that a small flash can overtake a large one waiting for the hub, only within the
+     * backfill time.
+     */
+    public void testAcquire_backfill() throws Exception {
+        UsbFlashScheduler.Flash first = mScheduler.acquire("a1", "boot", 40 * MB);
+        FlashThread large = new FlashThread("a2", 200 * MB);
+        large.start();
+        assertFalse(large.isAdmitted(100));
+
+        FlashThread small = new FlashThread("a3", 40 * MB);
+        small.start();
+        assertTrue(small.isAdmitted(5000));
+        small.mFlash.release(true);
+
+        mScheduler.setBackfillTime(0);
+        FlashThread late = new FlashThread("a3", 40 * MB);
+        late.start();
+        assertFalse(late.isAdmitted(100));
+
+        first.release(true);
+        assertTrue(large.isAdmitted(5000));
+        assertFalse(late.isAdmitted(100));
+        large.mFlash.release(true);
+        assertTrue(late.isAdmitted(5000));
+        late.mFlash.release(false);
+    }
+
+    /**
+     * Test that devices on an unknown hub are never held back.
+     */
+    public void testAcquire_unknownHub() throws Exception {
+        UsbFlashScheduler.Flash first = mScheduler.acquire("unknown", "system", 200 * MB);
+        UsbFlashScheduler.Flash second = mScheduler.acquire("unknown", "system", 200 * MB);
+        assertNull(first.getHub());
+        first.release(true);
+        second.release(false);
+        assertEquals(1, mScheduler.getPartitionStats("system").getCount());
+
+        StringWriter output = new StringWriter();
+        mScheduler.printStats(new PrintWriter(output));
+        assertTrue(output.toString().contains("system"));
+    }
+}
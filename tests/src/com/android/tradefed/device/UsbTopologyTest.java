@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link UsbTopology}, using a fake sysfs tree.
+ */
+public class UsbTopologyTest extends TestCase {
+
+    private File mDevicesDir;
+    private UsbTopology mTopology;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevicesDir = FileUtil.createTempDir("usb-devices");
+        mTopology = new UsbTopology(mDevicesDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mDevicesDir);
+        super.tearDown();
+    }
+
+    /**
+     * Create a fake sysfs device entry.
+     */
+    private void addDevice(String name, String serial) throws IOException {
+        File deviceDir = new File(mDevicesDir, name);
+        deviceDir.mkdirs();
+        File serialFile = new File(deviceDir, "serial");
+        serialFile.delete();
+        FileUtil.writeToFile(serial + "\n", serialFile);
+    }
+
+    /**
+     * Test that devices are mapped to the hub they are plugged into.
+     */
+    public void testGetHub() throws Exception {
+        addDevice("usb1", "0000:00:14.0");
+        addDevice("1-1", "hub-serial");
+        addDevice("1-1.2", "device1");
+        addDevice("1-1.3", "device2");
+        addDevice("1-1.3:1.0", "interface");
+        addDevice("2-4", "device3");
+        addDevice("2-1.4.1", "device4");
+
+        assertEquals("1-1", mTopology.getHub("device1"));
+        assertEquals("1-1", mTopology.getHub("device2"));
+        assertEquals("usb2", mTopology.getHub("device3"));
+        assertEquals("2-1.4", mTopology.getHub("device4"));
+        assertEquals("usb1", mTopology.getHub("hub-serial"));
+        assertNull(mTopology.getHub("interface"));
+        assertNull(mTopology.getHub("0000:00:14.0"));
+    }
+
+    /**
+     * Test that a device plugged in after the last scan is found, and that a replugged device is
+     * looked up again once invalidated.
+     */
+    public void testGetHub_replug() throws Exception {
+        assertNull(mTopology.getHub("device1"));
+        addDevice("1-1.2", "device1");
+        assertEquals("1-1", mTopology.getHub("device1"));
+
+        FileUtil.recursiveDelete(new File(mDevicesDir, "1-1.2"));
+        addDevice("3-2.1", "device1");
+        // still cached
+        assertEquals("1-1", mTopology.getHub("device1"));
+        mTopology.invalidate("device1");
+        assertEquals("3-2", mTopology.getHub("device1"));
+    }
+
+    /**
+     * Test that no hub is found when sysfs is not available.
+     */
+    public void testGetHub_noSysfs() {
+        UsbTopology topology = new UsbTopology(new File(mDevicesDir, "missing"));
+        assertNull(topology.getHub("device1"));
+    }
+}
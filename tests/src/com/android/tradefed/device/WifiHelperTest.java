@@ -21,6 +21,9 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Unit tests for {@link WifiHelper}.
  */
@@ -94,4 +97,115 @@ public class WifiHelperTest extends TestCase {
         // verify that two executeCommand attempt were made
         EasyMock.verify(mMockDevice);
     }
+
+    /**
+     * Test {@link WifiHelper#waitForIp()} in a session waits for the reported state instead of
+     * polling the device.
+     */
+    public void testWaitForIp_session() throws Exception {
+        EasyMock.replay(mMockDevice);
+        final WifiUtilSession session = new WifiUtilSession(mMockDevice) {
+            @Override
+            public boolean start(long timeout) {
+                return true;
+            }
+
+            @Override
+            public synchronized boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public synchronized Map<String, String> getState() {
+                Map<String, String> state = new HashMap<String, String>();
+                state.put(STATE_IP_ADDRESS, "1.2.3.4");
+                return state;
+            }
+
+            @Override
+            public synchronized boolean waitForState(StateCondition condition, long timeout) {
+                return condition.isSatisfied(getState());
+            }
+        };
+        WifiHelper wifiHelper = new WifiHelper(mMockDevice, true) {
+            @Override
+            WifiUtilSession createSession() {
+                return session;
+            }
+        };
+        assertTrue(wifiHelper.waitForIp(10 * 60 * 1000));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a session is started once and reused by the following method calls, and
+     * restarted once it ends.
+     */
+    public void testGetIpAddress_sessionReused() throws Exception {
+        EasyMock.replay(mMockDevice);
+        final boolean[] open = new boolean[] {true};
+        final int[] started = new int[1];
+        final WifiUtilSession session = new WifiUtilSession(mMockDevice) {
+            @Override
+            public boolean start(long timeout) {
+                started[0]++;
+                open[0] = true;
+                return true;
+            }
+
+            @Override
+            public synchronized boolean isOpen() {
+                return open[0];
+            }
+
+            @Override
+            public String call(long timeout, String method, String... args) {
+                return "1.2.3.4";
+            }
+        };
+        WifiHelper wifiHelper = new WifiHelper(mMockDevice, true) {
+            @Override
+            WifiUtilSession createSession() {
+                return session;
+            }
+        };
+        assertEquals("1.2.3.4", wifiHelper.getIpAddress());
+        assertEquals("1.2.3.4", wifiHelper.getIpAddress());
+        assertEquals(1, started[0]);
+        // session idled out
+        open[0] = false;
+        assertEquals("1.2.3.4", wifiHelper.getIpAddress());
+        assertEquals(2, started[0]);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a session that fails to start is not retried, and method calls fall back to an
+     * instrumentation each.
+     */
+    public void testGetIpAddress_sessionUnsupported() throws Exception {
+        MockTestDeviceHelper.injectShellResponse(mMockDevice, null,
+                "INSTRUMENTATION_RESULT: result=1.2.3.4", false);
+        MockTestDeviceHelper.injectShellResponse(mMockDevice, null,
+                "INSTRUMENTATION_RESULT: result=1.2.3.4", false);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(mMockDevice);
+        final int[] started = new int[1];
+        WifiHelper wifiHelper = new WifiHelper(mMockDevice, true) {
+            @Override
+            WifiUtilSession createSession() {
+                return new WifiUtilSession(mMockDevice) {
+                    @Override
+                    public boolean start(long timeout) {
+                        started[0]++;
+                        return false;
+                    }
+                };
+            }
+        };
+        assertEquals("1.2.3.4", wifiHelper.getIpAddress());
+        assertEquals("1.2.3.4", wifiHelper.getIpAddress());
+        assertEquals(1, started[0]);
+        EasyMock.verify(mMockDevice);
+    }
 }
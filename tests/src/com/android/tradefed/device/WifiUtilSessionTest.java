@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link WifiUtilSession}.
+ */
+public class WifiUtilSessionTest extends TestCase {
+
+    private ITestDevice mMockDevice;
+    private IDevice mMockIDevice;
+    private IShellOutputReceiver mReceiver;
+    /** released to end the session's shell command */
+    private CountDownLatch mSessionEnd;
+    /** stands in for the session instrumentation's socket */
+    private ServerSocket mServer;
+    private Socket mDeviceSocket = null;
+    private BufferedReader mDeviceIn;
+    private Writer mDeviceOut;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSessionEnd = new CountDownLatch(1);
+        mServer = new ServerSocket(0);
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        mMockIDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDevice.getIDevice()).andStubReturn(mMockIDevice);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mSessionEnd.countDown();
+        if (mDeviceSocket != null) {
+            mDeviceSocket.close();
+        }
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Create a {@link WifiUtilSession} that connects to {@link #mServer} instead of forwarding a
+     * port to the device.
+     */
+    private WifiUtilSession createSession() {
+        return new WifiUtilSession(mMockDevice) {
+            @Override
+            Socket openSocket() throws IOException {
+                return new Socket(InetAddress.getByName("localhost"), mServer.getLocalPort());
+            }
+        };
+    }
+
+    /**
+     * Simulate the session instrumentation, which reports given output when started, and stays
+     * alive until {@link #mSessionEnd} is released.
+     */
+    private void injectSession(final String initialOutput) throws Exception {
+        mMockIDevice.executeShellCommand(EasyMock.contains("-e method session"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                mReceiver = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] data = initialOutput.getBytes();
+                mReceiver.addOutput(data, 0, data.length);
+                mReceiver.flush();
+                mSessionEnd.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    private static String status(int code, String... keyValues) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            sb.append(String.format("INSTRUMENTATION_STATUS: %s=%s\r\n", keyValues[i],
+                    keyValues[i + 1]));
+        }
+        sb.append(String.format("INSTRUMENTATION_STATUS_CODE: %d\r\n", code));
+        return sb.toString();
+    }
+
+    /**
+     * Accept the session's connection on the simulated device socket.
+     */
+    private void acceptConnection() throws IOException {
+        mDeviceSocket = mServer.accept();
+        mDeviceIn = new BufferedReader(new InputStreamReader(mDeviceSocket.getInputStream(),
+                "UTF-8"));
+        mDeviceOut = new OutputStreamWriter(mDeviceSocket.getOutputStream(), "UTF-8");
+    }
+
+    /**
+     * Send a message from the simulated device.
+     */
+    private void deviceSend(String type, String... keyValues) throws IOException {
+        Map<String, String> message = new LinkedHashMap<String, String>();
+        message.put("type", type);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            message.put(keyValues[i], keyValues[i + 1]);
+        }
+        mDeviceOut.write(WifiUtilSession.encode(message));
+        mDeviceOut.write('\n');
+        mDeviceOut.flush();
+    }
+
+    /**
+     * Test that a method call is sent on the session connection, without running any device
+     * command, and its result returned.
+     */
+    public void testCall() throws Exception {
+        injectSession(status(WifiUtilSession.STATUS_READY, "wifiEnabled", "false"));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        WifiUtilSession session = createSession();
+        assertTrue(session.start(5000));
+        assertEquals("false", session.getState().get(WifiUtilSession.STATE_WIFI_ENABLED));
+        acceptConnection();
+        final AtomicReference<Map<String, String>> received =
+                new AtomicReference<Map<String, String>>();
+        Thread device = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    received.set(WifiUtilSession.decode(mDeviceIn.readLine()));
+                    deviceSend(WifiUtilSession.MESSAGE_RESULT, "id", received.get().get("id"),
+                            "result", "3");
+                } catch (IOException e) {
+                    // leave received empty
+                }
+            }
+        };
+        device.start();
+        assertEquals("3", session.call(5000, "addWpaPskNetwork", "ssid", "a b&c=d", "psk",
+                "\"pass\""));
+        device.join();
+        assertEquals("addWpaPskNetwork", received.get().get("method"));
+        assertEquals("a b&c=d", received.get().get("ssid"));
+        assertEquals("\"pass\"", received.get().get("psk"));
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+
+    /**
+     * Test that a state wait completes when a state change event is reported.
+     */
+    public void testWaitForState() throws Exception {
+        injectSession(status(WifiUtilSession.STATUS_READY, "supplicantState", "SCANNING"));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        final WifiUtilSession session = createSession();
+        assertTrue(session.start(5000));
+        acceptConnection();
+        WifiUtilSession.StateCondition completed = new WifiUtilSession.StateCondition() {
+            @Override
+            public boolean isSatisfied(Map<String, String> state) {
+                return "COMPLETED".equals(state.get(WifiUtilSession.STATE_SUPPLICANT));
+            }
+        };
+        assertFalse(session.waitForState(completed, 50));
+        deviceSend(WifiUtilSession.MESSAGE_EVENT, "supplicantState", "COMPLETED");
+        assertTrue(session.waitForState(completed, 5000));
+    }
+
+    /**
+     * Test that stopping the session tells the instrumentation to stop, and closes the
+     * connection.
+     */
+    public void testStop() throws Exception {
+        injectSession(status(WifiUtilSession.STATUS_READY));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        WifiUtilSession session = createSession();
+        assertTrue(session.start(5000));
+        acceptConnection();
+        session.stop();
+        assertFalse(session.isOpen());
+        assertEquals("stopSession", WifiUtilSession.decode(mDeviceIn.readLine()).get("method"));
+        assertNull(mDeviceIn.readLine());
+        assertNull(session.call(5000, "enableWifi"));
+    }
+
+    /**
+     * Test that the session closes when the instrumentation closes the connection.
+     */
+    public void testConnectionClosed() throws Exception {
+        injectSession(status(WifiUtilSession.STATUS_READY));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        WifiUtilSession session = createSession();
+        assertTrue(session.start(5000));
+        acceptConnection();
+        mDeviceSocket.close();
+        assertFalse(session.waitForState(new WifiUtilSession.StateCondition() {
+            @Override
+            public boolean isSatisfied(Map<String, String> state) {
+                return false;
+            }
+        }, 5000));
+        assertFalse(session.isOpen());
+    }
+
+    /**
+     * Test that start fails fast when the installed WifiUtil does not support sessions.
+     */
+    public void testStart_unsupported() throws Exception {
+        injectSession("INSTRUMENTATION_RESULT: error=Didn't recognize method 'session'\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n");
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        WifiUtilSession session = createSession();
+        long startTime = System.currentTimeMillis();
+        assertFalse(session.start(5000));
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        assertFalse(session.isOpen());
+        assertNull(session.call(5000, "enableWifi"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.testtype.ICheckpointResumableTest;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link CheckpointJournal}.
+ */
+public class CheckpointJournalTest extends TestCase {
+
+    private static final String[] ARGS = new String[] {"config", "--option", "multi\nline\\"};
+    private static final TestIdentifier TEST1 = new TestIdentifier("Test", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("Test", "test2");
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = FileUtil.createTempDir("checkpoint");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the args and completed tests of an unfinished invocation can be read back.
+     */
+    public void testFindUnfinished() throws Exception {
+        CheckpointJournal journal = CheckpointJournal.create(mDir, ARGS);
+        journal.testEnded(TEST1, EMPTY_MAP);
+        // journals written by this process are not unfinished
+        assertTrue(CheckpointJournal.findUnfinished(mDir).isEmpty());
+
+        CheckpointJournal loaded = CheckpointJournal.load(journal.getFile());
+        assertTrue(Arrays.equals(ARGS, loaded.getArgs()));
+        assertEquals(Arrays.asList(TEST1), loaded.getCompletedTests());
+        String[] resumeArgs = loaded.getResumeArgs();
+        assertEquals("--resume-checkpoint", resumeArgs[ARGS.length]);
+        assertEquals(journal.getFile().getAbsolutePath(), resumeArgs[ARGS.length + 1]);
+        journal.invocationEnded(0);
+    }
+
+    /**
+     * Test that a resumed journal is continued, and deleted when the invocation ends.
+     */
+    public void testResume() throws Exception {
+        CheckpointJournal journal = CheckpointJournal.create(mDir, ARGS);
+        journal.testEnded(TEST1, EMPTY_MAP);
+        File file = journal.getFile();
+
+        CheckpointJournal resumed = CheckpointJournal.resume(file);
+        resumed.testEnded(TEST1, EMPTY_MAP);
+        resumed.testEnded(TEST2, EMPTY_MAP);
+        assertEquals(Arrays.asList(TEST1, TEST2), CheckpointJournal.load(file).getCompletedTests());
+        resumed.invocationEnded(0);
+        assertFalse(file.exists());
+        assertTrue(CheckpointJournal.findUnfinished(mDir).isEmpty());
+    }
+
+    /**
+     * Test that files that are not journals are ignored.
+     */
+    public void testFindUnfinished_notJournal() throws Exception {
+        FileUtil.writeToFile("foo", new File(mDir, CheckpointJournal.FILE_PREFIX + "foo"
+                + CheckpointJournal.FILE_SUFFIX));
+        FileUtil.writeToFile(CheckpointJournal.HEADER, new File(mDir, "other.txt"));
+        List<CheckpointJournal> journals = CheckpointJournal.findUnfinished(mDir);
+        assertTrue(journals.isEmpty());
+    }
+
+    /**
+     * Test that completed tests are passed to the tests that can skip them.
+     */
+    public void testInjectCompletedTests() throws Exception {
+        CheckpointJournal journal = CheckpointJournal.create(mDir, ARGS);
+        journal.testEnded(TEST1, EMPTY_MAP);
+        ICheckpointResumableTest resumableTest = EasyMock.createMock(
+                ICheckpointResumableTest.class);
+        resumableTest.setCompletedTests(Arrays.asList(TEST1));
+        IRemoteTest otherTest = EasyMock.createMock(IRemoteTest.class);
+        EasyMock.replay(resumableTest, otherTest);
+        journal.injectCompletedTests(Arrays.<IRemoteTest>asList(resumableTest, otherTest));
+        EasyMock.verify(resumableTest, otherTest);
+        journal.invocationEnded(0);
+    }
+
+    /**
+     * Test escaping of journal lines.
+     */
+    public void testEscape() {
+        String string = "a\\nb\nc\r\\";
+        assertFalse(CheckpointJournal.escape(string).contains("\n"));
+        assertEquals(string, CheckpointJournal.unescape(CheckpointJournal.escape(string)));
+    }
+}
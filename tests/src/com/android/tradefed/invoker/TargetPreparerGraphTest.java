@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.targetprep.IHostPreparer;
+import com.android.tradefed.targetprep.ITargetCleaner;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.HostResourceGovernor;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link TargetPreparerGraph}.
+ */
+public class TargetPreparerGraphTest extends TestCase {
+
+    private List<String> mEvents;
+    private IBuildInfo mBuildInfo;
+    private HostResourceGovernor mGovernor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEvents = Collections.synchronizedList(new ArrayList<String>());
+        mBuildInfo = new BuildInfo();
+        mGovernor = HostResourceGovernor.getInstance();
+    }
+
+    /**
+     * A preparer recording its setup.
+     */
+    private class DevicePreparer implements ITargetCleaner {
+        final String mName;
+
+        DevicePreparer(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void setUp(ITestDevice device, IBuildInfo buildInfo) {
+            mEvents.add(mName + ".setup");
+        }
+
+        @Override
+        public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e) {
+            mEvents.add(mName + ".teardown");
+        }
+    }
+
+    /**
+     * A preparer with a host stage that can be held until released.
+     */
+    private class HostPreparer extends DevicePreparer implements IHostPreparer {
+        private final Collection<Class<? extends ITargetPreparer>> mDependencies =
+                new ArrayList<Class<? extends ITargetPreparer>>();
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private CountDownLatch mRelease = new CountDownLatch(0);
+        private TargetSetupError mError = null;
+
+        HostPreparer(String name) {
+            super(name);
+        }
+
+        HostPreparer(String name, Class<? extends ITargetPreparer> dependency) {
+            this(name);
+            mDependencies.add(dependency);
+        }
+
+        @Override
+        public void prepareHost(IBuildInfo buildInfo) throws TargetSetupError {
+            mStarted.countDown();
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new TargetSetupError("interrupted");
+            }
+            mEvents.add(mName + ".host");
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        @Override
+        public Collection<Class<? extends ITargetPreparer>> getHostDependencies() {
+            return mDependencies;
+        }
+
+        @Override
+        public String getHostResource() {
+            return null;
+        }
+    }
+
+    private static class BuildModifier implements ITargetPreparer {
+        @Override
+        public void setUp(ITestDevice device, IBuildInfo buildInfo) {
+            buildInfo.addBuildAttribute("modified", "true");
+        }
+    }
+
+    /**
+     * Test that host stages without dependencies start before the device setups they follow.
+     */
+    public void testSetUp_hostStageRunsAhead() throws Exception {
+        final HostPreparer host = new HostPreparer("host");
+        host.mRelease = new CountDownLatch(1);
+        ITargetPreparer flash = new DevicePreparer("flash") {
+            @Override
+            public void setUp(ITestDevice device, IBuildInfo buildInfo) {
+                try {
+                    // the host stage must have started while flashing
+                    assertTrue(host.mStarted.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    fail();
+                }
+                mEvents.add("flash.setup");
+                host.mRelease.countDown();
+            }
+        };
+        TargetPreparerGraph graph = new TargetPreparerGraph(
+                Arrays.<ITargetPreparer>asList(flash, host), 2, mGovernor);
+        graph.setUp(null, mBuildInfo);
+        assertEquals(Arrays.asList("flash.setup", "host.host", "host.setup"), mEvents);
+        assertTrue(graph.getTimes().containsKey("1.HostPreparer.host"));
+        assertTrue(graph.getTimes().containsKey("1.HostPreparer.setup"));
+    }
+
+    /**
+     * Test that a host stage waits for the setup of the preparers it depends on.
+     */
+    public void testSetUp_dependency() throws Exception {
+        final List<String> seenAttributes = new ArrayList<String>();
+        HostPreparer host = new HostPreparer("host", BuildModifier.class) {
+            @Override
+            public void prepareHost(IBuildInfo buildInfo) throws TargetSetupError {
+                seenAttributes.add(buildInfo.getBuildAttributes().get("modified"));
+                super.prepareHost(buildInfo);
+            }
+        };
+        TargetPreparerGraph graph = new TargetPreparerGraph(Arrays.<ITargetPreparer>asList(
+                new DevicePreparer("first"), new BuildModifier(), host), 2, mGovernor);
+        graph.setUp(null, mBuildInfo);
+        assertEquals(Arrays.asList("true"), seenAttributes);
+        assertEquals(Arrays.asList("first.setup", "host.host", "host.setup"), mEvents);
+    }
+
+    /**
+     * Test that a failed host stage fails the setup before later device setups.
+     */
+    public void testSetUp_hostStageFails() throws Exception {
+        final HostPreparer host = new HostPreparer("host");
+        host.mError = new TargetSetupError("error");
+        // hold the host stage until the first setup started
+        host.mRelease = new CountDownLatch(1);
+        final CountDownLatch hostDone = new CountDownLatch(1);
+        ITargetPreparer slow = new DevicePreparer("slow") {
+            @Override
+            public void setUp(ITestDevice device, IBuildInfo buildInfo) {
+                host.mRelease.countDown();
+                try {
+                    // let the failure complete the host stage
+                    assertTrue(hostDone.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    fail();
+                }
+                mEvents.add("slow.setup");
+            }
+        };
+        TargetPreparerGraph graph = new TargetPreparerGraph(Arrays.<ITargetPreparer>asList(
+                slow, new DevicePreparer("second"), host), 2, mGovernor) {
+            @Override
+            ExecutorService createExecutor() {
+                return new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>()) {
+                    @Override
+                    protected void afterExecute(Runnable r, Throwable t) {
+                        hostDone.countDown();
+                    }
+                };
+            }
+        };
+        try {
+            graph.setUp(null, mBuildInfo);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            assertSame(host.mError, e);
+        }
+        assertTrue(mEvents.contains("slow.setup"));
+        assertFalse(mEvents.contains("second.setup"));
+    }
+
+    /**
+     * Test that host stages run inline, in order, when not running in parallel.
+     */
+    public void testSetUp_sequential() throws Exception {
+        TargetPreparerGraph graph = new TargetPreparerGraph(Arrays.<ITargetPreparer>asList(
+                new DevicePreparer("first"), new HostPreparer("host")), 0, mGovernor);
+        graph.setUp(null, mBuildInfo);
+        assertEquals(Arrays.asList("first.setup", "host.host", "host.setup"), mEvents);
+    }
+
+    /**
+     * Test that cleaners are torn down in order, and not at all after the device was lost.
+     */
+    public void testTearDown() throws Exception {
+        TargetPreparerGraph graph = new TargetPreparerGraph(Arrays.<ITargetPreparer>asList(
+                new DevicePreparer("first"), new BuildModifier(), new DevicePreparer("second")),
+                0, mGovernor);
+        graph.tearDown(null, mBuildInfo, null);
+        assertEquals(Arrays.asList("first.teardown", "second.teardown"), mEvents);
+        mEvents.clear();
+        graph.tearDown(null, mBuildInfo,
+                new DeviceNotAvailableException());
+        assertTrue(mEvents.isEmpty());
+    }
+}
@@ -123,6 +123,9 @@ public class TestInvocationTest extends TestCase {
         mMockLogRegistry.unregisterLogger();
         mUriCapture = new Capture<List<TestSummary>>();
 
+        // each test expects the target preparers to run
+        TestInvocation.resetRepeat();
+
         // create the BaseTestInvocation to test
         mTestInvocation = new TestInvocation() {
             @Override
@@ -362,6 +365,7 @@ public class TestInvocationTest extends TestCase {
         mMockDevice.setOptions((TestDeviceOptions)EasyMock.anyObject());
         mMockBuildInfo.setDeviceSerial(SERIAL);
         mMockPreparer.setUp(mMockDevice, mMockBuildInfo);
+        setupMockPreparerTimes(resumeListener);
 
         resumableTest.run((ITestInvocationListener)EasyMock.anyObject());
         EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException());
@@ -392,6 +396,7 @@ public class TestInvocationTest extends TestCase {
         mMockPreparer.setUp(mMockDevice, mMockBuildInfo);
         mMockDevice.setRecovery(mMockRecovery);
         resumableTest.run((ITestInvocationListener)EasyMock.anyObject());
+        setupMockPreparerTimes(resumeListener);
         EasyMock.expect(mMockDevice.getLogcat())
                 .andReturn(new ByteArrayInputStreamSource(new byte[0]));
         EasyMock.expect(mMockLogger.getLog())
@@ -566,6 +571,12 @@ public class TestInvocationTest extends TestCase {
         mMockTestListener.invocationStarted(mMockBuildInfo);
         mMockSummaryListener.invocationStarted(mMockBuildInfo);
 
+        if (!(throwable instanceof BuildError) && !(throwable instanceof BuildRetrievalError)) {
+            // the target preparer times, once the preparers are done
+            setupMockPreparerTimes(mMockTestListener);
+            setupMockPreparerTimes(mMockSummaryListener);
+        }
+
         if (throwable instanceof BuildError) {
             mMockTestListener.testLog(EasyMock.eq(TestInvocation.BUILD_ERROR_BUGREPORT_NAME),
                     EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
@@ -601,6 +612,15 @@ public class TestInvocationTest extends TestCase {
         mMockSummaryListener.invocationEnded(EasyMock.anyLong());
     }
 
+    /**
+     * Set up the expected report of the target preparer times to the given listener.
+     */
+    @SuppressWarnings("unchecked")
+    private void setupMockPreparerTimes(ITestInvocationListener listener) {
+        listener.testRunStarted(TestInvocation.PREPARER_TIMES_RUN_NAME, 0);
+        listener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+    }
+
     private void setupMockSuccessListeners() {
         setupMockListeners(InvocationStatus.SUCCESS, null);
     }
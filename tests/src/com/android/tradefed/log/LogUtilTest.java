@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+/**
+ * Unit tests for {@link LogUtil} and {@link LogLineEncoder}.
+ */
+public class LogUtilTest extends TestCase {
+
+    private static final String LINE_PATTERN = "\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d %s\n";
+
+    private LogLevel mDdmLogLevel;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDdmLogLevel = DdmPreferences.getLogLevel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        LogUtil.setLogRegistry(null);
+        DdmPreferences.setLogLevel(mDdmLogLevel.getStringValue());
+        super.tearDown();
+    }
+
+    /**
+     * Test the format of log lines.
+     */
+    public void testGetLogFormatString() {
+        String line = LogUtil.getLogFormatString(LogLevel.WARN, "tag", "a message");
+        assertTrue(line, line.matches(String.format(LINE_PATTERN, "W/tag: a message")));
+    }
+
+    /**
+     * Test that encoded lines have the same bytes as {@link String#getBytes()} of the formatted
+     * line, for ascii and non-ascii messages, and for lines longer than the initial buffer.
+     */
+    public void testEncode() {
+        LogLineEncoder encoder = new LogLineEncoder();
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longMessage.append('x');
+        }
+        String[] messages = new String[] {"ascii", "\u00e9t\u00e9 \u65e5\u672c",
+                longMessage.toString(), "short again"};
+        for (String message : messages) {
+            encoder.encode(LogLevel.INFO, "tag", message);
+            String timestamp = new String(encoder.getBytes(), 0, 14);
+            assertTrue(timestamp, timestamp.matches(String.format(LINE_PATTERN, "").trim()));
+            // skip the timestamp, which may have changed since encoding
+            byte[] expected = LogUtil.getLogFormatString(LogLevel.INFO, "tag", message)
+                    .getBytes();
+            assertEquals(expected.length, encoder.getLength());
+            for (int i = 15; i < expected.length; i++) {
+                assertEquals(expected[i], encoder.getBytes()[i]);
+            }
+        }
+    }
+
+    /**
+     * Test that {@link LogUtil#isLoggable(LogLevel)} honors the ddmlib log level and the level of
+     * the log registry.
+     */
+    public void testIsLoggable() {
+        DdmPreferences.setLogLevel(LogLevel.DEBUG.getStringValue());
+        assertFalse(LogUtil.isLoggable(LogLevel.VERBOSE));
+        assertTrue(LogUtil.isLoggable(LogLevel.DEBUG));
+
+        ILogRegistry mockRegistry = EasyMock.createMock(ILogRegistry.class);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.DEBUG)).andReturn(Boolean.FALSE);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.INFO)).andReturn(Boolean.TRUE);
+        EasyMock.replay(mockRegistry);
+        LogUtil.setLogRegistry(mockRegistry);
+        assertFalse(LogUtil.isLoggable(LogLevel.VERBOSE));
+        assertFalse(LogUtil.isLoggable(LogLevel.DEBUG));
+        assertTrue(LogUtil.isLoggable(LogLevel.INFO));
+        EasyMock.verify(mockRegistry);
+    }
+
+    /**
+     * Test that {@link LogUtil.CLog} does not format messages that would be discarded.
+     */
+    public void testCLog_notLoggable() {
+        DdmPreferences.setLogLevel(LogLevel.INFO.getStringValue());
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                fail("message was formatted");
+                return null;
+            }
+        };
+        LogUtil.CLog.d("not formatted: %s", arg);
+        LogUtil.CLog.v("not formatted: %s", arg);
+    }
+}
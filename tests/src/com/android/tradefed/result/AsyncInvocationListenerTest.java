@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link AsyncInvocationListener}.
+ */
+public class AsyncInvocationListenerTest extends TestCase {
+
+    private static final TestIdentifier TEST = new TestIdentifier("FooTest", "testFoo");
+
+    /**
+     * Test that events are delivered in order, and have all been delivered once
+     * {@link AsyncInvocationListener#invocationEnded(long)} returns.
+     */
+    public void testEventOrder() {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        ITestInvocationListener listener = new StubTestInvocationListener() {
+            @Override
+            public void testRunStarted(String runName, int testCount) {
+                events.add("runStarted");
+            }
+
+            @Override
+            public void testStarted(TestIdentifier test) {
+                events.add("started");
+            }
+
+            @Override
+            public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                events.add("ended");
+            }
+
+            @Override
+            public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                events.add("runEnded");
+            }
+
+            @Override
+            public void invocationEnded(long elapsedTime) {
+                events.add("invocationEnded");
+            }
+        };
+        AsyncInvocationListener async = new AsyncInvocationListener(listener, 0);
+        async.testRunStarted("run", 1);
+        async.testStarted(TEST);
+        async.testEnded(TEST, Collections.<String, String>emptyMap());
+        async.testRunEnded(0, Collections.<String, String>emptyMap());
+        async.invocationEnded(0);
+        assertEquals("[runStarted, started, ended, runEnded, invocationEnded]",
+                events.toString());
+    }
+
+    /**
+     * Test that the reporting thread blocks once the queue is full.
+     */
+    public void testBackpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ITestInvocationListener listener = new StubTestInvocationListener() {
+            @Override
+            public void testStarted(TestIdentifier test) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        final AsyncInvocationListener async = new AsyncInvocationListener(listener, 1);
+        final CountDownLatch posted = new CountDownLatch(1);
+        Thread reporter = new Thread() {
+            @Override
+            public void run() {
+                async.testStarted(TEST);
+                async.testStarted(TEST);
+                posted.countDown();
+            }
+        };
+        reporter.start();
+        assertFalse(posted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(posted.await(5, TimeUnit.SECONDS));
+        async.invocationEnded(0);
+    }
+
+    /**
+     * Test that an exception from an asynchronously delivered event does not stop later events.
+     */
+    public void testEventException() {
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        listener.testStarted(TEST);
+        EasyMock.expectLastCall().andThrow(new RuntimeException());
+        listener.invocationEnded(0);
+        EasyMock.replay(listener);
+        AsyncInvocationListener async = new AsyncInvocationListener(listener, 10);
+        async.testStarted(TEST);
+        async.invocationEnded(0);
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * Test that {@link AsyncInvocationListener#wrap(List, int)} preserves
+     * {@link ITestSummaryListener}s, and the summary is passed through.
+     */
+    public void testWrap_summary() {
+        ITestSummaryListener summaryListener = EasyMock.createMock(ITestSummaryListener.class);
+        ITestInvocationListener listener = EasyMock.createMock(ITestInvocationListener.class);
+        TestSummary summary = new TestSummary("http://summary");
+        EasyMock.expect(listener.getSummary()).andReturn(summary);
+        EasyMock.replay(listener);
+        List<ITestInvocationListener> wrapped = AsyncInvocationListener.wrap(
+                Arrays.asList(summaryListener, listener), 10);
+        assertTrue(wrapped.get(0) instanceof ITestSummaryListener);
+        assertFalse(wrapped.get(1) instanceof ITestSummaryListener);
+        assertSame(wrapped.get(1), AsyncInvocationListener.wrap(wrapped.get(1), 10));
+        assertSame(summary, wrapped.get(1).getSummary());
+        EasyMock.verify(listener);
+    }
+}
@@ -66,6 +66,18 @@ public class CollectingTestListenerTest extends TestCase {
             runResult.getTestResults().get(test).getStartTime());
     }
 
+    /**
+     * Test that {@link CollectingTestListener#clearResults()} discards the results of all runs.
+     */
+    public void testClearResults() {
+        injectTestRun("run1", "testFoo1", METRIC_VALUE);
+        injectTestRun("run2", "testFoo2", METRIC_VALUE2);
+        mCollectingTestListener.clearResults();
+        assertTrue(mCollectingTestListener.getRunResults().isEmpty());
+        assertEquals(0, mCollectingTestListener.getNumTotalTests());
+        assertEquals(0, mCollectingTestListener.getCurrentRunResults().getNumTests());
+    }
+
     /**
      * Test the listener where test run has failed.
      */
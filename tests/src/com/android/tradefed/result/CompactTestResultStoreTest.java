@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.TestResult.TestStatus;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link CompactTestResultStore}.
+ */
+public class CompactTestResultStoreTest extends TestCase {
+
+    private CompactTestResultStore mStore;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new CompactTestResultStore(100);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.deleteSpillFile();
+        super.tearDown();
+    }
+
+    /**
+     * Test storing and looking up many tests, preserving insertion order.
+     */
+    public void testManyTests() {
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, mStore.startTest(new TestIdentifier("Class" + (i % 10), "test" + i)));
+        }
+        assertEquals(1000, mStore.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, mStore.indexOf(new TestIdentifier("Class" + (i % 10), "test" + i)));
+        }
+        assertEquals(-1, mStore.indexOf(new TestIdentifier("Class1", "test2")));
+        assertEquals(-1, mStore.indexOf(new TestIdentifier("Unknown", "test1")));
+        Iterator<TestIdentifier> iter = mStore.asMap().keySet().iterator();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(new TestIdentifier("Class" + (i % 10), "test" + i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    /**
+     * Test that restarting a test resets its result but keeps its position.
+     */
+    public void testStartTest_replace() {
+        TestIdentifier test1 = new TestIdentifier("Foo", "test1");
+        TestIdentifier test2 = new TestIdentifier("Foo", "test2");
+        mStore.startTest(test1);
+        mStore.startTest(test2);
+        mStore.setStatus(0, TestStatus.FAILURE);
+        mStore.setStackTrace(0, "trace");
+        assertEquals(0, mStore.startTest(test1));
+        assertEquals(2, mStore.size());
+        TestResult result = mStore.asMap().get(test1);
+        assertEquals(TestStatus.INCOMPLETE, result.getStatus());
+        assertNull(result.getStackTrace());
+        assertTrue(result.getStartTime() > 0);
+    }
+
+    /**
+     * Test that metrics are returned as reported.
+     */
+    public void testMetrics() {
+        TestIdentifier test = new TestIdentifier("Foo", "test1");
+        mStore.startTest(test);
+        assertNull(mStore.getResult(0).getMetrics());
+        mStore.setMetrics(0, Collections.<String, String>emptyMap());
+        assertTrue(mStore.getResult(0).getMetrics().isEmpty());
+        Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put("key", "value");
+        metrics.put("key2", "value2");
+        mStore.setMetrics(0, metrics);
+        assertEquals(metrics, mStore.asMap().get(test).getMetrics());
+    }
+
+    /**
+     * Test that identical stack traces are stored once, and that traces beyond the memory limit
+     * are read back from disk.
+     */
+    public void testStackTraces() {
+        StringBuilder longTrace = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            longTrace.append("at com.android.Foo.method(Foo.java:").append(i).append(")\n");
+        }
+        for (int i = 0; i < 10; i++) {
+            mStore.startTest(new TestIdentifier("Foo", "test" + i));
+            mStore.setStackTrace(i, i % 2 == 0 ? "short trace" : longTrace.toString() + i);
+        }
+        assertEquals(6, mStore.getNumTraces());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2 == 0 ? "short trace" : longTrace.toString() + i,
+                    mStore.getResult(i).getStackTrace());
+        }
+        // a spilled trace is also deduplicated
+        mStore.startTest(new TestIdentifier("Foo", "test10"));
+        mStore.setStackTrace(10, longTrace.toString() + 9);
+        assertEquals(6, mStore.getNumTraces());
+        assertTrue(mStore.getSpillFile().exists());
+        File spillFile = mStore.getSpillFile();
+        mStore.deleteSpillFile();
+        assertFalse(spillFile.exists());
+        assertNull(mStore.getSpillFile());
+    }
+
+    /**
+     * Test that results returned by the map view can't be modified.
+     */
+    public void testAsMap_readOnly() {
+        TestIdentifier test = new TestIdentifier("Foo", "test1");
+        mStore.startTest(test);
+        mStore.setMetrics(0, Collections.singletonMap("key", "value"));
+        TestResult result = mStore.asMap().get(test);
+        try {
+            result.setStatus(TestStatus.PASSED);
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            result.getMetrics().put("key", "other");
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that {@link TestRunResult} counts and queries work with the store.
+     */
+    public void testTestRunResult() {
+        TestRunResult runResult = new TestRunResult("run");
+        TestIdentifier test1 = new TestIdentifier("Foo", "test1");
+        TestIdentifier test2 = new TestIdentifier("Foo", "test2");
+        runResult.reportTestStarted(test1);
+        runResult.reportTestFailure(test1, TestStatus.FAILURE, "trace");
+        runResult.reportTestEnded(test1, Collections.<String, String>emptyMap());
+        runResult.reportTestStarted(test2);
+        assertEquals(2, runResult.getNumTests());
+        assertEquals(1, runResult.getNumFailedTests());
+        assertEquals(1, runResult.getNumIncompleteTests());
+        assertEquals(Collections.singleton(test1), runResult.getCompletedTests());
+        assertEquals("trace", runResult.getTestResults().get(test1).getStackTrace());
+        assertEquals(TestStatus.INCOMPLETE, runResult.getTestResults().get(test2).getStatus());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMergeable;
+import com.vladium.emma.data.MethodDescriptor;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link CoverageAggregator}.
+ */
+public class CoverageAggregatorTest extends TestCase {
+
+    private File mTmpDir;
+    private CoverageAggregator mAggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("coverage-aggregator");
+        mAggregator = new CoverageAggregator();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAggregator.shutdown();
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Write an Emma coverage file holding one class, with Emma itself.
+     *
+     * @param methods the covered flags of the blocks of each method, <code>null</code> for a
+     *            method without data
+     */
+    private File writeCoverageFile(String name, String className, long stamp,
+            boolean[]... methods) throws IOException {
+        ICoverageData data = DataFactory.newCoverageData();
+        data.addClass(methods, className, stamp);
+        File file = new File(mTmpDir, name);
+        DataFactory.persist(data, file, false);
+        return file;
+    }
+
+    /**
+     * Load the coverage of a class from an Emma coverage file, with Emma itself.
+     */
+    private static boolean[][] loadCoverage(File file, String packageVMName, String className,
+            long stamp) throws IOException {
+        IMergeable[] loaded = DataFactory.load(file);
+        ICoverageData data = (ICoverageData)loaded[DataFactory.TYPE_COVERAGEDATA];
+        assertNotNull(data);
+        ICoverageData.DataHolder holder = data.getCoverage(new ClassDescriptor(packageVMName,
+                className, stamp, className + ".java", new MethodDescriptor[0]));
+        assertNotNull(holder);
+        assertEquals(stamp, holder.m_stamp);
+        return holder.m_coverage;
+    }
+
+    /**
+     * Test that the covered blocks of the same class are merged across files.
+     */
+    public void testMerge() throws Exception {
+        mAggregator.addCoverageFile(writeCoverageFile("1.ec", "com/foo/Bar", 42,
+                new boolean[] {true, false, false}, null, new boolean[70]));
+        boolean[] longMethod = new boolean[70];
+        longMethod[69] = true;
+        mAggregator.addCoverageFile(writeCoverageFile("2.ec", "com/foo/Bar", 42,
+                new boolean[] {false, false, true}, null, longMethod));
+
+        CoverageAggregator.ClassCoverage coverage = mAggregator.getClassCoverage("com/foo/Bar");
+        assertEquals(3, coverage.getCoveredCount());
+        assertTrue(coverage.get(0));
+        assertFalse(coverage.get(1));
+        assertTrue(coverage.get(2));
+        assertTrue(coverage.get(72));
+        assertTrue(mAggregator.getUnmergedFiles().isEmpty());
+    }
+
+    /**
+     * Test that a class whose stamp changed replaces the previous coverage.
+     */
+    public void testMerge_changedClass() throws Exception {
+        mAggregator.addCoverageFile(writeCoverageFile("1.ec", "com/foo/Bar", 42,
+                new boolean[] {true, true}));
+        mAggregator.addCoverageFile(writeCoverageFile("2.ec", "com/foo/Bar", 43,
+                new boolean[] {false, true}));
+        CoverageAggregator.ClassCoverage coverage = mAggregator.getClassCoverage("com/foo/Bar");
+        assertEquals(1, coverage.getCoveredCount());
+        assertFalse(coverage.get(0));
+    }
+
+    /**
+     * Test that files that could not be parsed are reported as unmerged.
+     */
+    public void testMerge_invalidFile() throws Exception {
+        File invalid = new File(mTmpDir, "invalid.ec");
+        FileUtil.writeToFile("not coverage data at all", invalid);
+        mAggregator.addCoverageFile(invalid);
+        assertEquals(1, mAggregator.getUnmergedFiles().size());
+        assertEquals(invalid, mAggregator.getUnmergedFiles().get(0));
+        assertFalse(mAggregator.writeMergedFile(new File(mTmpDir, "merged.ec")));
+    }
+
+    /**
+     * Test that the merged file holds the merged coverage, is readable by Emma, and can be merged
+     * again.
+     */
+    public void testWriteMergedFile() throws Exception {
+        mAggregator.addCoverageFile(writeCoverageFile("1.ec", "com/foo/Bar", 42,
+                new boolean[] {true, false}, null));
+        mAggregator.addCoverageFile(writeCoverageFile("2.ec", "com/foo/Baz", 7,
+                new boolean[] {false, true, true}));
+        mAggregator.addCoverageFile(writeCoverageFile("3.ec", "com/foo/Baz", 7,
+                new boolean[] {true, false, false}));
+        File merged = new File(mTmpDir, "merged.ec");
+        assertTrue(mAggregator.writeMergedFile(merged));
+
+        boolean[][] barData = loadCoverage(merged, "com/foo", "Bar", 42);
+        assertEquals(2, barData.length);
+        assertTrue(Arrays.equals(new boolean[] {true, false}, barData[0]));
+        assertNull(barData[1]);
+        boolean[][] bazData = loadCoverage(merged, "com/foo", "Baz", 7);
+        assertEquals(1, bazData.length);
+        assertTrue(Arrays.equals(new boolean[] {true, true, true}, bazData[0]));
+
+        CoverageAggregator aggregator = new CoverageAggregator();
+        try {
+            aggregator.addCoverageFile(merged);
+            assertTrue(aggregator.getUnmergedFiles().isEmpty());
+            CoverageAggregator.ClassCoverage bar = aggregator.getClassCoverage("com/foo/Bar");
+            assertEquals(1, bar.getCoveredCount());
+            assertTrue(bar.get(0));
+            assertEquals(3, aggregator.getClassCoverage("com/foo/Baz").getCoveredCount());
+        } finally {
+            aggregator.shutdown();
+        }
+    }
+}
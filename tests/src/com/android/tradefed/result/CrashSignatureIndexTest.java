@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CrashSignatureIndex}.
+ */
+public class CrashSignatureIndexTest extends TestCase {
+
+    private static final String JAVA_CRASH =
+            "java.lang.NullPointerException: Attempt to read field 'x' of %s\n" +
+            "\tat com.android.foo.Bar$%d.run(Bar.java:%d)\n" +
+            "\tat android.os.Handler.handleCallback(Handler.java:%d)\n" +
+            "\tat android.os.Looper.loop(Looper.java:136)\n";
+
+    private static final String NATIVE_CRASH =
+            "backtrace:\n" +
+            "    #00  pc %08x  /system/lib/libc.so (tgkill+12)\n" +
+            "    #01  pc 00011a2b  /system/lib/libc.so (pthread_kill+%d)\n" +
+            "    #02  pc 0001bc4d  /system/bin/mediaserver\n";
+
+    private File mRootDir;
+    private CrashSignatureIndex mIndex;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("crash-index");
+        mIndex = new CrashSignatureIndex(mRootDir);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that java stacks are normalized to exception classes and method names.
+     */
+    public void testNormalizeStack_java() {
+        List<String> lines = CrashSignatureIndex.normalizeStack(String.format(JAVA_CRASH,
+                "null", 1, 42, 733) + "Caused by: java.lang.IllegalStateException: foo\n" +
+                "\tat com.android.foo.Baz.<init>(Native Method)\n\t... 3 more\n");
+        assertEquals(Arrays.asList("java.lang.NullPointerException", "com.android.foo.Bar$.run",
+                "android.os.Handler.handleCallback", "android.os.Looper.loop",
+                "java.lang.IllegalStateException", "com.android.foo.Baz.<init>"), lines);
+    }
+
+    /**
+     * Test that native stacks are normalized to libraries and functions.
+     */
+    public void testNormalizeStack_native() {
+        List<String> lines = CrashSignatureIndex.normalizeStack(String.format(NATIVE_CRASH,
+                0xbeef, 20));
+        assertEquals(Arrays.asList("/system/lib/libc.so (tgkill)",
+                "/system/lib/libc.so (pthread_kill)", "/system/bin/mediaserver"), lines);
+    }
+
+    /**
+     * Test that signatures ignore messages, line numbers, addresses and offsets, but not frames.
+     */
+    public void testComputeSignature() {
+        String sig = CrashSignatureIndex.computeSignature("java",
+                String.format(JAVA_CRASH, "null", 1, 42, 733));
+        assertEquals(sig, CrashSignatureIndex.computeSignature("java",
+                String.format(JAVA_CRASH, "object", 2, 43, 800)));
+        assertFalse(sig.equals(CrashSignatureIndex.computeSignature("anr",
+                String.format(JAVA_CRASH, "null", 1, 42, 733))));
+        assertFalse(sig.equals(CrashSignatureIndex.computeSignature("java",
+                String.format(JAVA_CRASH, "null", 1, 42, 733).replace("Looper", "Choreographer"))));
+        assertEquals(CrashSignatureIndex.computeSignature("native",
+                String.format(NATIVE_CRASH, 0xbeef, 20)),
+                CrashSignatureIndex.computeSignature("native",
+                String.format(NATIVE_CRASH, 0xf00d, 24)));
+    }
+
+    /**
+     * Test that occurrences are counted per signature, and that the index is persisted.
+     */
+    public void testRecordCrash() throws Exception {
+        CrashSignatureIndex.Entry entry = mIndex.recordCrash("java",
+                String.format(JAVA_CRASH, "null", 1, 42, 733));
+        assertTrue(entry.isFirstOccurrence());
+        assertEquals("java.lang.NullPointerException", entry.getTitle());
+        assertFalse(mIndex.recordCrash("java",
+                String.format(JAVA_CRASH, "object", 1, 44, 733)).isFirstOccurrence());
+        assertTrue(mIndex.recordCrash("native",
+                String.format(NATIVE_CRASH, 0xbeef, 20)).isFirstOccurrence());
+
+        CrashSignatureIndex reloaded = new CrashSignatureIndex(mRootDir);
+        reloaded.load();
+        List<CrashSignatureIndex.Entry> entries = reloaded.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(entry.getSignature(), entries.get(0).getSignature());
+        assertEquals(2, entries.get(0).getCount());
+        assertEquals(entry.getFirstSeen(), entries.get(0).getFirstSeen());
+        assertEquals("native", entries.get(1).getType());
+        assertEquals(entries.get(1).getSignature(),
+                reloaded.findEntry(entries.get(1).getSignature().substring(0, 6)).getSignature());
+        assertNull(reloaded.findEntry("not a signature"));
+    }
+
+    /**
+     * Test storing artifacts and references of a signature.
+     */
+    public void testSaveArtifacts() throws Exception {
+        String sig = mIndex.recordCrash("java", String.format(JAVA_CRASH, "null", 1, 42, 733))
+                .getSignature();
+        File artifact = mIndex.saveArtifact(sig, "bugreport.txt",
+                new ByteArrayInputStream("bugreport".getBytes()));
+        assertEquals(new File(mRootDir, sig), artifact.getParentFile());
+        assertEquals("bugreport", FileUtil.readStringFromFile(artifact));
+        File ref = mIndex.saveReference(sig, "device serial", "logcat line");
+        assertEquals("device serial\n\nlogcat line", FileUtil.readStringFromFile(ref));
+        assertEquals(new File(new File(mRootDir, sig), CrashSignatureIndex.REFERENCES_DIR_NAME),
+                ref.getParentFile());
+    }
+
+    /**
+     * Test that {@link CrashSignatureIndex#getIndexes(Collection)} reads the indexes
+     * persisted in given directories.
+     */
+    public void testGetIndexes_persisted() throws Exception {
+        mIndex.recordCrash("java", String.format(JAVA_CRASH, "null", 1, 42, 733));
+        File emptyDir = FileUtil.createTempDir("crash-index-empty");
+        try {
+            Collection<CrashSignatureIndex> indexes = CrashSignatureIndex.getIndexes(
+                    Arrays.asList(mRootDir, emptyDir));
+            assertEquals(1, indexes.size());
+            CrashSignatureIndex index = indexes.iterator().next();
+            assertEquals(mRootDir.getCanonicalFile(), index.getRootDir());
+            assertEquals(1, index.getEntries().size());
+            // crashes recorded since are read again
+            mIndex.recordCrash("native", String.format(NATIVE_CRASH, 0xbeef, 20));
+            indexes = CrashSignatureIndex.getIndexes(Arrays.asList(mRootDir));
+            assertEquals(2, indexes.iterator().next().getEntries().size());
+        } finally {
+            FileUtil.recursiveDelete(emptyDir);
+        }
+    }
+
+    /**
+     * Test that occurrences recorded by several instances of the same index, like several
+     * processes would, are all counted.
+     */
+    public void testRecordCrash_sharedIndex() throws Exception {
+        CrashSignatureIndex other = new CrashSignatureIndex(mRootDir);
+        String crash = String.format(JAVA_CRASH, "null", 1, 42, 733);
+        mIndex.recordCrash("java", crash);
+        assertEquals(2, other.recordCrash("java", crash).getCount());
+        assertEquals(3, mIndex.recordCrash("java", crash).getCount());
+
+        CrashSignatureIndex reloaded = new CrashSignatureIndex(mRootDir);
+        reloaded.load();
+        assertEquals(3, reloaded.getEntries().get(0).getCount());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link LogRetentionService}.
+ */
+public class LogRetentionServiceTest extends TestCase {
+
+    private File mRootDir;
+    private LogRetentionService mService;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("retention");
+        mService = new LogRetentionService(1000, 0) {
+            @Override
+            synchronized void startSweeping(File rootDir) {
+                // sweep explicitly instead
+            }
+        };
+        mService.setEnabled(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Create a log dir with a nested file of given size.
+     */
+    private File createLogDir(String name, int size) throws IOException {
+        File dir = FileUtil.getFileForPath(mRootDir, "branch", name);
+        File nested = new File(dir, "nested");
+        assertTrue(nested.mkdirs());
+        FileUtil.writeToFile(new String(new char[size]), new File(nested, "log.txt"));
+        return dir;
+    }
+
+    /**
+     * Test that expired dirs are deleted, and that the others are kept in the index.
+     */
+    public void testSweep() throws Exception {
+        File expired = createLogDir("expired", 100);
+        File current = createLogDir("current", 10);
+        long now = System.currentTimeMillis();
+        mService.recordExpiry(mRootDir, expired, now - 1000);
+        mService.recordExpiry(mRootDir, current, now + 60 * 1000);
+
+        assertEquals(100, mService.sweep(mRootDir));
+        assertFalse(expired.exists());
+        assertTrue(current.exists());
+        assertEquals(100, mService.getReclaimedBytes());
+        String index = FileUtil.readStringFromFile(new File(mRootDir,
+                LogRetentionService.INDEX_FILE_NAME));
+        assertEquals(String.format("%d\tbranch%scurrent\n", now + 60 * 1000, File.separator),
+                index);
+
+        // nothing left to delete
+        assertEquals(0, mService.sweep(mRootDir));
+        assertTrue(current.exists());
+    }
+
+    /**
+     * Test that a dir is kept if its retention file was updated with a later expiry.
+     */
+    public void testSweep_extended() throws Exception {
+        File dir = createLogDir("extended", 10);
+        mService.recordExpiry(mRootDir, dir, System.currentTimeMillis() - 1000);
+        new RetentionFileSaver().writeRetentionFile(dir, 1);
+
+        assertEquals(0, mService.sweep(mRootDir));
+        assertTrue(dir.exists());
+        String index = FileUtil.readStringFromFile(new File(mRootDir,
+                LogRetentionService.INDEX_FILE_NAME));
+        long expiry = Long.parseLong(index.substring(0, index.indexOf('\t')));
+        assertTrue(expiry > System.currentTimeMillis());
+    }
+
+    /**
+     * Test that only the latest expiry of a dir recorded many times is used.
+     */
+    public void testSweep_recordedTwice() throws Exception {
+        File dir = createLogDir("twice", 10);
+        long now = System.currentTimeMillis();
+        mService.recordExpiry(mRootDir, dir, now - 1000);
+        mService.recordExpiry(mRootDir, dir, now + 60 * 1000);
+
+        assertEquals(0, mService.sweep(mRootDir));
+        assertTrue(dir.exists());
+    }
+
+    /**
+     * Test that nothing is recorded when the service is not enabled.
+     */
+    public void testRecordExpiry_disabled() throws Exception {
+        File dir = createLogDir("disabled", 10);
+        mService.setEnabled(false);
+        mService.recordExpiry(mRootDir, dir, System.currentTimeMillis() - 1000);
+
+        assertFalse(new File(mRootDir, LogRetentionService.INDEX_FILE_NAME).exists());
+        assertEquals(0, mService.sweep(mRootDir));
+        assertTrue(dir.exists());
+    }
+}
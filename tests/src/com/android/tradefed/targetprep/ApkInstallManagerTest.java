@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ApkInstallManager}.
+ */
+public class ApkInstallManagerTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+    private static final String BUILD_ID = "1234";
+    private static final String PACKAGE = "com.android.foo";
+
+    private ApkInstallManager mManager;
+    private ITestDevice mMockDevice;
+    private File mApkFile;
+    private List<File> mParsedFiles;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParsedFiles = new ArrayList<File>();
+        mManager = new ApkInstallManager() {
+            @Override
+            ApkInfo parseApk(File apkFile, String digest) {
+                mParsedFiles.add(apkFile);
+                return new ApkInfo(digest, PACKAGE, 1);
+            }
+        };
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(mMockDevice.getBuildId()).andStubReturn(BUILD_ID);
+        mApkFile = FileUtil.createTempFile("foo", ".apk");
+        FileUtil.writeToFile("apk contents", mApkFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mApkFile);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a second install of the same apk is skipped, and the apk is only parsed once.
+     */
+    public void testInstallPackage_skipInstalled() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm path " + PACKAGE)).andReturn(
+                "package:/data/app/com.android.foo-1.apk\n");
+        EasyMock.replay(mMockDevice);
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        EasyMock.verify(mMockDevice);
+        assertEquals(1, mParsedFiles.size());
+    }
+
+    /**
+     * Test that an apk is reinstalled if it is no longer present on device.
+     */
+    public void testInstallPackage_removed() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm path " + PACKAGE)).andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk with changed contents is reinstalled.
+     */
+    public void testInstallPackage_changed() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null).times(2);
+        EasyMock.replay(mMockDevice);
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        FileUtil.writeToFile("new apk contents", mApkFile);
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        EasyMock.verify(mMockDevice);
+        assertEquals(2, mParsedFiles.size());
+    }
+
+    /**
+     * Test that a failed install is not recorded.
+     */
+    public void testInstallPackage_failed() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn("FAILED");
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        assertEquals("FAILED", mManager.installPackage(mMockDevice, mApkFile, true));
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that {@link ApkInstallManager#uninstallPackage(ITestDevice, String)} forgets the
+     * install.
+     */
+    public void testUninstallPackage() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null).times(2);
+        EasyMock.expect(mMockDevice.uninstallPackage(PACKAGE)).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        assertNull(mManager.uninstallPackage(mMockDevice, PACKAGE));
+        assertNull(mManager.installPackage(mMockDevice, mApkFile, true));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk is reinstalled if the device build changed.
+     */
+    public void testInstallPackage_reflashed() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(device.getBuildId()).andReturn(BUILD_ID);
+        EasyMock.expect(device.getBuildId()).andStubReturn("5678");
+        EasyMock.expect(device.installPackage(mApkFile, true)).andReturn(null).times(2);
+        EasyMock.replay(device);
+        assertNull(mManager.installPackage(device, mApkFile, true));
+        assertNull(mManager.installPackage(device, mApkFile, true));
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test that the apk info cache evicts the least recently used apks when full.
+     */
+    public void testGetApkInfo_bounded() {
+        ApkInstallManager manager = new ApkInstallManager() {
+            @Override
+            String calculateDigest(File apkFile) {
+                return apkFile.getName();
+            }
+
+            @Override
+            ApkInfo parseApk(File apkFile, String digest) {
+                mParsedFiles.add(apkFile);
+                return new ApkInfo(digest, PACKAGE, 1);
+            }
+        };
+        File first = new File("apk0");
+        manager.getApkInfo(first);
+        for (int i = 1; i <= ApkInstallManager.MAX_CACHED_APKS; i++) {
+            manager.getApkInfo(new File("apk" + i));
+        }
+        assertEquals(ApkInstallManager.MAX_CACHED_APKS, manager.getCachedApkCount());
+        // the first apk was evicted, so it is parsed again
+        mParsedFiles.clear();
+        manager.getApkInfo(first);
+        assertEquals(1, mParsedFiles.size());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link DeviceStateLedger}.
+ */
+public class DeviceStateLedgerTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+
+    private DeviceStateLedger mLedger;
+    private ITestDevice mMockDevice;
+    private IBuildInfo mBuildInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLedger = new DeviceStateLedger();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        mBuildInfo = new BuildInfo("1", "test", "target");
+        mBuildInfo.setBuildFlavor("flavor");
+    }
+
+    /**
+     * Record a setup on the mock device, capturing the state token written.
+     */
+    private Capture<String> recordSetup(String setupKey) throws Exception {
+        Capture<String> token = new Capture<String>();
+        EasyMock.expect(mMockDevice.pushString(EasyMock.capture(token),
+                EasyMock.eq(DeviceStateLedger.STATE_TOKEN_PATH))).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1");
+        EasyMock.replay(mMockDevice);
+        mLedger.recordSetup(mMockDevice, setupKey);
+        EasyMock.verify(mMockDevice);
+        EasyMock.reset(mMockDevice);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        return token;
+    }
+
+    /**
+     * Test that a flashed build is recorded, and dropped when the device runs another build.
+     */
+    public void testIsFlashed() throws Exception {
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1").times(2);
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("2");
+        EasyMock.replay(mMockDevice);
+        assertFalse(mLedger.isFlashed(mMockDevice, mBuildInfo));
+        mLedger.recordFlashedBuild(mMockDevice, mBuildInfo);
+        assertTrue(mLedger.isFlashed(mMockDevice, mBuildInfo));
+        IBuildInfo otherFlavor = new BuildInfo("1", "test", "target");
+        otherFlavor.setBuildFlavor("other");
+        assertFalse(mLedger.isFlashed(mMockDevice, otherFlavor));
+        assertTrue(mLedger.verify(mMockDevice));
+        // device was flashed with another build by other means
+        assertFalse(mLedger.verify(mMockDevice));
+        assertFalse(mLedger.isFlashed(mMockDevice, mBuildInfo));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that recorded data state holds while the state token is present on device.
+     */
+    public void testVerify_dataState() throws Exception {
+        Capture<String> token = recordSetup("key");
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "cat " + DeviceStateLedger.STATE_TOKEN_PATH)).andReturn(token.getValue() + "\n");
+        EasyMock.replay(mMockDevice);
+        assertTrue(mLedger.verify(mMockDevice));
+        assertTrue(mLedger.hasSetup(mMockDevice, "key"));
+        assertFalse(mLedger.hasSetup(mMockDevice, "other"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that recorded data state is dropped when the state token is gone, e.g. after a wipe.
+     */
+    public void testVerify_wiped() throws Exception {
+        recordSetup("key");
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "cat " + DeviceStateLedger.STATE_TOKEN_PATH)).andReturn(
+                "No such file or directory");
+        EasyMock.replay(mMockDevice);
+        assertFalse(mLedger.verify(mMockDevice));
+        assertFalse(mLedger.hasSetup(mMockDevice, "key"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that clearing the data state drops the recorded setup, but keeps the flashed build.
+     */
+    public void testClearDataState() throws Exception {
+        EasyMock.replay(mMockDevice);
+        mLedger.recordFlashedBuild(mMockDevice, mBuildInfo);
+        EasyMock.reset(mMockDevice);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        recordSetup("key");
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1");
+        EasyMock.replay(mMockDevice);
+        mLedger.clearDataState(SERIAL);
+        assertFalse(mLedger.hasSetup(mMockDevice, "key"));
+        assertTrue(mLedger.isFlashed(mMockDevice, mBuildInfo));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test recording of settings and pushed files.
+     */
+    public void testSettingsAndPushedFiles() throws Exception {
+        recordSetup("key");
+        EasyMock.replay(mMockDevice);
+        mLedger.recordSettings(mMockDevice, "settings", "digest");
+        assertTrue(mLedger.hasSettings(mMockDevice, "settings", "digest"));
+        assertFalse(mLedger.hasSettings(mMockDevice, "settings", "other"));
+        mLedger.clearSettings(mMockDevice, "settings");
+        assertFalse(mLedger.hasSettings(mMockDevice, "settings", "digest"));
+
+        File file = new File("/bin/sh");
+        mLedger.recordPushedFile(mMockDevice, file, "/data/dir/sh");
+        assertTrue(mLedger.hasPushedFile(mMockDevice, file, "/data/dir/sh"));
+        assertFalse(mLedger.hasPushedFile(mMockDevice, file, "/data/sh"));
+        // a directory pushed over the file replaces it
+        mLedger.clearPushedFiles(mMockDevice, "/data/dir");
+        assertFalse(mLedger.hasPushedFile(mMockDevice, file, "/data/dir/sh"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the setup key changes with the preparer options.
+     */
+    public void testGetSetupKey() throws Exception {
+        PushFilePreparer preparer = new PushFilePreparer();
+        String key = DeviceStateLedger.getSetupKey(mBuildInfo,
+                Arrays.<ITargetPreparer>asList(preparer));
+        assertEquals(key, DeviceStateLedger.getSetupKey(mBuildInfo,
+                Arrays.<ITargetPreparer>asList(new PushFilePreparer())));
+        preparer.setPushSpecs(Arrays.asList("/bin/sh->/data/sh"));
+        assertFalse(key.equals(DeviceStateLedger.getSetupKey(mBuildInfo,
+                Arrays.<ITargetPreparer>asList(preparer))));
+        assertFalse(key.equals(DeviceStateLedger.getSetupKey(mBuildInfo,
+                new ArrayList<ITargetPreparer>())));
+    }
+}
@@ -132,6 +132,7 @@ public class FastbootDeviceFlasherTest extends TestCase {
             throws DeviceNotAvailableException, TargetSetupError, IOException {
         final String newBasebandVersion = "1.0.1";
         ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn(TEST_STRING);
         // expect a fastboot getvar version-baseband command
         setFastbootResponseExpectations(mockDevice, "version-baseband: \n");
         setFastbootResponseExpectations(mockDevice, "version-baseband: \n");
@@ -40,6 +40,7 @@ public class PushFilePreparerTest extends TestCase {
     protected void setUp() throws Exception {
         super.setUp();
         mMockDevice = EasyMock.createStrictMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
         mPreparer = new PushFilePreparer();
     }
 
@@ -97,5 +98,31 @@ public class PushFilePreparerTest extends TestCase {
         // Don't expect any exceptions to be thrown
         mPreparer.setUp(mMockDevice, null);
     }
+
+    /**
+     * Test that a file already pushed by a previous setup is not pushed again.
+     */
+    public void testSkipIfPushed() throws Exception {
+        final DeviceStateLedger ledger = new DeviceStateLedger();
+        mPreparer = new PushFilePreparer() {
+            @Override
+            DeviceStateLedger getDeviceStateLedger() {
+                return ledger;
+            }
+        };
+        mPreparer.setPushSpecs(Arrays.asList("/bin/sh->/data/sh"));
+        mPreparer.setSkipIfPushed(true);
+        EasyMock.expect(mMockDevice.pushFile(new File("/bin/sh"), "/data/sh")).andReturn(
+                Boolean.TRUE);
+        EasyMock.expect(mMockDevice.pushString((String)EasyMock.anyObject(),
+                EasyMock.eq(DeviceStateLedger.STATE_TOKEN_PATH))).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.getBuildId()).andReturn("1");
+        EasyMock.replay(mMockDevice);
+
+        mPreparer.setUp(mMockDevice, null);
+        // second setup should not push
+        mPreparer.setUp(mMockDevice, null);
+        EasyMock.verify(mMockDevice);
+    }
 }
 
@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.testtype;
 
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -27,6 +28,8 @@ import junit.framework.TestSuite;
 import org.easymock.EasyMock;
 
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link HostTest}.
@@ -68,6 +71,26 @@ public class HostTestTest extends TestCase {
         }
     }
 
+    public static class ParallelTestCase extends TestCase {
+        /** counted down by each parallel test, so they only pass if they run concurrently */
+        static CountDownLatch sRunning;
+
+        @DeviceIndependent
+        public void testParallel() throws InterruptedException {
+            sRunning.countDown();
+            assertTrue(sRunning.await(5, TimeUnit.SECONDS));
+        }
+
+        public void testConfiguredParallel() throws InterruptedException {
+            sRunning.countDown();
+            assertTrue(sRunning.await(5, TimeUnit.SECONDS));
+            fail("parallel failure");
+        }
+
+        public void testSequential() {
+        }
+    }
+
     /** Non-public class; should fail to load. */
     private static class PrivateTest extends TestCase {
     }
@@ -223,6 +246,32 @@ public class HostTestTest extends TestCase {
         EasyMock.verify(mListener);
     }
 
+    /**
+     * Test for {@link HostTest#run(TestResult)}, where device-independent tests run in parallel.
+     */
+    public void testRun_parallel() throws Exception {
+        ParallelTestCase.sRunning = new CountDownLatch(2);
+        mHostTest.setClassName(ParallelTestCase.class.getName());
+        mHostTest.setParallelThreads(2);
+        mHostTest.addDeviceIndependentTest(ParallelTestCase.class.getName()
+                + "#testConfiguredParallel");
+        String className = ParallelTestCase.class.getName();
+        TestIdentifier parallel = new TestIdentifier(className, "testParallel");
+        TestIdentifier configured = new TestIdentifier(className, "testConfiguredParallel");
+        TestIdentifier sequential = new TestIdentifier(className, "testSequential");
+        mListener.testRunStarted((String)EasyMock.anyObject(), EasyMock.eq(3));
+        for (TestIdentifier test : new TestIdentifier[] {parallel, configured, sequential}) {
+            mListener.testStarted(EasyMock.eq(test));
+            mListener.testEnded(EasyMock.eq(test), (Map<String, String>)EasyMock.anyObject());
+        }
+        mListener.testFailed(EasyMock.eq(ITestRunListener.TestFailure.FAILURE),
+                EasyMock.eq(configured), EasyMock.contains("parallel failure"));
+        mListener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+        EasyMock.replay(mListener);
+        mHostTest.run(mListener);
+        EasyMock.verify(mListener);
+    }
+
     /**
      * Test for {@link HostTest#run(TestResult)}, for a {@link DeviceTest} where no device has been
      * provided.
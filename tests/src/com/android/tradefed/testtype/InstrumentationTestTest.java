@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -308,6 +309,51 @@ public class InstrumentationTestTest extends TestCase {
     }
 
 
+    /**
+     * Test that the tests completed by a previous invocation are skipped.
+     */
+    public void testRun_completedTests() throws Exception {
+        mInstrumentationTest.setRerunMode(true);
+        mInstrumentationTest.setCompletedTests(Arrays.asList(TEST1));
+        mMockRemoteRunner.setLogOnly(true);
+        mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                Long.toString(mInstrumentationTest.getTestDelay()));
+        mMockRemoteRunner.setMaxtimeToOutputResponse(COLLECT_TESTS_SHELL_TIMEOUT);
+        setCollectTestsExpectations(new CollectTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                listener.testStarted(TEST1);
+                listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                listener.testStarted(TEST2);
+                listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                listener.testRunEnded(1, EMPTY_STRING_MAP);
+                return true;
+            }
+        });
+        mMockRemoteRunner.setLogOnly(false);
+        mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+        mMockRemoteRunner.setMaxtimeToOutputResponse(TEST_TIMEOUT);
+        // expect only the remaining test to be run
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                listener.testStarted(TEST2);
+                listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                listener.testRunEnded(1, EMPTY_STRING_MAP);
+                return true;
+            }
+        });
+        mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+        mMockListener.testStarted(TEST2);
+        mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+        mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+
+        EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+        mInstrumentationTest.run(mMockListener);
+        EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+    }
 
     /**
      * Set EasyMock expectations for a run that fails.
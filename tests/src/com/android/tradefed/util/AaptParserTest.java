@@ -29,4 +29,17 @@ public class AaptParserTest extends TestCase {
             "uses-permission:'android.permission.INTERNET'");
         assertEquals("com.android.foo", p.getPackageName());
     }
+
+    public void testParseVersionCode() {
+        AaptParser p = new AaptParser();
+        p.parse("package: name='com.android.foo' versionCode='13' versionName='2.3'\n" +
+            "sdkVersion:'5'\n");
+        assertEquals(13, p.getVersionCode());
+    }
+
+    public void testParseVersionCode_missing() {
+        AaptParser p = new AaptParser();
+        p.parse("package: name='com.android.foo'\n");
+        assertEquals(-1, p.getVersionCode());
+    }
 }
@@ -20,7 +20,13 @@ import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Unit tests for {@link ClassPathScannerTest}
@@ -36,4 +42,58 @@ public class ClassPathScannerTest extends TestCase {
         Set<String> classEntries = cpScanner.getClassPathEntries(new ClassNameFilter());
         assertTrue(classEntries.contains(this.getClass().getName()));
     }
+
+    /**
+     * Write a jar holding given entries, each with its name as contents.
+     */
+    private void writeJar(File jar, String... entries) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (String entry : entries) {
+                out.putNextEntry(new ZipEntry(entry));
+                out.write(entry.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Test that the entries of a jar are read from its index when present, and scanned otherwise.
+     */
+    public void testGetEntriesFromJar_index() throws IOException {
+        File tmpDir = FileUtil.createTempDir("classpath-scanner");
+        try {
+            File indexed = new File(tmpDir, "indexed.jar");
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(indexed));
+            try {
+                out.putNextEntry(new ZipEntry(ClassPathScanner.INDEX_PATH));
+                // list an entry the jar does not hold, to tell the index was used
+                out.write(String.format("%s\ncom/foo/Indexed.class\n",
+                        ClassPathScanner.INDEX_HEADER).getBytes("UTF-8"));
+                out.closeEntry();
+            } finally {
+                out.close();
+            }
+            File scanned = new File(tmpDir, "scanned.jar");
+            writeJar(scanned, ClassPathScanner.INDEX_PATH, "com/foo/Scanned.class");
+
+            ClassPathScanner cpScanner = new ClassPathScanner();
+            assertEquals(Arrays.asList("com.foo.Indexed"), Arrays.asList(
+                    cpScanner.getEntriesFromJar(indexed, new ClassNameFilter()).toArray()));
+            // an index in an unknown format is ignored
+            assertEquals(Arrays.asList("com.foo.Scanned"), Arrays.asList(
+                    cpScanner.getEntriesFromJar(scanned, new ClassNameFilter()).toArray()));
+
+            // a rebuilt jar is read again
+            writeJar(scanned, "com/foo/Rebuilt.class", "com/foo/Rebuilt$Inner.class");
+            scanned.setLastModified(scanned.lastModified() + 2000);
+            assertEquals(Arrays.asList("com.foo.Rebuilt"), Arrays.asList(cpScanner
+                    .getEntriesFromJar(scanned, new ClassPathScanner.ExternalClassNameFilter())
+                    .toArray()));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.ddmlib.Log;
+import com.android.tradefed.util.ConcurrentConditionPriorityQueue.IPrioritizer;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import junit.framework.TestCase;
+
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Contention benchmark of {@link ConcurrentConditionPriorityQueue}, compared with
+ * {@link ConditionPriorityBlockingQueue}.
+ * <p/>
+ * Producer threads add prioritized elements while as many consumer threads poll them with
+ * matchers, like the command scheduler and the device allocations do. Each run also checks that
+ * every element is consumed exactly once.
+ */
+public class ConcurrentConditionPriorityQueueStressTest extends TestCase {
+
+    private static final String LOG_TAG = "ConcurrentConditionPriorityQueueStressTest";
+    private static final int PRODUCERS = 16;
+    private static final int CONSUMERS = 16;
+    private static final int ELEMENTS_PER_PRODUCER = 20000;
+    /** the number of distinct priorities, and of matcher classes */
+    private static final int PRIORITIES = 8;
+
+    /**
+     * The operations of the queue under test.
+     */
+    private static interface IQueue {
+        void add(Integer element);
+        Integer poll(long timeoutMs, IMatcher<Integer> matcher) throws InterruptedException;
+    }
+
+    /**
+     * Measure the throughput of {@link ConcurrentConditionPriorityQueue}.
+     */
+    public void testConcurrentQueueThroughput() throws InterruptedException {
+        final ConcurrentConditionPriorityQueue<Integer> queue =
+                new ConcurrentConditionPriorityQueue<Integer>(new IPrioritizer<Integer>() {
+                    @Override
+                    public long getPriority(Integer element) {
+                        return element % PRIORITIES;
+                    }
+                });
+        runContention("concurrent", new IQueue() {
+            @Override
+            public void add(Integer element) {
+                queue.add(element);
+            }
+
+            @Override
+            public Integer poll(long timeoutMs, IMatcher<Integer> matcher)
+                    throws InterruptedException {
+                return queue.poll(timeoutMs, TimeUnit.MILLISECONDS, matcher);
+            }
+        });
+    }
+
+    /**
+     * Measure the throughput of {@link ConditionPriorityBlockingQueue}.
+     */
+    public void testLockingQueueThroughput() throws InterruptedException {
+        final ConditionPriorityBlockingQueue<Integer> queue =
+                new ConditionPriorityBlockingQueue<Integer>(new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return (o1 % PRIORITIES) - (o2 % PRIORITIES);
+                    }
+                });
+        runContention("locking", new IQueue() {
+            @Override
+            public void add(Integer element) {
+                queue.add(element);
+            }
+
+            @Override
+            public Integer poll(long timeoutMs, IMatcher<Integer> matcher)
+                    throws InterruptedException {
+                return queue.poll(timeoutMs, TimeUnit.MILLISECONDS, matcher);
+            }
+        });
+    }
+
+    private void runContention(String mode, final IQueue queue) throws InterruptedException {
+        final int total = PRODUCERS * ELEMENTS_PER_PRODUCER;
+        final AtomicIntegerArray consumed = new AtomicIntegerArray(total);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch remaining = new CountDownLatch(total);
+        Thread[] threads = new Thread[PRODUCERS + CONSUMERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int first = p * ELEMENTS_PER_PRODUCER;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    awaitStart(start);
+                    for (int i = first; i < first + ELEMENTS_PER_PRODUCER; i++) {
+                        queue.add(i);
+                    }
+                }
+            };
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            // each consumer only takes the elements of two priorities
+            final int matchClass = c % (PRIORITIES / 2);
+            threads[PRODUCERS + c] = new Thread() {
+                @Override
+                public void run() {
+                    IMatcher<Integer> matcher = new IMatcher<Integer>() {
+                        @Override
+                        public boolean matches(Integer element) {
+                            return element % (PRIORITIES / 2) == matchClass;
+                        }
+                    };
+                    awaitStart(start);
+                    try {
+                        while (remaining.getCount() > 0) {
+                            Integer element = queue.poll(50, matcher);
+                            if (element != null) {
+                                consumed.incrementAndGet(element);
+                                remaining.countDown();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            };
+            threads[PRODUCERS + c].setDaemon(true);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long startTime = System.currentTimeMillis();
+        start.countDown();
+        assertTrue("elements were lost", remaining.await(5, TimeUnit.MINUTES));
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < total; i++) {
+            assertEquals(String.format("element %d consumed", i), 1, consumed.get(i));
+        }
+        Log.logAndDisplay(Log.LogLevel.INFO, LOG_TAG, String.format(
+                "%s: %d producers, %d consumers, %d elements in %d ms, %.0f elements/sec", mode,
+                PRODUCERS, CONSUMERS, total, elapsed, total * 1000.0 / elapsed));
+    }
+
+    private static void awaitStart(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConcurrentConditionPriorityQueue.IPrioritizer;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ConcurrentConditionPriorityQueue}.
+ */
+public class ConcurrentConditionPriorityQueueTest extends TestCase {
+
+    private ConcurrentConditionPriorityQueue<Integer> mQueue;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new ConcurrentConditionPriorityQueue<Integer>(new IntPrioritizer());
+    }
+
+    /**
+     * Test that elements are returned by priority, then in insertion order.
+     */
+    public void testPoll_priority() {
+        ConcurrentConditionPriorityQueue<Integer> tensQueue =
+                new ConcurrentConditionPriorityQueue<Integer>(new TensPrioritizer());
+        tensQueue.add(20);
+        tensQueue.add(11);
+        tensQueue.add(10);
+        assertEquals(Arrays.asList(11, 10, 20), tensQueue.getCopy());
+        assertEquals(Integer.valueOf(11), tensQueue.poll());
+        assertEquals(Integer.valueOf(10), tensQueue.poll());
+        assertEquals(Integer.valueOf(20), tensQueue.poll());
+        assertNull(tensQueue.poll());
+    }
+
+    /**
+     * Test FIFO ordering when no prioritizer is given.
+     */
+    public void testPoll_fifo() {
+        ConcurrentConditionPriorityQueue<Integer> fifoQueue =
+                new ConcurrentConditionPriorityQueue<Integer>();
+        fifoQueue.add(2);
+        fifoQueue.add(1);
+        assertEquals(Integer.valueOf(2), fifoQueue.poll());
+        assertEquals(Integer.valueOf(1), fifoQueue.poll());
+    }
+
+    /**
+     * Test {@link ConcurrentConditionPriorityQueue#poll(IMatcher)} skips elements that don't
+     * match.
+     */
+    public void testPoll_condition() throws InterruptedException {
+        mQueue.add(0);
+        mQueue.add(1);
+        assertEquals(Integer.valueOf(1), mQueue.poll(new OneMatcher()));
+        assertNull(mQueue.poll(new OneMatcher()));
+        assertNull(mQueue.poll(50, TimeUnit.MILLISECONDS, new OneMatcher()));
+        assertEquals(1, mQueue.size());
+    }
+
+    /**
+     * Test that a blocked poll is handed a matching element added later.
+     */
+    public void testTake_delayedAdd() throws InterruptedException {
+        mQueue.add(2);
+        Thread delayedAdd = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(200);
+                } catch (InterruptedException e) {
+                }
+                mQueue.add(1);
+            }
+        };
+        delayedAdd.start();
+        assertEquals(Integer.valueOf(1), mQueue.take(new OneMatcher()));
+        assertEquals(Arrays.asList(2), mQueue.getCopy());
+    }
+
+    /**
+     * Test that blocked polls are served in the order they were called.
+     */
+    public void testTake_firstCalledFirstServed() throws InterruptedException {
+        final Integer[] results = new Integer[2];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[0] = mQueue.poll(5, TimeUnit.SECONDS, new OneMatcher());
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[1] = mQueue.poll(500, TimeUnit.MILLISECONDS, new OneMatcher());
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        first.start();
+        Thread.sleep(100);
+        second.start();
+        Thread.sleep(100);
+        mQueue.add(1);
+        first.join();
+        second.join();
+        assertEquals(Integer.valueOf(1), results[0]);
+        assertNull(results[1]);
+    }
+
+    /**
+     * Test that an interrupted poll throws, and leaves elements in the queue.
+     */
+    public void testTake_interrupted() throws InterruptedException {
+        final boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mQueue.take(new OneMatcher());
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+        waiter.join();
+        assertTrue(interrupted[0]);
+        mQueue.add(1);
+        assertEquals(Integer.valueOf(1), mQueue.poll());
+    }
+
+    /**
+     * Test {@link ConcurrentConditionPriorityQueue#addUnique(IMatcher, Object)} and
+     * {@link ConcurrentConditionPriorityQueue#remove(Object)}.
+     */
+    public void testAddUnique_remove() {
+        assertNull(mQueue.addUnique(new OneMatcher(), 1));
+        assertEquals(Integer.valueOf(1), mQueue.addUnique(new OneMatcher(), 1));
+        assertEquals(1, mQueue.size());
+        assertTrue(mQueue.contains(1));
+        assertTrue(mQueue.remove(1));
+        assertFalse(mQueue.remove(1));
+        assertFalse(mQueue.contains(1));
+    }
+
+    /**
+     * A {@link IPrioritizer} for {@link Integer}
+     */
+    private static class IntPrioritizer implements IPrioritizer<Integer> {
+        @Override
+        public long getPriority(Integer element) {
+            return element;
+        }
+    }
+
+    /**
+     * A {@link IPrioritizer} for {@link Integer}, by tens
+     */
+    private static class TensPrioritizer implements IPrioritizer<Integer> {
+        @Override
+        public long getPriority(Integer element) {
+            return element / 10;
+        }
+    }
+
+    private static class OneMatcher implements IMatcher<Integer> {
+        @Override
+        public boolean matches(Integer element) {
+            return element == 1;
+        }
+    }
+}
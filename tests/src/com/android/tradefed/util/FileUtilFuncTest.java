@@ -172,6 +172,15 @@ public class FileUtilFuncTest extends TestCase {
         assertEquals(testContents, readContents);
     }
 
+    /**
+     * Simple test method for {@link FileUtil#calculateMd5(File)}.
+     */
+    public void testCalculateMd5() throws IOException {
+        File tmpFile = createTempFile("foo", ".txt");
+        FileUtil.writeToFile("hello world", tmpFile);
+        assertEquals("5eb63bbbe01eeed093cb22bb8f5acdc3", FileUtil.calculateMd5(tmpFile));
+    }
+
     public void testRecursiveDelete() throws IOException {
         File tmpParentDir = createTempDir("foo");
         File childDir = createTempDir("foochild", tmpParentDir);
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.config.OptionSetter;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link HostResourceGovernor}.
+ */
+public class HostResourceGovernorTest extends TestCase {
+
+    private HostResourceGovernor mGovernor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGovernor = new HostResourceGovernor();
+    }
+
+    /**
+     * Test that permits beyond the limit are not granted until one is released.
+     */
+    public void testTryAcquire_limit() throws Exception {
+        mGovernor.setLimit("foo", 2);
+        HostResourceGovernor.Permit first = mGovernor.tryAcquire("foo", 0);
+        HostResourceGovernor.Permit second = mGovernor.tryAcquire("foo", 0);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(mGovernor.tryAcquire("foo", 10));
+        assertEquals(2, mGovernor.getPool("foo").getInUse());
+
+        first.release();
+        // releasing twice must not free an extra permit
+        first.release();
+        assertNotNull(mGovernor.tryAcquire("foo", 0));
+        assertNull(mGovernor.tryAcquire("foo", 0));
+        assertEquals(3, mGovernor.getPool("foo").getAdmissions());
+    }
+
+    /**
+     * Test that resources without a limit are never queued.
+     */
+    public void testTryAcquire_unlimited() throws Exception {
+        mGovernor.setLimit("foo", 0);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(mGovernor.tryAcquire("foo", 0));
+        }
+        assertNotNull(mGovernor.tryAcquire("bar", 0));
+        assertEquals(100, mGovernor.getPool("foo").getInUse());
+    }
+
+    /**
+     * Test that a waiting caller is admitted once a permit is released, and that its wait is
+     * recorded.
+     */
+    public void testAcquire_wait() throws Exception {
+        mGovernor.setLimit("foo", 1);
+        final HostResourceGovernor.Permit permit = mGovernor.acquire("foo");
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mGovernor.acquire("foo").release();
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    // ignore, test will fail
+                }
+            }
+        };
+        waiter.start();
+        while (mGovernor.getPool("foo").getWaiting() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(1, admitted.getCount());
+        permit.release();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(2, mGovernor.getPool("foo").getAdmissions());
+        assertTrue(mGovernor.getPool("foo").getTotalWaitMs() >= 50);
+        assertEquals(0, mGovernor.getPool("foo").getInUse());
+    }
+
+    /**
+     * Test that the limits can be set as options, and that a limit is fixed once used.
+     */
+    public void testSetLimit_option() throws Exception {
+        OptionSetter setter = new OptionSetter(mGovernor);
+        setter.setOptionMapValue("host-resource-limit", HostResourceGovernor.FLASH, "1");
+        assertNotNull(mGovernor.tryAcquire(HostResourceGovernor.FLASH, 0));
+        mGovernor.setLimit(HostResourceGovernor.FLASH, 2);
+        assertNull(mGovernor.tryAcquire(HostResourceGovernor.FLASH, 0));
+    }
+
+    /**
+     * Test that the statistics of used resources are printed.
+     */
+    public void testPrintStats() throws Exception {
+        mGovernor.acquire(HostResourceGovernor.DOWNLOAD);
+        StringWriter output = new StringWriter();
+        mGovernor.printStats(new PrintWriter(output));
+        assertTrue(output.toString().contains(HostResourceGovernor.DOWNLOAD));
+        assertFalse(output.toString().contains(HostResourceGovernor.FLASH));
+    }
+}
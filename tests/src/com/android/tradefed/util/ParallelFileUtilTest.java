@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link ParallelFileUtil}.
+ */
+public class ParallelFileUtilTest extends TestCase {
+
+    private File mTmpDir;
+    private File mSourceDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("parallel-file-util");
+        mSourceDir = new File(mTmpDir, "source");
+        createTree(mSourceDir, 3, 4);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Create a tree of given depth, with <var>width</var> files and directories per directory.
+     */
+    private static void createTree(File dir, int depth, int width) throws IOException {
+        assertTrue(dir.mkdir());
+        for (int i = 0; i < width; i++) {
+            FileUtil.writeToFile(String.format("%s %d", dir.getName(), i),
+                    new File(dir, String.format("file%d.txt", i)));
+            if (depth > 1) {
+                createTree(new File(dir, String.format("dir%d", i)), depth - 1, width);
+            }
+        }
+    }
+
+    /**
+     * Assert that two trees have the same files and contents.
+     */
+    private static void assertSameTree(File expected, File actual) throws IOException {
+        String[] names = expected.list();
+        assertEquals(names.length, actual.list().length);
+        for (String name : names) {
+            File expectedChild = new File(expected, name);
+            File actualChild = new File(actual, name);
+            if (expectedChild.isDirectory()) {
+                assertTrue(actualChild.isDirectory());
+                assertSameTree(expectedChild, actualChild);
+            } else {
+                assertTrue(FileUtil.compareFileContents(expectedChild, actualChild));
+            }
+        }
+    }
+
+    /**
+     * Test copying a tree, in parallel and on the calling thread.
+     */
+    public void testRecursiveCopy() throws IOException {
+        for (int parallelism : new int[] {1, 4}) {
+            File destDir = new File(mTmpDir, String.format("copy%d", parallelism));
+            assertTrue(destDir.mkdir());
+            ParallelFileUtil.recursiveCopy(mSourceDir, destDir, parallelism);
+            assertSameTree(mSourceDir, destDir);
+        }
+    }
+
+    /**
+     * Test that copying a file overwrites the destination.
+     */
+    public void testCopyFile_overwrite() throws IOException {
+        File src = new File(mSourceDir, "file0.txt");
+        File dest = new File(mTmpDir, "dest.txt");
+        FileUtil.writeToFile("some longer existing contents", dest);
+        ParallelFileUtil.copyFile(src, dest);
+        assertTrue(FileUtil.compareFileContents(src, dest));
+    }
+
+    /**
+     * Test hardlinking a tree.
+     */
+    public void testRecursiveHardlink() throws IOException {
+        File destDir = new File(mTmpDir, "links");
+        assertTrue(destDir.mkdir());
+        ParallelFileUtil.recursiveHardlink(mSourceDir, destDir, 4);
+        assertSameTree(mSourceDir, destDir);
+    }
+
+    /**
+     * Test deleting a tree, without following a symlink out of it.
+     */
+    public void testRecursiveDelete() throws IOException {
+        File outside = new File(mTmpDir, "outside");
+        createTree(outside, 1, 2);
+        CommandResult result = RunUtil.getDefault().runTimedCmd(10 * 1000, "ln", "-s",
+                outside.getAbsolutePath(), new File(mSourceDir, "link").getAbsolutePath());
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+
+        ParallelFileUtil.recursiveDelete(mSourceDir, 4);
+        assertFalse(mSourceDir.exists());
+        assertEquals(2, outside.list().length);
+    }
+
+    /**
+     * Test extracting a zip created by {@link FileUtil#createZip(File, File)}.
+     */
+    public void testExtractZip() throws IOException {
+        File zip = new File(mTmpDir, "source.zip");
+        FileUtil.createZip(mSourceDir, zip);
+        File destDir = new File(mTmpDir, "extracted");
+        assertTrue(destDir.mkdir());
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ParallelFileUtil.extractZip(zipFile, destDir, 4);
+        } finally {
+            FileUtil.closeZip(zipFile);
+        }
+        assertSameTree(mSourceDir, new File(destDir, mSourceDir.getName()));
+    }
+
+    /**
+     * Test that entries that would be extracted outside of the destination are rejected.
+     */
+    public void testExtractZip_outside() throws IOException {
+        File zip = new File(mTmpDir, "evil.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.putNextEntry(new ZipEntry("../evil.txt"));
+            out.write("evil".getBytes());
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        File destDir = new File(mTmpDir, "extracted");
+        assertTrue(destDir.mkdir());
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ParallelFileUtil.extractZip(zipFile, destDir, 4);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            FileUtil.closeZip(zipFile);
+        }
+        assertFalse(new File(mTmpDir, "evil.txt").exists());
+    }
+}
@@ -103,5 +103,42 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
+
+    /**
+     * Make sure that non-finite measurements are counted but don't affect the statistics
+     */
+    public void testStats_nonFinite() {
+        mStats.add(Double.NaN);
+        assertEquals(1, mStats.size());
+        assertTrue(Double.isNaN(mStats.mean()));
+        assertTrue(Double.isNaN(mStats.median()));
+        mStats.add(1);
+        mStats.add(Double.POSITIVE_INFINITY);
+        mStats.add(3);
+        assertEquals(4, mStats.size());
+        assertEquals(2.0, mStats.mean(), 0.000001);
+        assertEquals(2.0, mStats.median(), 0.000001);
+        assertEquals(3.0, mStats.max(), 0.000001);
+    }
+
+    /**
+     * Make sure that a large dataset is not kept, and its median is estimated
+     */
+    public void testStats_large() {
+        int size = SimpleStats.MAX_EXACT_SIZE * 2;
+        for (int i = size; i > 0; --i) {
+            mStats.add(i);
+        }
+        assertEquals(size, mStats.size());
+        assertEquals((size + 1) / 2.0, mStats.mean(), 0.000001);
+        assertEquals((size + 1) / 2.0, mStats.median(),
+                size * StreamingStats.DEFAULT_RELATIVE_ERROR);
+        try {
+            mStats.getData();
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
 }
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+
+/**
+ * Unit tests for {@link StreamingStats}
+ */
+public class StreamingStatsTest extends TestCase {
+    private StreamingStats mStats = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        mStats = new StreamingStats();
+    }
+
+    /**
+     * Make sure that the class behaves as expected when there are no measurements
+     */
+    public void testStats_empty() {
+        assertTrue(mStats.isEmpty());
+        assertEquals(0, mStats.count());
+        assertTrue(Double.isNaN(mStats.mean()));
+        assertTrue(Double.isNaN(mStats.stdev()));
+        assertTrue(Double.isNaN(mStats.min()));
+        assertTrue(Double.isNaN(mStats.p50()));
+        assertTrue(mStats.getHistogram().isEmpty());
+    }
+
+    /**
+     * Test exact statistics of a small dataset.
+     */
+    public void testStats_exact() {
+        // [0, 10]
+        for (int i = 0; i <= 10; ++i) {
+            mStats.add(i);
+        }
+        assertEquals(11, mStats.count());
+        assertEquals(0, mStats.min(), 0.0);
+        assertEquals(10, mStats.max(), 0.0);
+        assertEquals(5.0, mStats.mean(), 0.000001);
+        assertEquals(55.0, mStats.sum(), 0.000001);
+        assertEquals(3.162278, mStats.stdev(), 0.000001);
+        assertEquals(5.0, mStats.p50(), 5.0 * StreamingStats.DEFAULT_RELATIVE_ERROR);
+        assertEquals(0.0, mStats.quantile(0), 0.0);
+        assertEquals(10.0, mStats.quantile(1), 0.0);
+    }
+
+    /**
+     * Test that estimated quantiles are within the relative error, including negative values.
+     */
+    public void testQuantiles() {
+        // [-1000, 9999]
+        for (int i = -1000; i < 10000; ++i) {
+            mStats.add(i);
+        }
+        double error = StreamingStats.DEFAULT_RELATIVE_ERROR;
+        assertEquals(4499.0, mStats.p50(), 4499.0 * error);
+        assertEquals(8899.0, mStats.p90(), 8899.0 * error);
+        assertEquals(9889.0, mStats.p99(), 9889.0 * error);
+        assertEquals(9988.0, mStats.p999(), 9988.0 * error);
+        assertEquals(-891.0, mStats.quantile(0.01), 891.0 * error);
+    }
+
+    /**
+     * Test that merging matches adding all measurements to a single instance.
+     */
+    public void testMerge() {
+        Random random = new Random(0);
+        StreamingStats shard1 = new StreamingStats();
+        StreamingStats shard2 = new StreamingStats();
+        for (int i = 0; i < 10000; ++i) {
+            double meas = random.nextGaussian() * 100 + 500;
+            mStats.add(meas);
+            (i % 3 == 0 ? shard1 : shard2).add(meas);
+        }
+        shard1.merge(shard2);
+        assertEquals(mStats.count(), shard1.count());
+        assertEquals(mStats.mean(), shard1.mean(), 0.000001);
+        assertEquals(mStats.stdev(), shard1.stdev(), 0.000001);
+        assertEquals(mStats.min(), shard1.min(), 0.0);
+        assertEquals(mStats.max(), shard1.max(), 0.0);
+        assertEquals(mStats.p99(), shard1.p99(), 0.0);
+        assertEquals(mStats.getHistogram(), shard1.getHistogram());
+    }
+
+    /**
+     * Test that merging stats with a different relative error is rejected.
+     */
+    public void testMerge_incompatible() {
+        try {
+            mStats.merge(new StreamingStats(0.05));
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the histogram export.
+     */
+    public void testGetHistogram() {
+        mStats.add(0);
+        mStats.add(-10);
+        mStats.add(10);
+        mStats.add(10);
+        SortedMap<Double, Long> histogram = mStats.getHistogram();
+        assertEquals(3, histogram.size());
+        long total = 0;
+        for (Map.Entry<Double, Long> bucket : histogram.entrySet()) {
+            total += bucket.getValue();
+        }
+        assertEquals(4, total);
+        assertEquals(1L, (long)histogram.get(0.0));
+        assertEquals(-10.0, histogram.firstKey(), 10.0 * StreamingStats.DEFAULT_RELATIVE_ERROR);
+        assertEquals(10.0, histogram.lastKey(), 10.0 * StreamingStats.DEFAULT_RELATIVE_ERROR);
+        assertEquals(2L, (long)histogram.get(histogram.lastKey()));
+    }
+
+    /**
+     * Test that non-finite measurements are counted and otherwise ignored.
+     */
+    public void testAdd_nonFinite() {
+        mStats.add(Double.NaN);
+        mStats.add(Double.NEGATIVE_INFINITY);
+        mStats.add(2.0);
+        assertEquals(1, mStats.count());
+        assertEquals(2, mStats.nonFiniteCount());
+        assertEquals(2.0, mStats.mean(), 0.000001);
+        assertEquals(2.0, mStats.min(), 0.000001);
+        StreamingStats other = new StreamingStats();
+        other.add(Double.NaN);
+        mStats.merge(other);
+        assertEquals(3, mStats.nonFiniteCount());
+    }
+}
@@ -18,28 +18,75 @@ package com.android.tradefed.utils.wifi;
 
 import android.app.Activity;
 import android.app.Instrumentation;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.BitSet;
 import java.util.List;
 
 /**
  * adb shell am instrument -e method (method name) -e arg1 val1 -e arg2 val2
  * -w com.android.tradefed.utils.wifi/.WifiUtils
+ * <p/>
+ * The "session" method keeps the instrumentation running, so many methods can be called without
+ * launching an instrumentation each time:
+ * <p/>
+ * adb shell am instrument -r -e method session -e token (token) [-e idleTimeout (ms)]
+ * -w com.android.tradefed.utils.wifi/.WifiUtil
+ * <p/>
+ * Once the session reports {@link #STATUS_READY}, it serves a single connection on the abstract
+ * local socket {@link #SOCKET_PREFIX} + token, which the host reaches with an adb forward. Each
+ * line sent on the connection is a method call, encoded as URL-encoded key=value pairs with the
+ * method, a request id and the method's arguments. Results, and any change of wifi state, are
+ * sent back as lines in the same encoding. The session ends on the "stopSession" method, when
+ * the connection closes, or once no method was called for the idle timeout.
  */
 public class WifiUtil extends Instrumentation {
     // FIXME: document exposed API methods and arguments
     private static final String TAG = "WifiUtil";
 
+    /** prefix of the name of the abstract local socket a session serves method calls on */
+    static final String SOCKET_PREFIX = "tradefed-wifiutil-";
+
+    /** status code reported when the session is ready, with the current wifi state */
+    static final int STATUS_READY = 10;
+
+    /** type of the session messages with the current wifi state */
+    static final String MESSAGE_EVENT = "event";
+    /** type of the session messages with the result of a method call */
+    static final String MESSAGE_RESULT = "result";
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
     private Bundle mArguments;
     private WifiManager mWifiManager = null;
 
+    // session state
+    private final Object mSessionLock = new Object();
+    private boolean mSessionStopped = false;
+    private long mLastCommandTime = 0;
+
     static class MissingArgException extends Exception {
         public MissingArgException(String msg) {
             super(msg);
@@ -69,8 +116,8 @@ public class WifiUtil extends Instrumentation {
         finish(Activity.RESULT_CANCELED, result);
     }
 
-    private String expectString(String arg) throws MissingArgException {
-        String val = mArguments.getString(arg);
+    private static String expectString(Bundle args, String arg) throws MissingArgException {
+        String val = args.getString(arg);
         if (TextUtils.isEmpty(val)) {
             throw MissingArgException.fromArg(arg);
         }
@@ -78,8 +125,8 @@ public class WifiUtil extends Instrumentation {
         return val;
     }
 
-    private int expectInteger(String arg) throws MissingArgException {
-        String val = expectString(arg);
+    private static int expectInteger(Bundle args, String arg) throws MissingArgException {
+        String val = expectString(args, arg);
         int intVal;
         try {
             intVal = Integer.parseInt(val);
@@ -97,7 +144,7 @@ public class WifiUtil extends Instrumentation {
         final Bundle result = new Bundle();
 
         try {
-            final String method = expectString("method");
+            final String method = expectString(mArguments, "method");
 
             mWifiManager = (WifiManager)getContext().getSystemService(Context.WIFI_SERVICE);
             if (mWifiManager == null) {
@@ -105,97 +152,12 @@ public class WifiUtil extends Instrumentation {
                 return;
             }
 
-            // As a pattern, method implementations below should gather arguments _first_, and then
-            // use those arguments so that the system is not left in an inconsistent state if an
-            // argument is missing in the middle of an implementation.
-            if ("enableWifi".equals(method)) {
-                result.putBoolean("result", mWifiManager.setWifiEnabled(true));
-            } else if ("disableWifi".equals(method)) {
-                result.putBoolean("result", mWifiManager.setWifiEnabled(false));
-            } else if ("addOpenNetwork".equals(method)) {
-                final String ssid = expectString("ssid");
-
-                final WifiConfiguration config = new WifiConfiguration();
-                // A string SSID _must_ be enclosed in double-quotation marks
-                config.SSID = quote(ssid);
-                // KeyMgmt should be NONE only
-                final BitSet keymgmt = new BitSet();
-                keymgmt.set(WifiConfiguration.KeyMgmt.NONE);
-                config.allowedKeyManagement = keymgmt;
-
-                result.putInt("result", mWifiManager.addNetwork(config));
-
-            } else if ("addWpaPskNetwork".equals(method)) {
-                final String ssid = expectString("ssid");
-                final String psk = expectString("psk");
-
-                final WifiConfiguration config = new WifiConfiguration();
-                // A string SSID _must_ be enclosed in double-quotation marks
-                config.SSID = quote(ssid);
-                // Likewise for the psk
-                config.preSharedKey = quote(psk);
-
-                result.putInt("result", mWifiManager.addNetwork(config));
-
-            } else if ("associateNetwork".equals(method)) {
-                final int id = expectInteger("id");
-
-                result.putBoolean("result",
-                        mWifiManager.enableNetwork(id, true /* disable other networks */));
-
-            } else if ("disconnect".equals(method)) {
-                result.putBoolean("result", mWifiManager.disconnect());
-
-            } else if ("disableNetwork".equals(method)) {
-                final int id = expectInteger("id");
-
-                result.putBoolean("result", mWifiManager.disableNetwork(id));
-
-            } else if ("isWifiEnabled".equals(method)) {
-                result.putBoolean("result", mWifiManager.isWifiEnabled());
-
-            } else if ("getIpAddress".equals(method)) {
-                final WifiInfo info = mWifiManager.getConnectionInfo();
-                final int addr = info.getIpAddress();
-
-                // IP address is stored with the first octet in the lowest byte
-                final int a = (addr >> 0) & 0xff;
-                final int b = (addr >> 8) & 0xff;
-                final int c = (addr >> 16) & 0xff;
-                final int d = (addr >> 24) & 0xff;
-
-                result.putString("result", String.format("%s.%s.%s.%s", a, b, c, d));
-
-            } else if ("getSSID".equals(method)) {
-                final WifiInfo info = mWifiManager.getConnectionInfo();
-
-                result.putString("result", info.getSSID());
-
-            } else if ("removeAllNetworks".equals(method)) {
-                boolean success = true;
-                List<WifiConfiguration> netlist = mWifiManager.getConfiguredNetworks();
-                if (netlist == null) {
-                    success = false;
-                } else {
-                    for (WifiConfiguration config : netlist) {
-                        success &= mWifiManager.removeNetwork(config.networkId);
-                    }
+            if ("session".equals(method)) {
+                if (!runSession(expectString(mArguments, "token"))) {
+                    fail("Couldn't open the session socket");
+                    return;
                 }
-
-                result.putBoolean("result", success);
-
-            } else if ("removeNetwork".equals(method)) {
-                final int id = expectInteger("id");
-
-                result.putBoolean("result", mWifiManager.removeNetwork(id));
-
-            } else if ("saveConfiguration".equals(method)) {
-                result.putBoolean("result", mWifiManager.saveConfiguration());
-
-            } else if ("getSupplicantState".equals(method)) {
-                String state = mWifiManager.getConnectionInfo().getSupplicantState().name();
-                result.putString("result", state);
-            } else {
+            } else if (!execute(method, mArguments, result)) {
                 fail(String.format("Didn't recognize method '%s'", method));
                 return;
             }
@@ -206,4 +168,314 @@ public class WifiUtil extends Instrumentation {
 
         finish(Activity.RESULT_OK, result);
     }
+
+    /**
+     * Execute a method.
+     *
+     * @param method the method name
+     * @param args the method arguments
+     * @param result the {@link Bundle} to store the method result in
+     * @return <code>false</code> if the method is not recognized
+     */
+    private boolean execute(String method, Bundle args, Bundle result)
+            throws MissingArgException {
+        // As a pattern, method implementations below should gather arguments _first_, and then
+        // use those arguments so that the system is not left in an inconsistent state if an
+        // argument is missing in the middle of an implementation.
+        if ("enableWifi".equals(method)) {
+            result.putBoolean("result", mWifiManager.setWifiEnabled(true));
+        } else if ("disableWifi".equals(method)) {
+            result.putBoolean("result", mWifiManager.setWifiEnabled(false));
+        } else if ("addOpenNetwork".equals(method)) {
+            final String ssid = expectString(args, "ssid");
+
+            final WifiConfiguration config = new WifiConfiguration();
+            // A string SSID _must_ be enclosed in double-quotation marks
+            config.SSID = quote(ssid);
+            // KeyMgmt should be NONE only
+            final BitSet keymgmt = new BitSet();
+            keymgmt.set(WifiConfiguration.KeyMgmt.NONE);
+            config.allowedKeyManagement = keymgmt;
+
+            result.putInt("result", mWifiManager.addNetwork(config));
+
+        } else if ("addWpaPskNetwork".equals(method)) {
+            final String ssid = expectString(args, "ssid");
+            final String psk = expectString(args, "psk");
+
+            final WifiConfiguration config = new WifiConfiguration();
+            // A string SSID _must_ be enclosed in double-quotation marks
+            config.SSID = quote(ssid);
+            // Likewise for the psk
+            config.preSharedKey = quote(psk);
+
+            result.putInt("result", mWifiManager.addNetwork(config));
+
+        } else if ("associateNetwork".equals(method)) {
+            final int id = expectInteger(args, "id");
+
+            result.putBoolean("result",
+                    mWifiManager.enableNetwork(id, true /* disable other networks */));
+
+        } else if ("disconnect".equals(method)) {
+            result.putBoolean("result", mWifiManager.disconnect());
+
+        } else if ("disableNetwork".equals(method)) {
+            final int id = expectInteger(args, "id");
+
+            result.putBoolean("result", mWifiManager.disableNetwork(id));
+
+        } else if ("isWifiEnabled".equals(method)) {
+            result.putBoolean("result", mWifiManager.isWifiEnabled());
+
+        } else if ("getIpAddress".equals(method)) {
+            result.putString("result", getIpAddress());
+
+        } else if ("getSSID".equals(method)) {
+            final WifiInfo info = mWifiManager.getConnectionInfo();
+
+            result.putString("result", info.getSSID());
+
+        } else if ("removeAllNetworks".equals(method)) {
+            boolean success = true;
+            List<WifiConfiguration> netlist = mWifiManager.getConfiguredNetworks();
+            if (netlist == null) {
+                success = false;
+            } else {
+                for (WifiConfiguration config : netlist) {
+                    success &= mWifiManager.removeNetwork(config.networkId);
+                }
+            }
+
+            result.putBoolean("result", success);
+
+        } else if ("removeNetwork".equals(method)) {
+            final int id = expectInteger(args, "id");
+
+            result.putBoolean("result", mWifiManager.removeNetwork(id));
+
+        } else if ("saveConfiguration".equals(method)) {
+            result.putBoolean("result", mWifiManager.saveConfiguration());
+
+        } else if ("getSupplicantState".equals(method)) {
+            String state = mWifiManager.getConnectionInfo().getSupplicantState().name();
+            result.putString("result", state);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private String getIpAddress() {
+        final WifiInfo info = mWifiManager.getConnectionInfo();
+        final int addr = info.getIpAddress();
+
+        // IP address is stored with the first octet in the lowest byte
+        final int a = (addr >> 0) & 0xff;
+        final int b = (addr >> 8) & 0xff;
+        final int c = (addr >> 16) & 0xff;
+        final int d = (addr >> 24) & 0xff;
+
+        return String.format("%s.%s.%s.%s", a, b, c, d);
+    }
+
+    /**
+     * @return a {@link Bundle} describing the current wifi state
+     */
+    private Bundle getWifiState() {
+        final Bundle state = new Bundle();
+        final WifiInfo info = mWifiManager.getConnectionInfo();
+        state.putString("wifiEnabled", Boolean.toString(mWifiManager.isWifiEnabled()));
+        state.putString("supplicantState", info.getSupplicantState().name());
+        state.putString("ipAddress", getIpAddress());
+        state.putString("ssid", info.getSSID());
+        return state;
+    }
+
+    /**
+     * Serve method calls sent on the session socket for given token, and report wifi state
+     * changes, until the session is stopped or idle.
+     *
+     * @return <code>false</code> if the session socket could not be opened
+     */
+    private boolean runSession(final String token) {
+        long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        try {
+            idleTimeout = expectInteger(mArguments, "idleTimeout");
+        } catch (MissingArgException e) {
+            // use default
+        }
+
+        final SessionConnection connection;
+        try {
+            connection = new SessionConnection(new LocalServerSocket(SOCKET_PREFIX + token));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open session socket", e);
+            return false;
+        }
+
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+
+        final BroadcastReceiver stateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                connection.send(MESSAGE_EVENT, getWifiState());
+            }
+        };
+        final IntentFilter stateFilter = new IntentFilter();
+        stateFilter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        stateFilter.addAction(WifiManager.SUPPLICANT_STATE_CHANGED_ACTION);
+        stateFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+
+        final Context context = getContext();
+        context.registerReceiver(stateReceiver, stateFilter, null, handler);
+        connection.start();
+        sendStatus(STATUS_READY, getWifiState());
+        try {
+            synchronized (mSessionLock) {
+                mLastCommandTime = SystemClock.elapsedRealtime();
+                long idle;
+                while (!mSessionStopped
+                        && (idle = SystemClock.elapsedRealtime() - mLastCommandTime)
+                                < idleTimeout) {
+                    mSessionLock.wait(idleTimeout - idle);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for session to end");
+        } finally {
+            context.unregisterReceiver(stateReceiver);
+            thread.quit();
+            connection.close();
+        }
+        return true;
+    }
+
+    private void stopSession() {
+        synchronized (mSessionLock) {
+            mSessionStopped = true;
+            mSessionLock.notifyAll();
+        }
+    }
+
+    /**
+     * Encode a session message as a line of URL-encoded key=value pairs.
+     */
+    private static String encode(Bundle message) throws UnsupportedEncodingException {
+        final StringBuilder sb = new StringBuilder();
+        for (String key : message.keySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(URLEncoder.encode(key, "UTF-8"));
+            sb.append('=');
+            sb.append(URLEncoder.encode(String.valueOf(message.get(key)), "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode a session message encoded by {@link #encode(Bundle)}.
+     */
+    private static Bundle decode(String line) throws UnsupportedEncodingException {
+        final Bundle message = new Bundle();
+        for (String pair : line.split("&")) {
+            final int sep = pair.indexOf('=');
+            if (sep > 0) {
+                message.putString(URLDecoder.decode(pair.substring(0, sep), "UTF-8"),
+                        URLDecoder.decode(pair.substring(sep + 1), "UTF-8"));
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Accepts the host connection of a session, and serves the method calls it sends until it
+     * disconnects.
+     */
+    private class SessionConnection extends Thread {
+        private final LocalServerSocket mServer;
+        private LocalSocket mSocket = null;
+        private Writer mWriter = null;
+
+        SessionConnection(LocalServerSocket server) {
+            super(TAG + "-session");
+            setDaemon(true);
+            mServer = server;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final LocalSocket socket = mServer.accept();
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                synchronized (this) {
+                    mSocket = socket;
+                    mWriter = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                }
+                send(MESSAGE_EVENT, getWifiState());
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    onCommand(decode(line));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Session connection failed", e);
+            } finally {
+                stopSession();
+            }
+        }
+
+        private void onCommand(Bundle args) {
+            synchronized (mSessionLock) {
+                mLastCommandTime = SystemClock.elapsedRealtime();
+            }
+            final Bundle result = new Bundle();
+            result.putString("id", args.getString("id"));
+            try {
+                final String method = expectString(args, "method");
+                if ("stopSession".equals(method)) {
+                    stopSession();
+                    result.putBoolean("result", true);
+                } else if (!execute(method, args, result)) {
+                    result.putString("error",
+                            String.format("Didn't recognize method '%s'", method));
+                }
+            } catch (MissingArgException e) {
+                result.putString("error", e.getMessage());
+            }
+            send(MESSAGE_RESULT, result);
+        }
+
+        /**
+         * Send a message to the host. Messages sent before the host connects are dropped: the
+         * current wifi state is sent on connection.
+         */
+        synchronized void send(String type, Bundle message) {
+            if (mWriter == null) {
+                return;
+            }
+            message.putString("type", type);
+            try {
+                mWriter.write(encode(message));
+                mWriter.write('\n');
+                mWriter.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to send session message", e);
+            }
+        }
+
+        synchronized void close() {
+            try {
+                mServer.close();
+                if (mSocket != null) {
+                    mSocket.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close session socket", e);
+            }
+        }
+    }
 }